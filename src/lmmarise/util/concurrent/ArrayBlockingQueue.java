@@ -67,6 +67,11 @@ import java.util.Spliterator;
  * generally decreases throughput but reduces variability and avoids
  * starvation.
  *
+ * <p>A queue may also be constructed with a {@link WaitStrategy}
+ * that blocking operations apply before acquiring the lock and
+ * waiting on a condition, trading processor time for lower handoff
+ * latency.
+ *
  * <p>This class and its iterator implement all of the
  * <em>optional</em> methods of the {@link Collection} and {@link
  * Iterator} interfaces.
@@ -116,6 +121,13 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
     /** Condition for waiting puts，为无法写入线程准备的的队列 */
     private final Condition notFull;        // 存储着等queue不为满的线程
 
+    /**
+     * Strategy applied by blocking operations before waiting on
+     * notEmpty or notFull, or null if they wait at once. Not
+     * serialized; deserialized queues wait at once.
+     */
+    private final transient WaitStrategy waitStrategy;
+
     /**
      * Shared state for currently active iterators, or null if there
      * are known not to be any.  Allows queue operations to update
@@ -260,6 +272,59 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
         lock = new ReentrantLock(fair);
         notEmpty = lock.newCondition();
         notFull =  lock.newCondition();
+        waitStrategy = null;
+    }
+
+    /**
+     * Creates an {@code ArrayBlockingQueue} with the given (fixed)
+     * capacity and access policy, whose blocking operations wait as
+     * directed by the given strategy before blocking.  {@code take}
+     * and {@code put}, and their timed forms, first spin or yield
+     * without holding the lock while the queue is empty or full
+     * respectively; if the strategy then calls for parking, or if
+     * another thread claims the element or space first, they block as
+     * usual.  Thus even strategies that never park may occasionally
+     * block.
+     *
+     * @param capacity the capacity of this queue
+     * @param fair if {@code true} then queue accesses for threads blocked
+     *        on insertion or removal, are processed in FIFO order;
+     *        if {@code false} the access order is unspecified.
+     * @param waitStrategy the wait strategy
+     * @throws IllegalArgumentException if {@code capacity < 1}
+     * @throws NullPointerException if {@code waitStrategy} is null
+     * @since 1.8
+     */
+    public ArrayBlockingQueue(int capacity, boolean fair,
+                              WaitStrategy waitStrategy) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException();
+        if (waitStrategy == null)
+            throw new NullPointerException();
+        this.items = new Object[capacity];
+        lock = new ReentrantLock(fair);
+        notEmpty = lock.newCondition();
+        notFull =  lock.newCondition();
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Spins or yields, as directed by the wait strategy, while count
+     * is c, until the strategy calls for parking or (if timed) the
+     * deadline passes. Callers then proceed to lock and recheck.
+     * count is written only under lock, so is read here via Unsafe
+     * to see its latest value without locking.
+     */
+    private void awaitCount(int c, boolean timed, long deadline)
+        throws InterruptedException {
+        final WaitStrategy ws = waitStrategy;
+        for (int k = 0; U.getIntVolatile(this, COUNT) == c && !ws.idle(k);
+             k = WaitStrategy.next(k)) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (timed && deadline - System.nanoTime() <= 0L)
+                break;
+        }
     }
 
     /**
@@ -355,6 +420,8 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
     public void put(E e) throws InterruptedException {
         checkNotNull(e);
         final ReentrantLock lock = this.lock;
+        if (waitStrategy != null)
+            awaitCount(items.length, false, 0L);    // 按等待策略自旋
         lock.lockInterruptibly();       // 线程安全
         try {
             while (count == items.length)
@@ -381,6 +448,11 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
         checkNotNull(e);
         long nanos = unit.toNanos(timeout);
         final ReentrantLock lock = this.lock;
+        if (waitStrategy != null) {
+            final long deadline = System.nanoTime() + nanos;
+            awaitCount(items.length, true, deadline);
+            nanos = deadline - System.nanoTime();
+        }
         lock.lockInterruptibly();
         try {
             while (count == items.length) {
@@ -407,6 +479,8 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
     /**获取并移除列表头元素,无元素一直等待*/
     public E take() throws InterruptedException {
         final ReentrantLock lock = this.lock;
+        if (waitStrategy != null)
+            awaitCount(0, false, 0L);   // 按等待策略自旋
         lock.lockInterruptibly();
         try {
             while (count == 0)
@@ -420,6 +494,11 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
     public E poll(long timeout, TimeUnit unit) throws InterruptedException {
         long nanos = unit.toNanos(timeout);
         final ReentrantLock lock = this.lock;
+        if (waitStrategy != null) {
+            final long deadline = System.nanoTime() + nanos;
+            awaitCount(0, true, deadline);
+            nanos = deadline - System.nanoTime();
+        }
         lock.lockInterruptibly();
         try {
             while (count == 0) {
@@ -1434,4 +1513,16 @@ public class ArrayBlockingQueue<E> extends AbstractQueue<E>
              Spliterator.CONCURRENT);
     }
 
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe U;
+    private static final long COUNT;
+    static {
+        try {
+            U = sun.misc.Unsafe.getUnsafe();
+            Class<?> k = ArrayBlockingQueue.class;
+            COUNT = U.objectFieldOffset(k.getDeclaredField("count"));
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
 }
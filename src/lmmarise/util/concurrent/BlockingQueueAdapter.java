@@ -0,0 +1,411 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package lmmarise.util.concurrent;
+
+import lmmarise.util.concurrent.locks.Condition;
+import lmmarise.util.concurrent.locks.ReentrantLock;
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Queue;
+
+/**
+ * A {@link BlockingQueue} that adds waiting to a bounded non-blocking
+ * {@link Queue}, such as an {@link SpscArrayQueue} or {@link
+ * MpscArrayQueue}, according to a {@link WaitStrategy}. Threads that
+ * find the queue empty (or full) repeatedly retry, spinning or
+ * yielding between attempts as directed by the strategy, and block
+ * only if the strategy parks. A lock is acquired only to block and to
+ * wake blocked threads, so with a strategy that never parks the
+ * underlying queue is accessed exactly as if used directly.
+ * 为非阻塞有界队列按等待策略增加阻塞语义：先自旋/让出重试，只有策略要求挂起时才加锁等待。
+ *
+ * <p>The adapter imposes no additional restrictions on which threads
+ * may call which methods, so an adapter over a single-consumer queue
+ * must itself be used by a single consumer. Methods that the
+ * underlying queue does not support throw {@code
+ * UnsupportedOperationException}.
+ *
+ * @since 1.8
+ * @param <E> the type of elements held in this collection
+ */
+public class BlockingQueueAdapter<E> extends AbstractQueue<E>
+        implements BlockingQueue<E> {
+
+    /*
+     * A thread that parks first increments the volatile count of
+     * waiters for its condition while holding the lock, and parks
+     * only if the queue is still empty (or full). The other side
+     * issues a full fence after each successful operation and
+     * signals under the lock only if it sees waiters. Either the
+     * waiter's recheck sees the operation or the signaller sees the
+     * waiter, and since the waiter holds the lock until it awaits,
+     * the signal cannot be lost. Strategies that never park skip the
+     * fence and the check.
+     */
+
+    private final Queue<E> queue;
+    private final int capacity;
+    private final WaitStrategy strategy;
+
+    /** Lock used only by parking threads and their signallers. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Condition for waiting takes. */
+    private final Condition notEmpty = lock.newCondition();
+
+    /** Condition for waiting puts. */
+    private final Condition notFull = lock.newCondition();
+
+    /** Number of threads parked on notEmpty; written under lock. */
+    private volatile int takers;
+
+    /** Number of threads parked on notFull; written under lock. */
+    private volatile int putters;
+
+    /**
+     * Creates an adapter over the given queue.
+     *
+     * @param queue the queue, which must reject insertions (by
+     *        returning {@code false} from {@code offer}) exactly when
+     *        it holds {@code capacity} elements
+     * @param capacity the capacity of the queue
+     * @param strategy the wait strategy
+     * @throws NullPointerException if queue or strategy is null
+     * @throws IllegalArgumentException if capacity is not positive
+     */
+    public BlockingQueueAdapter(Queue<E> queue, int capacity,
+                                WaitStrategy strategy) {
+        if (queue == null || strategy == null)
+            throw new NullPointerException();
+        if (capacity <= 0)
+            throw new IllegalArgumentException();
+        this.queue = queue;
+        this.capacity = capacity;
+        this.strategy = strategy;
+    }
+
+    /**
+     * Returns a blocking single-producer single-consumer queue backed
+     * by an {@link SpscArrayQueue}.
+     *
+     * @param capacity the minimum capacity, rounded up to a power of two
+     * @param strategy the wait strategy
+     * @param <E> the type of elements held in the queue
+     * @return the queue
+     * @throws NullPointerException if strategy is null
+     * @throws IllegalArgumentException if capacity is not positive or
+     *         exceeds {@code 1 << 30}
+     */
+    public static <E> BlockingQueueAdapter<E> spsc(int capacity,
+                                                   WaitStrategy strategy) {
+        SpscArrayQueue<E> q = new SpscArrayQueue<E>(capacity);
+        return new BlockingQueueAdapter<E>(q, q.capacity(), strategy);
+    }
+
+    /**
+     * Returns a blocking multi-producer single-consumer queue backed
+     * by an {@link MpscArrayQueue}.
+     *
+     * @param capacity the minimum capacity, rounded up to a power of two
+     * @param strategy the wait strategy
+     * @param <E> the type of elements held in the queue
+     * @return the queue
+     * @throws NullPointerException if strategy is null
+     * @throws IllegalArgumentException if capacity is not positive or
+     *         exceeds {@code 1 << 30}
+     */
+    public static <E> BlockingQueueAdapter<E> mpsc(int capacity,
+                                                   WaitStrategy strategy) {
+        MpscArrayQueue<E> q = new MpscArrayQueue<E>(capacity);
+        return new BlockingQueueAdapter<E>(q, q.capacity(), strategy);
+    }
+
+    /**
+     * Returns the wait strategy of this queue.
+     *
+     * @return the wait strategy
+     */
+    public WaitStrategy getWaitStrategy() {
+        return strategy;
+    }
+
+    private void signalNotEmpty() {
+        if (strategy.parks) {
+            U.fullFence();
+            if (takers != 0) {
+                final ReentrantLock lock = this.lock;
+                lock.lock();
+                try {
+                    notEmpty.signal();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private void signalNotFull() {
+        if (strategy.parks) {
+            U.fullFence();
+            if (putters != 0) {
+                final ReentrantLock lock = this.lock;
+                lock.lock();
+                try {
+                    notFull.signal();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Parks until signalled, or the timeout elapses, unless the queue
+     * is no longer empty.
+     */
+    private void awaitNotEmpty(boolean timed, long nanos)
+        throws InterruptedException {
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            takers++;
+            try {
+                if (queue.isEmpty()) {
+                    if (timed)
+                        notEmpty.awaitNanos(nanos);
+                    else
+                        notEmpty.await();
+                }
+            } finally {
+                takers--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Parks until signalled, or the timeout elapses, unless the queue
+     * is no longer full.
+     */
+    private void awaitNotFull(boolean timed, long nanos)
+        throws InterruptedException {
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            putters++;
+            try {
+                if (queue.size() >= capacity) {
+                    if (timed)
+                        notFull.awaitNanos(nanos);
+                    else
+                        notFull.await();
+                }
+            } finally {
+                putters--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Inserts the specified element into this queue if it is possible
+     * to do so immediately without exceeding its capacity.
+     *
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        if (!queue.offer(e))
+            return false;
+        signalNotEmpty();
+        return true;
+    }
+
+    /**
+     * @throws InterruptedException {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public void put(E e) throws InterruptedException {
+        offer(e, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @throws InterruptedException {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        if (e == null)
+            throw new NullPointerException();
+        long nanos = unit.toNanos(timeout);
+        final boolean timed = nanos != Long.MAX_VALUE;
+        final long deadline = timed ? System.nanoTime() + nanos : 0L;
+        for (int k = 0; !queue.offer(e); k = WaitStrategy.next(k)) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (timed && (nanos = deadline - System.nanoTime()) <= 0L)
+                return false;
+            if (strategy.idle(k))
+                awaitNotFull(timed, nanos);
+        }
+        signalNotEmpty();
+        return true;
+    }
+
+    public E poll() {
+        E x = queue.poll();
+        if (x != null)
+            signalNotFull();
+        return x;
+    }
+
+    public E take() throws InterruptedException {
+        return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        final boolean timed = nanos != Long.MAX_VALUE;
+        final long deadline = timed ? System.nanoTime() + nanos : 0L;
+        E x;
+        for (int k = 0; (x = queue.poll()) == null; k = WaitStrategy.next(k)) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (timed && (nanos = deadline - System.nanoTime()) <= 0L)
+                return null;
+            if (strategy.idle(k))
+                awaitNotEmpty(timed, nanos);
+        }
+        signalNotFull();
+        return x;
+    }
+
+    public E peek() {
+        return queue.peek();
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    public int remainingCapacity() {
+        int n = capacity - queue.size();
+        return (n < 0) ? 0 : n;
+    }
+
+    public boolean remove(Object o) {
+        if (!queue.remove(o))
+            return false;
+        signalNotFull();
+        return true;
+    }
+
+    public boolean contains(Object o) {
+        return queue.contains(o);
+    }
+
+    public Iterator<E> iterator() {
+        return queue.iterator();
+    }
+
+    public Object[] toArray() {
+        return queue.toArray();
+    }
+
+    public <T> T[] toArray(T[] a) {
+        return queue.toArray(a);
+    }
+
+    public String toString() {
+        return queue.toString();
+    }
+
+    /**
+     * @throws UnsupportedOperationException {@inheritDoc}
+     * @throws ClassCastException            {@inheritDoc}
+     * @throws NullPointerException          {@inheritDoc}
+     * @throws IllegalArgumentException      {@inheritDoc}
+     */
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @throws UnsupportedOperationException {@inheritDoc}
+     * @throws ClassCastException            {@inheritDoc}
+     * @throws NullPointerException          {@inheritDoc}
+     * @throws IllegalArgumentException      {@inheritDoc}
+     */
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        int n = 0;
+        for (E x; n < maxElements && (x = queue.poll()) != null; ++n)
+            c.add(x);
+        if (n > 0 && strategy.parks) {
+            U.fullFence();
+            if (putters != 0) {
+                final ReentrantLock lock = this.lock;
+                lock.lock();
+                try {
+                    notFull.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        return n;
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe U;
+    static {
+        try {
+            U = sun.misc.Unsafe.getUnsafe();
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
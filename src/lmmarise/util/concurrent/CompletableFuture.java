@@ -37,6 +37,9 @@ package lmmarise.util.concurrent;
 
 import lmmarise.util.concurrent.locks.LockSupport;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.function.*;
 
 /**
@@ -161,7 +164,10 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
      *   stage method of CompletableFuture x. It screens user
      *   arguments and invokes and/or creates the stage object.  If
      *   not async and x is already complete, the action is run
-     *   immediately.  Otherwise a Completion c is created, pushed to
+     *   immediately and its outcome is written into a newly
+     *   constructed (already completed) dependent, so no Completion
+     *   is allocated and no CAS or postComplete is needed on it.
+     *   Otherwise a Completion c is created, pushed to
      *   x's stack (unless done), and started or triggered via
      *   c.tryFire.  This also covers races possible if x completes
      *   while pushing.  Classes with two inputs (for example BiApply)
@@ -396,6 +402,91 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
     public static interface AsynchronousCompletionTask {
     }
 
+    /**
+     * A receiver of events describing the dependent actions of
+     * CompletableFutures, for profiling deep asynchronous pipelines.
+     * Events are reported for each internal stage object (whose class
+     * names, such as {@code UniApply}, {@code BiApply} or {@code
+     * OrApply}, identify the kind of stage) only if tracing was
+     * enabled at class initialization by setting system property
+     * {@code java.util.concurrent.CompletableFuture.tracing} to
+     * {@code true}, and a tracer is installed with {@link
+     * #setStageTracer}. Otherwise the hooks are compiled away.
+     *
+     * <p>Methods are invoked synchronously in the threads creating
+     * and running stages, so they should be fast and thread-safe.
+     * Exceptions they throw are ignored. Stages that do not need a
+     * stage object, such as a synchronous {@code thenApply} on an
+     * already completed future, are not reported.
+     *
+     * @see CompletionTraceRecorder
+     * @since 1.8
+     */
+    public static interface StageTracer {
+        /**
+         * Invoked in the creating thread once a stage has been linked
+         * to its sources.
+         *
+         * @param stage     the stage
+         * @param source    its source, or null if not applicable
+         * @param other     its second source, or null if none
+         * @param dependent the future it completes, or null if none
+         */
+        void stageCreated(AsynchronousCompletionTask stage,
+                          CompletableFuture<?> source,
+                          CompletableFuture<?> other,
+                          CompletableFuture<?> dependent);
+
+        /**
+         * Invoked in the executing thread after a stage has run its
+         * action. The interval covers the action and, unless the
+         * stage was triggered while propagating another completion,
+         * the dependents it triggered synchronously.
+         *
+         * @param stage      the stage
+         * @param thread     the thread that ran it
+         * @param startNanos {@link System#nanoTime} before the action
+         * @param endNanos   {@link System#nanoTime} after the action
+         */
+        void stageExecuted(AsynchronousCompletionTask stage, Thread thread,
+                           long startNanos, long endNanos);
+    }
+
+    /**
+     * True if stage tracing was enabled at startup.
+     */
+    static final boolean TRACING =
+            Boolean.getBoolean("java.util.concurrent.CompletableFuture.tracing");
+
+    /**
+     * The installed tracer, if any.
+     */
+    static volatile StageTracer tracer;
+
+    /**
+     * Installs the given tracer, replacing any previous one, or
+     * removes tracing if null.
+     *
+     * @param t the tracer, or null
+     * @throws IllegalStateException if tracing was not enabled at startup
+     *                               by system property {@code
+     *                               java.util.concurrent.CompletableFuture.tracing}
+     */
+    public static void setStageTracer(StageTracer t) {
+        if (!TRACING)
+            throw new IllegalStateException("tracing not enabled");
+        tracer = t;
+    }
+
+    /**
+     * Returns the installed tracer, or null if none.
+     *
+     * @return the tracer, or null
+     */
+    public static StageTracer getStageTracer() {
+        return tracer;
+    }
+
     private static final boolean useCommonPool =
             (ForkJoinPool.getCommonPoolParallelism() > 1);
 
@@ -426,6 +517,17 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
         return e;
     }
 
+    /**
+     * Returns true if the current thread is a worker of the given
+     * executor, so that a task submitted to it could equally well be
+     * run in place. Only ForkJoinPools can be recognized this way.
+     */
+    static boolean isCurrentThreadOn(Executor e) {
+        Thread t = Thread.currentThread();
+        return (t instanceof ForkJoinWorkerThread) &&
+                ((ForkJoinWorkerThread) t).pool == e;
+    }
+
     // Modes for Completion.tryFire. Signedness matters.
     static final int SYNC = 0;
     static final int ASYNC = 1;
@@ -451,12 +553,82 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
          */
         abstract boolean isLive();
 
+        /**
+         * Entry point for tryFire used wherever a Completion may run
+         * its action, reporting to the StageTracer if tracing is on.
+         * Mode SYNC is used only by the code creating a Completion,
+         * right after linking it, so it doubles as the creation event.
+         */
+        final CompletableFuture<?> fire(int mode) {
+            StageTracer t;
+            if (!TRACING || (t = tracer) == null)
+                return tryFire(mode);
+            return tracedFire(t, mode);
+        }
+
+        /**
+         * Runs tryFire, reporting creation for SYNC mode.
+         */
+        final CompletableFuture<?> tracedFire(StageTracer t, int mode) {
+            if (mode == SYNC)
+                reportCreated(t);
+            return tracedRun(t, mode);
+        }
+
+        /**
+         * Runs tryFire, reporting its start and end times if this
+         * call ran the action.
+         */
+        final CompletableFuture<?> tracedRun(StageTracer t, int mode) {
+            Completion s = this;    // report the shared base of a CoCompletion
+            if (s instanceof CoCompletion && (s = ((CoCompletion) s).base) == null)
+                return tryFire(mode);
+            boolean live = s.isLive();
+            long start = System.nanoTime();
+            CompletableFuture<?> f = tryFire(mode);
+            if (s.ranAction(live)) {
+                long end = System.nanoTime();
+                try {
+                    t.stageExecuted(s, Thread.currentThread(), start, end);
+                } catch (Throwable ignore) {
+                }
+            }
+            return f;
+        }
+
+        /**
+         * Returns true if the call to tryFire just made by the current
+         * thread ran this Completion's action, given whether it was
+         * live before the call. Used only when tracing.
+         */
+        boolean ranAction(boolean wasLive) {
+            return wasLive && !isLive();
+        }
+
+        /**
+         * Reports the creation of this Completion to the tracer.
+         */
+        final void reportCreated(StageTracer t) {
+            CompletableFuture<?> a = null, b = null, d = null;
+            if (this instanceof UniCompletion) {
+                UniCompletion<?, ?> c = (UniCompletion<?, ?>) this;
+                a = c.src;
+                d = c.dep;
+                if (c instanceof BiCompletion)
+                    b = ((BiCompletion<?, ?, ?>) c).snd;
+            }
+            try {
+                t.stageCreated(this, a, b, d);
+            } catch (Throwable ignore) {
+            }
+        }
+
         public final void run() {
-            tryFire(ASYNC);
+            fire(ASYNC);
         }
 
         public final boolean exec() {
-            tryFire(ASYNC);
+            fire(ASYNC);
             return true;
         }
 
@@ -495,7 +667,7 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
                     }
                     h.next = null;    // detach
                 }
-                f = (d = h.tryFire(NESTED)) == null ? this : d;
+                f = (d = h.fire(NESTED)) == null ? this : d;
             }
         }
     }
@@ -550,10 +722,13 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
          */
         final boolean claim() {
             Executor e = executor;
+            CompletableFuture<V> d;
             if (compareAndSetForkJoinTaskTag((short) 0, (short) 1)) {
                 if (e == null)
                     return true;
                 executor = null; // disable
+                if ((d = dep) != null && d.runsInline(e))
+                    return true;    // already on e: skip the handoff
                 e.execute(this);
             }
             return false;
@@ -564,6 +739,16 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
         }
     }
 
+    /**
+     * Returns a new dependent of this future already completed with
+     * the given encoded result. Call only before publication.
+     */
+    final <U> CompletableFuture<U> completedDependent(Object r) {
+        CompletableFuture<U> d = newIncompleteFuture();
+        d.result = r;
+        return d;
+    }
+
     /**
      * Pushes the given completion (if it exists) unless done.
      */
@@ -652,15 +837,38 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
     private <V> CompletableFuture<V> uniApplyStage(
             Executor e, Function<? super T, ? extends V> f) {
         if (f == null) throw new NullPointerException();
-        CompletableFuture<V> d = new CompletableFuture<V>();
-        if (e != null || !d.uniApply(this, f, null)) {
-            UniApply<T, V> c = new UniApply<T, V>(e, d, this, f);
-            push(c);        // 把第二个任务压入第一个任务执行结果所在的栈
-            c.tryFire(SYNC);
-        }
+        Object r;
+        if ((e == null || runsInline(e)) && (r = result) != null)
+            return uniApplyNow(r, f);
+        CompletableFuture<V> d = newIncompleteFuture();
+        UniApply<T, V> c = new UniApply<T, V>(e, d, this, f);
+        push(c);        // 把第二个任务压入第一个任务执行结果所在的栈
+        c.fire(SYNC);
         return d;
     }
 
+    /**
+     * Fast path of uniApplyStage for an already completed source:
+     * runs f in the caller and returns its outcome already set, with
+     * neither a Completion nor a CAS on the dependent.
+     */
+    private <V> CompletableFuture<V> uniApplyNow(
+            Object r, Function<? super T, ? extends V> f) {
+        Throwable x;
+        if (r instanceof AltResult) {
+            if ((x = ((AltResult) r).ex) != null)
+                return completedDependent(encodeThrowable(x, r));
+            r = null;
+        }
+        try {
+            @SuppressWarnings("unchecked") T t = (T) r;
+            V v = f.apply(t);
+            return completedDependent((v == null) ? NIL : v);
+        } catch (Throwable ex) {
+            return completedDependent(encodeThrowable(ex));
+        }
+    }
+
     @SuppressWarnings("serial")
     static final class UniAccept<T> extends UniCompletion<T, Void> {
         Consumer<? super T> fn;
@@ -715,17 +923,37 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
     private CompletableFuture<Void> uniAcceptStage(Executor e,
                                                    Consumer<? super T> f) {
         if (f == null) throw new NullPointerException();
-        CompletableFuture<Void> d = new CompletableFuture<>();
-        if (e != null       // thenApplyAsync
-                || !d.uniAccept(this, f, null)      // thenApply——前置任务已完成：直接调用处理；否则，入栈（这种情况下和thenApplyAsync没有区别）
-        ) {
-            UniAccept<T> c = new UniAccept<T>(e, d, this, f);       // thenApplyAsync使用UniAccept构建对象入栈
-            push(c);
-            c.tryFire(SYNC);
-        }
+        Object r;
+        if ((e == null || runsInline(e)) && (r = result) != null)      // thenAccept——前置任务已完成：直接调用处理，不创建Completion
+            return uniAcceptNow(r, f);
+        // thenAcceptAsync或前置任务未完成：入栈
+        CompletableFuture<Void> d = newIncompleteFuture();
+        UniAccept<T> c = new UniAccept<T>(e, d, this, f);
+        push(c);
+        c.fire(SYNC);
         return d;
     }
 
+    /**
+     * Fast path of uniAcceptStage for an already completed source.
+     */
+    private CompletableFuture<Void> uniAcceptNow(
+            Object r, Consumer<? super T> f) {
+        Throwable x;
+        if (r instanceof AltResult) {
+            if ((x = ((AltResult) r).ex) != null)
+                return completedDependent(encodeThrowable(x, r));
+            r = null;
+        }
+        try {
+            @SuppressWarnings("unchecked") T t = (T) r;
+            f.accept(t);
+            return completedDependent(NIL);
+        } catch (Throwable ex) {
+            return completedDependent(encodeThrowable(ex));
+        }
+    }
+
     @SuppressWarnings("serial")
     static final class UniRun<T> extends UniCompletion<T, Void> {
         Runnable fn;
@@ -772,12 +1000,22 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
 
     private CompletableFuture<Void> uniRunStage(Executor e, Runnable f) {
         if (f == null) throw new NullPointerException();
-        CompletableFuture<Void> d = new CompletableFuture<Void>();
-        if (e != null || !d.uniRun(this, f, null)) {
-            UniRun<T> c = new UniRun<T>(e, d, this, f);
-            push(c);
-            c.tryFire(SYNC);
+        Object r;
+        Throwable x;
+        if ((e == null || runsInline(e)) && (r = result) != null) {
+            if (r instanceof AltResult && (x = ((AltResult) r).ex) != null)
+                return completedDependent(encodeThrowable(x, r));
+            try {
+                f.run();
+                return completedDependent(NIL);
+            } catch (Throwable ex) {
+                return completedDependent(encodeThrowable(ex));
+            }
         }
+        CompletableFuture<Void> d = newIncompleteFuture();
+        UniRun<T> c = new UniRun<T>(e, d, this, f);
+        push(c);
+        c.fire(SYNC);
         return d;
     }
 
@@ -841,12 +1079,31 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
     private CompletableFuture<T> uniWhenCompleteStage(
             Executor e, BiConsumer<? super T, ? super Throwable> f) {
         if (f == null) throw new NullPointerException();
-        CompletableFuture<T> d = new CompletableFuture<T>();
-        if (e != null || !d.uniWhenComplete(this, f, null)) {
-            UniWhenComplete<T> c = new UniWhenComplete<T>(e, d, this, f);
-            push(c);
-            c.tryFire(SYNC);
+        Object r;
+        if ((e == null || runsInline(e)) && (r = result) != null) {
+            T t;
+            Throwable x = null;
+            try {
+                if (r instanceof AltResult) {
+                    x = ((AltResult) r).ex;
+                    t = null;
+                } else {
+                    @SuppressWarnings("unchecked") T tr = (T) r;
+                    t = tr;
+                }
+                f.accept(t, x);
+                if (x == null)
+                    return completedDependent(r);
+            } catch (Throwable ex) {
+                if (x == null)
+                    x = ex;
+            }
+            return completedDependent(encodeThrowable(x, r));
         }
+        CompletableFuture<T> d = newIncompleteFuture();
+        UniWhenComplete<T> c = new UniWhenComplete<T>(e, d, this, f);
+        push(c);
+        c.fire(SYNC);
         return d;
     }
 
@@ -905,12 +1162,29 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
     private <V> CompletableFuture<V> uniHandleStage(
             Executor e, BiFunction<? super T, Throwable, ? extends V> f) {
         if (f == null) throw new NullPointerException();
-        CompletableFuture<V> d = new CompletableFuture<V>();
-        if (e != null || !d.uniHandle(this, f, null)) {
-            UniHandle<T, V> c = new UniHandle<T, V>(e, d, this, f);
-            push(c);
-            c.tryFire(SYNC);
+        Object r;
+        if ((e == null || runsInline(e)) && (r = result) != null) {
+            T t;
+            Throwable x;
+            if (r instanceof AltResult) {
+                x = ((AltResult) r).ex;
+                t = null;
+            } else {
+                x = null;
+                @SuppressWarnings("unchecked") T tr = (T) r;
+                t = tr;
+            }
+            try {
+                V v = f.apply(t, x);
+                return completedDependent((v == null) ? NIL : v);
+            } catch (Throwable ex) {
+                return completedDependent(encodeThrowable(ex));
+            }
         }
+        CompletableFuture<V> d = newIncompleteFuture();
+        UniHandle<T, V> c = new UniHandle<T, V>(e, d, this, f);
+        push(c);
+        c.fire(SYNC);
         return d;
     }
 
@@ -962,11 +1236,11 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
     private CompletableFuture<T> uniExceptionallyStage(
             Function<Throwable, ? extends T> f) {
         if (f == null) throw new NullPointerException();
-        CompletableFuture<T> d = new CompletableFuture<T>();
+        CompletableFuture<T> d = newIncompleteFuture();
         if (!d.uniExceptionally(this, f, null)) {
             UniExceptionally<T> c = new UniExceptionally<T>(d, this, f);
             push(c);
-            c.tryFire(SYNC);
+            c.fire(SYNC);
         }
         return d;
     }
@@ -1046,7 +1320,7 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
                 if (g.result == null || !uniRelay(g)) {
                     UniRelay<T> copy = new UniRelay<T>(this, g);
                     g.push(copy);
-                    copy.tryFire(SYNC);
+                    copy.fire(SYNC);
                     if (result == null)
                         return false;
                 }
@@ -1062,11 +1336,11 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
         if (f == null) throw new NullPointerException();
         Object r;
         Throwable x;
-        if (e == null && (r = result) != null) {
+        if ((e == null || runsInline(e)) && (r = result) != null) {
             // try to return function result directly
             if (r instanceof AltResult) {
                 if ((x = ((AltResult) r).ex) != null) {
-                    return new CompletableFuture<V>(encodeThrowable(x, r));
+                    return completedDependent(encodeThrowable(x, r));
                 }
                 r = null;
             }
@@ -1075,20 +1349,20 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
                 CompletableFuture<V> g = f.apply(t).toCompletableFuture();
                 Object s = g.result;
                 if (s != null)
-                    return new CompletableFuture<V>(encodeRelay(s));
-                CompletableFuture<V> d = new CompletableFuture<V>();
+                    return completedDependent(encodeRelay(s));
+                CompletableFuture<V> d = newIncompleteFuture();
                 UniRelay<V> copy = new UniRelay<V>(d, g);
                 g.push(copy);
-                copy.tryFire(SYNC);
+                copy.fire(SYNC);
                 return d;
             } catch (Throwable ex) {
-                return new CompletableFuture<V>(encodeThrowable(ex));
+                return completedDependent(encodeThrowable(ex));
             }
         }
-        CompletableFuture<V> d = new CompletableFuture<V>();
+        CompletableFuture<V> d = newIncompleteFuture();
         UniCompose<T, V> c = new UniCompose<T, V>(e, d, this, f);
         push(c);
-        c.tryFire(SYNC);
+        c.fire(SYNC);
         return d;
     }
 
@@ -1234,11 +1508,11 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
         CompletableFuture<U> b;
         if (f == null || (b = o.toCompletableFuture()) == null)
             throw new NullPointerException();
-        CompletableFuture<V> d = new CompletableFuture<V>();
+        CompletableFuture<V> d = newIncompleteFuture();
         if (e != null || !d.biApply(this, b, f, null)) {
             BiApply<T, U, V> c = new BiApply<T, U, V>(e, d, this, b, f);
             bipush(b, c);
-            c.tryFire(SYNC);
+            c.fire(SYNC);
         }
         return d;
     }
@@ -1314,11 +1588,11 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
         CompletableFuture<U> b;
         if (f == null || (b = o.toCompletableFuture()) == null)
             throw new NullPointerException();
-        CompletableFuture<Void> d = new CompletableFuture<Void>();
+        CompletableFuture<Void> d = newIncompleteFuture();
         if (e != null || !d.biAccept(this, b, f, null)) {
             BiAccept<T, U> c = new BiAccept<T, U>(e, d, this, b, f);
             bipush(b, c);
-            c.tryFire(SYNC);
+            c.fire(SYNC);
         }
         return d;
     }
@@ -1380,11 +1654,11 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
         CompletableFuture<?> b;
         if (f == null || (b = o.toCompletableFuture()) == null)
             throw new NullPointerException();
-        CompletableFuture<Void> d = new CompletableFuture<Void>();
+        CompletableFuture<Void> d = newIncompleteFuture();
         if (e != null || !d.biRun(this, b, f, null)) {
             BiRun<T, ?> c = new BiRun<>(e, d, this, b, f);
             bipush(b, c);
-            c.tryFire(SYNC);
+            c.fire(SYNC);
         }
         return d;
     }
@@ -1447,7 +1721,7 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
             if (!d.biRelay(a, b)) {
                 BiRelay<?, ?> c = new BiRelay<>(d, a, b);
                 a.bipush(b, c);
-                c.tryFire(SYNC);
+                c.fire(SYNC);
             }
         }
         return d;
@@ -1538,11 +1812,11 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
         CompletableFuture<U> b;
         if (f == null || (b = o.toCompletableFuture()) == null)
             throw new NullPointerException();
-        CompletableFuture<V> d = new CompletableFuture<V>();
+        CompletableFuture<V> d = newIncompleteFuture();
         if (e != null || !d.orApply(this, b, f, null)) {
             OrApply<T, U, V> c = new OrApply<T, U, V>(e, d, this, b, f);
             orpush(b, c);
-            c.tryFire(SYNC);
+            c.fire(SYNC);
         }
         return d;
     }
@@ -1610,11 +1884,11 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
         CompletableFuture<U> b;
         if (f == null || (b = o.toCompletableFuture()) == null)
             throw new NullPointerException();
-        CompletableFuture<Void> d = new CompletableFuture<Void>();
+        CompletableFuture<Void> d = newIncompleteFuture();
         if (e != null || !d.orAccept(this, b, f, null)) {
             OrAccept<T, U> c = new OrAccept<T, U>(e, d, this, b, f);
             orpush(b, c);
-            c.tryFire(SYNC);
+            c.fire(SYNC);
         }
         return d;
     }
@@ -1675,11 +1949,11 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
         CompletableFuture<?> b;
         if (f == null || (b = o.toCompletableFuture()) == null)
             throw new NullPointerException();
-        CompletableFuture<Void> d = new CompletableFuture<Void>();
+        CompletableFuture<Void> d = newIncompleteFuture();
         if (e != null || !d.orRun(this, b, f, null)) {
             OrRun<T, ?> c = new OrRun<>(e, d, this, b, f);
             orpush(b, c);
-            c.tryFire(SYNC);
+            c.fire(SYNC);
         }
         return d;
     }
@@ -1731,14 +2005,234 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
             if (!d.orRelay(a, b)) {
                 OrRelay<?, ?> c = new OrRelay<>(d, a, b);
                 a.orpush(b, c);
-                c.tryFire(SYNC);
+                c.fire(SYNC);
             }
         }
         return d;
     }
 
+    /* ------------- Counted arbitrary-arity completions -------------- */
+
+    /*
+     * For more than two sources, allOf and anyOf avoid the trees
+     * built by andTree and orTree (about two Completions and one
+     * intermediate future per source, plus recursion proportional to
+     * the tree depth). Instead each source that is not yet done gets
+     * one relay pointing at shared state: for allOf a CountedAll
+     * holding a pending count that is atomically decremented as
+     * sources complete, in the manner of CountedCompleter, and for
+     * anyOf the dependent itself, which the first relay to fire
+     * completes. Sources already done when the construction runs
+     * need no relay at all.
+     */
+
+    /**
+     * Shared state of a counted allOf: the dependent, the number of
+     * sources still pending, the first exceptional outcome, and for
+     * the collecting forms the results in source order.
+     */
+    static final class CountedAll {
+        final CompletableFuture<?> dep;
+        final Object[] results;     // null unless collecting
+        final boolean asList;       // complete dep with a List view of results
+        volatile int pending;
+        volatile Object failure;    // first exceptional AltResult
+
+        CountedAll(CompletableFuture<?> dep, int pending,
+                   Object[] results, boolean asList) {
+            this.dep = dep;
+            this.pending = pending;
+            this.results = results;
+            this.asList = asList;
+        }
+
+        /**
+         * Records the outcome r of the source at index i, completing
+         * the dependent if it was the last one pending.
+         *
+         * @return true if this call completed the dependent
+         */
+        final boolean arrive(int i, Object r) {
+            Object f;
+            if (r instanceof AltResult) {
+                if (((AltResult) r).ex != null && failure == null)
+                    UNSAFE.compareAndSwapObject(this, FAILURE, null, r);
+            } else if (results != null)
+                results[i] = r;   // published by the decrement below
+            if (UNSAFE.getAndAddInt(this, PENDING, -1) != 1)
+                return false;
+            if ((f = failure) != null)
+                dep.completeRelay(f);
+            else if (results == null)
+                dep.completeNull();
+            else
+                dep.internalComplete(asList ? Arrays.asList(results) : results);
+            return true;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static final class CountedRelay extends Completion { // for counted allOf
+        CountedAll all;
+        CompletableFuture<?> src;
+        final int index;
+
+        CountedRelay(CountedAll all, CompletableFuture<?> src, int index) {
+            this.all = all;
+            this.src = src;
+            this.index = index;
+        }
+
+        final CompletableFuture<?> tryFire(int mode) {
+            CountedAll s;
+            CompletableFuture<?> a;
+            Object r;
+            if ((s = all) == null || (a = src) == null ||
+                    (r = a.result) == null ||
+                    !compareAndSetForkJoinTaskTag((short) 0, (short) 1))
+                return null;
+            all = null;
+            src = null;
+            return s.arrive(index, r) ? s.dep.postFire(null, mode) : null;
+        }
+
+        final boolean isLive() {
+            return all != null;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static final class AnyRelay extends Completion { // for counted anyOf
+        CompletableFuture<Object> dep;
+        CompletableFuture<?> src;
+        Thread relayer;     // thread that completed dep, if tracing
+
+        AnyRelay(CompletableFuture<Object> dep, CompletableFuture<?> src) {
+            this.dep = dep;
+            this.src = src;
+        }
+
+        final CompletableFuture<Object> tryFire(int mode) {
+            CompletableFuture<Object> d;
+            CompletableFuture<?> a;
+            Object r;
+            if ((d = dep) == null || (a = src) == null ||
+                    (r = a.result) == null)
+                return null;
+            dep = null;
+            src = null;
+            if (d.result == null && // no need to claim
+                    d.completeRelay(r) && TRACING)
+                relayer = Thread.currentThread();
+            return d.postFire(null, mode);
+        }
+
+        final boolean isLive() {
+            CompletableFuture<Object> d;
+            return (d = dep) != null && d.result == null;
+        }
+
+        /**
+         * Only the relay that completed dep ran; losing relays, whose
+         * dep was completed by another source meanwhile, did not.
+         * Since dep was incomplete while live, relayer was then unset.
+         */
+        final boolean ranAction(boolean wasLive) {
+            return wasLive && relayer == Thread.currentThread();
+        }
+    }
+
+    /**
+     * Pushes the given completion (which must not be a
+     * UniCompletion) unless done, and fires it if this is, or became,
+     * done meanwhile.
+     */
+    final void pushOrFire(Completion c) {
+        while (result == null && !tryPushStack(c))
+            lazySetNext(c, null); // clear on failure
+        StageTracer t;
+        if (!TRACING || (t = tracer) == null) {
+            if (result != null)
+                c.tryFire(SYNC);
+        }
+        else {
+            c.reportCreated(t); // whether or not fired now
+            if (result != null)
+                c.tracedRun(t, SYNC);
+        }
+    }
+
+    /**
+     * Completes d when all of cfs complete, using a CountedAll.
+     * If results is non-null, collects their values into it.
+     */
+    static void countedAll(CompletableFuture<?> d, CompletableFuture<?>[] cfs,
+                           Object[] results, boolean asList) {
+        int n = cfs.length;
+        for (CompletableFuture<?> f : cfs)
+            if (f == null) throw new NullPointerException();
+        if (n == 0) {
+            d.result = (results == null) ? NIL :
+                    asList ? Arrays.asList(results) : results;
+            return;
+        }
+        CountedAll s = new CountedAll(d, n, results, asList);
+        for (int i = 0; i < n; ++i) {
+            CompletableFuture<?> f = cfs[i];
+            Object r;
+            if ((r = f.result) != null)
+                s.arrive(i, r);
+            else
+                f.pushOrFire(new CountedRelay(s, f, i));
+        }
+    }
+
+    /**
+     * Completes a new future when any of cfs completes, relaying from
+     * each incomplete source directly to it.
+     */
+    static CompletableFuture<Object> countedAny(CompletableFuture<?>[] cfs) {
+        CompletableFuture<Object> d = new CompletableFuture<Object>();
+        for (CompletableFuture<?> f : cfs) {
+            Object r;
+            if (f == null) throw new NullPointerException();
+            if (d.result == null && (r = f.result) != null)
+                d.result = encodeRelay(r); // not yet published
+        }
+        for (int i = 0, n = cfs.length; i < n && d.result == null; ++i)
+            cfs[i].pushOrFire(new AnyRelay(d, cfs[i]));
+        return d;
+    }
+
     /* ------------- Zero-input Async forms -------------- */
 
+    /**
+     * Reports the creation of an async root task completing d, as a
+     * stage with no sources.
+     */
+    static void traceCreated(AsynchronousCompletionTask task,
+                             CompletableFuture<?> d) {
+        StageTracer t;
+        if ((t = tracer) != null) {
+            try {
+                t.stageCreated(task, null, null, d);
+            } catch (Throwable ignore) {
+            }
+        }
+    }
+
+    /**
+     * Reports that an async root task ran, from start until now.
+     */
+    static void traceExecuted(StageTracer t, AsynchronousCompletionTask task,
+                              long start) {
+        long end = System.nanoTime();
+        try {
+            t.stageExecuted(task, Thread.currentThread(), start, end);
+        } catch (Throwable ignore) {
+        }
+    }
+
     @SuppressWarnings("serial")
     static final class AsyncSupply<T> extends ForkJoinTask<Void>
             implements Runnable, AsynchronousCompletionTask {
@@ -1768,7 +2262,11 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
             if ((d = dep) != null && (f = fn) != null) {
                 dep = null;
                 fn = null;
+                StageTracer t = TRACING ? tracer : null;
+                long start = (t == null) ? 0L : System.nanoTime();
+                boolean ran = false;
                 if (d.result == null) {     // 任务未完成
+                    ran = true;
                     try {
                         d.completeValue(f.get());       // 将Supplier#get的执行结果塞入CompletableFuture
                     } catch (Throwable ex) {
@@ -1776,6 +2274,8 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
                     }
                 }
                 d.postComplete();       // 将第二步的任务弹出执行
+                if (ran && t != null)
+                    traceExecuted(t, this, start);
             }
         }
     }
@@ -1785,7 +2285,10 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
     {
         if (f == null) throw new NullPointerException();
         CompletableFuture<U> d = new CompletableFuture<U>();        // 任务返回值返回值
-        e.execute(new AsyncSupply<U>(d, f));
+        AsyncSupply<U> task = new AsyncSupply<U>(d, f);
+        if (TRACING)
+            traceCreated(task, d);
+        e.execute(task);
         return d;
     }
 
@@ -1818,7 +2321,11 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
             if ((d = dep) != null && (f = fn) != null) {
                 dep = null;
                 fn = null;
+                StageTracer t = TRACING ? tracer : null;
+                long start = (t == null) ? 0L : System.nanoTime();
+                boolean ran = false;
                 if (d.result == null) {
+                    ran = true;
                     try {
                         f.run();
                         d.completeNull();
@@ -1827,6 +2334,8 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
                     }
                 }
                 d.postComplete();
+                if (ran && t != null)
+                    traceExecuted(t, this, start);
             }
         }
     }
@@ -1834,7 +2343,10 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
     static CompletableFuture<Void> asyncRunStage(Executor e, Runnable f) {
         if (f == null) throw new NullPointerException();
         CompletableFuture<Void> d = new CompletableFuture<Void>();
-        e.execute(new AsyncRun(d, f));
+        AsyncRun task = new AsyncRun(d, f);
+        if (TRACING)
+            traceCreated(task, d);
+        e.execute(task);
         return d;
     }
 
@@ -2184,7 +2696,7 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
 
     public <U> CompletableFuture<U> thenApplyAsync(
             Function<? super T, ? extends U> fn) {
-        return uniApplyStage(asyncPool, fn);
+        return uniApplyStage(defaultExecutor(), fn);
     }
 
     public <U> CompletableFuture<U> thenApplyAsync(
@@ -2197,7 +2709,7 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
     }
 
     public CompletableFuture<Void> thenAcceptAsync(Consumer<? super T> action) {
-        return uniAcceptStage(asyncPool, action);
+        return uniAcceptStage(defaultExecutor(), action);
     }
 
     public CompletableFuture<Void> thenAcceptAsync(Consumer<? super T> action,
@@ -2210,7 +2722,7 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
     }
 
     public CompletableFuture<Void> thenRunAsync(Runnable action) {
-        return uniRunStage(asyncPool, action);
+        return uniRunStage(defaultExecutor(), action);
     }
 
     public CompletableFuture<Void> thenRunAsync(Runnable action,
@@ -2225,7 +2737,7 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
     public <U, V> CompletableFuture<V> thenCombineAsync(
             CompletionStage<? extends U> other,
             BiFunction<? super T, ? super U, ? extends V> fn) {
-        return biApplyStage(asyncPool, other, fn);
+        return biApplyStage(defaultExecutor(), other, fn);
     }
 
     public <U, V> CompletableFuture<V> thenCombineAsync(
@@ -2243,7 +2755,7 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
     public <U> CompletableFuture<Void> thenAcceptBothAsync(
             CompletionStage<? extends U> other,
             BiConsumer<? super T, ? super U> action) {
-        return biAcceptStage(asyncPool, other, action);
+        return biAcceptStage(defaultExecutor(), other, action);
     }
 
     public <U> CompletableFuture<Void> thenAcceptBothAsync(
@@ -2259,7 +2771,7 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
 
     public CompletableFuture<Void> runAfterBothAsync(CompletionStage<?> other,
                                                      Runnable action) {
-        return biRunStage(asyncPool, other, action);
+        return biRunStage(defaultExecutor(), other, action);
     }
 
     public CompletableFuture<Void> runAfterBothAsync(CompletionStage<?> other,
@@ -2275,7 +2787,7 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
 
     public <U> CompletableFuture<U> applyToEitherAsync(
             CompletionStage<? extends T> other, Function<? super T, U> fn) {
-        return orApplyStage(asyncPool, other, fn);
+        return orApplyStage(defaultExecutor(), other, fn);
     }
 
     public <U> CompletableFuture<U> applyToEitherAsync(
@@ -2291,7 +2803,7 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
 
     public CompletableFuture<Void> acceptEitherAsync(
             CompletionStage<? extends T> other, Consumer<? super T> action) {
-        return orAcceptStage(asyncPool, other, action);
+        return orAcceptStage(defaultExecutor(), other, action);
     }
 
     public CompletableFuture<Void> acceptEitherAsync(
@@ -2307,7 +2819,7 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
 
     public CompletableFuture<Void> runAfterEitherAsync(CompletionStage<?> other,
                                                        Runnable action) {
-        return orRunStage(asyncPool, other, action);
+        return orRunStage(defaultExecutor(), other, action);
     }
 
     public CompletableFuture<Void> runAfterEitherAsync(CompletionStage<?> other,
@@ -2322,7 +2834,7 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
 
     public <U> CompletableFuture<U> thenComposeAsync(
             Function<? super T, ? extends CompletionStage<U>> fn) {
-        return uniComposeStage(asyncPool, fn);
+        return uniComposeStage(defaultExecutor(), fn);
     }
 
     public <U> CompletableFuture<U> thenComposeAsync(
@@ -2337,7 +2849,7 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
 
     public CompletableFuture<T> whenCompleteAsync(
             BiConsumer<? super T, ? super Throwable> action) {
-        return uniWhenCompleteStage(asyncPool, action);
+        return uniWhenCompleteStage(defaultExecutor(), action);
     }
 
     public CompletableFuture<T> whenCompleteAsync(
@@ -2351,7 +2863,7 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
 
     public <U> CompletableFuture<U> handleAsync(
             BiFunction<? super T, Throwable, ? extends U> fn) {
-        return uniHandleStage(asyncPool, fn);
+        return uniHandleStage(defaultExecutor(), fn);
     }
 
     public <U> CompletableFuture<U> handleAsync(
@@ -2370,6 +2882,117 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
 
     // not in interface CompletionStage
 
+    /**
+     * Returns a new incomplete CompletableFuture of the type to be
+     * returned by a CompletionStage method. Subclasses should
+     * normally override this method to return an instance of the
+     * same class as this CompletableFuture. The default
+     * implementation returns an instance of class CompletableFuture.
+     *
+     * @param <U> the type of the value
+     * @return a new CompletableFuture
+     */
+    public <U> CompletableFuture<U> newIncompleteFuture() {
+        return new CompletableFuture<U>();
+    }
+
+    /**
+     * Returns the default Executor used for async methods that do not
+     * specify an Executor. This class uses the {@link
+     * ForkJoinPool#commonPool()} if it supports more than one
+     * parallel thread, or else an Executor using one thread per async
+     * task.  This method may be overridden in subclasses to return
+     * an Executor that provides at least one independent thread.
+     *
+     * @return the executor
+     */
+    public Executor defaultExecutor() {
+        return asyncPool;
+    }
+
+    /**
+     * Returns true if a dependent action that would be submitted to
+     * the given executor should instead run in the current thread.
+     * The default implementation always returns false.
+     */
+    boolean runsInline(Executor e) {
+        return false;
+    }
+
+    /**
+     * Returns a new CompletableFuture that is completed with the same
+     * value or exception as this CompletableFuture, and whose async
+     * methods without an explicit Executor use the given executor.
+     * The executor is inherited by every stage derived from the
+     * returned future, so it serves as the default for a whole chain.
+     *
+     * @param executor the default executor for the new chain
+     * @return the new CompletableFuture
+     * @throws NullPointerException if the executor is null
+     */
+    public CompletableFuture<T> withDefaultExecutor(Executor executor) {
+        return withDefaultExecutor(executor, false);
+    }
+
+    /**
+     * Returns a new CompletableFuture that is completed with the same
+     * value or exception as this CompletableFuture, and whose async
+     * methods without an explicit Executor use the given executor, as
+     * for {@link #withDefaultExecutor(Executor)}. If {@code
+     * runInlineOnExecutor} is true, an async action of the chain is
+     * run directly, without being submitted, when it is triggered
+     * from a thread of the executor it would be submitted to. This
+     * applies to explicitly supplied executors as well as the
+     * default, but only a {@link ForkJoinPool} can recognize its own
+     * threads; other executors always receive a submission.
+     *
+     * @param executor            the default executor for the new chain
+     * @param runInlineOnExecutor whether to run async actions in place
+     *                            when already on their target executor
+     * @return the new CompletableFuture
+     * @throws NullPointerException if the executor is null
+     */
+    public CompletableFuture<T> withDefaultExecutor(Executor executor,
+                                                    boolean runInlineOnExecutor) {
+        ExecutorBound<T> d = new ExecutorBound<T>(screenExecutor(executor),
+                runInlineOnExecutor);
+        Object r;
+        if ((r = result) != null)
+            d.result = encodeRelay(r);
+        else {
+            UniRelay<T> c = new UniRelay<T>(d, this);
+            push(c);
+            c.fire(SYNC);
+        }
+        return d;
+    }
+
+    /**
+     * A CompletableFuture whose dependents share its default executor
+     * and inline policy.
+     */
+    static final class ExecutorBound<T> extends CompletableFuture<T> {
+        final Executor executor;
+        final boolean inline;   // run in place when already on target
+
+        ExecutorBound(Executor executor, boolean inline) {
+            this.executor = executor;
+            this.inline = inline;
+        }
+
+        public <U> CompletableFuture<U> newIncompleteFuture() {
+            return new ExecutorBound<U>(executor, inline);
+        }
+
+        public Executor defaultExecutor() {
+            return executor;
+        }
+
+        boolean runsInline(Executor e) {
+            return inline && isCurrentThreadOn(e);
+        }
+    }
+
     /**
      * Returns a new CompletableFuture that is completed when this
      * CompletableFuture completes, with the result of the given
@@ -2415,7 +3038,83 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
      *                              {@code null}
      */
     public static CompletableFuture<Void> allOf(CompletableFuture<?>... cfs) {
-        return andTree(cfs, 0, cfs.length - 1);
+        if (cfs.length <= 2)
+            return andTree(cfs, 0, cfs.length - 1);
+        CompletableFuture<Void> d = new CompletableFuture<Void>();
+        countedAll(d, cfs, null, false);
+        return d;
+    }
+
+    /**
+     * Returns a new CompletableFuture that is completed when all of
+     * the given CompletableFutures complete, with a fixed-size list
+     * of their results in the given order.  If any of the given
+     * CompletableFutures complete exceptionally, then the returned
+     * CompletableFuture also does so, with a CompletionException
+     * holding one of these exceptions as its cause.  If no
+     * CompletableFutures are provided, returns a CompletableFuture
+     * completed with an empty list.
+     *
+     * <p>Like {@link #allOf}, this uses a single shared countdown
+     * rather than a tree of completions, so at most one small relay
+     * object is created per source that is not already complete.
+     *
+     * @param cfs the CompletableFutures
+     * @param <U> the type of the results
+     * @return a new CompletableFuture that is completed with the
+     * results of all of the given CompletableFutures
+     * @throws NullPointerException if the array or any of its elements are
+     *                              {@code null}
+     */
+    @SafeVarargs
+    public static <U> CompletableFuture<List<U>> allAsList(
+            CompletableFuture<? extends U>... cfs) {
+        int n = cfs.length;
+        CompletableFuture<?>[] a = new CompletableFuture<?>[n];
+        for (int i = 0; i < n; ++i)     // copy, so cfs never escapes
+            a[i] = cfs[i];
+        CompletableFuture<List<U>> d = new CompletableFuture<List<U>>();
+        countedAll(d, a, new Object[n], true);
+        return d;
+    }
+
+    /**
+     * Returns a new CompletableFuture that is completed when all of
+     * the given CompletableFutures complete, with a fixed-size list
+     * of their results in iteration order, as for {@link
+     * #allAsList(CompletableFuture[])}.
+     *
+     * @param cfs the CompletableFutures
+     * @param <U> the type of the results
+     * @return a new CompletableFuture that is completed with the
+     * results of all of the given CompletableFutures
+     * @throws NullPointerException if the collection or any of its
+     *                              elements are {@code null}
+     */
+    public static <U> CompletableFuture<List<U>> allAsList(
+            Collection<? extends CompletableFuture<? extends U>> cfs) {
+        CompletableFuture<?>[] a = cfs.toArray(new CompletableFuture<?>[0]);
+        CompletableFuture<List<U>> d = new CompletableFuture<List<U>>();
+        countedAll(d, a, new Object[a.length], true);
+        return d;
+    }
+
+    /**
+     * Returns a new CompletableFuture that is completed when all of
+     * the given CompletableFutures complete, with an array of their
+     * results in the given order, as for {@link
+     * #allAsList(CompletableFuture[])}.
+     *
+     * @param cfs the CompletableFutures
+     * @return a new CompletableFuture that is completed with the
+     * results of all of the given CompletableFutures
+     * @throws NullPointerException if the array or any of its elements are
+     *                              {@code null}
+     */
+    public static CompletableFuture<Object[]> allAsArray(CompletableFuture<?>... cfs) {
+        CompletableFuture<Object[]> d = new CompletableFuture<Object[]>();
+        countedAll(d, cfs, new Object[cfs.length], false);
+        return d;
     }
 
     /**
@@ -2434,7 +3133,8 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
      *                              {@code null}
      */
     public static CompletableFuture<Object> anyOf(CompletableFuture<?>... cfs) {
-        return orTree(cfs, 0, cfs.length - 1);
+        return (cfs.length <= 2) ? orTree(cfs, 0, cfs.length - 1) :
+                countedAny(cfs);
     }
 
     /* ------------- Control and status methods -------------- */
@@ -2556,11 +3256,336 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
                                 "[Completed normally]"));
     }
 
+    /* ------------- Timeouts, delays and retries -------------- */
+
+    /**
+     * Exceptionally completes this CompletableFuture with a {@link
+     * TimeoutException} if not otherwise completed before the given
+     * timeout. The timer entry is cancelled if this CompletableFuture
+     * completes first.
+     *
+     * @param timeout how long to wait before completing exceptionally
+     *                with a TimeoutException, in units of {@code unit}
+     * @param unit    a {@code TimeUnit} determining how to interpret the
+     *                {@code timeout} parameter
+     * @return this CompletableFuture
+     */
+    public CompletableFuture<T> orTimeout(long timeout, TimeUnit unit) {
+        if (unit == null) throw new NullPointerException();
+        if (result == null)
+            pushTimerCanceller(Delayer.delay(new TimeoutTask(this),
+                    timeout, unit));
+        return this;
+    }
+
+    /**
+     * Completes this CompletableFuture with the given value if not
+     * otherwise completed before the given timeout. The timer entry
+     * is cancelled if this CompletableFuture completes first.
+     *
+     * @param value   the value to use upon timeout
+     * @param timeout how long to wait before completing normally
+     *                with the given value, in units of {@code unit}
+     * @param unit    a {@code TimeUnit} determining how to interpret the
+     *                {@code timeout} parameter
+     * @return this CompletableFuture
+     */
+    public CompletableFuture<T> completeOnTimeout(T value, long timeout,
+                                                  TimeUnit unit) {
+        if (unit == null) throw new NullPointerException();
+        if (result == null)
+            pushTimerCanceller(Delayer.delay(new DelayedCompleter<T>(this, value),
+                    timeout, unit));
+        return this;
+    }
+
+    /**
+     * Returns a new Executor that submits a task to the given base
+     * executor after the given delay (or no delay if non-positive).
+     * Each delay commences upon invocation of the returned executor's
+     * {@code execute} method.
+     *
+     * @param delay    how long to delay, in units of {@code unit}
+     * @param unit     a {@code TimeUnit} determining how to interpret the
+     *                 {@code delay} parameter
+     * @param executor the base executor
+     * @return the new delayed executor
+     * @throws NullPointerException if either {@code unit} or {@code executor} is null
+     */
+    public static Executor delayedExecutor(long delay, TimeUnit unit,
+                                           Executor executor) {
+        if (unit == null || executor == null)
+            throw new NullPointerException();
+        return new DelayedExecutor(delay, unit, executor);
+    }
+
+    /**
+     * Returns a new Executor that submits a task to the default
+     * executor after the given delay (or no delay if non-positive).
+     * Each delay commences upon invocation of the returned executor's
+     * {@code execute} method.
+     *
+     * @param delay how long to delay, in units of {@code unit}
+     * @param unit  a {@code TimeUnit} determining how to interpret the
+     *              {@code delay} parameter
+     * @return the new delayed executor
+     * @throws NullPointerException if {@code unit} is null
+     */
+    public static Executor delayedExecutor(long delay, TimeUnit unit) {
+        if (unit == null) throw new NullPointerException();
+        return new DelayedExecutor(delay, unit, asyncPool);
+    }
+
+    /**
+     * Returns a new CompletableFuture that is completed with the
+     * result of the first successful stage obtained from the given
+     * action, retrying up to {@code maxAttempts} times in all. The
+     * action is first run asynchronously in the {@link
+     * ForkJoinPool#commonPool()}; after each exceptional outcome the
+     * next attempt is delayed by a backoff that starts at {@code
+     * initialBackoff} and doubles up to {@code maxBackoff}; if {@code
+     * initialBackoff} is zero, every attempt is made without delay,
+     * since doubling leaves it zero. If every
+     * attempt fails, the returned CompletableFuture completes
+     * exceptionally with the last failure. No further attempts are
+     * made once the returned CompletableFuture is completed by other
+     * means, for example cancelled.
+     *
+     * @param action         a function supplying the stage for one attempt
+     * @param maxAttempts    the maximum number of attempts
+     * @param initialBackoff the delay before the second attempt
+     * @param maxBackoff     the longest delay between attempts
+     * @param unit           a {@code TimeUnit} determining how to interpret
+     *                       the backoff parameters
+     * @param <U>            the function's return type
+     * @return the new CompletableFuture
+     * @throws IllegalArgumentException if {@code maxAttempts} is less than
+     *                                  one, {@code initialBackoff} is negative or {@code maxBackoff}
+     *                                  is less than {@code initialBackoff}
+     */
+    public static <U> CompletableFuture<U> retryAsync(
+            Supplier<? extends CompletionStage<U>> action, int maxAttempts,
+            long initialBackoff, long maxBackoff, TimeUnit unit) {
+        return retryAsync(action, maxAttempts, initialBackoff, maxBackoff,
+                unit, asyncPool);
+    }
+
+    /**
+     * Returns a new CompletableFuture that is completed with the
+     * result of the first successful stage obtained from the given
+     * action, as for {@link #retryAsync(Supplier, int, long, long,
+     * TimeUnit)}, running each attempt in the given executor.
+     *
+     * @param action         a function supplying the stage for one attempt
+     * @param maxAttempts    the maximum number of attempts
+     * @param initialBackoff the delay before the second attempt
+     * @param maxBackoff     the longest delay between attempts
+     * @param unit           a {@code TimeUnit} determining how to interpret
+     *                       the backoff parameters
+     * @param executor       the executor to use for attempts
+     * @param <U>            the function's return type
+     * @return the new CompletableFuture
+     * @throws IllegalArgumentException if {@code maxAttempts} is less than
+     *                                  one, {@code initialBackoff} is negative or {@code maxBackoff}
+     *                                  is less than {@code initialBackoff}
+     */
+    public static <U> CompletableFuture<U> retryAsync(
+            Supplier<? extends CompletionStage<U>> action, int maxAttempts,
+            long initialBackoff, long maxBackoff, TimeUnit unit,
+            Executor executor) {
+        if (action == null || unit == null) throw new NullPointerException();
+        if (maxAttempts < 1 || initialBackoff < 0L || maxBackoff < initialBackoff)
+            throw new IllegalArgumentException();
+        Executor e = screenExecutor(executor);
+        CompletableFuture<U> d = new CompletableFuture<U>();
+        e.execute(new Retry<U>(d, action, maxAttempts, unit.toNanos(initialBackoff),
+                unit.toNanos(maxBackoff), e));
+        return d;
+    }
+
+    /**
+     * Pushes a Completion that cancels the given timer entry when
+     * this CompletableFuture completes, firing it at once if already
+     * done. Unlike whenComplete, this creates no dependent future.
+     */
+    final void pushTimerCanceller(HashedWheelTimer.Timeout t) {
+        pushOrFire(new TimerCanceller(t));
+    }
+
+    /**
+     * Singleton timer used for timeouts, delays and retry backoff.
+     * Lazily started on first use.
+     */
+    static final class Delayer {
+        static HashedWheelTimer.Timeout delay(Runnable command, long delay,
+                                              TimeUnit unit) {
+            return timer.schedule(command, delay, unit);
+        }
+
+        static final HashedWheelTimer timer = new HashedWheelTimer(
+                HashedWheelTimer.DEFAULT_TICK_NANOS,
+                HashedWheelTimer.DEFAULT_WHEEL_SIZE,
+                "CompletableFutureDelayScheduler");
+    }
+
+    static final class DelayedExecutor implements Executor {
+        final long delay;
+        final TimeUnit unit;
+        final Executor executor;
+
+        DelayedExecutor(long delay, TimeUnit unit, Executor executor) {
+            this.delay = delay;
+            this.unit = unit;
+            this.executor = executor;
+        }
+
+        public void execute(Runnable r) {
+            if (r == null) throw new NullPointerException();
+            Delayer.delay(new TaskSubmitter(executor, r), delay, unit);
+        }
+    }
+
+    /**
+     * Action to submit user task; runs in the timer thread.
+     */
+    static final class TaskSubmitter implements Runnable {
+        final Executor executor;
+        final Runnable action;
+
+        TaskSubmitter(Executor executor, Runnable action) {
+            this.executor = executor;
+            this.action = action;
+        }
+
+        public void run() {
+            executor.execute(action);
+        }
+    }
+
+    /**
+     * Action to completeExceptionally on timeout.
+     */
+    static final class TimeoutTask implements Runnable {
+        final CompletableFuture<?> f;
+
+        TimeoutTask(CompletableFuture<?> f) {
+            this.f = f;
+        }
+
+        public void run() {
+            if (f != null && !f.isDone())
+                f.completeExceptionally(new TimeoutException());
+        }
+    }
+
+    /**
+     * Action to complete on timeout.
+     */
+    static final class DelayedCompleter<U> implements Runnable {
+        final CompletableFuture<U> f;
+        final U u;
+
+        DelayedCompleter(CompletableFuture<U> f, U u) {
+            this.f = f;
+            this.u = u;
+        }
+
+        public void run() {
+            if (f != null)
+                f.complete(u);
+        }
+    }
+
+    /**
+     * Completion cancelling the timer entry of a timeout once its
+     * future completes.
+     */
+    @SuppressWarnings("serial")
+    static final class TimerCanceller extends Completion {
+        HashedWheelTimer.Timeout timeout;
+
+        TimerCanceller(HashedWheelTimer.Timeout timeout) {
+            this.timeout = timeout;
+        }
+
+        final CompletableFuture<?> tryFire(int ignore) {
+            HashedWheelTimer.Timeout t;
+            if ((t = timeout) != null) {
+                timeout = null;
+                t.cancel();
+            }
+            return null;
+        }
+
+        final boolean isLive() {
+            return timeout != null;
+        }
+    }
+
+    /**
+     * Drives retryAsync: runs one attempt, and on failure schedules
+     * the next after the current backoff. Attempts never overlap, so
+     * the mutable fields need no synchronization beyond the
+     * happens-before edges of the executor and the attempt's stage.
+     */
+    static final class Retry<U> implements Runnable, BiConsumer<U, Throwable> {
+        final CompletableFuture<U> dep;
+        final Supplier<? extends CompletionStage<U>> action;
+        final Executor executor;
+        final long maxBackoff;      // nanos
+        long backoff;               // nanos
+        int attemptsLeft;
+
+        Retry(CompletableFuture<U> dep,
+              Supplier<? extends CompletionStage<U>> action,
+              int attempts, long backoff, long maxBackoff, Executor executor) {
+            this.dep = dep;
+            this.action = action;
+            this.attemptsLeft = attempts;
+            this.backoff = backoff;
+            this.maxBackoff = maxBackoff;
+            this.executor = executor;
+        }
+
+        public void run() {
+            if (dep.result != null)
+                return;
+            CompletionStage<U> s;
+            try {
+                if ((s = action.get()) == null)
+                    throw new NullPointerException();
+            } catch (Throwable ex) {
+                accept(null, ex);
+                return;
+            }
+            s.whenComplete(this);
+        }
+
+        public void accept(U u, Throwable x) {
+            Throwable cause;
+            if (x == null)
+                dep.complete(u);
+            else if (--attemptsLeft <= 0 || dep.result != null) {
+                if ((x instanceof CompletionException) &&
+                        (cause = x.getCause()) != null)
+                    x = cause;
+                dep.completeExceptionally(x);
+            } else {
+                long b = backoff;
+                backoff = (b >= (maxBackoff >>> 1)) ? maxBackoff : b << 1;
+                Delayer.delay(new TaskSubmitter(executor, this), b,
+                        TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
     // Unsafe mechanics
     private static final sun.misc.Unsafe UNSAFE;
     private static final long RESULT;
     private static final long STACK;
     private static final long NEXT;
+    private static final long PENDING;
+    private static final long FAILURE;
 
     static {
         try {
@@ -2571,6 +3596,10 @@ public class CompletableFuture<T> implements Future<T>, CompletionStage<T> {
             STACK = u.objectFieldOffset(k.getDeclaredField("stack"));
             NEXT = u.objectFieldOffset
                     (Completion.class.getDeclaredField("next"));
+            PENDING = u.objectFieldOffset
+                    (CountedAll.class.getDeclaredField("pending"));
+            FAILURE = u.objectFieldOffset
+                    (CountedAll.class.getDeclaredField("failure"));
         } catch (Exception x) {
             throw new Error(x);
         }
@@ -0,0 +1,220 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package lmmarise.util.concurrent;
+
+import lmmarise.util.concurrent.atomic.AtomicReference;
+
+import java.io.IOException;
+
+/**
+ * A {@link CompletableFuture.StageTracer} that records stage events
+ * in memory and exports them in the Trace Event format read by
+ * {@code chrome://tracing} and similar viewers. Each executed stage
+ * appears as a slice on the track of the thread that ran it, named
+ * by the kind of stage ({@code UniApply}, {@code BiAccept}, ...);
+ * creations appear as instant events on the creating thread, with
+ * the identities of the stage, its sources and its dependent, from
+ * which the dependency graph can be rebuilt.
+ *
+ * <p>Identities are {@link System#identityHashCode identity hash
+ * codes}, so that recording retains no stages or futures; they are
+ * not guaranteed to be unique. Recording appends to a lock-free
+ * list and never blocks. A typical use:
+ *
+ * <pre> {@code
+ * // run with -Djava.util.concurrent.CompletableFuture.tracing=true
+ * CompletionTraceRecorder rec = new CompletionTraceRecorder();
+ * CompletableFuture.setStageTracer(rec);
+ * runPipeline();
+ * CompletableFuture.setStageTracer(null);
+ * try (Writer w = new FileWriter("trace.json")) {
+ *   rec.writeTraceEvents(w);
+ * }}</pre>
+ *
+ * @since 1.8
+ */
+public class CompletionTraceRecorder implements CompletableFuture.StageTracer {
+
+    /** A recorded event; a stack node of the event list */
+    static final class Event {
+        final Event next;
+        final String name;       // stage kind
+        final int id;            // stage identity
+        final int source, other, dependent; // creation only, else 0
+        final long threadId;
+        final String threadName;
+        final long start, end;   // end < 0 for creation
+        final boolean created;
+
+        Event(Event next, String name, int id, int source, int other,
+              int dependent, Thread thread, long start, long end,
+              boolean created) {
+            this.next = next;
+            this.name = name;
+            this.id = id;
+            this.source = source;
+            this.other = other;
+            this.dependent = dependent;
+            this.threadId = thread.getId();
+            this.threadName = thread.getName();
+            this.start = start;
+            this.end = end;
+            this.created = created;
+        }
+    }
+
+    /** Most recent event, linking to earlier ones */
+    private final AtomicReference<Event> events = new AtomicReference<Event>();
+
+    /** Origin of exported timestamps */
+    private final long origin = System.nanoTime();
+
+    /**
+     * Creates a new, empty recorder.
+     */
+    public CompletionTraceRecorder() {
+    }
+
+    public void stageCreated(CompletableFuture.AsynchronousCompletionTask stage,
+                             CompletableFuture<?> source,
+                             CompletableFuture<?> other,
+                             CompletableFuture<?> dependent) {
+        Thread t = Thread.currentThread();
+        long now = System.nanoTime();
+        String name = stage.getClass().getSimpleName();
+        Event h;
+        do {
+            h = events.get();
+        } while (!events.compareAndSet(h, new Event(
+                h, name, identity(stage), identity(source), identity(other),
+                identity(dependent), t, now, -1L, true)));
+    }
+
+    public void stageExecuted(CompletableFuture.AsynchronousCompletionTask stage,
+                              Thread thread, long startNanos, long endNanos) {
+        String name = stage.getClass().getSimpleName();
+        Event h;
+        do {
+            h = events.get();
+        } while (!events.compareAndSet(h, new Event(
+                h, name, identity(stage), 0, 0, 0, thread,
+                startNanos, endNanos, false)));
+    }
+
+    private static int identity(Object x) {
+        return (x == null) ? 0 : System.identityHashCode(x);
+    }
+
+    /**
+     * Returns the number of events recorded so far.
+     *
+     * @return the number of events
+     */
+    public int getEventCount() {
+        int n = 0;
+        for (Event e = events.get(); e != null; e = e.next)
+            ++n;
+        return n;
+    }
+
+    /**
+     * Discards all recorded events.
+     */
+    public void clear() {
+        events.set(null);
+    }
+
+    /**
+     * Writes the events recorded so far, oldest first, as a Trace
+     * Event format JSON object.
+     *
+     * @param out the destination
+     * @throws IOException if thrown by {@code out}
+     */
+    public void writeTraceEvents(Appendable out) throws IOException {
+        Event h = events.get();             // one snapshot for both passes
+        int n = 0;
+        for (Event e = h; e != null; e = e.next)
+            ++n;
+        Event[] a = new Event[n];
+        for (Event e = h; e != null; e = e.next)
+            a[--n] = e;
+        out.append("{\"traceEvents\":[");
+        for (int i = n; i < a.length; ++i) {
+            Event e = a[i];
+            if (i > n)
+                out.append(',');
+            out.append("\n{\"name\":\"").append(e.name)
+                    .append("\",\"cat\":\"CompletableFuture\",\"pid\":1,\"tid\":")
+                    .append(Long.toString(e.threadId))
+                    .append(",\"ts\":").append(micros(e.start - origin));
+            if (e.created)
+                out.append(",\"ph\":\"i\",\"s\":\"t\",\"args\":{\"event\":\"created\",\"stage\":")
+                        .append(Integer.toString(e.id))
+                        .append(",\"source\":").append(Integer.toString(e.source))
+                        .append(",\"other\":").append(Integer.toString(e.other))
+                        .append(",\"dependent\":").append(Integer.toString(e.dependent));
+            else
+                out.append(",\"ph\":\"X\",\"dur\":").append(micros(e.end - e.start))
+                        .append(",\"args\":{\"stage\":").append(Integer.toString(e.id));
+            out.append(",\"thread\":\"").append(escape(e.threadName)).append("\"}}");
+        }
+        out.append("\n]}\n");
+    }
+
+    private static String micros(long nanos) {
+        // Emit the sign separately: nanos / 1000 is 0 for -999..-1 ns
+        return ((nanos < 0L) ? "-" : "") +
+                Long.toString(Math.abs(nanos / 1000L)) + '.' +
+                Long.toString(1000L + Math.abs(nanos % 1000L)).substring(1);
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = null;
+        for (int i = 0, n = s.length(); i < n; ++i) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\' || c < 0x20) {
+                if (sb == null)
+                    sb = new StringBuilder(s.substring(0, i));
+                if (c < 0x20)
+                    sb.append(String.format("\\u%04x", (int) c));
+                else
+                    sb.append('\\').append(c);
+            } else if (sb != null)
+                sb.append(c);
+        }
+        return (sb == null) ? s : sb.toString();
+    }
+}
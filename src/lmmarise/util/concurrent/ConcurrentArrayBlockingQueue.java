@@ -0,0 +1,720 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package lmmarise.util.concurrent;
+import lmmarise.util.concurrent.locks.Condition;
+import lmmarise.util.concurrent.locks.ReentrantLock;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A bounded {@linkplain BlockingQueue blocking queue} backed by an
+ * array of sequence-numbered slots, in which producers and consumers
+ * do not serialize on a common lock. This queue orders elements FIFO
+ * (first-in-first-out). Inserting and removing elements is lock-free
+ * in the common case; threads acquire a lock and block only when
+ * they must wait because the queue is full or empty.
+ * 基于带序号槽位数组的有界阻塞队列：生产者和消费者各自CAS推进尾、头计数，
+ * 只有在队列满或空需要等待时才加锁阻塞。
+ *
+ * <p>The capacity is rounded up to the nearest power of two, and is
+ * at least two, so the bound on the number of elements, and the
+ * value of {@code remainingCapacity}, may exceed the capacity given
+ * to the constructor. Like
+ * {@link ArrayBlockingQueue}, attempts to {@code put} an element into
+ * a full queue block, and attempts to {@code take} an element from an
+ * empty queue block. Unlike {@code ArrayBlockingQueue}, no fairness
+ * policy is supported, {@code size} is an estimate while other
+ * threads are modifying the queue, and an element removed other than
+ * at the head, via {@code remove(Object)} or {@code Iterator.remove},
+ * continues to occupy its slot (and to be counted by {@code size})
+ * until the head passes it.
+ *
+ * <p>The iterator is <a href="package-summary.html#Weakly"><i>weakly
+ * consistent</i></a>. It traverses a snapshot of the elements taken
+ * when it is created, and supports {@code remove}.
+ *
+ * @since 1.8
+ * @param <E> the type of elements held in this collection
+ */
+public class ConcurrentArrayBlockingQueue<E> extends AbstractQueue<E>
+        implements BlockingQueue<E> {
+
+    /*
+     * This is the bounded multi-producer multi-consumer queue of
+     * Dmitry Vyukov. Slot i carries a sequence number, initially i.
+     * A producer claims position p by CASing tail from p to p + 1,
+     * which succeeds only if slot p & mask has sequence p (that is,
+     * it is free in the current lap). It then stores the item and
+     * publishes it by setting the sequence to p + 1. A consumer
+     * claims position p by CASing head when the slot's sequence is
+     * p + 1, takes the item, and frees the slot for the next lap by
+     * setting its sequence to p + capacity. Sequence numbers thus
+     * tell each side whether a slot is ready without reading the
+     * other side's counter, and head and tail are on separate cache
+     * lines, so producers and consumers touch different lines except
+     * for the slot being handed over.
+     *
+     * Blocking is layered on top with a lock and two conditions, used
+     * only by waiting threads. A thread that must wait increments the
+     * volatile count of waiters for its condition while holding the
+     * lock, and then retries. The other side checks the count after
+     * its CAS on head or tail, which is a full fence, and signals
+     * under the lock only if it is nonzero. Either the retry
+     * succeeds, or the other side sees the waiter, and the waiter
+     * holds the lock until it awaits, so no signal is lost. A waiter
+     * that finds a slot claimed but not yet published (tail moved
+     * past head but the sequence not updated) yields rather than
+     * awaiting, because the thread that will publish it may not
+     * signal. Likewise a producer that finds its slot taken but not
+     * yet freed (head moved past it) yields and retries instead of
+     * reporting the queue full, so offer fails only when tail - head
+     * has reached the capacity.
+     *
+     * An element is removed other than at the head by CASing its
+     * item to the REMOVED tombstone while its slot is published in
+     * the lap it was read in. Consumers take items with getAndSet,
+     * so each element is either taken or removed, never both. A
+     * consumer that claims a tombstone frees the slot and moves on,
+     * and a remover reclaims tombstones at the head itself, so
+     * removing the head frees capacity at once. Interior tombstones
+     * are freed when the head reaches them.
+     */
+
+    /** Item of a slot whose element has been removed. */
+    static final Object REMOVED = new Object();
+
+    /** The slots; capacity is items.length. */
+    final Object[] items;
+
+    /** Slot sequence numbers, accessed via Unsafe. */
+    final long[] sequences;
+
+    /** items.length - 1. */
+    final int mask;
+
+    /** Next position to take from. */
+    @sun.misc.Contended("head")
+    volatile long head;
+
+    /** Next position to put into. */
+    @sun.misc.Contended("tail")
+    volatile long tail;
+
+    /** Lock used only by waiting threads and their signallers. */
+    final ReentrantLock lock = new ReentrantLock();
+
+    /** Condition for waiting takes. */
+    private final Condition notEmpty = lock.newCondition();
+
+    /** Condition for waiting puts. */
+    private final Condition notFull = lock.newCondition();
+
+    /** Number of threads waiting on notEmpty; written under lock. */
+    private volatile int emptyWaiters;
+
+    /** Number of threads waiting on notFull; written under lock. */
+    private volatile int fullWaiters;
+
+    /**
+     * Creates a {@code ConcurrentArrayBlockingQueue} with at least the
+     * given capacity. The actual capacity is {@code capacity} rounded
+     * up to a power of two, and at least two.
+     *
+     * @param capacity the minimum capacity of this queue
+     * @throws IllegalArgumentException if {@code capacity < 1} or
+     *         {@code capacity > 1 << 30}
+     */
+    public ConcurrentArrayBlockingQueue(int capacity) {
+        if (capacity <= 0 || capacity > MAXIMUM_CAPACITY)
+            throw new IllegalArgumentException();
+        // 至少两个槽位，否则发布序号p + 1与释放序号p + capacity无法区分
+        int n = (capacity <= 2) ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        items = new Object[n];
+        long[] seqs = new long[n];
+        for (int i = 0; i < n; ++i)
+            seqs[i] = i;
+        sequences = seqs;
+        mask = n - 1;
+    }
+
+    /**
+     * Creates a {@code ConcurrentArrayBlockingQueue} with at least the
+     * given capacity, initially containing the elements of the given
+     * collection, added in traversal order of the collection's
+     * iterator.
+     *
+     * @param capacity the minimum capacity of this queue
+     * @param c the collection of elements to initially contain
+     * @throws IllegalArgumentException if {@code capacity} is less than
+     *         {@code c.size()}, less than 1, or more than {@code 1 << 30}
+     * @throws NullPointerException if the specified collection or any
+     *         of its elements are null
+     */
+    public ConcurrentArrayBlockingQueue(int capacity,
+                                        Collection<? extends E> c) {
+        this(capacity);
+        for (E e : c) {
+            if (!offer(e))
+                throw new IllegalArgumentException();
+        }
+    }
+
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    private static long seqOffset(long p, int mask) {
+        return ((p & mask) << SSHIFT) + SBASE;
+    }
+
+    private static long itemOffset(long p, int mask) {
+        return ((p & mask) << ASHIFT) + ABASE;
+    }
+
+    /**
+     * Inserts e if a slot is free, returning false if full. A slot
+     * claimed by a consumer but not yet freed is waited for, not
+     * reported as full.
+     */
+    private boolean tryOffer(E e) {
+        final long[] seqs = sequences;
+        final int mask = this.mask;
+        for (;;) {
+            long p = tail;
+            long off = seqOffset(p, mask);
+            long d = U.getLongVolatile(seqs, off) - p;
+            if (d == 0L) {
+                if (U.compareAndSwapLong(this, TAIL, p, p + 1L)) {
+                    items[(int) p & mask] = e;
+                    U.putOrderedLong(seqs, off, p + 1L);    // 发布元素
+                    return true;
+                }
+            }
+            else if (d < 0L && p == tail) {
+                // 槽位仍被上一轮占用：队列满，或消费者已领取尚未释放
+                if (p - head >= items.length)
+                    return false;
+                Thread.yield();     // 等待消费者释放槽位
+            }
+        }
+    }
+
+    /**
+     * Removes the head if one is published, returning null if none.
+     */
+    @SuppressWarnings("unchecked")
+    private E tryPoll() {
+        final long[] seqs = sequences;
+        final Object[] items = this.items;
+        final int mask = this.mask;
+        for (;;) {
+            long p = head;
+            long off = seqOffset(p, mask);
+            long d = U.getLongVolatile(seqs, off) - (p + 1L);
+            if (d == 0L) {
+                if (U.compareAndSwapLong(this, HEAD, p, p + 1L)) {
+                    Object x = U.getAndSetObject(items, itemOffset(p, mask), null);
+                    U.putOrderedLong(seqs, off, p + items.length);  // 释放槽位给下一轮
+                    if (x != REMOVED)
+                        return (E) x;
+                    signalNotFull();        // 跳过已删除的元素，但槽位已释放
+                }
+            }
+            else if (d < 0L) {
+                if (p == head)
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * Reclaims the slots of removed elements at the head.
+     */
+    private void skipRemoved() {
+        final long[] seqs = sequences;
+        final Object[] items = this.items;
+        final int mask = this.mask;
+        for (;;) {
+            long p = head;
+            long off = seqOffset(p, mask);
+            long ioff = itemOffset(p, mask);
+            if (U.getLongVolatile(seqs, off) != p + 1L ||
+                U.getObjectVolatile(items, ioff) != REMOVED)
+                return;
+            if (U.compareAndSwapLong(this, HEAD, p, p + 1L)) {
+                U.putObject(items, ioff, null);
+                U.putOrderedLong(seqs, off, p + items.length);
+                signalNotFull();
+            }
+        }
+    }
+
+    /**
+     * Removes element x at position p, if it is still there.
+     *
+     * @return true if removed
+     */
+    private boolean removeAt(long p, Object x) {
+        final int mask = this.mask;
+        if (U.getLongVolatile(sequences, seqOffset(p, mask)) != p + 1L ||
+            !U.compareAndSwapObject(items, itemOffset(p, mask), x, REMOVED))
+            return false;
+        skipRemoved();
+        return true;
+    }
+
+    /**
+     * Wakes a waiting taker, if any. Call after a successful insert.
+     */
+    private void signalNotEmpty() {
+        if (emptyWaiters != 0) {
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Wakes a waiting putter, if any. Call after a successful removal.
+     */
+    private void signalNotFull() {
+        if (fullWaiters != 0) {
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue if it is
+     * possible to do so immediately without exceeding the queue's capacity,
+     * returning {@code true} upon success and throwing an
+     * {@code IllegalStateException} if this queue is full.
+     *
+     * @param e the element to add
+     * @return {@code true} (as specified by {@link Collection#add})
+     * @throws IllegalStateException if this queue is full
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean add(E e) {
+        return super.add(e);
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue if it is
+     * possible to do so immediately without exceeding the queue's capacity,
+     * returning {@code true} upon success and {@code false} if this queue
+     * is full.
+     *
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        if (!tryOffer(e))
+            return false;
+        signalNotEmpty();
+        return true;
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue, waiting
+     * for space to become available if the queue is full.
+     *
+     * @throws InterruptedException {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public void put(E e) throws InterruptedException {
+        offer(e, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue, waiting
+     * up to the specified wait time for space to become available if
+     * the queue is full.
+     *
+     * @throws InterruptedException {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        if (e == null)
+            throw new NullPointerException();
+        if (tryOffer(e)) {
+            signalNotEmpty();
+            return true;
+        }
+        long nanos = unit.toNanos(timeout);
+        boolean timed = nanos != Long.MAX_VALUE;
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            fullWaiters++;
+            try {
+                for (;;) {
+                    if (tryOffer(e))
+                        break;
+                    if (tail - head < items.length)
+                        Thread.yield();     // 有消费者已领取但尚未释放槽位
+                    else if (!timed)
+                        notFull.await();
+                    else if (nanos <= 0L)
+                        return false;
+                    else
+                        nanos = notFull.awaitNanos(nanos);
+                }
+            } finally {
+                fullWaiters--;
+            }
+        } finally {
+            lock.unlock();
+        }
+        signalNotEmpty();
+        return true;
+    }
+
+    public E poll() {
+        E x = tryPoll();
+        if (x != null)
+            signalNotFull();
+        return x;
+    }
+
+    public E take() throws InterruptedException {
+        return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E x = tryPoll();
+        if (x == null) {
+            long nanos = unit.toNanos(timeout);
+            boolean timed = nanos != Long.MAX_VALUE;
+            final ReentrantLock lock = this.lock;
+            lock.lockInterruptibly();
+            try {
+                emptyWaiters++;
+                try {
+                    while ((x = tryPoll()) == null) {
+                        if (tail != head)
+                            Thread.yield(); // 有生产者已领取但尚未发布元素
+                        else if (!timed)
+                            notEmpty.await();
+                        else if (nanos <= 0L)
+                            return null;
+                        else
+                            nanos = notEmpty.awaitNanos(nanos);
+                    }
+                } finally {
+                    emptyWaiters--;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        signalNotFull();
+        return x;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        final long[] seqs = sequences;
+        for (;;) {
+            long p = head;
+            long off = seqOffset(p, mask);
+            long s = U.getLongVolatile(seqs, off);
+            Object x = U.getObjectVolatile(items, itemOffset(p, mask));
+            if (s != p + 1L)
+                return null;
+            if (x == REMOVED)
+                skipRemoved();
+            else if (x != null && p == head)
+                return (E) x;
+        }
+    }
+
+    /**
+     * Returns the number of elements in this queue. The result is an
+     * estimate if other threads are concurrently modifying the queue.
+     *
+     * @return the number of elements in this queue
+     */
+    public int size() {
+        for (;;) {
+            long h = head, t = tail;
+            if (h == head) {
+                long n = t - h;
+                return (n <= 0L) ? 0 :
+                    (n >= items.length) ? items.length : (int) n;
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return head == tail;
+    }
+
+    /**
+     * Returns the number of additional elements that this queue can ideally
+     * (in the absence of memory or resource constraints) accept without
+     * blocking. This is always equal to the capacity of this queue less the
+     * current {@code size} of this queue.
+     *
+     * @return the remaining capacity
+     */
+    public int remainingCapacity() {
+        return items.length - size();
+    }
+
+    /**
+     * Removes a single instance of the specified element from this
+     * queue, if it is present.  More formally, removes an element
+     * {@code e} such that {@code o.equals(e)}, if this queue contains
+     * one or more such elements.
+     * Returns {@code true} if this queue contained the specified element
+     * (or equivalently, if this queue changed as a result of the call).
+     *
+     * @param o element to be removed from this queue, if present
+     * @return {@code true} if this queue changed as a result of the call
+     */
+    public boolean remove(Object o) {
+        if (o == null) return false;
+        final long[] seqs = sequences;
+        final Object[] items = this.items;
+        final int mask = this.mask;
+        for (long p = head, t = tail; p < t; ++p) {
+            if (U.getLongVolatile(seqs, seqOffset(p, mask)) != p + 1L)
+                continue;
+            Object x = U.getObjectVolatile(items, itemOffset(p, mask));
+            if (x != null && x != REMOVED && o.equals(x) && removeAt(p, x))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns {@code true} if this queue contains the specified
+     * element, according to a snapshot of its elements.
+     *
+     * @param o object to be checked for containment in this queue
+     * @return {@code true} if this queue contains the specified element
+     */
+    public boolean contains(Object o) {
+        if (o != null) {
+            for (Object x : toArray())
+                if (o.equals(x))
+                    return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns an array containing a snapshot of the elements in this
+     * queue, in proper sequence. Elements removed or added concurrently
+     * may or may not be included.
+     *
+     * @return an array containing the elements in this queue
+     */
+    public Object[] toArray() {
+        return snapshot(null);
+    }
+
+    /**
+     * Returns the published elements between head and tail, also
+     * storing their positions into positions, if non-null, and
+     * stopping when it is full.
+     */
+    private Object[] snapshot(long[] positions) {
+        final long[] seqs = sequences;
+        final Object[] items = this.items;
+        final int mask = this.mask;
+        ArrayList<Object> list = new ArrayList<Object>();
+        for (long p = head, t = tail; p < t; ++p) {
+            long off = seqOffset(p, mask);
+            if (U.getLongVolatile(seqs, off) != p + 1L)
+                continue;
+            Object x = U.getObjectVolatile(items, itemOffset(p, mask));
+            if (x != null && x != REMOVED &&
+                U.getLongVolatile(seqs, off) == p + 1L) {
+                if (positions != null) {
+                    if (list.size() == positions.length)
+                        break;
+                    positions[list.size()] = p;
+                }
+                list.add(x);
+            }
+        }
+        return list.toArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T[] toArray(T[] a) {
+        Object[] es = toArray();
+        int n = es.length;
+        if (a.length < n)
+            return (T[]) java.util.Arrays.copyOf(es, n, a.getClass());
+        System.arraycopy(es, 0, a, 0, n);
+        if (a.length > n)
+            a[n] = null;
+        return a;
+    }
+
+    /**
+     * Removes all available elements from this queue.
+     */
+    public void clear() {
+        while (poll() != null)
+            ;
+    }
+
+    /**
+     * @throws UnsupportedOperationException {@inheritDoc}
+     * @throws ClassCastException            {@inheritDoc}
+     * @throws NullPointerException          {@inheritDoc}
+     * @throws IllegalArgumentException      {@inheritDoc}
+     */
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @throws UnsupportedOperationException {@inheritDoc}
+     * @throws ClassCastException            {@inheritDoc}
+     * @throws NullPointerException          {@inheritDoc}
+     * @throws IllegalArgumentException      {@inheritDoc}
+     */
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        int n = 0;
+        for (E x; n < maxElements && (x = tryPoll()) != null; ++n)
+            c.add(x);
+        if (n > 0 && fullWaiters != 0) {
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the elements in this
+     * queue, in proper sequence. The iterator's {@code remove} removes
+     * the last returned element if it is still in this queue.
+     *
+     * @return an iterator over the elements in this queue
+     */
+    public Iterator<E> iterator() {
+        return new Itr();
+    }
+
+    private class Itr implements Iterator<E> {
+        final Object[] array;
+        /** Positions of the elements of array. */
+        final long[] positions;
+        int cursor;
+        /** Index of the last returned element, or -1 if none. */
+        int lastRet = -1;
+
+        Itr() {
+            long[] ps = new long[items.length];     // 快照最多容纳capacity个元素
+            array = snapshot(ps);
+            positions = ps;
+        }
+
+        public boolean hasNext() {
+            return cursor < array.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (cursor >= array.length)
+                throw new NoSuchElementException();
+            lastRet = cursor;
+            return (E) array[cursor++];
+        }
+
+        public void remove() {
+            int i = lastRet;
+            if (i < 0)
+                throw new IllegalStateException();
+            lastRet = -1;
+            removeAt(positions[i], array[i]);
+        }
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe U;
+    private static final long HEAD;
+    private static final long TAIL;
+    private static final long SBASE;
+    private static final int SSHIFT;
+    private static final long ABASE;
+    private static final int ASHIFT;
+    static {
+        try {
+            U = sun.misc.Unsafe.getUnsafe();
+            Class<?> k = ConcurrentArrayBlockingQueue.class;
+            HEAD = U.objectFieldOffset(k.getDeclaredField("head"));
+            TAIL = U.objectFieldOffset(k.getDeclaredField("tail"));
+            SBASE = U.arrayBaseOffset(long[].class);
+            int scale = U.arrayIndexScale(long[].class);
+            if ((scale & (scale - 1)) != 0)
+                throw new Error("data type scale not a power of two");
+            SSHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+            ABASE = U.arrayBaseOffset(Object[].class);
+            scale = U.arrayIndexScale(Object[].class);
+            if ((scale & (scale - 1)) != 0)
+                throw new Error("data type scale not a power of two");
+            ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
@@ -0,0 +1,488 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package lmmarise.util.concurrent;
+import static lmmarise.util.concurrent.TimeUnit.NANOSECONDS;
+
+import lmmarise.util.concurrent.atomic.AtomicLong;
+import lmmarise.util.concurrent.locks.Condition;
+import lmmarise.util.concurrent.locks.ReentrantLock;
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * An unbounded {@linkplain BlockingQueue blocking queue} of {@code
+ * Delayed} elements, in which an element can only be taken when its
+ * delay has expired, with the same semantics as {@link DelayQueue}
+ * but built on a {@link ConcurrentSkipListMap} rather than a heap
+ * guarded by a single lock. Insertion and non-blocking removal of
+ * expired elements are lock-free; a lock is acquired only by threads
+ * that must wait for an element to expire, and by producers that
+ * must wake such a thread.
+ * 基于跳表的无界延迟阻塞队列：插入和非阻塞地取出到期元素都是无锁的，
+ * 只有需要等待的消费者，以及需要唤醒它们的生产者才会获取锁。
+ *
+ * <p>Elements are ordered by their {@code compareTo} method, which
+ * should be consistent with their delays; elements that compare
+ * equal are taken in insertion order. Beware that, unlike in most
+ * collections, the {@code size} method is <em>NOT</em> a
+ * constant-time operation, and {@code remove(Object)} and {@code
+ * contains} traverse the queue.
+ *
+ * <p>This class and its iterator implement all of the
+ * <em>optional</em> methods of the {@link Collection} and {@link
+ * Iterator} interfaces. The iterator returns elements in delay order
+ * and is <a href="package-summary.html#Weakly"><i>weakly
+ * consistent</i></a>. This queue does not permit null elements.
+ *
+ * @since 1.8
+ * @param <E> the type of elements held in this collection
+ */
+public class ConcurrentDelayQueue<E extends Delayed> extends AbstractQueue<E>
+    implements BlockingQueue<E> {
+
+    /*
+     * Each element is wrapped in a Node carrying a sequence number,
+     * so that elements comparing equal (or the same element added
+     * twice) are distinct keys. Removal of the first node uses the
+     * map's own CAS-based remove, so concurrent pollers never take
+     * the same element.
+     *
+     * Waiting consumers use the leader-follower scheme of DelayQueue
+     * under lock. To keep offer lock-free, waiters announce
+     * themselves in the volatile waiters count (while holding the
+     * lock) before rechecking the head, and producers read waiters
+     * after inserting: either the waiter sees the new node or the
+     * producer sees the waiter and signals under the lock, which the
+     * waiter holds until it awaits.
+     */
+
+    /** Elements keyed by (element, sequence number). */
+    private final ConcurrentSkipListMap<Node<E>,Boolean> map =
+        new ConcurrentSkipListMap<Node<E>,Boolean>();
+
+    /** Sequence number to break ties FIFO. */
+    private final AtomicLong sequencer = new AtomicLong();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Condition signalled when a newer element becomes available at
+     * the head of the queue or a new thread may need to become leader.
+     */
+    private final Condition available = lock.newCondition();
+
+    /** Thread designated to wait for the element at the head. */
+    private Thread leader = null;
+
+    /** Number of threads waiting under lock; written only under lock. */
+    private volatile int waiters;
+
+    /**
+     * Map key wrapping an element.
+     */
+    static final class Node<E extends Delayed> implements Comparable<Node<E>> {
+        final E item;
+        final long seq;
+
+        Node(E item, long seq) {
+            this.item = item;
+            this.seq = seq;
+        }
+
+        public int compareTo(Node<E> other) {
+            if (other == this)
+                return 0;
+            int c = item.compareTo(other.item);
+            return (c != 0) ? c : (seq < other.seq) ? -1 : 1;
+        }
+    }
+
+    /**
+     * Creates a new {@code ConcurrentDelayQueue} that is initially empty.
+     */
+    public ConcurrentDelayQueue() {}
+
+    /**
+     * Creates a {@code ConcurrentDelayQueue} initially containing the
+     * elements of the given collection of {@link Delayed} instances.
+     *
+     * @param c the collection of elements to initially contain
+     * @throws NullPointerException if the specified collection or any
+     *         of its elements are null
+     */
+    public ConcurrentDelayQueue(Collection<? extends E> c) {
+        this.addAll(c);
+    }
+
+    /**
+     * Returns the first node, or null if empty.
+     */
+    private Node<E> first() {
+        Map.Entry<Node<E>,Boolean> e = map.firstEntry();
+        return (e == null) ? null : e.getKey();
+    }
+
+    /**
+     * Wakes a waiter after the head was replaced.
+     */
+    private void signalHead() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            leader = null;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Inserts the specified element into this delay queue.
+     *
+     * @param e the element to add
+     * @return {@code true} (as specified by {@link Collection#add})
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean add(E e) {
+        return offer(e);
+    }
+
+    /**
+     * Inserts the specified element into this delay queue.
+     *
+     * @param e the element to add
+     * @return {@code true}
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        Node<E> node = new Node<E>(e, sequencer.getAndIncrement());
+        map.put(node, Boolean.TRUE);
+        if (waiters != 0 && first() == node)    // 新节点成为队头且有线程在等待
+            signalHead();
+        return true;
+    }
+
+    /**
+     * Inserts the specified element into this delay queue. As the queue is
+     * unbounded this method will never block.
+     *
+     * @param e the element to add
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public void put(E e) {
+        offer(e);
+    }
+
+    /**
+     * Inserts the specified element into this delay queue. As the queue is
+     * unbounded this method will never block.
+     *
+     * @param e the element to add
+     * @param timeout This parameter is ignored as the method never blocks
+     * @param unit This parameter is ignored as the method never blocks
+     * @return {@code true}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit) {
+        return offer(e);
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, or returns {@code null}
+     * if this queue has no elements with an expired delay.
+     *
+     * @return the head of this queue, or {@code null} if this
+     *         queue has no elements with an expired delay
+     */
+    public E poll() {
+        for (Node<E> first; (first = first()) != null; ) {
+            if (first.item.getDelay(NANOSECONDS) > 0)
+                return null;
+            if (map.remove(first) != null)
+                return first.item;
+        }
+        return null;
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, waiting if necessary
+     * until an element with an expired delay is available on this queue.
+     *
+     * @return the head of this queue
+     * @throws InterruptedException {@inheritDoc}
+     */
+    public E take() throws InterruptedException {
+        E x = poll();
+        if (x != null)
+            return x;
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            waiters++;
+            for (;;) {
+                Node<E> first = first();
+                if (first == null)
+                    available.await();
+                else {
+                    long delay = first.item.getDelay(NANOSECONDS);
+                    if (delay <= 0) {
+                        if (map.remove(first) != null)
+                            return first.item;
+                        continue;           // 被无锁的poll抢走，重新检查
+                    }
+                    first = null; // don't retain ref while waiting
+                    if (leader != null)
+                        available.await();
+                    else {
+                        Thread thisThread = Thread.currentThread();
+                        leader = thisThread;
+                        try {
+                            available.awaitNanos(delay);
+                        } finally {
+                            if (leader == thisThread)
+                                leader = null;
+                        }
+                    }
+                }
+            }
+        } finally {
+            waiters--;
+            if (leader == null && waiters != 0 && !map.isEmpty())
+                available.signal();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, waiting if necessary
+     * until an element with an expired delay is available on this queue,
+     * or the specified wait time expires.
+     *
+     * @return the head of this queue, or {@code null} if the
+     *         specified waiting time elapses before an element with
+     *         an expired delay becomes available
+     * @throws InterruptedException {@inheritDoc}
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E x = poll();
+        if (x != null)
+            return x;
+        long nanos = unit.toNanos(timeout);
+        if (nanos <= 0)
+            return null;
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            waiters++;
+            for (;;) {
+                Node<E> first = first();
+                if (first == null) {
+                    if (nanos <= 0)
+                        return null;
+                    else
+                        nanos = available.awaitNanos(nanos);
+                } else {
+                    long delay = first.item.getDelay(NANOSECONDS);
+                    if (delay <= 0) {
+                        if (map.remove(first) != null)
+                            return first.item;
+                        continue;
+                    }
+                    if (nanos <= 0)
+                        return null;
+                    first = null; // don't retain ref while waiting
+                    if (nanos < delay || leader != null)
+                        nanos = available.awaitNanos(nanos);
+                    else {
+                        Thread thisThread = Thread.currentThread();
+                        leader = thisThread;
+                        try {
+                            long timeLeft = available.awaitNanos(delay);
+                            nanos -= delay - timeLeft;
+                        } finally {
+                            if (leader == thisThread)
+                                leader = null;
+                        }
+                    }
+                }
+            }
+        } finally {
+            waiters--;
+            if (leader == null && waiters != 0 && !map.isEmpty())
+                available.signal();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves, but does not remove, the head of this queue, or
+     * returns {@code null} if this queue is empty.  Unlike
+     * {@code poll}, if no expired elements are available in the queue,
+     * this method returns the element that will expire next,
+     * if one exists.
+     *
+     * @return the head of this queue, or {@code null} if this
+     *         queue is empty
+     */
+    public E peek() {
+        Node<E> first = first();
+        return (first == null) ? null : first.item;
+    }
+
+    /**
+     * Returns the number of elements in this queue. Beware that this
+     * method traverses the queue.
+     *
+     * @return the number of elements in this queue
+     */
+    public int size() {
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    /**
+     * @throws UnsupportedOperationException {@inheritDoc}
+     * @throws ClassCastException            {@inheritDoc}
+     * @throws NullPointerException          {@inheritDoc}
+     * @throws IllegalArgumentException      {@inheritDoc}
+     */
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @throws UnsupportedOperationException {@inheritDoc}
+     * @throws ClassCastException            {@inheritDoc}
+     * @throws NullPointerException          {@inheritDoc}
+     * @throws IllegalArgumentException      {@inheritDoc}
+     */
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        int n = 0;
+        for (E e; n < maxElements && (e = poll()) != null; ++n)
+            c.add(e);
+        return n;
+    }
+
+    /**
+     * Removes all of the elements from this delay queue. Elements with
+     * an unexpired delay are not waited for; they are simply discarded
+     * from the queue.
+     */
+    public void clear() {
+        map.clear();
+    }
+
+    /**
+     * Always returns {@code Integer.MAX_VALUE} because
+     * a {@code ConcurrentDelayQueue} is not capacity constrained.
+     *
+     * @return {@code Integer.MAX_VALUE}
+     */
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns {@code true} if this queue contains the specified element.
+     *
+     * @param o object to be checked for containment in this queue
+     * @return {@code true} if this queue contains the specified element
+     */
+    public boolean contains(Object o) {
+        if (o != null) {
+            for (Node<E> node : map.keySet())
+                if (o.equals(node.item))
+                    return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes a single instance of the specified element from this
+     * queue, if it is present, whether or not it has expired.
+     */
+    public boolean remove(Object o) {
+        if (o != null) {
+            for (Node<E> node : map.keySet())
+                if (o.equals(node.item) && map.remove(node) != null)
+                    return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns an iterator over all the elements (both expired and
+     * unexpired) in this queue, in delay order.
+     *
+     * <p>The returned iterator is
+     * <a href="package-summary.html#Weakly"><i>weakly consistent</i></a>.
+     *
+     * @return an iterator over the elements in this queue
+     */
+    public Iterator<E> iterator() {
+        return new Itr<E>(map.keySet().iterator());
+    }
+
+    private static final class Itr<E extends Delayed> implements Iterator<E> {
+        final Iterator<Node<E>> it;
+
+        Itr(Iterator<Node<E>> it) {
+            this.it = it;
+        }
+
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        public E next() {
+            return it.next().item;
+        }
+
+        public void remove() {
+            it.remove();
+        }
+    }
+}
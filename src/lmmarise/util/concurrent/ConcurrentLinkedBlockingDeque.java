@@ -0,0 +1,416 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package lmmarise.util.concurrent;
+
+import java.util.Collection;
+import lmmarise.util.concurrent.locks.Condition;
+import lmmarise.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An unbounded {@linkplain BlockingDeque blocking deque} that extends
+ * {@link ConcurrentLinkedDeque} with operations that wait for the
+ * deque to become non-empty.  Insertions and removals use the
+ * non-blocking node protocol of {@code ConcurrentLinkedDeque}
+ * unchanged, so operations at the two ends do not contend with each
+ * other, and no operation acquires a lock except a take that finds
+ * the deque empty, and an insertion that finds such a take parked.
+ * 基于ConcurrentLinkedDeque无锁节点协议的无界阻塞双端队列：只有队列为空时取元素的线程才会挂起，
+ * 插入操作只在有挂起的线程时才加锁唤醒。
+ *
+ * <p>This makes the deque suitable for work-stealing designs in
+ * which an owner thread pushes and pops tasks at the first end
+ * ({@link #push}, {@link #pop}, {@link #pollFirst()}) while other
+ * threads steal from the last end ({@link #pollLast()}, {@link
+ * #takeLast}).  The owner's operations are a single successful
+ * compare-and-set in the common case, plus a volatile read of the
+ * number of parked takers on insertion.  A deque may also be
+ * constructed with a {@link WaitStrategy} that takes apply before
+ * parking, so that a take that spins sees the next insertion
+ * without requiring the inserting thread to unpark it.
+ *
+ * <p>As the deque is unbounded, {@code put} and timed {@code offer}
+ * methods never block.  The {@code size} method is <em>NOT</em> a
+ * constant-time operation; see {@link ConcurrentLinkedDeque}.
+ *
+ * <p>Memory consistency effects: As with other concurrent
+ * collections, actions in a thread prior to placing an object into a
+ * {@code ConcurrentLinkedBlockingDeque}
+ * <a href="package-summary.html#MemoryVisibility"><i>happen-before</i></a>
+ * actions subsequent to the access or removal of that element from
+ * the {@code ConcurrentLinkedBlockingDeque} in another thread.
+ *
+ * @since 1.8
+ * @param <E> the type of elements held in this collection
+ */
+public class ConcurrentLinkedBlockingDeque<E> extends ConcurrentLinkedDeque<E>
+        implements BlockingDeque<E> {
+    private static final long serialVersionUID = 5180735012346937417L;
+
+    /*
+     * Takes first try to remove an element without waiting.  If the
+     * deque is empty, a take (after applying the wait strategy, if
+     * any) acquires lock, increments waiters, and rechecks before
+     * awaiting notEmpty.  An insertion links its node with a
+     * successful CAS, which is a full fence, and then reads waiters,
+     * signalling notEmpty under lock only if it is nonzero.  Because
+     * the waiter publishes waiters before rechecking, either the
+     * waiter sees the new element or the insertion sees the waiter.
+     * A woken take that leaves elements behind for other waiters (or
+     * leaves because of timeout or interrupt) passes the signal on.
+     */
+
+    /** Lock held by takes while waiting */
+    final ReentrantLock lock = new ReentrantLock();
+
+    /** Condition for waiting takes */
+    private final Condition notEmpty = lock.newCondition();
+
+    /** Number of takes waiting on notEmpty; written only under lock */
+    private transient volatile int waiters;
+
+    /**
+     * Strategy applied by takes before waiting on notEmpty, or null
+     * if they wait at once. Not serialized.
+     */
+    private final transient WaitStrategy waitStrategy;
+
+    /**
+     * Constructs an empty deque.
+     */
+    public ConcurrentLinkedBlockingDeque() {
+        this.waitStrategy = null;
+    }
+
+    /**
+     * Constructs an empty deque whose takes wait as directed by the
+     * given strategy before blocking.  Even strategies that never park
+     * may occasionally block, if another thread removes the element
+     * that a spinning take observed.
+     *
+     * @param waitStrategy the wait strategy
+     * @throws NullPointerException if {@code waitStrategy} is null
+     */
+    public ConcurrentLinkedBlockingDeque(WaitStrategy waitStrategy) {
+        if (waitStrategy == null)
+            throw new NullPointerException();
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Constructs a deque initially containing the elements of
+     * the given collection, added in traversal order of the
+     * collection's iterator.
+     *
+     * @param c the collection of elements to initially contain
+     * @throws NullPointerException if the specified collection or any
+     *         of its elements are null
+     */
+    public ConcurrentLinkedBlockingDeque(Collection<? extends E> c) {
+        super(c);
+        this.waitStrategy = null;
+    }
+
+    /**
+     * Wakes a waiting take, if there may be one. Called after each
+     * insertion.
+     */
+    private void signalNotEmpty() {
+        if (waiters != 0) {
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Removes an element from the given end, waiting if necessary.
+     *
+     * @param first true to remove the first element, else the last
+     * @param timed true if timed wait
+     * @param nanos the wait time, if timed
+     * @return the element, or null if timed out
+     */
+    private E awaitElement(boolean first, boolean timed, long nanos)
+        throws InterruptedException {
+        E x;
+        if ((x = first ? pollFirst() : pollLast()) != null)
+            return x;
+        final WaitStrategy ws = waitStrategy;
+        if (ws != null) {
+            final long deadline = timed ? System.nanoTime() + nanos : 0L;
+            for (int k = 0; !ws.idle(k); k = WaitStrategy.next(k)) {
+                if ((x = first ? pollFirst() : pollLast()) != null)
+                    return x;
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                if (timed && deadline - System.nanoTime() <= 0L)
+                    return null;
+            }
+            if (timed)
+                nanos = deadline - System.nanoTime();
+        }
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            waiters = waiters + 1;
+            try {
+                while ((x = first ? pollFirst() : pollLast()) == null) {
+                    if (!timed)
+                        notEmpty.await();
+                    else if (nanos <= 0L)
+                        return null;
+                    else
+                        nanos = notEmpty.awaitNanos(nanos);
+                }
+            } finally {
+                // 若还有元素和等待者，传递唤醒信号
+                if ((waiters = waiters - 1) != 0 && !isEmpty())
+                    notEmpty.signal();
+            }
+            return x;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Insertions
+
+    /**
+     * Inserts the specified element at the front of this deque.
+     * As the deque is unbounded, this method will never throw
+     * {@link IllegalStateException}.
+     *
+     * @throws NullPointerException if the specified element is null
+     */
+    public void addFirst(E e) {
+        super.addFirst(e);
+        signalNotEmpty();
+    }
+
+    /**
+     * Inserts the specified element at the end of this deque.
+     * As the deque is unbounded, this method will never throw
+     * {@link IllegalStateException}.
+     *
+     * @throws NullPointerException if the specified element is null
+     */
+    public void addLast(E e) {
+        super.addLast(e);
+        signalNotEmpty();
+    }
+
+    /**
+     * Inserts the specified element at the front of this deque.
+     * As the deque is unbounded, this method will never return {@code false}.
+     *
+     * @return {@code true} (as specified by {@link BlockingDeque#offerFirst})
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offerFirst(E e) {
+        super.offerFirst(e);
+        signalNotEmpty();
+        return true;
+    }
+
+    /**
+     * Inserts the specified element at the end of this deque.
+     * As the deque is unbounded, this method will never return {@code false}.
+     *
+     * @return {@code true} (as specified by {@link BlockingDeque#offerLast})
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offerLast(E e) {
+        super.offerLast(e);
+        signalNotEmpty();
+        return true;
+    }
+
+    /**
+     * Appends all of the elements in the specified collection to the end
+     * of this deque, in the order that they are returned by the specified
+     * collection's iterator, waking waiting takes at most once.
+     *
+     * @param c the elements to be inserted into this deque
+     * @return {@code true} if this deque changed as a result of the call
+     * @throws NullPointerException if the specified collection or any
+     *         of its elements are null
+     * @throws IllegalArgumentException if the collection is this deque
+     */
+    public boolean addAll(Collection<? extends E> c) {
+        if (!super.addAll(c))
+            return false;
+        signalNotEmpty();
+        return true;
+    }
+
+    /**
+     * Inserts the specified element at the front of this deque.
+     * As the deque is unbounded, this method will never block.
+     *
+     * @throws NullPointerException if the specified element is null
+     */
+    public void putFirst(E e) {
+        offerFirst(e);
+    }
+
+    /**
+     * Inserts the specified element at the end of this deque.
+     * As the deque is unbounded, this method will never block.
+     *
+     * @throws NullPointerException if the specified element is null
+     */
+    public void putLast(E e) {
+        offerLast(e);
+    }
+
+    /**
+     * Inserts the specified element at the end of this deque.
+     * As the deque is unbounded, this method will never block.
+     *
+     * @throws NullPointerException if the specified element is null
+     */
+    public void put(E e) {
+        offerLast(e);
+    }
+
+    /**
+     * Inserts the specified element at the front of this deque.
+     * As the deque is unbounded, this method will never block or
+     * return {@code false}.
+     *
+     * @return {@code true} (as specified by
+     *  {@link BlockingDeque#offerFirst(Object,long,TimeUnit)})
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offerFirst(E e, long timeout, TimeUnit unit) {
+        return offerFirst(e);
+    }
+
+    /**
+     * Inserts the specified element at the end of this deque.
+     * As the deque is unbounded, this method will never block or
+     * return {@code false}.
+     *
+     * @return {@code true} (as specified by
+     *  {@link BlockingDeque#offerLast(Object,long,TimeUnit)})
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offerLast(E e, long timeout, TimeUnit unit) {
+        return offerLast(e);
+    }
+
+    /**
+     * Inserts the specified element at the end of this deque.
+     * As the deque is unbounded, this method will never block or
+     * return {@code false}.
+     *
+     * @return {@code true} (as specified by
+     *  {@link BlockingQueue#offer(Object,long,TimeUnit)})
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit) {
+        return offerLast(e);
+    }
+
+    // Blocking removals
+
+    public E takeFirst() throws InterruptedException {
+        return awaitElement(true, false, 0L);
+    }
+
+    public E takeLast() throws InterruptedException {
+        return awaitElement(false, false, 0L);
+    }
+
+    public E take() throws InterruptedException {
+        return takeFirst();
+    }
+
+    public E pollFirst(long timeout, TimeUnit unit)
+        throws InterruptedException {
+        return awaitElement(true, true, unit.toNanos(timeout));
+    }
+
+    public E pollLast(long timeout, TimeUnit unit)
+        throws InterruptedException {
+        return awaitElement(false, true, unit.toNanos(timeout));
+    }
+
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return pollFirst(timeout, unit);
+    }
+
+    /**
+     * Always returns {@code Integer.MAX_VALUE} because a
+     * {@code ConcurrentLinkedBlockingDeque} is not capacity constrained.
+     *
+     * @return {@code Integer.MAX_VALUE} (as specified by
+     *         {@link BlockingQueue#remainingCapacity()})
+     */
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * @throws UnsupportedOperationException {@inheritDoc}
+     * @throws ClassCastException            {@inheritDoc}
+     * @throws NullPointerException          {@inheritDoc}
+     * @throws IllegalArgumentException      {@inheritDoc}
+     */
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @throws UnsupportedOperationException {@inheritDoc}
+     * @throws ClassCastException            {@inheritDoc}
+     * @throws NullPointerException          {@inheritDoc}
+     * @throws IllegalArgumentException      {@inheritDoc}
+     */
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        int n = 0;
+        for (E e; n < maxElements && (e = pollFirst()) != null; ++n)
+            c.add(e);
+        return n;
+    }
+}
@@ -0,0 +1,551 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package lmmarise.util.concurrent;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+
+/**
+ * An unbounded thread-safe {@linkplain Queue queue} based on a linked
+ * list of fixed-size array segments.  This queue orders elements FIFO
+ * (first-in-first-out), and may be used wherever a {@link
+ * ConcurrentLinkedQueue} is, but allocates one segment per 1024
+ * insertions rather than one node per
+ * insertion, and keeps consecutive elements adjacent in memory.
+ * This class does not permit the use of {@code null} elements.
+ * 由定长数组段链接而成的无界并发队列，每个数组段分配一次，而非每个元素分配一个节点。
+ *
+ * <p>This implementation employs a <em>non-blocking</em> algorithm
+ * in which producers and consumers claim slots of the tail and head
+ * segments with a single atomic fetch-and-add on the segment's
+ * insertion or removal index, then exchange the element through the
+ * claimed slot.  A consumer that reaches a slot before its producer
+ * marks the slot dead, and the producer retries at a later slot.
+ * Only the thread that fills (or exhausts) a segment needs a
+ * compare-and-set to append (or pass) a segment.
+ * 生产者和消费者通过对数组段索引的fetch-and-add领取槽位；消费者先于生产者到达时将槽位作废，
+ * 生产者换一个槽位重试。只有填满或取空一个数组段的线程才需要CAS链接或跳过数组段。
+ *
+ * <p>Iterators are <i>weakly consistent</i>, returning elements
+ * reflecting the state of the queue at some point at or since the
+ * creation of the iterator.  They do <em>not</em> throw {@link
+ * java.util.ConcurrentModificationException}, and may proceed concurrently
+ * with other operations.  Elements contained in the queue since the creation
+ * of the iterator will be returned exactly once.
+ *
+ * <p>Beware that, unlike in most collections, the {@code size} method
+ * is <em>NOT</em> a constant-time operation. Because of the
+ * asynchronous nature of these queues, determining the current number
+ * of elements requires a traversal of the elements, and so may report
+ * inaccurate results if this collection is modified during traversal.
+ * Additionally, the bulk operations {@code addAll},
+ * {@code removeAll}, {@code retainAll}, {@code containsAll},
+ * {@code equals}, and {@code toArray} are <em>not</em> guaranteed
+ * to be performed atomically.
+ *
+ * <p>This class and its iterator implement all of the <em>optional</em>
+ * methods of the {@link Queue} and {@link Iterator} interfaces.
+ * Removal of interior elements leaves their slots dead until the
+ * segment holding them is passed, so is best kept infrequent.
+ *
+ * <p>Memory consistency effects: As with other concurrent
+ * collections, actions in a thread prior to placing an object into a
+ * {@code ConcurrentSegmentedQueue}
+ * <a href="package-summary.html#MemoryVisibility"><i>happen-before</i></a>
+ * actions subsequent to the access or removal of that element from
+ * the {@code ConcurrentSegmentedQueue} in another thread.
+ *
+ * @since 1.8
+ * @param <E> the type of elements held in this collection
+ */
+public class ConcurrentSegmentedQueue<E> extends AbstractQueue<E>
+        implements Queue<E>, java.io.Serializable {
+    private static final long serialVersionUID = 3159452716903473241L;
+
+    /*
+     * Each segment holds SEGMENT_SIZE slots and two indices: enqIdx,
+     * the number of slots claimed by producers, and deqIdx, the
+     * number claimed by consumers.  Both only increase and may run
+     * past SEGMENT_SIZE, meaning the segment is full or exhausted.
+     * A slot is null until filled, then holds an element until a
+     * consumer exchanges it for DEAD.  A consumer that finds null has
+     * overtaken the producer holding the slot; leaving DEAD there
+     * makes that producer's compare-and-set fail, so it claims
+     * another slot.  Thus every claimed slot is used at most once,
+     * and element order follows slot order.
+     *
+     * head and tail lag as in ConcurrentLinkedQueue: a producer that
+     * finds the tail segment full appends a new segment holding its
+     * element (or helps advance tail to one already appended), and a
+     * consumer that finds the head segment exhausted advances head.
+     * Polls check deqIdx against enqIdx before claiming, so polling
+     * an empty queue does not consume slots.
+     *
+     * Passed segments keep their next links, so iterators, which
+     * hold a segment and slot index, always find their way to the
+     * live segments and never revisit a slot.  remove(Object) and
+     * Iterator.remove exchange an element for DEAD, after which
+     * consumers skip the slot.
+     */
+
+    /** Number of slots per segment. */
+    static final int SEGMENT_SIZE = 1 << 10;
+
+    /** Marker left in slots whose element was taken or removed. */
+    static final Object DEAD = new Object();
+
+    static final class Segment {
+        final Object[] items = new Object[SEGMENT_SIZE];
+        @sun.misc.Contended("enq") volatile int enqIdx;
+        @sun.misc.Contended("deq") volatile int deqIdx;
+        volatile Segment next;
+
+        Segment() {
+        }
+
+        /** Creates a segment whose first slot holds x. */
+        Segment(Object x) {
+            items[0] = x;
+            enqIdx = 1;
+        }
+
+        Object itemAt(int i) {
+            return U.getObjectVolatile(items, ((long)i << ASHIFT) + ABASE);
+        }
+
+        boolean casItem(int i, Object cmp, Object val) {
+            return U.compareAndSwapObject(items, ((long)i << ASHIFT) + ABASE,
+                                          cmp, val);
+        }
+
+        Object takeItem(int i) {
+            return U.getAndSetObject(items, ((long)i << ASHIFT) + ABASE, DEAD);
+        }
+
+        boolean casNext(Segment cmp, Segment val) {
+            return U.compareAndSwapObject(this, NEXT, cmp, val);
+        }
+
+        /** Returns the number of slots that may hold elements. */
+        int limit() {
+            int n = enqIdx;
+            return (n < SEGMENT_SIZE) ? n : SEGMENT_SIZE;
+        }
+
+        /** Returns the index of the first slot not yet taken. */
+        int start() {
+            int n = deqIdx;
+            return (n < SEGMENT_SIZE) ? n : SEGMENT_SIZE;
+        }
+    }
+
+    /** Segment holding the first slot not yet taken, or a predecessor. */
+    @sun.misc.Contended("head")
+    private transient volatile Segment head;
+
+    /** Segment holding the last slot claimed, or a predecessor. */
+    @sun.misc.Contended("tail")
+    private transient volatile Segment tail;
+
+    /**
+     * Creates a {@code ConcurrentSegmentedQueue} that is initially empty.
+     */
+    public ConcurrentSegmentedQueue() {
+        head = tail = new Segment();
+    }
+
+    /**
+     * Creates a {@code ConcurrentSegmentedQueue}
+     * initially containing the elements of the given collection,
+     * added in traversal order of the collection's iterator.
+     *
+     * @param c the collection of elements to initially contain
+     * @throws NullPointerException if the specified collection or any
+     *         of its elements are null
+     */
+    public ConcurrentSegmentedQueue(Collection<? extends E> c) {
+        this();
+        for (E e : c)
+            offer(e);
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue.
+     * As the queue is unbounded, this method will never throw
+     * {@link IllegalStateException} or return {@code false}.
+     *
+     * @return {@code true} (as specified by {@link Collection#add})
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean add(E e) {
+        return offer(e);
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue.
+     * As the queue is unbounded, this method will never return {@code false}.
+     *
+     * @return {@code true} (as specified by {@link Queue#offer})
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        for (;;) {
+            Segment t = tail;
+            int i = U.getAndAddInt(t, ENQIDX, 1);
+            if (i < SEGMENT_SIZE) {
+                if (t.casItem(i, null, e))
+                    return true;
+                // overtaken by a consumer; claim another slot
+            }
+            else if (t == tail) {
+                Segment n = t.next;
+                if (n == null) {
+                    Segment s = new Segment(e);
+                    if (t.casNext(null, s)) {
+                        casTail(t, s);
+                        return true;
+                    }
+                }
+                else
+                    casTail(t, n);
+            }
+        }
+    }
+
+    public E poll() {
+        for (;;) {
+            Segment h = head;
+            int d = h.deqIdx;
+            if (d >= SEGMENT_SIZE) {
+                // 数组段已取空，推进head
+                Segment n = h.next;
+                if (n == null)
+                    return null;
+                casHead(h, n);
+            }
+            else if (d >= h.enqIdx)
+                return null;
+            else {
+                int i = U.getAndAddInt(h, DEQIDX, 1);
+                if (i < SEGMENT_SIZE) {
+                    Object x = h.takeItem(i);
+                    if (x != null && x != DEAD) {
+                        @SuppressWarnings("unchecked") E e = (E)x;
+                        return e;
+                    }
+                }
+            }
+        }
+    }
+
+    public E peek() {
+        for (Segment s = head; s != null; s = s.next) {
+            for (int i = s.start(), n = s.limit(); i < n; ++i) {
+                Object x = s.itemAt(i);
+                if (x != null && x != DEAD) {
+                    @SuppressWarnings("unchecked") E e = (E)x;
+                    return e;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns {@code true} if this queue contains no elements.
+     *
+     * @return {@code true} if this queue contains no elements
+     */
+    public boolean isEmpty() {
+        return peek() == null;
+    }
+
+    /**
+     * Returns the number of elements in this queue.  If this queue
+     * contains more than {@code Integer.MAX_VALUE} elements, returns
+     * {@code Integer.MAX_VALUE}.
+     *
+     * <p>Beware that, unlike in most collections, this method is
+     * <em>NOT</em> a constant-time operation. Because of the
+     * asynchronous nature of these queues, determining the current
+     * number of elements requires an O(n) traversal.
+     * Additionally, if elements are added or removed during execution
+     * of this method, the returned result may be inaccurate.  Thus,
+     * this method is typically not very useful in concurrent
+     * applications.
+     *
+     * @return the number of elements in this queue
+     */
+    public int size() {
+        int count = 0;
+        for (Segment s = head; s != null; s = s.next) {
+            for (int i = s.start(), n = s.limit(); i < n; ++i) {
+                Object x = s.itemAt(i);
+                if (x != null && x != DEAD && ++count == Integer.MAX_VALUE)
+                    return count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns {@code true} if this queue contains the specified element.
+     * More formally, returns {@code true} if and only if this queue contains
+     * at least one element {@code e} such that {@code o.equals(e)}.
+     *
+     * @param o object to be checked for containment in this queue
+     * @return {@code true} if this queue contains the specified element
+     */
+    public boolean contains(Object o) {
+        if (o == null) return false;
+        for (Segment s = head; s != null; s = s.next) {
+            for (int i = s.start(), n = s.limit(); i < n; ++i) {
+                Object x = s.itemAt(i);
+                if (x != null && x != DEAD && o.equals(x))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes a single instance of the specified element from this queue,
+     * if it is present.  More formally, removes an element {@code e} such
+     * that {@code o.equals(e)}, if this queue contains one or more such
+     * elements.
+     * Returns {@code true} if this queue contained the specified element
+     * (or equivalently, if this queue changed as a result of the call).
+     *
+     * @param o element to be removed from this queue, if present
+     * @return {@code true} if this queue changed as a result of the call
+     */
+    public boolean remove(Object o) {
+        if (o == null) return false;
+        for (Segment s = head; s != null; s = s.next) {
+            for (int i = s.start(), n = s.limit(); i < n; ++i) {
+                Object x = s.itemAt(i);
+                if (x != null && x != DEAD && o.equals(x) &&
+                    s.casItem(i, x, DEAD))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns an iterator over the elements in this queue in proper sequence.
+     * The elements will be returned in order from first (head) to last (tail).
+     *
+     * <p>The returned iterator is
+     * <a href="package-summary.html#Weakly"><i>weakly consistent</i></a>.
+     *
+     * @return an iterator over the elements in this queue in proper sequence
+     */
+    public Iterator<E> iterator() {
+        return new Itr();
+    }
+
+    private class Itr implements Iterator<E> {
+        /** Segment and index of the slot holding nextItem. */
+        private Segment nextSeg;
+        private int nextIndex;
+
+        /**
+         * nextItem holds on to item fields because once we claim
+         * that an element exists in hasNext(), we must return it in
+         * the following next() call even if it was in the process of
+         * being removed when hasNext() was called.
+         */
+        private E nextItem;
+
+        /** Segment, index and item of the last returned element. */
+        private Segment lastSeg;
+        private int lastIndex;
+        private E lastItem;
+
+        Itr() {
+            Segment h = head;
+            advance(h, h.start());
+        }
+
+        /**
+         * Moves to the first live slot at or after index i of s.
+         */
+        private void advance(Segment s, int i) {
+            for (; s != null; s = s.next, i = 0) {
+                for (int n = s.limit(); i < n; ++i) {
+                    Object x = s.itemAt(i);
+                    if (x != null && x != DEAD) {
+                        @SuppressWarnings("unchecked") E e = (E)x;
+                        nextSeg = s;
+                        nextIndex = i;
+                        nextItem = e;
+                        return;
+                    }
+                }
+            }
+            nextSeg = null;
+            nextItem = null;
+        }
+
+        public boolean hasNext() {
+            return nextItem != null;
+        }
+
+        public E next() {
+            E e = nextItem;
+            if (e == null)
+                throw new NoSuchElementException();
+            lastSeg = nextSeg;
+            lastIndex = nextIndex;
+            lastItem = e;
+            advance(nextSeg, nextIndex + 1);
+            return e;
+        }
+
+        public void remove() {
+            Segment s = lastSeg;
+            if (s == null)
+                throw new IllegalStateException();
+            s.casItem(lastIndex, lastItem, DEAD);
+            lastSeg = null;
+            lastItem = null;
+        }
+    }
+
+    /**
+     * Returns a {@link Spliterator} over the elements in this queue.
+     *
+     * <p>The returned spliterator is
+     * <a href="package-summary.html#Weakly"><i>weakly consistent</i></a>.
+     *
+     * <p>The {@code Spliterator} reports {@link Spliterator#CONCURRENT},
+     * {@link Spliterator#ORDERED}, and {@link Spliterator#NONNULL}.
+     *
+     * @return a {@code Spliterator} over the elements in this queue
+     */
+    public Spliterator<E> spliterator() {
+        return Spliterators.spliteratorUnknownSize
+            (iterator(), Spliterator.ORDERED | Spliterator.NONNULL |
+             Spliterator.CONCURRENT);
+    }
+
+    /**
+     * Saves this queue to a stream (that is, serializes it).
+     *
+     * @param s the stream
+     * @throws java.io.IOException if an I/O error occurs
+     * @serialData All of the elements (each an {@code E}) in
+     * the proper order, followed by a null
+     */
+    private void writeObject(java.io.ObjectOutputStream s)
+        throws java.io.IOException {
+
+        // Write out any hidden stuff
+        s.defaultWriteObject();
+
+        // Write out all elements in the proper order.
+        for (E e : this)
+            s.writeObject(e);
+
+        // Use trailing null as sentinel
+        s.writeObject(null);
+    }
+
+    /**
+     * Reconstitutes this queue from a stream (that is, deserializes it).
+     * @param s the stream
+     * @throws ClassNotFoundException if the class of a serialized object
+     *         could not be found
+     * @throws java.io.IOException if an I/O error occurs
+     */
+    private void readObject(java.io.ObjectInputStream s)
+        throws java.io.IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        head = tail = new Segment();
+
+        // Read in elements until trailing null sentinel found
+        Object item;
+        while ((item = s.readObject()) != null) {
+            @SuppressWarnings("unchecked") E e = (E)item;
+            offer(e);
+        }
+    }
+
+    private boolean casTail(Segment cmp, Segment val) {
+        return U.compareAndSwapObject(this, TAIL, cmp, val);
+    }
+
+    private boolean casHead(Segment cmp, Segment val) {
+        return U.compareAndSwapObject(this, HEAD, cmp, val);
+    }
+
+    // Unsafe mechanics
+
+    private static final sun.misc.Unsafe U;
+    private static final long HEAD;
+    private static final long TAIL;
+    private static final long ENQIDX;
+    private static final long DEQIDX;
+    private static final long NEXT;
+    private static final long ABASE;
+    private static final int ASHIFT;
+    static {
+        try {
+            U = sun.misc.Unsafe.getUnsafe();
+            Class<?> k = ConcurrentSegmentedQueue.class;
+            HEAD = U.objectFieldOffset(k.getDeclaredField("head"));
+            TAIL = U.objectFieldOffset(k.getDeclaredField("tail"));
+            Class<?> sk = Segment.class;
+            ENQIDX = U.objectFieldOffset(sk.getDeclaredField("enqIdx"));
+            DEQIDX = U.objectFieldOffset(sk.getDeclaredField("deqIdx"));
+            NEXT = U.objectFieldOffset(sk.getDeclaredField("next"));
+            ABASE = U.arrayBaseOffset(Object[].class);
+            int scale = U.arrayIndexScale(Object[].class);
+            if ((scale & (scale - 1)) != 0)
+                throw new Error("data type scale not a power of two");
+            ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
@@ -74,7 +74,7 @@ public class DelayQueue<E extends lmmarise.util.concurrent.Delayed> extends Abst
     implements BlockingQueue<E> {
 
     private final transient ReentrantLock lock = new ReentrantLock();
-    private final PriorityQueue<E> q = new PriorityQueue<E>();
+    private PriorityQueue<E> q = new PriorityQueue<E>();    // 只在持锁时访问，drainExpired可能整体重建
 
     /**
      * Thread designated to wait for the element at the head of
@@ -406,6 +406,108 @@ public class DelayQueue<E extends lmmarise.util.concurrent.Delayed> extends Abst
         }
     }
 
+    /**
+     * Removes at most the given number of expired elements from this
+     * queue and adds them to the given collection, as a single bulk
+     * operation. This behaves like {@link #drainTo(Collection, int)},
+     * but is designed for sweepers that remove a large expired prefix
+     * at once. When the bound admits every expired element and those
+     * make up a large part of the queue, they are found by querying
+     * only the heap entries whose parents have expired, and the
+     * remaining elements are rebuilt into a heap in one linear pass
+     * instead of being sifted once per removed element. In that case
+     * the elements are not transferred in expiration order. Otherwise
+     * the earliest expired elements are removed one by one, in order.
+     * Either way, waiting threads are signalled at most once.
+     *
+     * <p>Elements are assumed to order consistently with their
+     * delays, as is required for the head of this queue to be the
+     * element whose delay expired furthest in the past.
+     *
+     * @param c the collection to transfer elements into
+     * @param maxElements the maximum number of elements to transfer
+     * @return the number of elements transferred
+     * @throws UnsupportedOperationException if addition of elements
+     *         is not supported by the specified collection
+     * @throws ClassCastException if the class of an element of this queue
+     *         prevents it from being added to the specified collection
+     * @throws NullPointerException if the specified collection is null
+     * @throws IllegalArgumentException if the specified collection is this
+     *         queue, or some property of an element of this queue prevents
+     *         it from being added to the specified collection
+     * @since 1.8
+     */
+    //批量移除已到期元素：只检查父节点已到期的堆节点，一次性重建剩余元素的堆，最多唤醒一次
+    @SuppressWarnings("unchecked")
+    public int drainExpired(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        if (maxElements <= 0)
+            return 0;
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        int n = 0;
+        try {
+            int size = q.size();
+            if (size == 0)
+                return 0;
+            int log = 32 - Integer.numberOfLeadingZeros(size);
+            if ((long) maxElements * log <= size) {
+                // 取出的元素较少：逐个poll比扫描并重建整个堆便宜
+                for (E e; n < maxElements && (e = peekExpired()) != null; ++n) {
+                    c.add(e);   // In this order, in case add() throws.
+                    q.poll();
+                }
+                return n;
+            }
+            // 堆序数组中到期元素构成以根为顶的子树：父节点未到期则子节点也未到期
+            Object[] es = q.toArray();
+            boolean[] expired = new boolean[size];
+            int k = 0, last = -1;
+            for (int i = 0;
+                 i < size && i <= (last << 1) + 2 && k <= maxElements;
+                 i++) {
+                if ((i == 0 || expired[(i - 1) >>> 1]) &&
+                    ((E) es[i]).getDelay(NANOSECONDS) <= 0) {
+                    expired[i] = true;
+                    last = i;
+                    ++k;
+                }
+            }
+            if (k > maxElements || (long) k * log <= size) {
+                // 只取最早到期的一部分，或到期元素很少：按顺序逐个poll
+                for (int m = Math.min(k, maxElements); n < m; ++n) {
+                    c.add(q.peek());
+                    q.poll();
+                }
+                return n;
+            }
+            ArrayList<E> rest = new ArrayList<E>(size - k);
+            int i = 0;
+            try {
+                for (; i < size; ++i) {
+                    if (expired[i]) {
+                        c.add((E) es[i]);
+                        ++n;
+                    }
+                    else
+                        rest.add((E) es[i]);
+                }
+            } finally {
+                for (; i < size; ++i)   // c.add抛出异常时保留未转移的元素
+                    rest.add((E) es[i]);
+                q = new PriorityQueue<E>(rest);     // O(n)建堆
+            }
+            return n;
+        } finally {
+            if (n > 0 && leader == null && q.peek() != null)
+                available.signal();     // 只唤醒一次，让等待线程按新的队头重新计时
+            lock.unlock();
+        }
+    }
+
     /**
      * Atomically removes all of the elements from this delay queue.
      * The queue will be empty after this call returns.
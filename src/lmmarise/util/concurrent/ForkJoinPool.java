@@ -149,7 +149,7 @@ import java.security.Permissions;
  * </table>
  * <p>
  * <p>The common pool is by default constructed with default
- * parameters, but these may be controlled by setting three
+ * parameters, but these may be controlled by setting the following
  * {@linkplain System#getProperty system properties}:
  * <ul>
  * <li>{@code java.util.concurrent.ForkJoinPool.common.parallelism}
@@ -158,6 +158,10 @@ import java.security.Permissions;
  * - the class name of a {@link ForkJoinWorkerThreadFactory}
  * <li>{@code java.util.concurrent.ForkJoinPool.common.exceptionHandler}
  * - the class name of a {@link UncaughtExceptionHandler}
+ * <li>{@code java.util.concurrent.ForkJoinPool.common.idleSpins}
+ * - the idle spin count, a non-negative integer (see {@link #getIdleSpins})
+ * <li>{@code java.util.concurrent.ForkJoinPool.common.idleYields}
+ * - the idle yield count, a non-negative integer (see {@link #getIdleYields})
  * </ul>
  * If a {@link SecurityManager} is present and no factory is
  * specified, then the default pool uses a factory supplying
@@ -1602,6 +1606,14 @@ public class ForkJoinPool extends AbstractExecutorService {
      */
     private static final int SPINS = 0;
 
+    /**
+     * Upper bound on the per-pool idle spin and yield counts, so that
+     * a misconfigured pool cannot keep idle workers off the idle
+     * stack for unbounded periods.
+     */
+    //空闲自旋/让步次数上限
+    private static final int MAX_IDLE_SPINS = 1 << 20;
+
     /**
      * Increment for seed generators. See class ThreadLocal for
      * explanation.
@@ -1675,6 +1687,8 @@ public class ForkJoinPool extends AbstractExecutorService {
     final UncaughtExceptionHandler ueh;  // per-worker UEH 异常信息
     final String workerNamePrefix;       // to create worker name string 用于创建工作线程的名称
     volatile AtomicLong stealCounter;    // also used as sync monitor 偷取任务总数
+    final int idleSpins;                 // spins in awaitWork before yielding 空闲时阻塞前的自旋次数
+    final int idleYields;                // yields in awaitWork before parking 空闲时阻塞前的让步次数
 
     /**
      * Acquires the runState lock; returns current (locked) runState.
@@ -2123,7 +2137,7 @@ public class ForkJoinPool extends AbstractExecutorService {
     private boolean awaitWork(WorkQueue w, int r) {
         if (w == null || w.qlock < 0)                 // w is terminating
             return false;
-        for (int pred = w.stackPred, spins = SPINS, ss; ; ) {
+        for (int pred = w.stackPred, spins = idleSpins, yields = idleYields, ss; ; ) {
             if ((ss = w.scanState) >= 0)//正在扫描，跳出循环
                 break;
             else if (spins > 0) {
@@ -2139,8 +2153,11 @@ public class ForkJoinPool extends AbstractExecutorService {
                             (j = pred & SMASK) < ws.length &&
                             (v = ws[j]) != null &&        // see if pred parking
                             (v.parker == null || v.scanState >= 0))
-                        spins = SPINS;                // continue spinning
+                        spins = idleSpins;            // continue spinning
                 }
+            } else if (yields > 0) {                  // then yield before parking
+                --yields;                             // 自旋结束后让步，仍未被唤醒再阻塞
+                Thread.yield();
             } else if (w.qlock < 0)                     // 当前workQueue已经终止，返回false recheck after spins
                 return false;
             else if (!Thread.interrupted()) {//判断线程是否被中断，并清除中断状态
@@ -2947,11 +2964,56 @@ public class ForkJoinPool extends AbstractExecutorService {
                         ForkJoinWorkerThreadFactory factory,
                         UncaughtExceptionHandler handler,
                         boolean asyncMode) {
+        this(parallelism, factory, handler, asyncMode, SPINS, 0);
+    }
+
+    /**
+     * Creates a {@code ForkJoinPool} with the given parameters,
+     * including an idle policy for worker threads that find no tasks.
+     * Rather than parking at once, an idle worker first spins for
+     * about {@code idleSpins} iterations and then calls {@link
+     * Thread#yield} up to {@code idleYields} times, rechecking each
+     * time whether it has been signalled. A worker released while
+     * spinning or yielding resumes without being unparked, which
+     * shortens task handoff latency at the expense of CPU time burned
+     * while idle. Both values zero (the default) parks immediately.
+     *
+     * @param parallelism the parallelism level. For default value,
+     *                    use {@link java.lang.Runtime#availableProcessors}.
+     * @param factory     the factory for creating new threads. For default value,
+     *                    use {@link #defaultForkJoinWorkerThreadFactory}.
+     * @param handler     the handler for internal worker threads that
+     *                    terminate due to unrecoverable errors encountered while executing
+     *                    tasks. For default value, use {@code null}.
+     * @param asyncMode   if true,
+     *                    establishes local first-in-first-out scheduling mode for forked
+     *                    tasks that are never joined. For default value, use {@code false}.
+     * @param idleSpins   the number of spins before an idle worker yields
+     * @param idleYields  the number of yields before an idle worker parks
+     * @throws IllegalArgumentException if parallelism less than or
+     *                                  equal to zero, or greater than implementation limit,
+     *                                  or if idleSpins or idleYields is negative or
+     *                                  greater than implementation limit
+     * @throws NullPointerException     if the factory is null
+     * @throws SecurityException        if a security manager exists and
+     *                                  the caller is not permitted to modify threads
+     *                                  because it does not hold {@link
+     *                                  java.lang.RuntimePermission}{@code ("modifyThread")}
+     * @since 1.8
+     */
+    public ForkJoinPool(int parallelism,
+                        ForkJoinWorkerThreadFactory factory,
+                        UncaughtExceptionHandler handler,
+                        boolean asyncMode,
+                        int idleSpins,
+                        int idleYields) {
         this(checkParallelism(parallelism),
                 checkFactory(factory),
                 handler,
                 asyncMode ? FIFO_QUEUE : LIFO_QUEUE,
-                "ForkJoinPool-" + nextPoolId() + "-worker-");
+                "ForkJoinPool-" + nextPoolId() + "-worker-",
+                checkIdleCount(idleSpins),
+                checkIdleCount(idleYields));
         checkPermission();
     }
 
@@ -2961,6 +3023,12 @@ public class ForkJoinPool extends AbstractExecutorService {
         return parallelism;
     }
 
+    private static int checkIdleCount(int count) {
+        if (count < 0 || count > MAX_IDLE_SPINS)
+            throw new IllegalArgumentException();
+        return count;
+    }
+
     private static ForkJoinWorkerThreadFactory checkFactory
             (ForkJoinWorkerThreadFactory factory) {
         if (factory == null)
@@ -2977,8 +3045,12 @@ public class ForkJoinPool extends AbstractExecutorService {
                          ForkJoinWorkerThreadFactory factory,
                          UncaughtExceptionHandler handler,
                          int mode,
-                         String workerNamePrefix) {
+                         String workerNamePrefix,
+                         int idleSpins,
+                         int idleYields) {
         this.workerNamePrefix = workerNamePrefix;
+        this.idleSpins = idleSpins;
+        this.idleYields = idleYields;
         this.factory = factory;
         this.ueh = handler;
         this.config = (parallelism & SMASK) | mode;
@@ -3203,6 +3275,30 @@ public class ForkJoinPool extends AbstractExecutorService {
         return (config & SMASK) + (short) (ctl >>> TC_SHIFT);
     }
 
+    /**
+     * Returns the number of spins an idle worker performs before
+     * yielding. See {@link #ForkJoinPool(int, ForkJoinWorkerThreadFactory,
+     * UncaughtExceptionHandler, boolean, int, int)}.
+     *
+     * @return the idle spin count
+     * @since 1.8
+     */
+    public int getIdleSpins() {
+        return idleSpins;
+    }
+
+    /**
+     * Returns the number of times an idle worker yields before
+     * parking. See {@link #ForkJoinPool(int, ForkJoinWorkerThreadFactory,
+     * UncaughtExceptionHandler, boolean, int, int)}.
+     *
+     * @return the idle yield count
+     * @since 1.8
+     */
+    public int getIdleYields() {
+        return idleYields;
+    }
+
     /**
      * Returns {@code true} if this pool uses local first-in-first-out
      * scheduling mode for forked tasks that are never joined.
@@ -3856,6 +3952,7 @@ public class ForkJoinPool extends AbstractExecutorService {
         int parallelism = -1;
         ForkJoinWorkerThreadFactory factory = null;
         UncaughtExceptionHandler handler = null;
+        int idleSpins = SPINS, idleYields = 0;
         try {  // ignore exceptions in accessing/parsing
             String pp = System.getProperty
                     ("java.util.concurrent.ForkJoinPool.common.parallelism");//并行度
@@ -3863,6 +3960,10 @@ public class ForkJoinPool extends AbstractExecutorService {
                     ("java.util.concurrent.ForkJoinPool.common.threadFactory");//线程工厂
             String hp = System.getProperty
                     ("java.util.concurrent.ForkJoinPool.common.exceptionHandler");//异常处理类
+            String sp = System.getProperty
+                    ("java.util.concurrent.ForkJoinPool.common.idleSpins");//空闲自旋次数
+            String yp = System.getProperty
+                    ("java.util.concurrent.ForkJoinPool.common.idleYields");//空闲让步次数
             if (pp != null)
                 parallelism = Integer.parseInt(pp);
             if (fp != null)
@@ -3871,6 +3972,10 @@ public class ForkJoinPool extends AbstractExecutorService {
             if (hp != null)
                 handler = ((UncaughtExceptionHandler) ClassLoader.
                         getSystemClassLoader().loadClass(hp).newInstance());
+            if (sp != null)
+                idleSpins = checkIdleCount(Integer.parseInt(sp));
+            if (yp != null)
+                idleYields = checkIdleCount(Integer.parseInt(yp));
         } catch (Exception ignore) {
         }
         if (factory == null) {
@@ -3885,7 +3990,7 @@ public class ForkJoinPool extends AbstractExecutorService {
         if (parallelism > MAX_CAP)
             parallelism = MAX_CAP;
         return new ForkJoinPool(parallelism, factory, handler, LIFO_QUEUE,
-                "ForkJoinPool.commonPool-worker-");
+                "ForkJoinPool.commonPool-worker-", idleSpins, idleYields);
     }
 
     /**
@@ -0,0 +1,413 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package lmmarise.util.concurrent;
+
+import java.util.function.BinaryOperator;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.IntToLongFunction;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Parallel-for and parallel-reduce over index ranges, using
+ * <em>lazy binary splitting</em> in place of a hand-picked
+ * sequential threshold.
+ *
+ * <p>Each task repeatedly halves its range, forking off the
+ * right-hand side, only while {@link
+ * ForkJoinTask#getSurplusQueuedTaskCount} reports that the local
+ * work queue holds no more than a small number of surplus tasks (see
+ * {@link #SURPLUS_THRESHOLD}). When other workers are busy stealing,
+ * the queue drains and ranges keep splitting; when they are not, the
+ * queue fills up and the remaining range is processed sequentially.
+ * Right-hand sides that were never stolen are then processed
+ * directly rather than further subdivided, as in the {@code
+ * Applyer} example of {@link RecursiveAction}. The only fixed bound
+ * is a floor on leaf size proportional to the range size divided by
+ * the pool's parallelism, which keeps callers that are not pool
+ * workers (for which the surplus is always zero) from splitting
+ * down to single indices.
+ *
+ * <p>All methods accept a {@code null} pool, meaning {@link
+ * ForkJoinPool#commonPool()}. Exceptions thrown by actions or
+ * reducers are rethrown by the invoking method, as for {@link
+ * ForkJoinPool#invoke}. Ranges are half-open: {@code lo} is
+ * inclusive and {@code hi} exclusive.
+ *
+ * <p>Sample usage, summing the squares of a {@code double} array:
+ *  <pre> {@code
+ * double sumOfSquares(double[] array) {
+ *   return ForkJoinRanges.reduceDouble(null, 0, array.length,
+ *                                      i -> array[i] * array[i],
+ *                                      0.0, Double::sum);
+ * }}</pre>
+ *
+ * @since 1.8
+ */
+public final class ForkJoinRanges {
+    private ForkJoinRanges() {}
+
+    /**
+     * The surplus of locally queued tasks above which a task stops
+     * splitting and processes its remaining range sequentially.
+     */
+    static final int SURPLUS_THRESHOLD = 3;
+
+    /**
+     * Leaf sizes never drop below (range size) / (parallelism <<
+     * LEAF_SHIFT), so at most about 2^LEAF_SHIFT leaves per worker
+     * are ever created.
+     */
+    static final int LEAF_SHIFT = 6;
+
+    /**
+     * An action performed on a half-open subrange of indices.
+     */
+    @FunctionalInterface
+    public interface RangeConsumer {
+        /**
+         * Performs this action on indices {@code lo} (inclusive)
+         * through {@code hi} (exclusive).
+         *
+         * @param lo the lowest index
+         * @param hi one past the highest index
+         */
+        void accept(int lo, int hi);
+    }
+
+    /**
+     * Performs the given action for each index in the given range.
+     *
+     * @param pool the pool, or {@code null} for the common pool
+     * @param lo the lowest index (inclusive)
+     * @param hi the highest index (exclusive)
+     * @param action the action
+     * @throws NullPointerException if action is null
+     */
+    public static void forEach(ForkJoinPool pool, int lo, int hi,
+                               IntConsumer action) {
+        if (action == null)
+            throw new NullPointerException();
+        forRange(pool, lo, hi, (l, h) -> {
+            for (int i = l; i < h; ++i)
+                action.accept(i);
+        });
+    }
+
+    /**
+     * Performs the given action on disjoint subranges that together
+     * cover the given range. This form lets the action hoist
+     * per-leaf setup out of its inner loop.
+     *
+     * @param pool the pool, or {@code null} for the common pool
+     * @param lo the lowest index (inclusive)
+     * @param hi the highest index (exclusive)
+     * @param action the action
+     * @throws NullPointerException if action is null
+     */
+    public static void forRange(ForkJoinPool pool, int lo, int hi,
+                                RangeConsumer action) {
+        if (action == null)
+            throw new NullPointerException();
+        if (lo < hi)
+            poolFor(pool).invoke
+                (new ForEachTask(action, lo, hi, minLeaf(pool, lo, hi), null));
+    }
+
+    /**
+     * Returns the reduction of the mapped values of each index in the
+     * given range, or {@code null} if the range is empty. The reducer
+     * must be associative; it is applied in an unspecified grouping
+     * but always preserving index order.
+     *
+     * @param pool the pool, or {@code null} for the common pool
+     * @param lo the lowest index (inclusive)
+     * @param hi the highest index (exclusive)
+     * @param mapper the function mapping an index to a value
+     * @param reducer the associative combining function
+     * @param <T> the type of values
+     * @return the reduction, or {@code null} if the range is empty
+     * @throws NullPointerException if mapper or reducer is null
+     */
+    public static <T> T reduce(ForkJoinPool pool, int lo, int hi,
+                               IntFunction<? extends T> mapper,
+                               BinaryOperator<T> reducer) {
+        if (mapper == null || reducer == null)
+            throw new NullPointerException();
+        if (lo >= hi)
+            return null;
+        return poolFor(pool).invoke
+            (new ReduceTask<T>(mapper, reducer, lo, hi,
+                               minLeaf(pool, lo, hi), null));
+    }
+
+    /**
+     * Returns the reduction of the mapped values of each index in the
+     * given range, starting from the given identity.
+     *
+     * @param pool the pool, or {@code null} for the common pool
+     * @param lo the lowest index (inclusive)
+     * @param hi the highest index (exclusive)
+     * @param mapper the function mapping an index to a value
+     * @param identity the identity value for the reducer
+     * @param reducer the associative combining function
+     * @return the reduction
+     * @throws NullPointerException if mapper or reducer is null
+     */
+    public static long reduceLong(ForkJoinPool pool, int lo, int hi,
+                                  IntToLongFunction mapper, long identity,
+                                  LongBinaryOperator reducer) {
+        if (mapper == null || reducer == null)
+            throw new NullPointerException();
+        if (lo >= hi)
+            return identity;
+        LongReduceTask t = new LongReduceTask
+            (mapper, reducer, identity, lo, hi, minLeaf(pool, lo, hi), null);
+        poolFor(pool).invoke(t);
+        return t.result;
+    }
+
+    /**
+     * Returns the reduction of the mapped values of each index in the
+     * given range, starting from the given identity.
+     *
+     * @param pool the pool, or {@code null} for the common pool
+     * @param lo the lowest index (inclusive)
+     * @param hi the highest index (exclusive)
+     * @param mapper the function mapping an index to a value
+     * @param identity the identity value for the reducer
+     * @param reducer the associative combining function
+     * @return the reduction
+     * @throws NullPointerException if mapper or reducer is null
+     */
+    public static double reduceDouble(ForkJoinPool pool, int lo, int hi,
+                                      IntToDoubleFunction mapper,
+                                      double identity,
+                                      DoubleBinaryOperator reducer) {
+        if (mapper == null || reducer == null)
+            throw new NullPointerException();
+        if (lo >= hi)
+            return identity;
+        DoubleReduceTask t = new DoubleReduceTask
+            (mapper, reducer, identity, lo, hi, minLeaf(pool, lo, hi), null);
+        poolFor(pool).invoke(t);
+        return t.result;
+    }
+
+    static ForkJoinPool poolFor(ForkJoinPool pool) {
+        return (pool == null) ? ForkJoinPool.commonPool() : pool;
+    }
+
+    /**
+     * Returns the smallest leaf size for the given range, never less
+     * than one.
+     */
+    static int minLeaf(ForkJoinPool pool, int lo, int hi) {
+        long n = (long)hi - lo;
+        int p = poolFor(pool).getParallelism();
+        long m = n / ((long)p << LEAF_SHIFT);
+        return (m <= 1L) ? 1 : (int)m;
+    }
+
+    /**
+     * Returns true if a task holding a range of size n may split it
+     * further.
+     */
+    static boolean shouldSplit(int n, int minLeaf) {
+        return (n > minLeaf && n > 1 &&
+                ForkJoinTask.getSurplusQueuedTaskCount() <= SURPLUS_THRESHOLD);
+    }
+
+    static final class ForEachTask extends RecursiveAction {
+        private static final long serialVersionUID = 3456124809651220113L;
+        final RangeConsumer action;
+        final int lo, hi, minLeaf;
+        final ForEachTask next; // keeps track of right-hand-side tasks
+        ForEachTask(RangeConsumer action, int lo, int hi, int minLeaf,
+                    ForEachTask next) {
+            this.action = action; this.lo = lo; this.hi = hi;
+            this.minLeaf = minLeaf; this.next = next;
+        }
+        protected void compute() {
+            final RangeConsumer action = this.action;
+            int l = lo, h = hi;
+            ForEachTask right = null;
+            while (shouldSplit(h - l, minLeaf)) {
+                int mid = (l + h) >>> 1;
+                (right = new ForEachTask(action, mid, h, minLeaf, right)).fork();
+                h = mid;
+            }
+            action.accept(l, h);
+            for (; right != null; right = right.next) {
+                if (right.tryUnfork()) // directly process if not stolen
+                    action.accept(right.lo, right.hi);
+                else
+                    right.join();
+            }
+        }
+    }
+
+    static final class ReduceTask<T> extends RecursiveTask<T> {
+        private static final long serialVersionUID = -2284862712853744311L;
+        final IntFunction<? extends T> mapper;
+        final BinaryOperator<T> reducer;
+        final int lo, hi, minLeaf;
+        final ReduceTask<T> next;
+        ReduceTask(IntFunction<? extends T> mapper, BinaryOperator<T> reducer,
+                   int lo, int hi, int minLeaf, ReduceTask<T> next) {
+            this.mapper = mapper; this.reducer = reducer;
+            this.lo = lo; this.hi = hi; this.minLeaf = minLeaf;
+            this.next = next;
+        }
+        T atLeaf(int l, int h) {
+            final IntFunction<? extends T> mapper = this.mapper;
+            final BinaryOperator<T> reducer = this.reducer;
+            T r = mapper.apply(l);
+            for (int i = l + 1; i < h; ++i)
+                r = reducer.apply(r, mapper.apply(i));
+            return r;
+        }
+        protected T compute() {
+            int l = lo, h = hi;
+            ReduceTask<T> right = null;
+            while (shouldSplit(h - l, minLeaf)) {
+                int mid = (l + h) >>> 1;
+                (right = new ReduceTask<T>(mapper, reducer, mid, h,
+                                           minLeaf, right)).fork();
+                h = mid;
+            }
+            T r = atLeaf(l, h);
+            // rights are linked from nearest to farthest, so folding
+            // them in list order preserves index order
+            for (; right != null; right = right.next)
+                r = reducer.apply(r, right.tryUnfork() ?
+                                  right.atLeaf(right.lo, right.hi) :
+                                  right.join());
+            return r;
+        }
+    }
+
+    static final class LongReduceTask extends RecursiveAction {
+        private static final long serialVersionUID = 7308823912240391525L;
+        final IntToLongFunction mapper;
+        final LongBinaryOperator reducer;
+        final long identity;
+        final int lo, hi, minLeaf;
+        final LongReduceTask next;
+        long result;
+        LongReduceTask(IntToLongFunction mapper, LongBinaryOperator reducer,
+                       long identity, int lo, int hi, int minLeaf,
+                       LongReduceTask next) {
+            this.mapper = mapper; this.reducer = reducer;
+            this.identity = identity; this.lo = lo; this.hi = hi;
+            this.minLeaf = minLeaf; this.next = next;
+        }
+        long atLeaf(int l, int h) {
+            final IntToLongFunction mapper = this.mapper;
+            final LongBinaryOperator reducer = this.reducer;
+            long r = identity;
+            for (int i = l; i < h; ++i)
+                r = reducer.applyAsLong(r, mapper.applyAsLong(i));
+            return r;
+        }
+        protected void compute() {
+            int l = lo, h = hi;
+            LongReduceTask right = null;
+            while (shouldSplit(h - l, minLeaf)) {
+                int mid = (l + h) >>> 1;
+                (right = new LongReduceTask(mapper, reducer, identity,
+                                            mid, h, minLeaf, right)).fork();
+                h = mid;
+            }
+            long r = atLeaf(l, h);
+            for (; right != null; right = right.next) {
+                if (right.tryUnfork())
+                    r = reducer.applyAsLong(r, right.atLeaf(right.lo, right.hi));
+                else {
+                    right.join();
+                    r = reducer.applyAsLong(r, right.result);
+                }
+            }
+            result = r;
+        }
+    }
+
+    static final class DoubleReduceTask extends RecursiveAction {
+        private static final long serialVersionUID = -5913402185338427742L;
+        final IntToDoubleFunction mapper;
+        final DoubleBinaryOperator reducer;
+        final double identity;
+        final int lo, hi, minLeaf;
+        final DoubleReduceTask next;
+        double result;
+        DoubleReduceTask(IntToDoubleFunction mapper,
+                         DoubleBinaryOperator reducer, double identity,
+                         int lo, int hi, int minLeaf, DoubleReduceTask next) {
+            this.mapper = mapper; this.reducer = reducer;
+            this.identity = identity; this.lo = lo; this.hi = hi;
+            this.minLeaf = minLeaf; this.next = next;
+        }
+        double atLeaf(int l, int h) {
+            final IntToDoubleFunction mapper = this.mapper;
+            final DoubleBinaryOperator reducer = this.reducer;
+            double r = identity;
+            for (int i = l; i < h; ++i)
+                r = reducer.applyAsDouble(r, mapper.applyAsDouble(i));
+            return r;
+        }
+        protected void compute() {
+            int l = lo, h = hi;
+            DoubleReduceTask right = null;
+            while (shouldSplit(h - l, minLeaf)) {
+                int mid = (l + h) >>> 1;
+                (right = new DoubleReduceTask(mapper, reducer, identity,
+                                              mid, h, minLeaf, right)).fork();
+                h = mid;
+            }
+            double r = atLeaf(l, h);
+            for (; right != null; right = right.next) {
+                if (right.tryUnfork())
+                    r = reducer.applyAsDouble(r, right.atLeaf(right.lo, right.hi));
+                else {
+                    right.join();
+                    r = reducer.applyAsDouble(r, right.result);
+                }
+            }
+            result = r;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package lmmarise.util.concurrent;
+
+/**
+ * A scope that ties the lifetime of forked {@link ForkJoinTask}s to
+ * the computation that forked them. Tasks forked through a scope are
+ * registered with it; cancelling the scope, or the first failure of
+ * any of its tasks, cancels every registered task that has not yet
+ * started running, and cascades to all nested scopes. Tasks that have
+ * not started are also popped from the current worker's queue when
+ * they are still on top of it (see {@link ForkJoinTask#tryUnfork}),
+ * so abandoned subtasks neither run nor linger in work queues. Tasks
+ * that are already running are never interrupted; they may poll
+ * {@link #isCancelled} to stop early.
+ *
+ * <p>A scope may be created with an owner task, typically the task
+ * whose {@code compute} method opens the scope. Cancelling the owner
+ * then cancels the scope the next time the scope is consulted: when
+ * forking, when a registered task is about to start, on {@link
+ * #isCancelled}, and on {@link #join}.
+ *
+ * <p>Method {@link #join} returns once every registered task has
+ * either completed or been cancelled before starting, helping to
+ * execute them in the manner of {@link ForkJoinTask#join}. Method
+ * {@link #close} cancels whatever has not yet started and then
+ * waits in the same way, so that no task forked in a scope outlives
+ * it:
+ *
+ *  <pre> {@code
+ * class Search extends RecursiveTask<Node> {
+ *   protected Node compute() {
+ *     try (ForkJoinScope scope = new ForkJoinScope(this)) {
+ *       List<ForkJoinTask<Node>> parts = new ArrayList<>();
+ *       for (Node child : node.children())
+ *         parts.add(scope.fork(new Search(child)));
+ *       for (ForkJoinTask<Node> p : parts) {
+ *         Node n = p.join();
+ *         if (n != null) {
+ *           scope.cancel(); // abandon remaining searches
+ *           return n;
+ *         }
+ *       }
+ *       return null;
+ *     }
+ *   }
+ * }}</pre>
+ *
+ * <p>Scopes hold references to all tasks forked in them until they
+ * become unreachable, so they are intended to be short-lived, one per
+ * divide-and-conquer step.
+ *
+ * @since 1.8
+ */
+public class ForkJoinScope implements AutoCloseable {
+
+    /*
+     * Children are kept in a Treiber stack, most recently forked
+     * first, which is also the order in which they sit on top of the
+     * forking worker's queue, so cancel() can unpush a contiguous run
+     * of them. Each child has a phase field claimed by CAS: whichever
+     * of exec() (QUEUED -> RUNNING) or cancel() (QUEUED -> ABANDONED)
+     * wins decides whether the wrapped task runs. This keeps join()
+     * from returning while a child is still running, which a plain
+     * ForkJoinTask.cancel of a running task would allow.
+     */
+
+    /** The owner task, or null if none */
+    final ForkJoinTask<?> owner;
+    /** Nonzero when cancelled */
+    volatile int cancelled;
+    /** The first failure of any child, or null */
+    volatile Throwable failure;
+    /** Most recently forked child */
+    volatile Child<?> children;
+    /** Most recently created nested scope */
+    volatile ForkJoinScope subscopes;
+    /** Next nested scope of this scope's parent */
+    ForkJoinScope nextSibling;          // written before publication
+
+    /**
+     * Creates a scope with no owner and no parent.
+     */
+    public ForkJoinScope() {
+        this.owner = null;
+    }
+
+    /**
+     * Creates a scope that is cancelled when the given task is found
+     * to be cancelled.
+     *
+     * @param owner the owning task
+     * @throws NullPointerException if owner is null
+     */
+    public ForkJoinScope(ForkJoinTask<?> owner) {
+        if (owner == null)
+            throw new NullPointerException();
+        this.owner = owner;
+    }
+
+    /**
+     * Creates a scope nested in the given scope, that is cancelled
+     * whenever the parent is. If the parent is already cancelled, so
+     * is the new scope.
+     *
+     * @param parent the enclosing scope
+     * @throws NullPointerException if parent is null
+     */
+    public ForkJoinScope(ForkJoinScope parent) {
+        this.owner = null;
+        do {} while (!U.compareAndSwapObject
+                     (parent, SUBSCOPES, nextSibling = parent.subscopes, this));
+        if (parent.isCancelled())
+            cancel();
+    }
+
+    /**
+     * Registers the given task with this scope and arranges to
+     * asynchronously execute it, in the manner of {@link
+     * ForkJoinTask#fork}. The returned task, rather than the given
+     * one, should be used to join the result. If this scope is
+     * already cancelled, the task is not executed and the returned
+     * task is cancelled.
+     *
+     * @param task the task
+     * @param <T> the type of the task's result
+     * @return a task completing with the given task's result
+     * @throws NullPointerException if task is null
+     */
+    public <T> ForkJoinTask<T> fork(ForkJoinTask<T> task) {
+        if (task == null)
+            throw new NullPointerException();
+        Child<T> c = new Child<T>(this, task);
+        do {} while (!U.compareAndSwapObject
+                     (this, CHILDREN, c.next = children, c));
+        if (isCancelled())
+            c.tryCancel();
+        else
+            c.fork();
+        return c;
+    }
+
+    /**
+     * Registers and forks a task that runs the given callable. See
+     * {@link #fork(ForkJoinTask)} and {@link ForkJoinTask#adapt(Callable)}.
+     *
+     * @param callable the callable
+     * @param <T> the type of the callable's result
+     * @return a task completing with the callable's result
+     * @throws NullPointerException if callable is null
+     */
+    public <T> ForkJoinTask<T> fork(Callable<? extends T> callable) {
+        return fork(ForkJoinTask.adapt(callable));
+    }
+
+    /**
+     * Cancels this scope: every registered task that has not yet
+     * started is cancelled, and so is every nested scope. Invoking
+     * this method more than once has no further effect.
+     */
+    public void cancel() {
+        if (U.compareAndSwapInt(this, CANCELLED, 0, 1)) {
+            for (Child<?> c = children; c != null; c = c.next)
+                c.tryCancel();
+            for (ForkJoinScope s = subscopes; s != null; s = s.nextSibling)
+                s.cancel();
+        }
+    }
+
+    /**
+     * Returns {@code true} if this scope has been cancelled, directly,
+     * by failure of a task, through its parent, or through its owner.
+     * Long-running tasks forked in the scope may poll this method to
+     * abandon work early.
+     *
+     * @return {@code true} if this scope has been cancelled
+     */
+    public boolean isCancelled() {
+        ForkJoinTask<?> o;
+        if (cancelled != 0)
+            return true;
+        if ((o = owner) != null && o.isCancelled()) {
+            cancel();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the first exception thrown by a task forked in this
+     * scope, or {@code null} if none has failed.
+     *
+     * @return the first failure, or {@code null} if none
+     */
+    public Throwable getException() {
+        return failure;
+    }
+
+    /**
+     * Waits until every task forked in this scope has completed or
+     * has been cancelled before starting. If any task failed, the
+     * first failure is rethrown, as by {@link ForkJoinTask#join};
+     * otherwise if the scope was cancelled a {@link
+     * CancellationException} is thrown.
+     *
+     * @throws CancellationException if this scope was cancelled
+     */
+    public void join() {
+        Throwable ex;
+        quietlyJoin();
+        if ((ex = failure) != null)
+            ForkJoinTask.rethrow(ex);
+        if (isCancelled())
+            throw new CancellationException();
+    }
+
+    /**
+     * Cancels all tasks forked in this scope that have not yet
+     * started, and waits for the rest to complete, without throwing
+     * their exceptions.
+     */
+    public void close() {
+        cancel();
+        quietlyJoin();
+    }
+
+    /**
+     * Joins every child, rescanning if more were forked meanwhile.
+     */
+    private void quietlyJoin() {
+        Child<?> stop = null, h;
+        while ((h = children) != stop) {
+            for (Child<?> c = h; c != stop; c = c.next) {
+                if (isCancelled())
+                    c.tryCancel();
+                c.quietlyJoin();
+            }
+            stop = h;
+        }
+    }
+
+    /**
+     * Records the first failure and cancels the scope.
+     */
+    final void onFailure(Throwable ex) {
+        if (!(ex instanceof CancellationException)) {
+            U.compareAndSwapObject(this, FAILURE, null, ex);
+            cancel();
+        }
+    }
+
+    /**
+     * A registered task, running the user task at most once.
+     */
+    static final class Child<T> extends ForkJoinTask<T> {
+        static final int QUEUED = 0, RUNNING = 1, ABANDONED = 2;
+        final ForkJoinScope scope;
+        final ForkJoinTask<T> task;
+        Child<?> next;              // written before publication
+        volatile int phase;
+        T result;
+        Child(ForkJoinScope scope, ForkJoinTask<T> task) {
+            this.scope = scope; this.task = task;
+        }
+        public final T getRawResult() { return result; }
+        public final void setRawResult(T v) { result = v; }
+
+        /**
+         * Cancels this child if it has not started, unpushing it if
+         * it is on top of the current thread's queue.
+         */
+        final void tryCancel() {
+            if (phase == QUEUED &&
+                U.compareAndSwapInt(this, PHASE, QUEUED, ABANDONED)) {
+                tryUnfork();
+                task.cancel(false);
+                cancel(false);
+            }
+        }
+
+        public final boolean exec() {
+            if (!U.compareAndSwapInt(this, PHASE, QUEUED, RUNNING))
+                return false; // cancelled; status already set
+            if (scope.isCancelled()) {
+                task.cancel(false);
+                cancel(false);
+                return false;
+            }
+            try {
+                result = task.invoke();
+            } catch (Throwable ex) {
+                scope.onFailure(ex);
+                throw ex;
+            }
+            return true;
+        }
+        private static final long serialVersionUID = -2960524003402123455L;
+
+        private static final long PHASE;
+        static {
+            try {
+                PHASE = U.objectFieldOffset
+                    (Child.class.getDeclaredField("phase"));
+            } catch (Exception e) {
+                throw new Error(e);
+            }
+        }
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe U;
+    private static final long CANCELLED;
+    private static final long FAILURE;
+    private static final long CHILDREN;
+    private static final long SUBSCOPES;
+    static {
+        try {
+            U = sun.misc.Unsafe.getUnsafe();
+            Class<?> k = ForkJoinScope.class;
+            CANCELLED = U.objectFieldOffset
+                (k.getDeclaredField("cancelled"));
+            FAILURE = U.objectFieldOffset
+                (k.getDeclaredField("failure"));
+            CHILDREN = U.objectFieldOffset
+                (k.getDeclaredField("children"));
+            SUBSCOPES = U.objectFieldOffset
+                (k.getDeclaredField("subscopes"));
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package lmmarise.util.concurrent;
+
+import lmmarise.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel for short, cheap timer actions, in the style
+ * of Varghese and Lauck's "Scheme 6". Timeouts are hashed by their
+ * expiration tick into a power-of-two ring of buckets; each bucket
+ * holds a doubly-linked list of the timeouts that map to it, with a
+ * count of remaining full revolutions for those due more than one
+ * revolution ahead. Scheduling and cancellation are O(1) and never
+ * block: new and cancelled timeouts are pushed onto lock-free
+ * Treiber stacks that the single timer thread drains once per tick.
+ *
+ * <p>Expired actions run in the timer thread, so they must be short
+ * and must not block; anything else should be handed to an executor.
+ * The thread is a daemon and parks indefinitely while no timeouts
+ * are outstanding.
+ *
+ * <p>Timeouts never fire early, but may fire up to one tick late
+ * (more if the timer thread is delayed by expired actions).
+ *
+ * @since 1.8
+ */
+final class HashedWheelTimer {
+
+    /*
+     * Only the timer thread touches the wheel, buckets, rounds and
+     * bucket links, so they need no synchronization. Other threads
+     * only CAS the two stack heads and the state of each timeout.
+     * A timeout cancelled before the timer thread has bucketed it is
+     * dropped when incoming timeouts are drained; one cancelled after
+     * is unlinked when cancelled timeouts are drained, so cancelled
+     * timeouts are never retained for longer than a tick.
+     */
+
+    /** Timeout states */
+    static final int WAITING   = 0;
+    static final int CANCELLED = 1;
+    static final int EXPIRED   = 2;
+
+    /**
+     * A scheduled action, serving as its own wheel entry and as the
+     * handle used to cancel it.
+     */
+    static final class Timeout {
+        final Runnable task;
+        final long deadline;     // System.nanoTime based
+        volatile int state;
+        Timeout nextIncoming;    // link in incoming stack
+        Timeout nextCancelled;   // link in cancelled stack
+        Timeout prev, next;      // bucket links (timer thread only)
+        Bucket bucket;           // null unless linked (timer thread only)
+        long rounds;             // revolutions left (timer thread only)
+        final HashedWheelTimer timer;
+
+        Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Attempts to prevent the action from running.
+         *
+         * @return true if this call cancelled it, false if it has
+         * already run or been cancelled
+         */
+        boolean cancel() {
+            if (!U.compareAndSwapInt(this, STATE, WAITING, CANCELLED))
+                return false;
+            timer.pushCancelled(this);
+            return true;
+        }
+
+        boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        boolean isExpired() {
+            return state == EXPIRED;
+        }
+    }
+
+    /** A list of timeouts hashed to one slot of the wheel. */
+    static final class Bucket {
+        Timeout head, tail;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            if (tail == null)
+                head = tail = t;
+            else {
+                tail.next = t;
+                t.prev = tail;
+                tail = t;
+            }
+        }
+
+        void remove(Timeout t) {
+            Timeout p = t.prev, n = t.next;
+            if (p == null) head = n; else p.next = n;
+            if (n == null) tail = p; else n.prev = p;
+            t.prev = t.next = null;
+            t.bucket = null;
+        }
+    }
+
+    /** Default tick duration, one millisecond */
+    static final long DEFAULT_TICK_NANOS = 1000L * 1000L;
+
+    /** Default number of buckets */
+    static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /** Longest delay honoured; about 73 years */
+    static final long MAX_DELAY = Long.MAX_VALUE >>> 1;
+
+    final long tickNanos;
+    final Bucket[] wheel;
+    final int mask;
+    final Thread thread;
+
+    /** Treiber stack of timeouts not yet placed in the wheel */
+    volatile Timeout incoming;
+
+    /** Treiber stack of cancelled timeouts not yet unlinked */
+    volatile Timeout cancelled;
+
+    /** True while the timer thread is parked without a deadline */
+    volatile boolean idle;
+
+    /** Number of bucketed timeouts (timer thread only) */
+    int pending;
+
+    /**
+     * Creates and starts a timer.
+     *
+     * @param tickNanos the tick duration in nanoseconds
+     * @param wheelSize the number of buckets, rounded up to a power of two
+     * @param name the timer thread name
+     */
+    HashedWheelTimer(long tickNanos, int wheelSize, String name) {
+        if (tickNanos <= 0L || wheelSize <= 0 || wheelSize > (1 << 30))
+            throw new IllegalArgumentException();
+        int n = 1;
+        while (n < wheelSize)
+            n <<= 1;
+        Bucket[] w = new Bucket[n];
+        for (int i = 0; i < n; ++i)
+            w[i] = new Bucket();
+        this.tickNanos = tickNanos;
+        this.wheel = w;
+        this.mask = n - 1;
+        Thread t = new Thread(new Runnable() {
+            public void run() { HashedWheelTimer.this.run(); }
+        }, name);
+        t.setDaemon(true);
+        this.thread = t;
+        t.start();
+    }
+
+    /**
+     * Arranges for task to be run by the timer thread after the
+     * given delay.
+     *
+     * @return a handle that may be used to cancel the task
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (task == null || unit == null)
+            throw new NullPointerException();
+        // Bound delays so that deadline - origin cannot overflow
+        long d = Math.min(Math.max(unit.toNanos(delay), 0L), MAX_DELAY);
+        long deadline = System.nanoTime() + d;
+        Timeout t = new Timeout(this, task, deadline);
+        Timeout h;
+        do {
+            t.nextIncoming = h = incoming;
+        } while (!U.compareAndSwapObject(this, INCOMING, h, t));
+        if (idle)
+            LockSupport.unpark(thread);
+        return t;
+    }
+
+    final void pushCancelled(Timeout t) {
+        Timeout h;
+        do {
+            t.nextCancelled = h = cancelled;
+        } while (!U.compareAndSwapObject(this, CANCELLED_HEAD, h, t));
+    }
+
+    /**
+     * Timer thread loop. Ticks are counted from origin, which is reset
+     * whenever the wheel is empty so that an idle timer needs no
+     * catching up.
+     */
+    final void run() {
+        long origin = System.nanoTime();
+        long tick = 0L;
+        for (; ; ) {
+            if (pending == 0 && incoming == null) {
+                unlinkCancelled();
+                idle = true;
+                if (incoming == null)
+                    LockSupport.park(this);
+                idle = false;
+                origin = System.nanoTime();
+                tick = 0L;
+            }
+            transferIncoming(origin, tick);
+            unlinkCancelled();
+            expire(wheel[(int) tick & mask]);
+            ++tick;
+            if (pending == 0) {
+                // Wheel is empty: restart counting from now, so new timeouts
+                // cannot fire before their tick boundary
+                origin = System.nanoTime();
+                tick = 0L;
+            }
+            else {
+                long wait;
+                while ((wait = origin + tick * tickNanos - System.nanoTime()) > 0L)
+                    LockSupport.parkNanos(this, wait);
+            }
+            Thread.interrupted(); // clear; interrupts are not used
+        }
+    }
+
+    /**
+     * Places newly scheduled timeouts in the buckets for their
+     * expiration ticks, or the current one if already due.
+     */
+    private void transferIncoming(long origin, long tick) {
+        Timeout t = (Timeout) U.getAndSetObject(this, INCOMING, null);
+        while (t != null) {
+            Timeout n = t.nextIncoming;
+            t.nextIncoming = null;
+            if (t.state == WAITING) {
+                long due = t.deadline - origin;
+                long ticks = (due <= 0L) ? 0L : (due + tickNanos - 1L) / tickNanos;
+                if (ticks < tick)
+                    ticks = tick;
+                t.rounds = (ticks - tick) / wheel.length;
+                wheel[(int) ticks & mask].add(t);
+                ++pending;
+            }
+            t = n;
+        }
+    }
+
+    private void unlinkCancelled() {
+        Timeout t = (Timeout) U.getAndSetObject(this, CANCELLED_HEAD, null);
+        while (t != null) {
+            Timeout n = t.nextCancelled;
+            t.nextCancelled = null;
+            Bucket b = t.bucket;
+            if (b != null) {
+                b.remove(t);
+                --pending;
+            }
+            t = n;
+        }
+    }
+
+    private void expire(Bucket b) {
+        for (Timeout t = b.head, n; t != null; t = n) {
+            n = t.next;
+            if (t.rounds > 0L)
+                --t.rounds;
+            else {
+                b.remove(t);
+                --pending;
+                if (U.compareAndSwapInt(t, STATE, WAITING, EXPIRED)) {
+                    try {
+                        t.task.run();
+                    } catch (Throwable ignore) {
+                        // keep timer thread alive
+                    }
+                }
+            }
+        }
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe U;
+    private static final long INCOMING;
+    private static final long CANCELLED_HEAD;
+    private static final long STATE;
+
+    static {
+        try {
+            U = sun.misc.Unsafe.getUnsafe();
+            Class<?> k = HashedWheelTimer.class;
+            INCOMING = U.objectFieldOffset(k.getDeclaredField("incoming"));
+            CANCELLED_HEAD = U.objectFieldOffset(k.getDeclaredField("cancelled"));
+            STATE = U.objectFieldOffset(Timeout.class.getDeclaredField("state"));
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
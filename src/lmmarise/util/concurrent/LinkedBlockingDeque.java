@@ -63,6 +63,10 @@ import java.util.function.Consumer;
  * contains}, {@link #iterator iterator.remove()}, and the bulk
  * operations, all of which run in linear time.
  *
+ * <p>A bounded deque may optionally be constructed to recycle the
+ * nodes of elements removed from either end, so that in steady state
+ * insertions and removals at the ends allocate nothing.
+ *
  * <p>This class and its iterator implement all of the
  * <em>optional</em> methods of the {@link Collection} and {@link
  * Iterator} interfaces.
@@ -96,6 +100,22 @@ public class LinkedBlockingDeque<E>
      * linking a Node that has just been dequeued to itself.  Such a
      * self-link implicitly means to jump to "first" (for next links)
      * or "last" (for prev links).
+     *
+     * Node recycling: when pool is non-null, nodes unlinked from
+     * either end are pushed on the pool (a stack guarded by lock) and
+     * reused by insertions.  A recycled node keeps its self-link until
+     * reused, but then looks like a live node, so each release bumps
+     * Node.gen, keeping its low bit set if the node was removed from
+     * the last end.  Iterators and spliterators, which hold nodes
+     * across lock releases, record gen along with the node.  On a
+     * mismatch they jump to "first" if the node was (most recently)
+     * removed from the end they started from, like a self-link, or
+     * else stop, like the null link left at the other end.  Interior
+     * removals keep their links for iterators and are never recycled,
+     * nor are nodes removed by clear(). Since an iterator may follow
+     * those links to the neighbours the removed node had at the time,
+     * without knowing their gen, the neighbours are pinned (PINNED
+     * bit of gen) and never recycled either.
      */
 
     /*
@@ -107,6 +127,9 @@ public class LinkedBlockingDeque<E>
 
     private static final long serialVersionUID = -387911632671998426L;
 
+    /** Bit of Node.gen marking a node that must not be recycled. */
+    static final int PINNED = 2;
+
     /** Doubly-linked list node class */
     static final class Node<E> {
         /**
@@ -130,9 +153,21 @@ public class LinkedBlockingDeque<E>
          */
         Node<E> next;
 
+        /**
+         * Four times the number of times this node has been released
+         * for reuse, plus PINNED if it must never be released, plus
+         * one if most recently removed from the last end.
+         */
+        int gen;
+
         Node(E x) {
             item = x;
         }
+
+        /** Returns gen without the PINNED bit. */
+        int gen() {
+            return gen & ~PINNED;
+        }
     }
 
     /**
@@ -164,6 +199,16 @@ public class LinkedBlockingDeque<E>
     /** Condition for waiting puts */
     private final Condition notFull = lock.newCondition();
 
+    /**
+     * Stack of unlinked nodes available for reuse, or null if nodes
+     * are not recycled. Not serialized; deserialized deques do not
+     * recycle.
+     */
+    private final transient Node<E>[] pool;
+
+    /** Number of nodes in pool */
+    private transient int pooled;
+
     /**
      * Creates a {@code LinkedBlockingDeque} with a capacity of
      * {@link Integer#MAX_VALUE}.
@@ -181,6 +226,38 @@ public class LinkedBlockingDeque<E>
     public LinkedBlockingDeque(int capacity) {
         if (capacity <= 0) throw new IllegalArgumentException();
         this.capacity = capacity;
+        this.pool = null;
+    }
+
+    /**
+     * Creates a {@code LinkedBlockingDeque} with the given (fixed)
+     * capacity that, if {@code recycleNodes} is true, preallocates a
+     * node for each element it can hold and reuses the nodes of
+     * elements removed from either end, so that in steady state
+     * insertions and removals at the ends allocate nothing.
+     *
+     * @param capacity the capacity of this deque
+     * @param recycleNodes if {@code true}, nodes are preallocated and
+     *        recycled
+     * @throws IllegalArgumentException if {@code capacity} is less than 1,
+     *         or if {@code recycleNodes} is true and {@code capacity} is
+     *         greater than {@code 1 << 30}
+     * @since 1.8
+     */
+    public LinkedBlockingDeque(int capacity, boolean recycleNodes) {
+        if (capacity <= 0 || (recycleNodes && capacity > (1 << 30)))
+            throw new IllegalArgumentException();
+        this.capacity = capacity;
+        if (recycleNodes) {
+            @SuppressWarnings("unchecked")
+            Node<E>[] a = (Node<E>[])new Node<?>[capacity];
+            for (int i = 0; i < capacity; ++i)
+                a[i] = new Node<E>(null);
+            pooled = capacity;
+            this.pool = a;
+        }
+        else
+            this.pool = null;
     }
 
     /**
@@ -201,7 +278,7 @@ public class LinkedBlockingDeque<E>
             for (E e : c) {
                 if (e == null)
                     throw new NullPointerException();
-                if (!linkLast(new Node<E>(e)))
+                if (!linkLast(new Node<E>(e), e))
                     throw new IllegalStateException("Deque full");
             }
         } finally {
@@ -210,16 +287,57 @@ public class LinkedBlockingDeque<E>
     }
 
 
+    /**
+     * Returns a new node holding e, or null if nodes are recycled, in
+     * which case linkFirst or linkLast obtains one under lock.
+     */
+    private Node<E> newNode(E e) {
+        return (pool == null) ? new Node<E>(e) : null;
+    }
+
     // Basic linking and unlinking operations, called only while holding lock
 
     /**
-     * Links node as first element, or returns false if full.
+     * Returns a node holding e, reused from the pool if possible.
+     */
+    private Node<E> reuseNode(E e) {
+        // assert lock.isHeldByCurrentThread();
+        int n = pooled;
+        if (n == 0)
+            return new Node<E>(e);
+        Node<E> node = pool[--n];
+        pool[n] = null;
+        pooled = n;
+        node.prev = node.next = null;
+        node.item = e;
+        return node;
+    }
+
+    /**
+     * Releases an unlinked end node to the pool, if not full and not
+     * pinned.
+     *
+     * @param last 1 if node was removed from the last end, else 0
+     */
+    private void recycle(Node<E> node, int last) {
+        // assert lock.isHeldByCurrentThread();
+        if ((node.gen & PINNED) == 0 && pooled < pool.length) {
+            node.gen = ((node.gen + 4) & ~3) | last;
+            pool[pooled++] = node;
+        }
+    }
+
+    /**
+     * Links node, or if null a node holding e, as first element, or
+     * returns false if full.
      */
     /**插入节点到队列头*/
-    private boolean linkFirst(Node<E> node) {
+    private boolean linkFirst(Node<E> node, E e) {
         // assert lock.isHeldByCurrentThread();
         if (count >= capacity)
             return false;
+        if (node == null)
+            node = reuseNode(e);
         Node<E> f = first;
         node.next = f;
         first = node;
@@ -233,13 +351,16 @@ public class LinkedBlockingDeque<E>
     }
 
     /**
-     * Links node as last element, or returns false if full.
+     * Links node, or if null a node holding e, as last element, or
+     * returns false if full.
      */
     /**插入节点到队列尾*/
-    private boolean linkLast(Node<E> node) {
+    private boolean linkLast(Node<E> node, E e) {
         // assert lock.isHeldByCurrentThread();
         if (count >= capacity)
             return false;
+        if (node == null)
+            node = reuseNode(e);
         Node<E> l = last;
         node.prev = l;
         last = node;
@@ -270,6 +391,8 @@ public class LinkedBlockingDeque<E>
             last = null;
         else
             n.prev = null;
+        if (pool != null)
+            recycle(f, 0);
         --count;
         notFull.signal();
         return item;
@@ -293,6 +416,8 @@ public class LinkedBlockingDeque<E>
             first = null;
         else
             p.next = null;
+        if (pool != null)
+            recycle(l, 1);
         --count;
         notFull.signal();
         return item;
@@ -316,6 +441,10 @@ public class LinkedBlockingDeque<E>
             x.item = null;
             // Don't mess with x's links.  They may still be in use by
             // an iterator.
+            if (pool != null) {
+                p.gen |= PINNED;    // 迭代器仍可能经由x到达p、n，二者不能再被复用
+                n.gen |= PINNED;
+            }
             --count;
             notFull.signal();
         }
@@ -349,11 +478,11 @@ public class LinkedBlockingDeque<E>
     /**插入到队列头,失败返回false*/
     public boolean offerFirst(E e) {
         if (e == null) throw new NullPointerException();
-        Node<E> node = new Node<E>(e);
+        Node<E> node = newNode(e);
         final ReentrantLock lock = this.lock;
         lock.lock();
         try {
-            return linkFirst(node);
+            return linkFirst(node, e);
         } finally {
             lock.unlock();
         }
@@ -365,11 +494,11 @@ public class LinkedBlockingDeque<E>
     /**插入到队列尾,失败返回false*/
     public boolean offerLast(E e) {
         if (e == null) throw new NullPointerException();
-        Node<E> node = new Node<E>(e);
+        Node<E> node = newNode(e);
         final ReentrantLock lock = this.lock;
         lock.lock();
         try {
-            return linkLast(node);
+            return linkLast(node, e);
         } finally {
             lock.unlock();
         }
@@ -382,11 +511,11 @@ public class LinkedBlockingDeque<E>
     /**插入到队列头,队列满时一直等待可用*/
     public void putFirst(E e) throws InterruptedException {
         if (e == null) throw new NullPointerException();
-        Node<E> node = new Node<E>(e);
+        Node<E> node = newNode(e);
         final ReentrantLock lock = this.lock;
         lock.lock();
         try {
-            while (!linkFirst(node))
+            while (!linkFirst(node, e))
                 notFull.await();
         } finally {
             lock.unlock();
@@ -400,11 +529,11 @@ public class LinkedBlockingDeque<E>
     /**插入到队列尾,队列满时一直等待可用*/
     public void putLast(E e) throws InterruptedException {
         if (e == null) throw new NullPointerException();
-        Node<E> node = new Node<E>(e);
+        Node<E> node = newNode(e);
         final ReentrantLock lock = this.lock;
         lock.lock();
         try {
-            while (!linkLast(node))
+            while (!linkLast(node, e))
                 notFull.await();
         } finally {
             lock.unlock();
@@ -419,12 +548,12 @@ public class LinkedBlockingDeque<E>
     public boolean offerFirst(E e, long timeout, lmmarise.util.concurrent.TimeUnit unit)
         throws InterruptedException {
         if (e == null) throw new NullPointerException();
-        Node<E> node = new Node<E>(e);
+        Node<E> node = newNode(e);
         long nanos = unit.toNanos(timeout);
         final ReentrantLock lock = this.lock;
         lock.lockInterruptibly();
         try {
-            while (!linkFirst(node)) {
+            while (!linkFirst(node, e)) {
                 if (nanos <= 0)
                     return false;
                 nanos = notFull.awaitNanos(nanos);
@@ -443,12 +572,12 @@ public class LinkedBlockingDeque<E>
     public boolean offerLast(E e, long timeout, lmmarise.util.concurrent.TimeUnit unit)
         throws InterruptedException {
         if (e == null) throw new NullPointerException();
-        Node<E> node = new Node<E>(e);
+        Node<E> node = newNode(e);
         long nanos = unit.toNanos(timeout);
         final ReentrantLock lock = this.lock;
         lock.lockInterruptibly();
         try {
-            while (!linkLast(node)) {
+            while (!linkLast(node, e)) {
                 if (nanos <= 0)
                     return false;
                 nanos = notFull.awaitNanos(nanos);
@@ -1077,6 +1206,9 @@ public class LinkedBlockingDeque<E>
          */
         Node<E> next;
 
+        /** next.gen when reached */
+        int nextGen;
+
         /**
          * nextItem holds on to item fields because once we claim that
          * an element exists in hasNext(), we must return item read
@@ -1091,16 +1223,24 @@ public class LinkedBlockingDeque<E>
          */
         private Node<E> lastRet;
 
+        /** lastRet.gen when reached */
+        private int lastRetGen;
+
         abstract Node<E> firstNode();
         abstract Node<E> nextNode(Node<E> n);
 
+        /**
+         * Returns true if recycled node n was most recently removed
+         * from the end at which traversal starts.
+         */
+        abstract boolean removedAtStart(Node<E> n);
+
         AbstractItr() {
             // set to initial position
             final ReentrantLock lock = LinkedBlockingDeque.this.lock;
             lock.lock();
             try {
-                next = firstNode();
-                nextItem = (next == null) ? null : next.item;
+                setNext(firstNode());
             } finally {
                 lock.unlock();
             }
@@ -1126,6 +1266,19 @@ public class LinkedBlockingDeque<E>
             }
         }
 
+        /**
+         * Sets next, recording its item and gen.
+         */
+        private void setNext(Node<E> n) {
+            next = n;
+            if (n == null)
+                nextItem = null;
+            else {
+                nextItem = n.item;
+                nextGen = n.gen();
+            }
+        }
+
         /**
          * Advances next.
          */
@@ -1134,8 +1287,11 @@ public class LinkedBlockingDeque<E>
             lock.lock();
             try {
                 // assert next != null;
-                next = succ(next);
-                nextItem = (next == null) ? null : next.item;
+                Node<E> n = next;
+                if (n.gen() == nextGen)
+                    setNext(succ(n));
+                else    // recycled
+                    setNext(removedAtStart(n) ? firstNode() : null);
             } finally {
                 lock.unlock();
             }
@@ -1149,6 +1305,7 @@ public class LinkedBlockingDeque<E>
             if (next == null)
                 throw new NoSuchElementException();
             lastRet = next;
+            lastRetGen = nextGen;
             E x = nextItem;
             advance();
             return x;
@@ -1162,7 +1319,7 @@ public class LinkedBlockingDeque<E>
             final ReentrantLock lock = LinkedBlockingDeque.this.lock;
             lock.lock();
             try {
-                if (n.item != null)
+                if (n.item != null && n.gen() == lastRetGen)
                     unlink(n);
             } finally {
                 lock.unlock();
@@ -1175,6 +1332,7 @@ public class LinkedBlockingDeque<E>
     private class Itr extends AbstractItr {
         Node<E> firstNode() { return first; }
         Node<E> nextNode(Node<E> n) { return n.next; }
+        boolean removedAtStart(Node<E> n) { return (n.gen & 1) == 0; }
     }
 
     /** Descending iterator */
@@ -1182,6 +1340,7 @@ public class LinkedBlockingDeque<E>
     private class DescendingItr extends AbstractItr {
         Node<E> firstNode() { return last; }
         Node<E> nextNode(Node<E> n) { return n.prev; }
+        boolean removedAtStart(Node<E> n) { return (n.gen & 1) != 0; }
     }
 
     /** A customized variant of Spliterators.IteratorSpliterator */
@@ -1189,6 +1348,7 @@ public class LinkedBlockingDeque<E>
         static final int MAX_BATCH = 1 << 25;  // max batch array size;
         final LinkedBlockingDeque<E> queue;
         Node<E> current;    // current node; null until initialized
+        int gen;            // current.gen() when reached
         int batch;          // batch size for splits
         boolean exhausted;  // true when no more nodes
         long est;           // size estimate
@@ -1213,11 +1373,17 @@ public class LinkedBlockingDeque<E>
                 Node<E> p = current;
                 lock.lock();
                 try {
-                    if (p != null || (p = q.first) != null) {
+                    if (p == null)
+                        p = q.first;
+                    else if (p.gen() != gen)
+                        p = resume(q, p);
+                    if (p != null) {
                         do {
                             if ((a[i] = p.item) != null)
                                 ++i;
                         } while ((p = p.next) != null && i < n);
+                        if (p != null)
+                            gen = p.gen();
                     }
                 } finally {
                     lock.unlock();
@@ -1245,18 +1411,23 @@ public class LinkedBlockingDeque<E>
             if (!exhausted) {
                 exhausted = true;
                 Node<E> p = current;
+                int g = gen;
                 do {
                     E e = null;
                     lock.lock();
                     try {
                         if (p == null)
                             p = q.first;
+                        else if (p.gen() != g)
+                            p = resume(q, p);
                         while (p != null) {
                             e = p.item;
                             p = p.next;
                             if (e != null)
                                 break;
                         }
+                        if (p != null)
+                            g = p.gen();
                     } finally {
                         lock.unlock();
                     }
@@ -1276,12 +1447,16 @@ public class LinkedBlockingDeque<E>
                 try {
                     if (current == null)
                         current = q.first;
+                    else if (current.gen() != gen)
+                        current = resume(q, current);
                     while (current != null) {
                         e = current.item;
                         current = current.next;
                         if (e != null)
                             break;
                     }
+                    if (current != null)
+                        gen = current.gen();
                 } finally {
                     lock.unlock();
                 }
@@ -1295,6 +1470,15 @@ public class LinkedBlockingDeque<E>
             return false;
         }
 
+        /**
+         * Returns the node at which to resume after finding that p
+         * was recycled: first if p was removed from the first end,
+         * else null.
+         */
+        static <E> Node<E> resume(LinkedBlockingDeque<E> q, Node<E> p) {
+            return ((p.gen & 1) == 0) ? q.first : null;
+        }
+
         public int characteristics() {
             return Spliterator.ORDERED | Spliterator.NONNULL |
                 Spliterator.CONCURRENT;
@@ -69,6 +69,16 @@ import java.util.function.Consumer;
  * queue above capacity.
  * 队列容量可通过构造参数来定义，如果未指定容量，将取最大容量Integer#MAX_VALUE。
  *
+ * <p>A queue may optionally be constructed with a {@link WaitStrategy}
+ * that blocking operations apply before acquiring a lock and waiting
+ * on a condition, trading processor time for lower handoff latency.
+ * 可选的等待策略：阻塞前先自旋/让出，以CPU换取更低的交接延迟。
+ *
+ * <p>A queue may also be constructed to recycle the nodes of removed
+ * elements, so that in steady state {@code put}, {@code offer},
+ * {@code take} and {@code poll} allocate nothing.
+ * 可选的节点复用模式：预分配并回收节点，稳态下入列出列不分配内存。
+ *
  * <p>This class and its iterator implement all of the
  * <em>optional</em> methods of the {@link Collection} and {@link
  * Iterator} interfaces.
@@ -119,8 +129,28 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
      * be of the kind understood by the GC.  We use the trick of
      * linking a Node that has just been dequeued to itself.  Such a
      * self-link implicitly means to advance to head.next.
+     *
+     * Node recycling: when pool is non-null, nodes dequeued by takes
+     * are placed in the pool and reused by puts. Nodes are released
+     * only while holding takeLock and reacquired only while holding
+     * putLock, so the pool, an SpscArrayQueue, always has a single
+     * producer and a single consumer, and the two locks stay
+     * independent. A released node keeps its self-link until it is
+     * reused, but then looks like a live node, so each release
+     * increments Node.gen. Iterators and spliterators, which hold
+     * nodes across lock releases, record gen along with the node and
+     * treat a changed gen exactly like a self-link. Nodes removed by
+     * remove(Object) keep their links for iterators and are never
+     * recycled. An iterator may still follow such a link to the
+     * successor the removed node had at the time, without knowing
+     * that node's gen, so the successor is pinned (PINNED bit of
+     * gen) and never recycled either; if later dequeued it keeps its
+     * self-link.
      */
 
+    /** Bit of Node.gen marking a node that must not be recycled. */
+    static final int PINNED = 1;
+
     /**
      * Linked list node class
      */
@@ -135,7 +165,16 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
          */
         Node<E> next;
 
+        /**
+         * Twice the number of times this node has been released for
+         * reuse, plus PINNED if it must never be released.
+         */
+        int gen;
+
         Node(E x) { item = x; }
+
+        /** Returns gen without the PINNED bit. */
+        int gen() { return gen & ~PINNED; }
     }
 
     /** The capacity bound, or Integer.MAX_VALUE if none */
@@ -176,6 +215,19 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
     //等待插入(入列)条件
     private final Condition notFull = putLock.newCondition();
 
+    /**
+     * Strategy applied by blocking operations before waiting on
+     * notEmpty or notFull, or null if they wait at once. Not
+     * serialized; deserialized queues wait at once.
+     */
+    private final transient WaitStrategy waitStrategy;
+
+    /**
+     * Dequeued nodes available for reuse by puts, or null if nodes are
+     * not recycled. Not serialized; deserialized queues do not recycle.
+     */
+    private final transient SpscArrayQueue<Node<E>> pool;
+
     /**
      * Signals a waiting take. Called only from put/offer (which do not
      * otherwise ordinarily lock takeLock.)
@@ -217,6 +269,27 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         last = last.next = node;
     }
 
+    /**
+     * Links the first k nodes following h at end of queue, leaving h
+     * linked to the rest of its chain.
+     *
+     * @param h the dummy node heading a chain of at least k nodes
+     * @param t the kth node of the chain, or null if not known
+     * @param k the number of nodes to link
+     */
+    private void enqueueChain(Node<E> h, Node<E> t, int k) {
+        // assert putLock.isHeldByCurrentThread();
+        // assert last.next == null;
+        if (t == null)
+            for (t = h; k > 0; --k)
+                t = t.next;
+        Node<E> first = h.next;
+        h.next = t.next;
+        t.next = null;
+        last.next = first;
+        last = t;
+    }
+
     /**
      * Removes a node from head of queue.
      *
@@ -232,6 +305,8 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         head = first;
         E x = first.item;
         first.item = null;
+        if (pool != null)
+            recycle(h);
         return x;
     }
 
@@ -277,9 +352,138 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
     public LinkedBlockingQueue(int capacity) {
         if (capacity <= 0) throw new IllegalArgumentException();
         this.capacity = capacity;
+        this.waitStrategy = null;
+        this.pool = null;
         last = head = new Node<E>(null);
     }
 
+    /**
+     * Creates a {@code LinkedBlockingQueue} with the given (fixed)
+     * capacity, whose blocking operations wait as directed by the
+     * given strategy before blocking.  {@code take} and {@code put},
+     * and their timed forms, first spin or yield while the queue is
+     * empty or full respectively; if the strategy then calls for
+     * parking, or if another thread claims the element or space
+     * first, they block as usual.  Thus even strategies that never
+     * park may occasionally block.
+     *
+     * @param capacity the capacity of this queue
+     * @param waitStrategy the wait strategy
+     * @throws IllegalArgumentException if {@code capacity} is not greater
+     *         than zero
+     * @throws NullPointerException if {@code waitStrategy} is null
+     * @since 1.8
+     */
+    public LinkedBlockingQueue(int capacity, WaitStrategy waitStrategy) {
+        this(capacity, waitStrategy, false);
+    }
+
+    /**
+     * Creates a {@code LinkedBlockingQueue} with the given (fixed)
+     * capacity that, if {@code recycleNodes} is true, preallocates a
+     * node for each element it can hold and reuses the nodes of
+     * removed elements, so that in steady state {@code put}, {@code
+     * offer}, {@code take}, {@code poll} and {@code drainTo} allocate
+     * nothing.  Bulk insertions and {@code remove(Object)} still
+     * allocate and discard nodes.
+     *
+     * @param capacity the capacity of this queue
+     * @param recycleNodes if {@code true}, nodes are preallocated and
+     *        recycled
+     * @throws IllegalArgumentException if {@code capacity} is not greater
+     *         than zero, or if {@code recycleNodes} is true and
+     *         {@code capacity} is greater than {@code 1 << 30}
+     * @since 1.8
+     */
+    public LinkedBlockingQueue(int capacity, boolean recycleNodes) {
+        if (capacity <= 0) throw new IllegalArgumentException();
+        this.capacity = capacity;
+        this.waitStrategy = null;
+        this.pool = recycleNodes ? LinkedBlockingQueue.<E>newPool(capacity) : null;
+        last = head = new Node<E>(null);
+    }
+
+    /**
+     * Creates a {@code LinkedBlockingQueue} with the given (fixed)
+     * capacity, whose blocking operations wait as directed by the
+     * given strategy before blocking, and which recycles nodes if
+     * {@code recycleNodes} is true.
+     *
+     * @param capacity the capacity of this queue
+     * @param waitStrategy the wait strategy
+     * @param recycleNodes if {@code true}, nodes are preallocated and
+     *        recycled
+     * @throws IllegalArgumentException if {@code capacity} is not greater
+     *         than zero, or if {@code recycleNodes} is true and
+     *         {@code capacity} is greater than {@code 1 << 30}
+     * @throws NullPointerException if {@code waitStrategy} is null
+     * @see #LinkedBlockingQueue(int, WaitStrategy)
+     * @see #LinkedBlockingQueue(int, boolean)
+     * @since 1.8
+     */
+    public LinkedBlockingQueue(int capacity, WaitStrategy waitStrategy,
+                               boolean recycleNodes) {
+        if (capacity <= 0) throw new IllegalArgumentException();
+        if (waitStrategy == null) throw new NullPointerException();
+        this.capacity = capacity;
+        this.waitStrategy = waitStrategy;
+        this.pool = recycleNodes ? LinkedBlockingQueue.<E>newPool(capacity) : null;
+        last = head = new Node<E>(null);
+    }
+
+    /**
+     * Returns a pool holding capacity preallocated nodes.
+     */
+    private static <E> SpscArrayQueue<Node<E>> newPool(int capacity) {
+        SpscArrayQueue<Node<E>> pool = new SpscArrayQueue<Node<E>>(capacity);
+        for (int i = 0; i < capacity; ++i)
+            pool.offer(new Node<E>(null));
+        return pool;
+    }
+
+    /**
+     * Returns a node holding x, reused from the pool if possible.
+     */
+    private Node<E> newNode(E x) {
+        // assert putLock.isHeldByCurrentThread();
+        Node<E> node = pool.poll();
+        if (node == null)
+            return new Node<E>(x);
+        node.next = null;
+        node.item = x;
+        return node;
+    }
+
+    /**
+     * Releases a dequeued, self-linked node to the pool, unless pinned.
+     */
+    private void recycle(Node<E> node) {
+        // assert takeLock.isHeldByCurrentThread();
+        // assert node.next == node && node.item == null;
+        if ((node.gen & PINNED) == 0) {
+            node.gen += 2;
+            pool.offer(node);
+        }
+    }
+
+    /**
+     * Spins or yields, as directed by the wait strategy, while count
+     * is c, until the strategy calls for parking or (if timed) the
+     * deadline passes. Callers then proceed to lock and recheck.
+     */
+    private void awaitCount(int c, boolean timed, long deadline)
+        throws InterruptedException {
+        final WaitStrategy ws = waitStrategy;
+        final AtomicInteger count = this.count;
+        for (int k = 0; count.get() == c && !ws.idle(k);
+             k = WaitStrategy.next(k)) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (timed && deadline - System.nanoTime() <= 0L)
+                break;
+        }
+    }
+
     /**
      * Creates a {@code LinkedBlockingQueue} with a capacity of
      * {@link Integer#MAX_VALUE}, initially containing the elements of the
@@ -353,9 +557,11 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         // Note: convention in all put/take/etc is to preset local var
         // holding count negative to indicate failure unless set.
         int c = -1;
-        Node<E> node = new Node<E>(e);
+        Node<E> node = (pool == null) ? new Node<E>(e) : null;
         final ReentrantLock putLock = this.putLock;//获取入列锁
         final AtomicInteger count = this.count;//获取元素数
+        if (waitStrategy != null && count.get() == capacity)
+            awaitCount(capacity, false, 0L);//按等待策略自旋
         putLock.lockInterruptibly();//响应中断式加锁
         try {
             /*
@@ -370,7 +576,7 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
             while (count.get() == capacity) {
                 notFull.await();//队列已满，等待
             }
-            enqueue(node);//节点添加到队列尾
+            enqueue((node != null) ? node : newNode(e));//节点添加到队列尾
             c = count.getAndIncrement();
             if (c + 1 < capacity)
                 notFull.signal();
@@ -399,6 +605,11 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         int c = -1;
         final ReentrantLock putLock = this.putLock;
         final AtomicInteger count = this.count;
+        if (waitStrategy != null && count.get() == capacity) {
+            final long deadline = System.nanoTime() + nanos;
+            awaitCount(capacity, true, deadline);
+            nanos = deadline - System.nanoTime();
+        }
         putLock.lockInterruptibly();
         try {
             while (count.get() == capacity) {
@@ -406,7 +617,7 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
                     return false;
                 nanos = notFull.awaitNanos(nanos);
             }
-            enqueue(new Node<E>(e));
+            enqueue((pool == null) ? new Node<E>(e) : newNode(e));
             c = count.getAndIncrement();
             if (c + 1 < capacity)
                 notFull.signal();
@@ -436,12 +647,12 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         if (count.get() == capacity)
             return false;
         int c = -1;
-        Node<E> node = new Node<E>(e);
+        Node<E> node = (pool == null) ? new Node<E>(e) : null;
         final ReentrantLock putLock = this.putLock;
         putLock.lock();
         try {
             if (count.get() < capacity) {
-                enqueue(node);
+                enqueue((node != null) ? node : newNode(e));
                 c = count.getAndIncrement();
                 if (c + 1 < capacity)
                     notFull.signal();
@@ -453,12 +664,142 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
             signalNotEmpty();
         return c >= 0;
     }
+
+    /**
+     * Inserts as many elements of the given collection as possible
+     * without exceeding the queue's capacity, in the order returned by
+     * the collection's iterator, returning the number inserted.  The
+     * elements are linked under a single acquisition of the put lock,
+     * and a waiting take is signalled at most once.  Unlike repeated
+     * calls to {@link #offer(Object) offer}, the inserted elements
+     * occupy consecutive positions in this queue.
+     * 批量插入：在锁外构建节点链，一次加锁链接，只更新一次count、只唤醒一次。
+     *
+     * @param c the collection of elements to insert
+     * @return the number of elements inserted, which is a prefix of
+     *         the collection's iteration order
+     * @throws NullPointerException if the specified collection or any
+     *         of its elements are null, in which case no elements are
+     *         inserted
+     * @throws IllegalArgumentException if the specified collection is
+     *         this queue
+     * @since 1.8
+     */
+    public int offerAll(Collection<? extends E> c) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        // Build the chain outside of the lock
+        final Node<E> h = new Node<E>(null);
+        Node<E> t = h;
+        int n = 0;
+        for (E e : c) {
+            if (e == null)
+                throw new NullPointerException();
+            t = t.next = new Node<E>(e);
+            ++n;
+        }
+        final AtomicInteger count = this.count;
+        if (n == 0 || count.get() == capacity)
+            return 0;
+        int k = 0, prev = -1;
+        final ReentrantLock putLock = this.putLock;
+        putLock.lock();
+        try {
+            int room = capacity - count.get();
+            if (room > 0) {
+                k = Math.min(room, n);
+                enqueueChain(h, (k == n) ? t : null, k);
+                prev = count.getAndAdd(k);
+                if (prev + k < capacity)
+                    notFull.signal();
+            }
+        } finally {
+            putLock.unlock();
+        }
+        if (prev == 0)
+            signalNotEmpty();
+        return k;
+    }
+
+    /**
+     * Inserts all elements of the given collection at the tail of this
+     * queue, in the order returned by the collection's iterator,
+     * waiting if necessary for space to become available.  When there
+     * is space for all of them, the elements are linked under a single
+     * acquisition of the put lock, and a waiting take is signalled at
+     * most once.  Otherwise, as many as fit are linked each time space
+     * becomes available, with no other puts interleaved.
+     *
+     * <p>If interrupted while waiting, the elements already inserted
+     * remain in this queue.
+     * 批量阻塞插入：队列满时等待，期间已插入的元素保留在队列中。
+     *
+     * @param c the collection of elements to insert
+     * @throws InterruptedException if interrupted while waiting
+     * @throws NullPointerException if the specified collection or any
+     *         of its elements are null, in which case no elements are
+     *         inserted
+     * @throws IllegalArgumentException if the specified collection is
+     *         this queue
+     * @since 1.8
+     */
+    public void putAll(Collection<? extends E> c) throws InterruptedException {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        final Node<E> h = new Node<E>(null);
+        Node<E> t = h;
+        int n = 0;
+        for (E e : c) {
+            if (e == null)
+                throw new NullPointerException();
+            t = t.next = new Node<E>(e);
+            ++n;
+        }
+        if (n == 0)
+            return;
+        boolean signal = false;
+        final ReentrantLock putLock = this.putLock;
+        final AtomicInteger count = this.count;
+        if (waitStrategy != null && count.get() == capacity)
+            awaitCount(capacity, false, 0L);
+        putLock.lockInterruptibly();
+        try {
+            for (;;) {
+                while (count.get() == capacity) {
+                    // Wake takers before waiting for them to make room
+                    if (signal) {
+                        signal = false;
+                        signalNotEmpty();
+                    }
+                    notFull.await();
+                }
+                int k = Math.min(capacity - count.get(), n);
+                enqueueChain(h, (k == n) ? t : null, k);
+                if (count.getAndAdd(k) == 0)
+                    signal = true;
+                if ((n -= k) == 0)
+                    break;
+            }
+            if (count.get() < capacity)
+                notFull.signal();
+        } finally {
+            putLock.unlock();
+        }
+        if (signal)
+            signalNotEmpty();
+    }
     /**获取并消除头节点,会一直等待队列可用,响应中断*/
     public E take() throws InterruptedException {
         E x;
         int c = -1;
         final AtomicInteger count = this.count;
         final ReentrantLock takeLock = this.takeLock;//获取出列锁
+        if (waitStrategy != null && count.get() == 0)
+            awaitCount(0, false, 0L);//按等待策略自旋
         takeLock.lockInterruptibly();//响应中断式加锁
         try {
             while (count.get() == 0) {
@@ -482,6 +823,11 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         long nanos = unit.toNanos(timeout);
         final AtomicInteger count = this.count;
         final ReentrantLock takeLock = this.takeLock;
+        if (waitStrategy != null && count.get() == 0) {
+            final long deadline = System.nanoTime() + nanos;
+            awaitCount(0, true, deadline);
+            nanos = deadline - System.nanoTime();
+        }
         takeLock.lockInterruptibly();
         try {
             while (count.get() == 0) {
@@ -550,7 +896,10 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         // p.next is not changed, to allow iterators that are
         // traversing p to maintain their weak-consistency guarantee.
         p.item = null;
-        trail.next = p.next;
+        Node<E> s = p.next;
+        if (s != null && pool != null)
+            s.gen |= PINNED;    // 迭代器仍可能经由p到达s，s不能再被复用
+        trail.next = s;
         if (last == p)
             last = trail;
         if (count.getAndDecrement() == capacity)
@@ -723,9 +1072,12 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
     public void clear() {
         fullyLock();
         try {
+            final boolean recycle = (pool != null);
             for (Node<E> p, h = head; (p = h.next) != null; h = p) {
                 h.next = h;
                 p.item = null;
+                if (recycle)    // no puts can reuse h while locked
+                    recycle(h);
             }
             head = last;
             // assert head.item == null && head.next == null;
@@ -766,7 +1118,9 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         try {
             int n = Math.min(maxElements, count.get());
             // count.get provides visibility to first n Nodes
-            Node<E> h = head;
+            final Node<E> oldHead = head;
+            final boolean recycle = (pool != null);
+            Node<E> h = oldHead;
             int i = 0;
             try {
                 while (i < n) {
@@ -774,6 +1128,9 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
                     c.add(p.item);
                     p.item = null;
                     h.next = h;
+                    // oldHead stays reachable from head until finally
+                    if (recycle && h != oldHead)
+                        recycle(h);
                     h = p;
                     ++i;
                 }
@@ -783,6 +1140,8 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
                 if (i > 0) {
                     // assert h.item == null;
                     head = h;
+                    if (recycle)
+                        recycle(oldHead);
                     signalNotFull = (count.getAndAdd(-i) == capacity);
                 }
             }
@@ -816,13 +1175,17 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         private Node<E> current;
         private Node<E> lastRet;
         private E currentElement;
+        private int currentGen; // current.gen() when reached
+        private int lastRetGen;
 
         Itr() {
             fullyLock();
             try {
                 current = head.next;
-                if (current != null)
+                if (current != null) {
                     currentElement = current.item;
+                    currentGen = current.gen();
+                }
             } finally {
                 fullyUnlock();
             }
@@ -836,10 +1199,12 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
          * Returns the next live successor of p, or null if no such.
          *
          * Unlike other traversal methods, iterators need to handle both:
-         * - dequeued nodes (p.next == p)
+         * - dequeued nodes (p.next == p, or p.gen() changed if recycled)
          * - (possibly multiple) interior removed nodes (p.item == null)
          */
-        private Node<E> nextNode(Node<E> p) {
+        private Node<E> nextNode(Node<E> p, int gen) {
+            if (p.gen() != gen)
+                return head.next;
             for (;;) {
                 Node<E> s = p.next;
                 if (s == p)
@@ -857,8 +1222,14 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
                     throw new NoSuchElementException();
                 E x = currentElement;
                 lastRet = current;
-                current = nextNode(current);
-                currentElement = (current == null) ? null : current.item;
+                lastRetGen = currentGen;
+                current = nextNode(current, currentGen);
+                if (current == null)
+                    currentElement = null;
+                else {
+                    currentElement = current.item;
+                    currentGen = current.gen();
+                }
                 return x;
             } finally {
                 fullyUnlock();
@@ -876,7 +1247,8 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
                      p != null;
                      trail = p, p = p.next) {
                     if (p == node) {
-                        unlink(p, trail);
+                        if (p.gen() == lastRetGen)
+                            unlink(p, trail);
                         break;
                     }
                 }
@@ -891,6 +1263,7 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         static final int MAX_BATCH = 1 << 25;  // max batch array size;
         final LinkedBlockingQueue<E> queue;
         Node<E> current;    // current node; null until initialized
+        int gen;            // current.gen() when reached
         int batch;          // batch size for splits
         boolean exhausted;  // true when no more nodes
         long est;           // size estimate
@@ -914,11 +1287,15 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
                 Node<E> p = current;
                 q.fullyLock();
                 try {
-                    if (p != null || (p = q.head.next) != null) {
+                    if (p == null || p.gen() != gen)
+                        p = q.head.next;
+                    if (p != null) {
                         do {
                             if ((a[i] = p.item) != null)
                                 ++i;
                         } while ((p = p.next) != null && i < n);
+                        if (p != null)
+                            gen = p.gen();
                     }
                 } finally {
                     q.fullyUnlock();
@@ -945,11 +1322,12 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
             if (!exhausted) {
                 exhausted = true;
                 Node<E> p = current;
+                int g = gen;
                 do {
                     E e = null;
                     q.fullyLock();
                     try {
-                        if (p == null)
+                        if (p == null || p.gen() != g)
                             p = q.head.next;
                         while (p != null) {
                             e = p.item;
@@ -957,6 +1335,8 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
                             if (e != null)
                                 break;
                         }
+                        if (p != null)
+                            g = p.gen();
                     } finally {
                         q.fullyUnlock();
                     }
@@ -973,7 +1353,7 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
                 E e = null;
                 q.fullyLock();
                 try {
-                    if (current == null)
+                    if (current == null || current.gen() != gen)
                         current = q.head.next;
                     while (current != null) {
                         e = current.item;
@@ -981,6 +1361,8 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
                         if (e != null)
                             break;
                     }
+                    if (current != null)
+                        gen = current.gen();
                 } finally {
                     q.fullyUnlock();
                 }
@@ -449,9 +449,9 @@ public class LinkedTransferQueue<E> extends AbstractQueue<E>
         Runtime.getRuntime().availableProcessors() > 1;
 
     /**
-     * The number of times to spin (with randomly interspersed calls
-     * to Thread.yield) on multiprocessor before blocking when a node
-     * is apparently the first waiter in the queue.  See above for
+     * The default number of times to spin (with randomly interspersed
+     * calls to Thread.yield) on multiprocessor before blocking when a
+     * node is apparently the first waiter in the queue.  See above for
      * explanation. Must be a power of two. The value is empirically
      * derived -- it works pretty well across a variety of processors,
      * numbers of CPUs, and OSes.
@@ -461,11 +461,11 @@ public class LinkedTransferQueue<E> extends AbstractQueue<E>
     private static final int FRONT_SPINS   = 1 << 7;
 
     /**
-     * The number of times to spin before blocking when a node is
-     * preceded by another node that is apparently spinning.  Also
+     * The default number of times to spin before blocking when a node
+     * is preceded by another node that is apparently spinning.  Also
      * serves as an increment to FRONT_SPINS on phase changes, and as
-     * base average frequency for yielding during spins. Must be a
-     * power of two.
+     * base average frequency for yielding during spins (for all
+     * instances, whatever their spin counts). Must be a power of two.
      *
      * 当前继节点正在处理，当前节点在阻塞之前的自旋次数，也为FRONT_SPINS
      * 的位变化充当增量，也可在自旋时作为yield的平均频率
@@ -617,6 +617,21 @@ public class LinkedTransferQueue<E> extends AbstractQueue<E>
     //累计到一定次数再清除未链接node
     private transient volatile int sweepVotes;
 
+    /**
+     * The number of times to spin before blocking when a node is
+     * apparently the first waiter; FRONT_SPINS unless configured.
+     * 本实例的首节点自旋次数
+     */
+    private final int frontSpins;
+
+    /**
+     * The number of times to spin before blocking when a node is
+     * preceded by an apparently spinning node, also added to
+     * frontSpins on phase changes; CHAINED_SPINS unless configured.
+     * 本实例的后继节点自旋次数
+     */
+    private final int chainedSpins;
+
     // CAS methods for fields
     private boolean casTail(Node cmp, Node val) {
         return UNSAFE.compareAndSwapObject(this, tailOffset, cmp, val);
@@ -670,16 +685,7 @@ public class LinkedTransferQueue<E> extends AbstractQueue<E>
                     if (isData == haveData)   //节点与此次操作模式一致，无法匹配 can't match
                         break;
                     if (p.casItem(item, e)) { // 匹配成功，cas修改为指定元素 match
-                        for (Node q = p; q != h;) {
-                            Node n = q.next;  // update by 2 unless singleton
-                            if (head == h && casHead(h, n == null ? q : n)) {//更新head为匹配节点的next节点
-                                h.forgetNext();//旧head节点指向自身等待回收
-                                break;
-                            }                 // cas失败，重新获取 head advance and retry
-                            if ((h = head)   == null ||
-                                    (q = h.next) == null || !q.isMatched())//如果head的next节点未被匹配，跳出循环，不更新head，也就是松弛度<2
-                                break;        // unless slack < 2
-                        }
+                        advanceHead(h, p);
                         LockSupport.unpark(p.waiter);//唤醒在节点上等待的线程
                         return LinkedTransferQueue.<E>cast(item);
                     }
@@ -704,6 +710,24 @@ public class LinkedTransferQueue<E> extends AbstractQueue<E>
         }
     }
 
+    /**
+     * Updates head, if necessary, after matching node p found by a
+     * traversal starting at h, all of whose nodes before p are
+     * matched.  See above for explanation.
+     */
+    private void advanceHead(Node h, Node p) {
+        for (Node q = p; q != h;) {
+            Node n = q.next;  // update by 2 unless singleton
+            if (head == h && casHead(h, n == null ? q : n)) {//更新head为匹配节点的next节点
+                h.forgetNext();//旧head节点指向自身等待回收
+                break;
+            }                 // cas失败，重新获取 head advance and retry
+            if ((h = head)   == null ||
+                    (q = h.next) == null || !q.isMatched())//如果head的next节点未被匹配，跳出循环，不更新head，也就是松弛度<2
+                break;        // unless slack < 2
+        }
+    }
+
     /**
      * Tries to append node s as tail.
      * 尝试添加给定节点s作为尾节点
@@ -804,14 +828,14 @@ public class LinkedTransferQueue<E> extends AbstractQueue<E>
      *
      * 通过给定前节点和数据模式返回自旋/yield次数
      */
-    private static int spinsFor(Node pred, boolean haveData) {
+    private int spinsFor(Node pred, boolean haveData) {
         if (MP && pred != null) {
             if (pred.isData != haveData)      // phase change
-                return FRONT_SPINS + CHAINED_SPINS;
+                return frontSpins + chainedSpins;
             if (pred.isMatched())             // probably at front
-                return FRONT_SPINS;
+                return frontSpins;
             if (pred.waiter == null)          // pred apparently spinning
-                return CHAINED_SPINS;
+                return chainedSpins;
         }
         return 0;
     }
@@ -1213,6 +1237,32 @@ public class LinkedTransferQueue<E> extends AbstractQueue<E>
      * Creates an initially empty {@code LinkedTransferQueue}.
      */
     public LinkedTransferQueue() {
+        this(FRONT_SPINS, CHAINED_SPINS);
+    }
+
+    /**
+     * Creates an initially empty {@code LinkedTransferQueue} whose
+     * waiting producers and consumers spin the given number of times
+     * on multiprocessors before blocking. Larger values lower the
+     * latency of handoffs to waiting threads at the expense of CPU
+     * time; zero for both blocks without spinning.
+     * 指定自旋次数：越大则交接延迟越低，但消耗更多CPU
+     *
+     * @param frontSpins the number of spins for a waiter that is
+     *        apparently first in the queue
+     * @param chainedSpins the number of spins for a waiter preceded
+     *        by an apparently spinning waiter, also added to
+     *        {@code frontSpins} when the waiter follows one of the
+     *        opposite mode
+     * @throws IllegalArgumentException if either argument is negative,
+     *         or their sum overflows
+     */
+    public LinkedTransferQueue(int frontSpins, int chainedSpins) {
+        if (frontSpins < 0 || chainedSpins < 0 ||
+            frontSpins + chainedSpins < 0)
+            throw new IllegalArgumentException();
+        this.frontSpins = frontSpins;
+        this.chainedSpins = chainedSpins;
     }
 
     /**
@@ -1352,6 +1402,56 @@ public class LinkedTransferQueue<E> extends AbstractQueue<E>
         throw new InterruptedException();
     }
 
+    /**
+     * Transfers elements of the given collection, in the order
+     * returned by its iterator, to consumers already waiting to
+     * receive them, until either the elements or the waiting
+     * consumers are exhausted.  Unlike repeated calls to {@link
+     * #tryTransfer(Object)}, all consumers are matched in a single
+     * traversal from the head of the queue.  No element is enqueued.
+     * 在一次遍历中把集合中的元素依次转移给多个正在等待的消费者，不入队
+     *
+     * @param c the elements to transfer
+     * @return the number of elements transferred, which are the
+     *         first elements returned by the collection's iterator
+     * @throws NullPointerException if the specified collection is
+     *         null, or an element to be transferred is null
+     * @throws IllegalArgumentException if the collection is this queue
+     */
+    public int tryTransferAll(Collection<? extends E> c) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        Iterator<? extends E> it = c.iterator();
+        E e = null;                           // next element to transfer
+        int n = 0;
+        for (Node h = head, p = h; p != null;) {
+            boolean isData = p.isData;
+            Object item = p.item;
+            if (item != p && (item != null) == isData) {
+                if (isData)                   // no waiting consumers
+                    break;
+                if (e == null) {
+                    if (!it.hasNext())
+                        break;
+                    if ((e = it.next()) == null)
+                        throw new NullPointerException();
+                }
+                if (p.casItem(item, e)) {
+                    advanceHead(h, p);
+                    LockSupport.unpark(p.waiter);
+                    h = head;                 // all nodes up to p matched
+                    e = null;
+                    ++n;
+                }
+            }
+            Node q = p.next;
+            p = (p != q) ? q : (h = head);    // Use head if p offlist
+        }
+        return n;
+    }
+
     public E take() throws InterruptedException {
         E e = xfer(null, false, SYNC, 0);
         if (e != null)
@@ -1380,12 +1480,7 @@ public class LinkedTransferQueue<E> extends AbstractQueue<E>
             throw new NullPointerException();
         if (c == this)
             throw new IllegalArgumentException();
-        int n = 0;
-        for (E e; (e = poll()) != null;) {
-            c.add(e);
-            ++n;
-        }
-        return n;
+        return drain(c, Integer.MAX_VALUE);
     }
 
     /**
@@ -1397,10 +1492,34 @@ public class LinkedTransferQueue<E> extends AbstractQueue<E>
             throw new NullPointerException();
         if (c == this)
             throw new IllegalArgumentException();
+        return drain(c, maxElements);
+    }
+
+    /**
+     * Implements drainTo: matches up to max data nodes, including
+     * those of producers waiting in transfer, in a single traversal
+     * from head, rather than restarting from head for each element
+     * as repeated polls would.
+     * 一次遍历匹配多个数据节点，并唤醒其中等待的生产者
+     */
+    private int drain(Collection<? super E> c, int max) {
         int n = 0;
-        for (E e; n < maxElements && (e = poll()) != null;) {
-            c.add(e);
-            ++n;
+        for (Node h = head, p = h; p != null && n < max;) {
+            boolean isData = p.isData;
+            Object item = p.item;
+            if (item != p && (item != null) == isData) {
+                if (!isData)                  // no data
+                    break;
+                if (p.casItem(item, null)) {
+                    advanceHead(h, p);
+                    LockSupport.unpark(p.waiter);
+                    h = head;                 // all nodes up to p matched
+                    c.add(LinkedTransferQueue.<E>cast(item));
+                    ++n;
+                }
+            }
+            Node q = p.next;
+            p = (p != q) ? q : (h = head);    // Use head if p offlist
         }
         return n;
     }
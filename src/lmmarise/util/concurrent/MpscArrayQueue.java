@@ -0,0 +1,245 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package lmmarise.util.concurrent;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * A bounded, non-blocking, array-based FIFO queue for use by any
+ * number of producer threads and exactly one consumer thread at a
+ * time. Producers claim slots with a single compare-and-set on the
+ * producer index and publish elements with ordered (lazy) stores;
+ * the consumer needs no atomic read-modify-write instructions at
+ * all. Producers share a cached bound derived from the consumer
+ * index, so they read the consumer's cache line only when the queue
+ * may be full.
+ * 多生产者单消费者有界队列：生产者CAS领取槽位后以延迟写发布元素，消费者无需原子指令；
+ * 生产者共享一个由消费者索引推出的缓存上限，只有队列可能已满时才读取消费者的缓存行。
+ *
+ * <p>Methods {@code poll}, {@code remove}, {@code peek}, {@code
+ * element} and {@code clear} may be called only by the consumer; the
+ * results of violating this are undefined. Other methods may be
+ * called by any thread, but {@code size} and iteration give only
+ * estimates while the queue is in use. The capacity is rounded up to
+ * the nearest power of two. Removal of interior elements is not
+ * supported. This queue does not permit null elements.
+ *
+ * <p>To wait for elements or space, wrap this queue in a {@link
+ * BlockingQueueAdapter}.
+ *
+ * @since 1.8
+ * @param <E> the type of elements held in this collection
+ */
+public class MpscArrayQueue<E> extends AbstractQueue<E> {
+
+    /*
+     * A slot is free when null. A producer that has claimed index p
+     * may not yet have stored its element, so the consumer, on
+     * finding a null slot below the producer index, waits for the
+     * store rather than reporting the queue empty. The consumer
+     * clears a slot before advancing the consumer index, so a
+     * producer that has seen the new index always finds the slot
+     * free.
+     */
+
+    final Object[] buffer;
+    final int mask;
+
+    /** Next index to claim; advanced by CAS. */
+    @sun.misc.Contended("producer")
+    volatile long producerIndex;
+
+    /** Bound below which slots are known to be free. */
+    @sun.misc.Contended("producer")
+    volatile long producerLimit;
+
+    /** Next index to remove from; written only by the consumer. */
+    @sun.misc.Contended("consumer")
+    volatile long consumerIndex;
+
+    /**
+     * Creates a queue with at least the given capacity.
+     *
+     * @param capacity the minimum capacity of this queue
+     * @throws IllegalArgumentException if {@code capacity < 1} or
+     *         {@code capacity > 1 << 30}
+     */
+    public MpscArrayQueue(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30))
+            throw new IllegalArgumentException();
+        int n = (capacity == 1) ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        buffer = new Object[n];
+        mask = n - 1;
+        producerLimit = n;
+    }
+
+    /**
+     * Returns the capacity of this queue.
+     *
+     * @return the capacity of this queue
+     */
+    public int capacity() {
+        return buffer.length;
+    }
+
+    private long slotOffset(long i) {
+        return ((long) ((int) i & mask) << ASHIFT) + ABASE;
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue if there
+     * is space.
+     *
+     * @return {@code true} if the element was added, else {@code false}
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        for (;;) {
+            long p = producerIndex;
+            if (p >= producerLimit) {
+                long limit = consumerIndex + buffer.length;
+                if (p >= limit)
+                    return false;
+                producerLimit = limit;  // 可能被较旧的值覆盖，只会导致多读一次消费者索引
+            }
+            if (U.compareAndSwapLong(this, PINDEX, p, p + 1L)) {
+                U.putOrderedObject(buffer, slotOffset(p), e);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, or returns null if
+     * it is empty. Must be called only by the consumer.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        final Object[] buffer = this.buffer;
+        long c = consumerIndex;
+        long off = slotOffset(c);
+        Object x = U.getObjectVolatile(buffer, off);
+        if (x == null) {
+            if (c == producerIndex)
+                return null;
+            while ((x = U.getObjectVolatile(buffer, off)) == null)
+                Thread.yield();         // 生产者已领取槽位，等待其写入元素
+        }
+        U.putOrderedObject(buffer, off, null);
+        U.putOrderedLong(this, CINDEX, c + 1L);
+        return (E) x;
+    }
+
+    /**
+     * Retrieves, but does not remove, the head of this queue, or
+     * returns null if it is empty. Must be called only by the consumer.
+     */
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        final Object[] buffer = this.buffer;
+        long c = consumerIndex;
+        long off = slotOffset(c);
+        Object x = U.getObjectVolatile(buffer, off);
+        if (x == null && c != producerIndex) {
+            while ((x = U.getObjectVolatile(buffer, off)) == null)
+                Thread.yield();
+        }
+        return (E) x;
+    }
+
+    public int size() {
+        for (;;) {
+            long c = consumerIndex, p = producerIndex;
+            if (c == consumerIndex) {
+                long n = p - c;
+                return (n <= 0L) ? 0 :
+                    (n >= buffer.length) ? buffer.length : (int) n;
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return consumerIndex >= producerIndex;
+    }
+
+    /**
+     * Returns an iterator over the elements in this queue, in proper
+     * sequence, based on an estimate of its contents. The iterator
+     * does not support {@code remove}.
+     *
+     * @return an iterator over the elements in this queue
+     */
+    public Iterator<E> iterator() {
+        ArrayList<E> list = new ArrayList<E>();
+        final Object[] buffer = this.buffer;
+        for (long c = consumerIndex, p = producerIndex; c < p; ++c) {
+            @SuppressWarnings("unchecked")
+            E x = (E) U.getObjectVolatile(buffer, slotOffset(c));
+            if (x != null)
+                list.add(x);
+        }
+        final Iterator<E> it = list.iterator();
+        return new Iterator<E>() {
+            public boolean hasNext() { return it.hasNext(); }
+            public E next() { return it.next(); }
+        };
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe U;
+    private static final long PINDEX;
+    private static final long CINDEX;
+    private static final long ABASE;
+    private static final int ASHIFT;
+    static {
+        try {
+            U = sun.misc.Unsafe.getUnsafe();
+            Class<?> k = MpscArrayQueue.class;
+            PINDEX = U.objectFieldOffset(k.getDeclaredField("producerIndex"));
+            CINDEX = U.objectFieldOffset(k.getDeclaredField("consumerIndex"));
+            ABASE = U.arrayBaseOffset(Object[].class);
+            int scale = U.arrayIndexScale(Object[].class);
+            if ((scale & (scale - 1)) != 0)
+                throw new Error("data type scale not a power of two");
+            ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
@@ -0,0 +1,1106 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package lmmarise.util.concurrent;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.BinaryOperator;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.IntBinaryOperator;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * {@link CountedCompleter} tasks shared by the parallel array classes
+ * ({@link ParallelLongArray} and relatives) and {@link ParallelArrays}.
+ *
+ * <p>Most bulk operations are expressed as a {@link LeafTask}: the
+ * array range is cut into leaves of a fixed granularity, and the leaf
+ * indices are split by forking right halves, each fork adding one to
+ * the pending count of its parent, in the style of the {@code
+ * MapReducer} example of {@link CountedCompleter}. Operations that
+ * need ordering across leaves (prefix scans, filtering into a packed
+ * array) run two such passes with a short sequential step over the
+ * per-leaf results in between. The per-leaf scratch arrays are the
+ * only allocation besides the tasks themselves.
+ *
+ * <p>Sorting is a merge sort in the style of {@code
+ * java.util.Arrays.parallelSort}: a {@link FJLong.Sorter} splits its
+ * range into quarters, sorting leaves with {@link Arrays#sort} and
+ * merging through {@link Relay} completers that trigger {@code
+ * Merger}s once both of their halves are sorted, alternating between
+ * the array and a workspace array of the same size. The Object
+ * version is stable.
+ */
+final class ParallelArrayHelpers {
+    private ParallelArrayHelpers() {}
+
+    /**
+     * The minimum leaf size for bulk operations other than sorting.
+     */
+    static final int MIN_PARTITION = 1 << 10;
+
+    /**
+     * The minimum leaf size for sorting, below which merging costs
+     * more than it saves. Same as the sequential cutover of {@code
+     * Arrays.parallelSort}.
+     */
+    static final int MIN_SORT_GRAN = 1 << 13;
+
+    /**
+     * Returns the leaf size for a bulk operation over n elements.
+     */
+    static int grain(ForkJoinPool pool, int n) {
+        int g = n / (pool.getParallelism() << 3);
+        return (g <= MIN_PARTITION) ? MIN_PARTITION : g;
+    }
+
+    /**
+     * Returns the leaf size for sorting n elements.
+     */
+    static int sortGrain(ForkJoinPool pool, int n) {
+        int g = n / (pool.getParallelism() << 2);
+        return (g <= MIN_SORT_GRAN) ? MIN_SORT_GRAN : g;
+    }
+
+    /**
+     * Returns the number of leaves of size g covering n elements.
+     */
+    static int leafCount(int n, int g) {
+        return (int)(((long)n + g - 1) / g);
+    }
+
+    /**
+     * Converts per-leaf counts into exclusive prefix offsets, in
+     * place, returning the total.
+     */
+    static int offsets(int[] counts) {
+        int total = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            int c = counts[i];
+            counts[i] = total;
+            total += c;
+        }
+        return total;
+    }
+
+    /**
+     * Base for tasks processing leaves {@code lo} (inclusive) to
+     * {@code hi} (exclusive) of the element range {@code origin} to
+     * {@code fence}, each leaf holding {@code gran} elements except
+     * possibly the last.
+     */
+    abstract static class LeafTask extends CountedCompleter<Void> {
+        private static final long serialVersionUID = -3316298307474712003L;
+        final int origin, fence, gran, lo, hi;
+        LeafTask(CountedCompleter<?> par, int origin, int fence, int gran,
+                 int lo, int hi) {
+            super(par);
+            this.origin = origin; this.fence = fence; this.gran = gran;
+            this.lo = lo; this.hi = hi;
+        }
+
+        /** Returns a task over leaves lo to hi, completing into this. */
+        abstract LeafTask subtask(int lo, int hi);
+
+        /** Processes leaf i, covering elements from to to. */
+        abstract void atLeaf(int i, int from, int to);
+
+        public final void compute() {
+            int l = lo, h = hi;
+            while (h - l > 1) {
+                int mid = (l + h) >>> 1;
+                addToPendingCount(1);
+                subtask(mid, h).fork();
+                h = mid;
+            }
+            if (h > l) {
+                int from = origin + l * gran;
+                int to = (fence - from > gran) ? from + gran : fence;
+                atLeaf(l, from, to);
+            }
+            tryComplete();
+        }
+    }
+
+    /** A placeholder completer, standing in for a sorted quarter. */
+    static final class EmptyCompleter extends CountedCompleter<Void> {
+        private static final long serialVersionUID = 2446542900576103244L;
+        EmptyCompleter(CountedCompleter<?> p) { super(p); }
+        public final void compute() { }
+    }
+
+    /**
+     * A trigger for a merger, running it once both halves it merges
+     * have completed.
+     */
+    static final class Relay extends CountedCompleter<Void> {
+        private static final long serialVersionUID = 2446542900576103244L;
+        final CountedCompleter<?> task;
+        Relay(CountedCompleter<?> task) {
+            super(null, 1);
+            this.task = task;
+        }
+        public final void compute() { }
+        public final void onCompletion(CountedCompleter<?> t) {
+            task.compute();
+        }
+    }
+
+    /** Tasks for long arrays. */
+    static final class FJLong {
+        private FJLong() {}
+
+        static final class Sorter extends CountedCompleter<Void> {
+            private static final long serialVersionUID = 2446542900576103244L;
+            final long[] a, w;
+            final int base, size, wbase, gran;
+            Sorter(CountedCompleter<?> par, long[] a, long[] w, int base,
+                   int size, int wbase, int gran) {
+                super(par);
+                this.a = a; this.w = w; this.base = base; this.size = size;
+                this.wbase = wbase; this.gran = gran;
+            }
+            public final void compute() {
+                CountedCompleter<?> s = this;
+                long[] a = this.a, w = this.w; // localize all params
+                int b = this.base, n = this.size, wb = this.wbase, g = this.gran;
+                while (n > g) {
+                    int h = n >>> 1, q = h >>> 1, u = h + q; // quartiles
+                    Relay fc = new Relay(new Merger(s, w, a, wb, h,
+                                                    wb + h, n - h, b, g));
+                    Relay rc = new Relay(new Merger(fc, a, w, b + h, q,
+                                                    b + u, n - u, wb + h, g));
+                    new Sorter(rc, a, w, b + u, n - u, wb + u, g).fork();
+                    new Sorter(rc, a, w, b + h, q, wb + h, g).fork();
+                    Relay bc = new Relay(new Merger(fc, a, w, b, q,
+                                                    b + q, h - q, wb, g));
+                    new Sorter(bc, a, w, b + q, h - q, wb + q, g).fork();
+                    s = new EmptyCompleter(bc);
+                    n = q;
+                }
+                Arrays.sort(a, b, b + n);
+                s.tryComplete();
+            }
+        }
+
+        static final class Merger extends CountedCompleter<Void> {
+            private static final long serialVersionUID = 2446542900576103244L;
+            final long[] a, w; // main and workspace arrays
+            final int lbase, lsize, rbase, rsize, wbase, gran;
+            Merger(CountedCompleter<?> par, long[] a, long[] w,
+                   int lbase, int lsize, int rbase,
+                   int rsize, int wbase, int gran) {
+                super(par);
+                this.a = a; this.w = w;
+                this.lbase = lbase; this.lsize = lsize;
+                this.rbase = rbase; this.rsize = rsize;
+                this.wbase = wbase; this.gran = gran;
+            }
+            public final void compute() {
+                long[] a = this.a, w = this.w; // localize all params
+                int lb = this.lbase, ln = this.lsize, rb = this.rbase,
+                    rn = this.rsize, k = this.wbase, g = this.gran;
+                if (a == null || w == null || lb < 0 || rb < 0 || k < 0)
+                    throw new IllegalStateException(); // hoist checks
+                for (int lh, rh;;) {  // split larger, find point in smaller
+                    if (ln >= rn) {
+                        if (ln <= g)
+                            break;
+                        rh = rn;
+                        long split = a[(lh = ln >>> 1) + lb];
+                        for (int lo = 0; lo < rh; ) {
+                            int rm = (lo + rh) >>> 1;
+                            if (split <= a[rm + rb])
+                                rh = rm;
+                            else
+                                lo = rm + 1;
+                        }
+                    }
+                    else {
+                        if (rn <= g)
+                            break;
+                        lh = ln;
+                        long split = a[(rh = rn >>> 1) + rb];
+                        for (int lo = 0; lo < lh; ) {
+                            int lm = (lo + lh) >>> 1;
+                            if (split <= a[lm + lb])
+                                lh = lm;
+                            else
+                                lo = lm + 1;
+                        }
+                    }
+                    Merger m = new Merger(this, a, w, lb + lh, ln - lh,
+                                          rb + rh, rn - rh,
+                                          k + lh + rh, g);
+                    rn = rh;
+                    ln = lh;
+                    addToPendingCount(1);
+                    m.fork();
+                }
+
+                int lf = lb + ln, rf = rb + rn; // index bounds
+                while (lb < lf && rb < rf) {
+                    long t, al, ar;
+                    if ((al = a[lb]) <= (ar = a[rb])) {
+                        lb++; t = al;
+                    }
+                    else {
+                        rb++; t = ar;
+                    }
+                    w[k++] = t;
+                }
+                if (rb < rf)
+                    System.arraycopy(a, rb, w, k, rf - rb);
+                else if (lb < lf)
+                    System.arraycopy(a, lb, w, k, lf - lb);
+                tryComplete();
+            }
+        }
+
+        /**
+         * First scan pass: records the reduction of every leaf but
+         * the last.
+         */
+        static final class Summer extends LeafTask {
+            private static final long serialVersionUID = 5085532305357738040L;
+            final long[] a, sums;
+            final LongBinaryOperator fn;
+            Summer(CountedCompleter<?> par, long[] a, LongBinaryOperator fn,
+                   long[] sums, int origin, int fence, int gran,
+                   int lo, int hi) {
+                super(par, origin, fence, gran, lo, hi);
+                this.a = a; this.fn = fn; this.sums = sums;
+            }
+            LeafTask subtask(int l, int h) {
+                return new Summer(this, a, fn, sums, origin, fence, gran, l, h);
+            }
+            void atLeaf(int i, int from, int to) {
+                if (to < fence) { // last leaf's sum is never used
+                    long[] a = this.a;
+                    LongBinaryOperator fn = this.fn;
+                    long s = a[from];
+                    for (int j = from + 1; j < to; ++j)
+                        s = fn.applyAsLong(s, a[j]);
+                    sums[i] = s;
+                }
+            }
+        }
+
+        /**
+         * Second scan pass: cumulates every leaf in place, starting
+         * from the reduction of all preceding leaves. Unless based,
+         * the first leaf starts from its own first element.
+         */
+        static final class Cumulator extends LeafTask {
+            private static final long serialVersionUID = -8386094637289474733L;
+            final long[] a, ins;
+            final LongBinaryOperator fn;
+            final boolean based;
+            Cumulator(CountedCompleter<?> par, long[] a, LongBinaryOperator fn,
+                      long[] ins, boolean based, int origin, int fence,
+                      int gran, int lo, int hi) {
+                super(par, origin, fence, gran, lo, hi);
+                this.a = a; this.fn = fn; this.ins = ins; this.based = based;
+            }
+            LeafTask subtask(int l, int h) {
+                return new Cumulator(this, a, fn, ins, based,
+                                     origin, fence, gran, l, h);
+            }
+            void atLeaf(int i, int from, int to) {
+                long[] a = this.a;
+                LongBinaryOperator fn = this.fn;
+                int j = from;
+                long s = (i == 0 && !based) ? a[j++] : ins[i];
+                for (; j < to; ++j)
+                    a[j] = s = fn.applyAsLong(s, a[j]);
+            }
+        }
+
+        /**
+         * Sorts elements from to to of a in the given pool.
+         */
+        static void sort(ForkJoinPool pool, long[] a, int from, int to) {
+            int n = to - from;
+            if (n <= MIN_SORT_GRAN || pool.getParallelism() == 1)
+                Arrays.sort(a, from, to);
+            else
+                pool.invoke(new Sorter(null, a, new long[n], from, n, 0,
+                                       sortGrain(pool, n)));
+        }
+
+        /**
+         * Replaces each element from to to of a with the reduction
+         * under fn of it and all preceding elements in the range, in
+         * the given pool.
+         */
+        static void cumulate(ForkJoinPool pool, long[] a, int from, int to,
+                             LongBinaryOperator fn) {
+            cumulate(pool, a, from, to, fn, false, 0L);
+        }
+
+        /**
+         * As above, but also reducing base before the first element.
+         */
+        static void cumulate(ForkJoinPool pool, long[] a, int from, int to,
+                             LongBinaryOperator fn, long base) {
+            cumulate(pool, a, from, to, fn, true, base);
+        }
+
+        private static void cumulate(ForkJoinPool pool, long[] a,
+                                     int from, int to, LongBinaryOperator fn,
+                                     boolean based, long base) {
+            int n = to - from, g, nl;
+            if (n <= 0)
+                return;
+            if ((nl = leafCount(n, g = grain(pool, n))) == 1) {
+                int j = from;
+                long s = based ? base : a[j++];
+                for (; j < to; ++j)
+                    a[j] = s = fn.applyAsLong(s, a[j]);
+                return;
+            }
+            long[] sums = new long[nl];
+            pool.invoke(new Summer(null, a, fn, sums, from, to, g, 0, nl));
+            long s = sums[0]; // convert sums to exclusive prefixes
+            if (based) {
+                sums[0] = base;
+                s = fn.applyAsLong(base, s);
+            }
+            for (int i = 1; i < nl; ++i) {
+                long t = sums[i];
+                sums[i] = s;
+                if (i + 1 < nl)
+                    s = fn.applyAsLong(s, t);
+            }
+            pool.invoke(new Cumulator(null, a, fn, sums, based,
+                                      from, to, g, 0, nl));
+        }
+    }
+
+    /** Tasks for int arrays. */
+    static final class FJInt {
+        private FJInt() {}
+
+        static final class Sorter extends CountedCompleter<Void> {
+            private static final long serialVersionUID = 2446542900576103244L;
+            final int[] a, w;
+            final int base, size, wbase, gran;
+            Sorter(CountedCompleter<?> par, int[] a, int[] w, int base,
+                   int size, int wbase, int gran) {
+                super(par);
+                this.a = a; this.w = w; this.base = base; this.size = size;
+                this.wbase = wbase; this.gran = gran;
+            }
+            public final void compute() {
+                CountedCompleter<?> s = this;
+                int[] a = this.a, w = this.w; // localize all params
+                int b = this.base, n = this.size, wb = this.wbase, g = this.gran;
+                while (n > g) {
+                    int h = n >>> 1, q = h >>> 1, u = h + q; // quartiles
+                    Relay fc = new Relay(new Merger(s, w, a, wb, h,
+                                                    wb + h, n - h, b, g));
+                    Relay rc = new Relay(new Merger(fc, a, w, b + h, q,
+                                                    b + u, n - u, wb + h, g));
+                    new Sorter(rc, a, w, b + u, n - u, wb + u, g).fork();
+                    new Sorter(rc, a, w, b + h, q, wb + h, g).fork();
+                    Relay bc = new Relay(new Merger(fc, a, w, b, q,
+                                                    b + q, h - q, wb, g));
+                    new Sorter(bc, a, w, b + q, h - q, wb + q, g).fork();
+                    s = new EmptyCompleter(bc);
+                    n = q;
+                }
+                Arrays.sort(a, b, b + n);
+                s.tryComplete();
+            }
+        }
+
+        static final class Merger extends CountedCompleter<Void> {
+            private static final long serialVersionUID = 2446542900576103244L;
+            final int[] a, w; // main and workspace arrays
+            final int lbase, lsize, rbase, rsize, wbase, gran;
+            Merger(CountedCompleter<?> par, int[] a, int[] w,
+                   int lbase, int lsize, int rbase,
+                   int rsize, int wbase, int gran) {
+                super(par);
+                this.a = a; this.w = w;
+                this.lbase = lbase; this.lsize = lsize;
+                this.rbase = rbase; this.rsize = rsize;
+                this.wbase = wbase; this.gran = gran;
+            }
+            public final void compute() {
+                int[] a = this.a, w = this.w; // localize all params
+                int lb = this.lbase, ln = this.lsize, rb = this.rbase,
+                    rn = this.rsize, k = this.wbase, g = this.gran;
+                if (a == null || w == null || lb < 0 || rb < 0 || k < 0)
+                    throw new IllegalStateException(); // hoist checks
+                for (int lh, rh;;) {  // split larger, find point in smaller
+                    if (ln >= rn) {
+                        if (ln <= g)
+                            break;
+                        rh = rn;
+                        int split = a[(lh = ln >>> 1) + lb];
+                        for (int lo = 0; lo < rh; ) {
+                            int rm = (lo + rh) >>> 1;
+                            if (split <= a[rm + rb])
+                                rh = rm;
+                            else
+                                lo = rm + 1;
+                        }
+                    }
+                    else {
+                        if (rn <= g)
+                            break;
+                        lh = ln;
+                        int split = a[(rh = rn >>> 1) + rb];
+                        for (int lo = 0; lo < lh; ) {
+                            int lm = (lo + lh) >>> 1;
+                            if (split <= a[lm + lb])
+                                lh = lm;
+                            else
+                                lo = lm + 1;
+                        }
+                    }
+                    Merger m = new Merger(this, a, w, lb + lh, ln - lh,
+                                          rb + rh, rn - rh,
+                                          k + lh + rh, g);
+                    rn = rh;
+                    ln = lh;
+                    addToPendingCount(1);
+                    m.fork();
+                }
+
+                int lf = lb + ln, rf = rb + rn; // index bounds
+                while (lb < lf && rb < rf) {
+                    int t, al, ar;
+                    if ((al = a[lb]) <= (ar = a[rb])) {
+                        lb++; t = al;
+                    }
+                    else {
+                        rb++; t = ar;
+                    }
+                    w[k++] = t;
+                }
+                if (rb < rf)
+                    System.arraycopy(a, rb, w, k, rf - rb);
+                else if (lb < lf)
+                    System.arraycopy(a, lb, w, k, lf - lb);
+                tryComplete();
+            }
+        }
+
+        /**
+         * First scan pass: records the reduction of every leaf but
+         * the last.
+         */
+        static final class Summer extends LeafTask {
+            private static final long serialVersionUID = 5085532305357738040L;
+            final int[] a, sums;
+            final IntBinaryOperator fn;
+            Summer(CountedCompleter<?> par, int[] a, IntBinaryOperator fn,
+                   int[] sums, int origin, int fence, int gran,
+                   int lo, int hi) {
+                super(par, origin, fence, gran, lo, hi);
+                this.a = a; this.fn = fn; this.sums = sums;
+            }
+            LeafTask subtask(int l, int h) {
+                return new Summer(this, a, fn, sums, origin, fence, gran, l, h);
+            }
+            void atLeaf(int i, int from, int to) {
+                if (to < fence) { // last leaf's sum is never used
+                    int[] a = this.a;
+                    IntBinaryOperator fn = this.fn;
+                    int s = a[from];
+                    for (int j = from + 1; j < to; ++j)
+                        s = fn.applyAsInt(s, a[j]);
+                    sums[i] = s;
+                }
+            }
+        }
+
+        /**
+         * Second scan pass: cumulates every leaf in place, starting
+         * from the reduction of all preceding leaves. Unless based,
+         * the first leaf starts from its own first element.
+         */
+        static final class Cumulator extends LeafTask {
+            private static final long serialVersionUID = -8386094637289474733L;
+            final int[] a, ins;
+            final IntBinaryOperator fn;
+            final boolean based;
+            Cumulator(CountedCompleter<?> par, int[] a, IntBinaryOperator fn,
+                      int[] ins, boolean based, int origin, int fence,
+                      int gran, int lo, int hi) {
+                super(par, origin, fence, gran, lo, hi);
+                this.a = a; this.fn = fn; this.ins = ins; this.based = based;
+            }
+            LeafTask subtask(int l, int h) {
+                return new Cumulator(this, a, fn, ins, based,
+                                     origin, fence, gran, l, h);
+            }
+            void atLeaf(int i, int from, int to) {
+                int[] a = this.a;
+                IntBinaryOperator fn = this.fn;
+                int j = from;
+                int s = (i == 0 && !based) ? a[j++] : ins[i];
+                for (; j < to; ++j)
+                    a[j] = s = fn.applyAsInt(s, a[j]);
+            }
+        }
+
+        /**
+         * Sorts elements from to to of a in the given pool.
+         */
+        static void sort(ForkJoinPool pool, int[] a, int from, int to) {
+            int n = to - from;
+            if (n <= MIN_SORT_GRAN || pool.getParallelism() == 1)
+                Arrays.sort(a, from, to);
+            else
+                pool.invoke(new Sorter(null, a, new int[n], from, n, 0,
+                                       sortGrain(pool, n)));
+        }
+
+        /**
+         * Replaces each element from to to of a with the reduction
+         * under fn of it and all preceding elements in the range, in
+         * the given pool.
+         */
+        static void cumulate(ForkJoinPool pool, int[] a, int from, int to,
+                             IntBinaryOperator fn) {
+            cumulate(pool, a, from, to, fn, false, 0);
+        }
+
+        /**
+         * As above, but also reducing base before the first element.
+         */
+        static void cumulate(ForkJoinPool pool, int[] a, int from, int to,
+                             IntBinaryOperator fn, int base) {
+            cumulate(pool, a, from, to, fn, true, base);
+        }
+
+        private static void cumulate(ForkJoinPool pool, int[] a,
+                                     int from, int to, IntBinaryOperator fn,
+                                     boolean based, int base) {
+            int n = to - from, g, nl;
+            if (n <= 0)
+                return;
+            if ((nl = leafCount(n, g = grain(pool, n))) == 1) {
+                int j = from;
+                int s = based ? base : a[j++];
+                for (; j < to; ++j)
+                    a[j] = s = fn.applyAsInt(s, a[j]);
+                return;
+            }
+            int[] sums = new int[nl];
+            pool.invoke(new Summer(null, a, fn, sums, from, to, g, 0, nl));
+            int s = sums[0]; // convert sums to exclusive prefixes
+            if (based) {
+                sums[0] = base;
+                s = fn.applyAsInt(base, s);
+            }
+            for (int i = 1; i < nl; ++i) {
+                int t = sums[i];
+                sums[i] = s;
+                if (i + 1 < nl)
+                    s = fn.applyAsInt(s, t);
+            }
+            pool.invoke(new Cumulator(null, a, fn, sums, based,
+                                      from, to, g, 0, nl));
+        }
+    }
+
+    /** Tasks for double arrays. */
+    static final class FJDouble {
+        private FJDouble() {}
+
+        static final class Sorter extends CountedCompleter<Void> {
+            private static final long serialVersionUID = 2446542900576103244L;
+            final double[] a, w;
+            final int base, size, wbase, gran;
+            Sorter(CountedCompleter<?> par, double[] a, double[] w, int base,
+                   int size, int wbase, int gran) {
+                super(par);
+                this.a = a; this.w = w; this.base = base; this.size = size;
+                this.wbase = wbase; this.gran = gran;
+            }
+            public final void compute() {
+                CountedCompleter<?> s = this;
+                double[] a = this.a, w = this.w; // localize all params
+                int b = this.base, n = this.size, wb = this.wbase, g = this.gran;
+                while (n > g) {
+                    int h = n >>> 1, q = h >>> 1, u = h + q; // quartiles
+                    Relay fc = new Relay(new Merger(s, w, a, wb, h,
+                                                    wb + h, n - h, b, g));
+                    Relay rc = new Relay(new Merger(fc, a, w, b + h, q,
+                                                    b + u, n - u, wb + h, g));
+                    new Sorter(rc, a, w, b + u, n - u, wb + u, g).fork();
+                    new Sorter(rc, a, w, b + h, q, wb + h, g).fork();
+                    Relay bc = new Relay(new Merger(fc, a, w, b, q,
+                                                    b + q, h - q, wb, g));
+                    new Sorter(bc, a, w, b + q, h - q, wb + q, g).fork();
+                    s = new EmptyCompleter(bc);
+                    n = q;
+                }
+                Arrays.sort(a, b, b + n);
+                s.tryComplete();
+            }
+        }
+
+        static final class Merger extends CountedCompleter<Void> {
+            private static final long serialVersionUID = 2446542900576103244L;
+            final double[] a, w; // main and workspace arrays
+            final int lbase, lsize, rbase, rsize, wbase, gran;
+            Merger(CountedCompleter<?> par, double[] a, double[] w,
+                   int lbase, int lsize, int rbase,
+                   int rsize, int wbase, int gran) {
+                super(par);
+                this.a = a; this.w = w;
+                this.lbase = lbase; this.lsize = lsize;
+                this.rbase = rbase; this.rsize = rsize;
+                this.wbase = wbase; this.gran = gran;
+            }
+            public final void compute() {
+                double[] a = this.a, w = this.w; // localize all params
+                int lb = this.lbase, ln = this.lsize, rb = this.rbase,
+                    rn = this.rsize, k = this.wbase, g = this.gran;
+                if (a == null || w == null || lb < 0 || rb < 0 || k < 0)
+                    throw new IllegalStateException(); // hoist checks
+                // compare as Arrays.sort orders: -0.0 before 0.0, NaNs last
+                for (int lh, rh;;) {  // split larger, find point in smaller
+                    if (ln >= rn) {
+                        if (ln <= g)
+                            break;
+                        rh = rn;
+                        double split = a[(lh = ln >>> 1) + lb];
+                        for (int lo = 0; lo < rh; ) {
+                            int rm = (lo + rh) >>> 1;
+                            if (Double.compare(split, a[rm + rb]) <= 0)
+                                rh = rm;
+                            else
+                                lo = rm + 1;
+                        }
+                    }
+                    else {
+                        if (rn <= g)
+                            break;
+                        lh = ln;
+                        double split = a[(rh = rn >>> 1) + rb];
+                        for (int lo = 0; lo < lh; ) {
+                            int lm = (lo + lh) >>> 1;
+                            if (Double.compare(split, a[lm + lb]) <= 0)
+                                lh = lm;
+                            else
+                                lo = lm + 1;
+                        }
+                    }
+                    Merger m = new Merger(this, a, w, lb + lh, ln - lh,
+                                          rb + rh, rn - rh,
+                                          k + lh + rh, g);
+                    rn = rh;
+                    ln = lh;
+                    addToPendingCount(1);
+                    m.fork();
+                }
+
+                int lf = lb + ln, rf = rb + rn; // index bounds
+                while (lb < lf && rb < rf) {
+                    double t, al, ar;
+                    if (Double.compare(al = a[lb], ar = a[rb]) <= 0) {
+                        lb++; t = al;
+                    }
+                    else {
+                        rb++; t = ar;
+                    }
+                    w[k++] = t;
+                }
+                if (rb < rf)
+                    System.arraycopy(a, rb, w, k, rf - rb);
+                else if (lb < lf)
+                    System.arraycopy(a, lb, w, k, lf - lb);
+                tryComplete();
+            }
+        }
+
+        /**
+         * First scan pass: records the reduction of every leaf but
+         * the last.
+         */
+        static final class Summer extends LeafTask {
+            private static final long serialVersionUID = 5085532305357738040L;
+            final double[] a, sums;
+            final DoubleBinaryOperator fn;
+            Summer(CountedCompleter<?> par, double[] a, DoubleBinaryOperator fn,
+                   double[] sums, int origin, int fence, int gran,
+                   int lo, int hi) {
+                super(par, origin, fence, gran, lo, hi);
+                this.a = a; this.fn = fn; this.sums = sums;
+            }
+            LeafTask subtask(int l, int h) {
+                return new Summer(this, a, fn, sums, origin, fence, gran, l, h);
+            }
+            void atLeaf(int i, int from, int to) {
+                if (to < fence) { // last leaf's sum is never used
+                    double[] a = this.a;
+                    DoubleBinaryOperator fn = this.fn;
+                    double s = a[from];
+                    for (int j = from + 1; j < to; ++j)
+                        s = fn.applyAsDouble(s, a[j]);
+                    sums[i] = s;
+                }
+            }
+        }
+
+        /**
+         * Second scan pass: cumulates every leaf in place, starting
+         * from the reduction of all preceding leaves. Unless based,
+         * the first leaf starts from its own first element.
+         */
+        static final class Cumulator extends LeafTask {
+            private static final long serialVersionUID = -8386094637289474733L;
+            final double[] a, ins;
+            final DoubleBinaryOperator fn;
+            final boolean based;
+            Cumulator(CountedCompleter<?> par, double[] a, DoubleBinaryOperator fn,
+                      double[] ins, boolean based, int origin, int fence,
+                      int gran, int lo, int hi) {
+                super(par, origin, fence, gran, lo, hi);
+                this.a = a; this.fn = fn; this.ins = ins; this.based = based;
+            }
+            LeafTask subtask(int l, int h) {
+                return new Cumulator(this, a, fn, ins, based,
+                                     origin, fence, gran, l, h);
+            }
+            void atLeaf(int i, int from, int to) {
+                double[] a = this.a;
+                DoubleBinaryOperator fn = this.fn;
+                int j = from;
+                double s = (i == 0 && !based) ? a[j++] : ins[i];
+                for (; j < to; ++j)
+                    a[j] = s = fn.applyAsDouble(s, a[j]);
+            }
+        }
+
+        /**
+         * Sorts elements from to to of a in the given pool.
+         */
+        static void sort(ForkJoinPool pool, double[] a, int from, int to) {
+            int n = to - from;
+            if (n <= MIN_SORT_GRAN || pool.getParallelism() == 1)
+                Arrays.sort(a, from, to);
+            else
+                pool.invoke(new Sorter(null, a, new double[n], from, n, 0,
+                                       sortGrain(pool, n)));
+        }
+
+        /**
+         * Replaces each element from to to of a with the reduction
+         * under fn of it and all preceding elements in the range, in
+         * the given pool.
+         */
+        static void cumulate(ForkJoinPool pool, double[] a, int from, int to,
+                             DoubleBinaryOperator fn) {
+            cumulate(pool, a, from, to, fn, false, 0.0);
+        }
+
+        /**
+         * As above, but also reducing base before the first element.
+         */
+        static void cumulate(ForkJoinPool pool, double[] a, int from, int to,
+                             DoubleBinaryOperator fn, double base) {
+            cumulate(pool, a, from, to, fn, true, base);
+        }
+
+        private static void cumulate(ForkJoinPool pool, double[] a,
+                                     int from, int to, DoubleBinaryOperator fn,
+                                     boolean based, double base) {
+            int n = to - from, g, nl;
+            if (n <= 0)
+                return;
+            if ((nl = leafCount(n, g = grain(pool, n))) == 1) {
+                int j = from;
+                double s = based ? base : a[j++];
+                for (; j < to; ++j)
+                    a[j] = s = fn.applyAsDouble(s, a[j]);
+                return;
+            }
+            double[] sums = new double[nl];
+            pool.invoke(new Summer(null, a, fn, sums, from, to, g, 0, nl));
+            double s = sums[0]; // convert sums to exclusive prefixes
+            if (based) {
+                sums[0] = base;
+                s = fn.applyAsDouble(base, s);
+            }
+            for (int i = 1; i < nl; ++i) {
+                double t = sums[i];
+                sums[i] = s;
+                if (i + 1 < nl)
+                    s = fn.applyAsDouble(s, t);
+            }
+            pool.invoke(new Cumulator(null, a, fn, sums, based,
+                                      from, to, g, 0, nl));
+        }
+    }
+
+    /** Tasks for Object arrays. */
+    static final class FJObject {
+        private FJObject() {}
+
+        static final class Sorter<T> extends CountedCompleter<Void> {
+            private static final long serialVersionUID = 2446542900576103244L;
+            final T[] a, w;
+            final int base, size, wbase, gran;
+            final Comparator<? super T> comparator;
+            Sorter(CountedCompleter<?> par, T[] a, T[] w, int base, int size,
+                   int wbase, int gran, Comparator<? super T> comparator) {
+                super(par);
+                this.a = a; this.w = w; this.base = base; this.size = size;
+                this.wbase = wbase; this.gran = gran;
+                this.comparator = comparator;
+            }
+            public final void compute() {
+                CountedCompleter<?> s = this;
+                Comparator<? super T> c = this.comparator;
+                T[] a = this.a, w = this.w; // localize all params
+                int b = this.base, n = this.size, wb = this.wbase, g = this.gran;
+                while (n > g) {
+                    int h = n >>> 1, q = h >>> 1, u = h + q; // quartiles
+                    Relay fc = new Relay(new Merger<T>(s, w, a, wb, h,
+                                                       wb + h, n - h, b, g, c));
+                    Relay rc = new Relay(new Merger<T>(fc, a, w, b + h, q,
+                                                       b + u, n - u, wb + h, g, c));
+                    new Sorter<T>(rc, a, w, b + u, n - u, wb + u, g, c).fork();
+                    new Sorter<T>(rc, a, w, b + h, q, wb + h, g, c).fork();
+                    Relay bc = new Relay(new Merger<T>(fc, a, w, b, q,
+                                                       b + q, h - q, wb, g, c));
+                    new Sorter<T>(bc, a, w, b + q, h - q, wb + q, g, c).fork();
+                    s = new EmptyCompleter(bc);
+                    n = q;
+                }
+                Arrays.sort(a, b, b + n, c);
+                s.tryComplete();
+            }
+        }
+
+        static final class Merger<T> extends CountedCompleter<Void> {
+            private static final long serialVersionUID = 2446542900576103244L;
+            final T[] a, w; // main and workspace arrays
+            final int lbase, lsize, rbase, rsize, wbase, gran;
+            final Comparator<? super T> comparator;
+            Merger(CountedCompleter<?> par, T[] a, T[] w,
+                   int lbase, int lsize, int rbase,
+                   int rsize, int wbase, int gran,
+                   Comparator<? super T> comparator) {
+                super(par);
+                this.a = a; this.w = w;
+                this.lbase = lbase; this.lsize = lsize;
+                this.rbase = rbase; this.rsize = rsize;
+                this.wbase = wbase; this.gran = gran;
+                this.comparator = comparator;
+            }
+            public final void compute() {
+                Comparator<? super T> c = this.comparator;
+                T[] a = this.a, w = this.w; // localize all params
+                int lb = this.lbase, ln = this.lsize, rb = this.rbase,
+                    rn = this.rsize, k = this.wbase, g = this.gran;
+                if (a == null || w == null || lb < 0 || rb < 0 || k < 0 ||
+                    c == null)
+                    throw new IllegalStateException(); // hoist checks
+                // Splits keep elements equal to the split point of the
+                // left run below those of the right run, and merging
+                // prefers the left run on ties, so the sort is stable.
+                for (int lh, rh;;) {  // split larger, find point in smaller
+                    if (ln >= rn) {
+                        if (ln <= g)
+                            break;
+                        rh = rn;
+                        T split = a[(lh = ln >>> 1) + lb];
+                        for (int lo = 0; lo < rh; ) {
+                            int rm = (lo + rh) >>> 1;
+                            if (c.compare(split, a[rm + rb]) <= 0)
+                                rh = rm;
+                            else
+                                lo = rm + 1;
+                        }
+                    }
+                    else {
+                        if (rn <= g)
+                            break;
+                        lh = ln;
+                        T split = a[(rh = rn >>> 1) + rb];
+                        for (int lo = 0; lo < lh; ) {
+                            int lm = (lo + lh) >>> 1;
+                            if (c.compare(split, a[lm + lb]) < 0)
+                                lh = lm;
+                            else
+                                lo = lm + 1;
+                        }
+                    }
+                    Merger<T> m = new Merger<T>(this, a, w, lb + lh, ln - lh,
+                                                rb + rh, rn - rh,
+                                                k + lh + rh, g, c);
+                    rn = rh;
+                    ln = lh;
+                    addToPendingCount(1);
+                    m.fork();
+                }
+
+                int lf = lb + ln, rf = rb + rn; // index bounds
+                while (lb < lf && rb < rf) {
+                    T t, al, ar;
+                    if (c.compare((al = a[lb]), (ar = a[rb])) <= 0) {
+                        lb++; t = al;
+                    }
+                    else {
+                        rb++; t = ar;
+                    }
+                    w[k++] = t;
+                }
+                if (rb < rf)
+                    System.arraycopy(a, rb, w, k, rf - rb);
+                else if (lb < lf)
+                    System.arraycopy(a, lb, w, k, lf - lb);
+                tryComplete();
+            }
+        }
+
+        /**
+         * First scan pass: records the reduction of every leaf but
+         * the last.
+         */
+        static final class Summer<T> extends LeafTask {
+            private static final long serialVersionUID = 5085532305357738040L;
+            final T[] a;
+            final Object[] sums;
+            final BinaryOperator<T> fn;
+            Summer(CountedCompleter<?> par, T[] a, BinaryOperator<T> fn,
+                   Object[] sums, int origin, int fence, int gran,
+                   int lo, int hi) {
+                super(par, origin, fence, gran, lo, hi);
+                this.a = a; this.fn = fn; this.sums = sums;
+            }
+            LeafTask subtask(int l, int h) {
+                return new Summer<T>(this, a, fn, sums, origin, fence, gran, l, h);
+            }
+            void atLeaf(int i, int from, int to) {
+                if (to < fence) { // last leaf's sum is never used
+                    T[] a = this.a;
+                    BinaryOperator<T> fn = this.fn;
+                    T s = a[from];
+                    for (int j = from + 1; j < to; ++j)
+                        s = fn.apply(s, a[j]);
+                    sums[i] = s;
+                }
+            }
+        }
+
+        /**
+         * Second scan pass: cumulates every leaf in place, starting
+         * from the reduction of all preceding leaves. The first leaf
+         * starts from its own first element.
+         */
+        static final class Cumulator<T> extends LeafTask {
+            private static final long serialVersionUID = -8386094637289474733L;
+            final T[] a;
+            final Object[] ins;
+            final BinaryOperator<T> fn;
+            Cumulator(CountedCompleter<?> par, T[] a, BinaryOperator<T> fn,
+                      Object[] ins, int origin, int fence, int gran,
+                      int lo, int hi) {
+                super(par, origin, fence, gran, lo, hi);
+                this.a = a; this.fn = fn; this.ins = ins;
+            }
+            LeafTask subtask(int l, int h) {
+                return new Cumulator<T>(this, a, fn, ins, origin, fence, gran,
+                                        l, h);
+            }
+            @SuppressWarnings("unchecked")
+            void atLeaf(int i, int from, int to) {
+                T[] a = this.a;
+                BinaryOperator<T> fn = this.fn;
+                int j = from;
+                T s = (i == 0) ? a[j++] : (T)ins[i];
+                for (; j < to; ++j)
+                    a[j] = s = fn.apply(s, a[j]);
+            }
+        }
+
+        /**
+         * Sorts elements from to to of a in the given pool.
+         */
+        static <T> void sort(ForkJoinPool pool, T[] a, int from, int to,
+                             Comparator<? super T> c) {
+            int n = to - from;
+            if (n <= MIN_SORT_GRAN || pool.getParallelism() == 1)
+                Arrays.sort(a, from, to, c);
+            else {
+                @SuppressWarnings("unchecked")
+                T[] w = (T[])Array.newInstance
+                    (a.getClass().getComponentType(), n);
+                pool.invoke(new Sorter<T>(null, a, w, from, n, 0,
+                                          sortGrain(pool, n), c));
+            }
+        }
+
+        /**
+         * Replaces each element from to to of a with the reduction
+         * under fn of it and all preceding elements in the range, in
+         * the given pool.
+         */
+        @SuppressWarnings("unchecked")
+        static <T> void cumulate(ForkJoinPool pool, T[] a, int from, int to,
+                                 BinaryOperator<T> fn) {
+            int n = to - from, g, nl;
+            if (n <= 0)
+                return;
+            if ((nl = leafCount(n, g = grain(pool, n))) == 1) {
+                int j = from;
+                T s = a[j++];
+                for (; j < to; ++j)
+                    a[j] = s = fn.apply(s, a[j]);
+                return;
+            }
+            Object[] sums = new Object[nl];
+            pool.invoke(new Summer<T>(null, a, fn, sums, from, to, g, 0, nl));
+            T s = (T)sums[0]; // convert sums to exclusive prefixes
+            for (int i = 1; i < nl; ++i) {
+                T t = (T)sums[i];
+                sums[i] = s;
+                if (i + 1 < nl)
+                    s = fn.apply(s, t);
+            }
+            pool.invoke(new Cumulator<T>(null, a, fn, sums, from, to, g, 0, nl));
+        }
+    }
+}
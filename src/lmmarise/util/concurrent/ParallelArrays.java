@@ -0,0 +1,437 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package lmmarise.util.concurrent;
+
+import java.util.Comparator;
+import java.util.function.BinaryOperator;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.IntBinaryOperator;
+import java.util.function.LongBinaryOperator;
+import lmmarise.util.concurrent.ParallelArrayHelpers.FJDouble;
+import lmmarise.util.concurrent.ParallelArrayHelpers.FJInt;
+import lmmarise.util.concurrent.ParallelArrayHelpers.FJLong;
+import lmmarise.util.concurrent.ParallelArrayHelpers.FJObject;
+
+/**
+ * Parallel sorting and parallel prefix (scan) operations over arrays,
+ * run as trees of {@link CountedCompleter}s in a caller-supplied
+ * {@link ForkJoinPool} rather than always in the common pool.
+ *
+ * <p>The sorts are merge sorts: ranges are split into quarters down
+ * to a granularity of at least 8192 elements or one quarter of the
+ * range per worker, leaves are sorted sequentially with {@link
+ * java.util.Arrays#sort}, and sorted runs are merged in parallel
+ * through a workspace array as large as the range. Ranges too small
+ * to split, and pools of parallelism one, are sorted sequentially
+ * without allocating a workspace. Sorts of object arrays are stable.
+ *
+ * <p>The prefix operations make two passes over leaves of the range:
+ * the first records the reduction of each leaf, and, after a short
+ * sequential pass converting these into the reduction of all
+ * preceding leaves, the second cumulates each leaf in place. The
+ * function is therefore applied up to about twice per element, in
+ * exchange for which all leaves proceed in parallel. The function
+ * must be associative and side-effect-free; it is applied in an
+ * unspecified grouping, so floating-point results may differ from a
+ * sequential cumulation.
+ *
+ * <p>A {@code null} pool means {@link ForkJoinPool#commonPool()}.
+ * Exceptions thrown by comparators or functions are rethrown, as for
+ * {@link ForkJoinPool#invoke}, leaving the array in an unspecified
+ * state.
+ *
+ * @since 1.8
+ */
+public final class ParallelArrays {
+    private ParallelArrays() {}
+
+    /**
+     * Sorts the specified array into ascending numerical order.
+     *
+     * @param pool the pool, or {@code null} for the common pool
+     * @param a the array to be sorted
+     */
+    public static void parallelSort(ForkJoinPool pool, long[] a) {
+        FJLong.sort(poolFor(pool), a, 0, a.length);
+    }
+
+    /**
+     * Sorts the specified range of the array into ascending numerical
+     * order. The range to be sorted extends from the index {@code
+     * fromIndex}, inclusive, to the index {@code toIndex}, exclusive.
+     *
+     * @param pool the pool, or {@code null} for the common pool
+     * @param a the array to be sorted
+     * @param fromIndex the index of the first element, inclusive, to be sorted
+     * @param toIndex the index of the last element, exclusive, to be sorted
+     * @throws IllegalArgumentException if {@code fromIndex > toIndex}
+     * @throws ArrayIndexOutOfBoundsException
+     *     if {@code fromIndex < 0} or {@code toIndex > a.length}
+     */
+    public static void parallelSort(ForkJoinPool pool, long[] a,
+                                    int fromIndex, int toIndex) {
+        rangeCheck(a.length, fromIndex, toIndex);
+        FJLong.sort(poolFor(pool), a, fromIndex, toIndex);
+    }
+
+    /**
+     * Sorts the specified array into ascending numerical order.
+     *
+     * @param pool the pool, or {@code null} for the common pool
+     * @param a the array to be sorted
+     */
+    public static void parallelSort(ForkJoinPool pool, int[] a) {
+        FJInt.sort(poolFor(pool), a, 0, a.length);
+    }
+
+    /**
+     * Sorts the specified range of the array into ascending numerical
+     * order. The range to be sorted extends from the index {@code
+     * fromIndex}, inclusive, to the index {@code toIndex}, exclusive.
+     *
+     * @param pool the pool, or {@code null} for the common pool
+     * @param a the array to be sorted
+     * @param fromIndex the index of the first element, inclusive, to be sorted
+     * @param toIndex the index of the last element, exclusive, to be sorted
+     * @throws IllegalArgumentException if {@code fromIndex > toIndex}
+     * @throws ArrayIndexOutOfBoundsException
+     *     if {@code fromIndex < 0} or {@code toIndex > a.length}
+     */
+    public static void parallelSort(ForkJoinPool pool, int[] a,
+                                    int fromIndex, int toIndex) {
+        rangeCheck(a.length, fromIndex, toIndex);
+        FJInt.sort(poolFor(pool), a, fromIndex, toIndex);
+    }
+
+    /**
+     * Sorts the specified array into ascending numerical order, in
+     * the total order of {@link Double#compare}: {@code -0.0} before
+     * {@code 0.0}, and {@code NaN}s last.
+     *
+     * @param pool the pool, or {@code null} for the common pool
+     * @param a the array to be sorted
+     */
+    public static void parallelSort(ForkJoinPool pool, double[] a) {
+        FJDouble.sort(poolFor(pool), a, 0, a.length);
+    }
+
+    /**
+     * Sorts the specified range of the array into ascending numerical
+     * order, in the total order of {@link Double#compare}. The range
+     * to be sorted extends from the index {@code fromIndex},
+     * inclusive, to the index {@code toIndex}, exclusive.
+     *
+     * @param pool the pool, or {@code null} for the common pool
+     * @param a the array to be sorted
+     * @param fromIndex the index of the first element, inclusive, to be sorted
+     * @param toIndex the index of the last element, exclusive, to be sorted
+     * @throws IllegalArgumentException if {@code fromIndex > toIndex}
+     * @throws ArrayIndexOutOfBoundsException
+     *     if {@code fromIndex < 0} or {@code toIndex > a.length}
+     */
+    public static void parallelSort(ForkJoinPool pool, double[] a,
+                                    int fromIndex, int toIndex) {
+        rangeCheck(a.length, fromIndex, toIndex);
+        FJDouble.sort(poolFor(pool), a, fromIndex, toIndex);
+    }
+
+    /**
+     * Sorts the specified array of objects into ascending order,
+     * according to the {@linkplain Comparable natural ordering} of
+     * its elements. This sort is stable.
+     *
+     * @param pool the pool, or {@code null} for the common pool
+     * @param a the array to be sorted
+     * @param <T> the class of the objects to be sorted
+     * @throws ClassCastException if the array contains elements that
+     *         are not <i>mutually comparable</i>
+     */
+    public static <T extends Comparable<? super T>> void parallelSort
+        (ForkJoinPool pool, T[] a) {
+        FJObject.sort(poolFor(pool), a, 0, a.length,
+                      Comparator.<T>naturalOrder());
+    }
+
+    /**
+     * Sorts the specified array of objects according to the order
+     * induced by the specified comparator, or by the natural ordering
+     * of its elements if the comparator is {@code null}. This sort is
+     * stable.
+     *
+     * @param pool the pool, or {@code null} for the common pool
+     * @param a the array to be sorted
+     * @param cmp the comparator, or {@code null} for natural ordering
+     * @param <T> the class of the objects to be sorted
+     * @throws ClassCastException if the array contains elements that
+     *         are not <i>mutually comparable</i> using the comparator
+     */
+    public static <T> void parallelSort(ForkJoinPool pool, T[] a,
+                                        Comparator<? super T> cmp) {
+        FJObject.sort(poolFor(pool), a, 0, a.length, comparator(cmp));
+    }
+
+    /**
+     * Sorts the specified range of the array of objects according to
+     * the order induced by the specified comparator, or by the
+     * natural ordering of its elements if the comparator is {@code
+     * null}. The range to be sorted extends from the index {@code
+     * fromIndex}, inclusive, to the index {@code toIndex}, exclusive.
+     * This sort is stable.
+     *
+     * @param pool the pool, or {@code null} for the common pool
+     * @param a the array to be sorted
+     * @param fromIndex the index of the first element, inclusive, to be sorted
+     * @param toIndex the index of the last element, exclusive, to be sorted
+     * @param cmp the comparator, or {@code null} for natural ordering
+     * @param <T> the class of the objects to be sorted
+     * @throws IllegalArgumentException if {@code fromIndex > toIndex}
+     * @throws ArrayIndexOutOfBoundsException
+     *     if {@code fromIndex < 0} or {@code toIndex > a.length}
+     * @throws ClassCastException if the array contains elements that
+     *         are not <i>mutually comparable</i> using the comparator
+     */
+    public static <T> void parallelSort(ForkJoinPool pool, T[] a,
+                                        int fromIndex, int toIndex,
+                                        Comparator<? super T> cmp) {
+        rangeCheck(a.length, fromIndex, toIndex);
+        FJObject.sort(poolFor(pool), a, fromIndex, toIndex, comparator(cmp));
+    }
+
+    /**
+     * Cumulates, in parallel, each element of the given array in
+     * place, using the supplied function. For example if the array
+     * initially holds {@code [2, 1, 0, 3]} and the operation performs
+     * addition, then upon return the array holds {@code [2, 3, 3, 6]}.
+     *
+     * @param pool the pool, or {@code null} for the common pool
+     * @param array the array, which is modified in-place by this method
+     * @param op a side-effect-free, associative function to perform the
+     *        cumulation
+     * @throws NullPointerException if the specified array or function is null
+     */
+    public static void parallelPrefix(ForkJoinPool pool, long[] array,
+                                      LongBinaryOperator op) {
+        if (op == null)
+            throw new NullPointerException();
+        FJLong.cumulate(poolFor(pool), array, 0, array.length, op);
+    }
+
+    /**
+     * Performs {@link #parallelPrefix(ForkJoinPool, long[], LongBinaryOperator)}
+     * for the given subrange of the array.
+     *
+     * @param pool the pool, or {@code null} for the common pool
+     * @param array the array
+     * @param fromIndex the index of the first element, inclusive
+     * @param toIndex the index of the last element, exclusive
+     * @param op a side-effect-free, associative function to perform the
+     *        cumulation
+     * @throws IllegalArgumentException if {@code fromIndex > toIndex}
+     * @throws ArrayIndexOutOfBoundsException
+     *     if {@code fromIndex < 0} or {@code toIndex > array.length}
+     * @throws NullPointerException if the specified array or function is null
+     */
+    public static void parallelPrefix(ForkJoinPool pool, long[] array,
+                                      int fromIndex, int toIndex,
+                                      LongBinaryOperator op) {
+        if (op == null)
+            throw new NullPointerException();
+        rangeCheck(array.length, fromIndex, toIndex);
+        FJLong.cumulate(poolFor(pool), array, fromIndex, toIndex, op);
+    }
+
+    /**
+     * Cumulates, in parallel, each element of the given array in
+     * place, using the supplied function.
+     *
+     * @param pool the pool, or {@code null} for the common pool
+     * @param array the array, which is modified in-place by this method
+     * @param op a side-effect-free, associative function to perform the
+     *        cumulation
+     * @throws NullPointerException if the specified array or function is null
+     */
+    public static void parallelPrefix(ForkJoinPool pool, int[] array,
+                                      IntBinaryOperator op) {
+        if (op == null)
+            throw new NullPointerException();
+        FJInt.cumulate(poolFor(pool), array, 0, array.length, op);
+    }
+
+    /**
+     * Performs {@link #parallelPrefix(ForkJoinPool, int[], IntBinaryOperator)}
+     * for the given subrange of the array.
+     *
+     * @param pool the pool, or {@code null} for the common pool
+     * @param array the array
+     * @param fromIndex the index of the first element, inclusive
+     * @param toIndex the index of the last element, exclusive
+     * @param op a side-effect-free, associative function to perform the
+     *        cumulation
+     * @throws IllegalArgumentException if {@code fromIndex > toIndex}
+     * @throws ArrayIndexOutOfBoundsException
+     *     if {@code fromIndex < 0} or {@code toIndex > array.length}
+     * @throws NullPointerException if the specified array or function is null
+     */
+    public static void parallelPrefix(ForkJoinPool pool, int[] array,
+                                      int fromIndex, int toIndex,
+                                      IntBinaryOperator op) {
+        if (op == null)
+            throw new NullPointerException();
+        rangeCheck(array.length, fromIndex, toIndex);
+        FJInt.cumulate(poolFor(pool), array, fromIndex, toIndex, op);
+    }
+
+    /**
+     * Cumulates, in parallel, each element of the given array in
+     * place, using the supplied function. Because floating-point
+     * operations may not be strictly associative, the returned
+     * results may not be identical to the value that would be
+     * obtained if the operation was performed sequentially.
+     *
+     * @param pool the pool, or {@code null} for the common pool
+     * @param array the array, which is modified in-place by this method
+     * @param op a side-effect-free function to perform the cumulation
+     * @throws NullPointerException if the specified array or function is null
+     */
+    public static void parallelPrefix(ForkJoinPool pool, double[] array,
+                                      DoubleBinaryOperator op) {
+        if (op == null)
+            throw new NullPointerException();
+        FJDouble.cumulate(poolFor(pool), array, 0, array.length, op);
+    }
+
+    /**
+     * Performs {@link #parallelPrefix(ForkJoinPool, double[], DoubleBinaryOperator)}
+     * for the given subrange of the array.
+     *
+     * @param pool the pool, or {@code null} for the common pool
+     * @param array the array
+     * @param fromIndex the index of the first element, inclusive
+     * @param toIndex the index of the last element, exclusive
+     * @param op a side-effect-free function to perform the cumulation
+     * @throws IllegalArgumentException if {@code fromIndex > toIndex}
+     * @throws ArrayIndexOutOfBoundsException
+     *     if {@code fromIndex < 0} or {@code toIndex > array.length}
+     * @throws NullPointerException if the specified array or function is null
+     */
+    public static void parallelPrefix(ForkJoinPool pool, double[] array,
+                                      int fromIndex, int toIndex,
+                                      DoubleBinaryOperator op) {
+        if (op == null)
+            throw new NullPointerException();
+        rangeCheck(array.length, fromIndex, toIndex);
+        FJDouble.cumulate(poolFor(pool), array, fromIndex, toIndex, op);
+    }
+
+    /**
+     * Cumulates, in parallel, each element of the given array in
+     * place, using the supplied function. For example if the array
+     * initially holds {@code ["a", "b", "c"]} and the operation
+     * concatenates, then upon return the array holds {@code ["a",
+     * "ab", "abc"]}.
+     *
+     * @param pool the pool, or {@code null} for the common pool
+     * @param array the array, which is modified in-place by this method
+     * @param op a side-effect-free, associative function to perform the
+     *        cumulation
+     * @param <T> the class of the objects in the array
+     * @throws NullPointerException if the specified array or function is null
+     */
+    public static <T> void parallelPrefix(ForkJoinPool pool, T[] array,
+                                          BinaryOperator<T> op) {
+        if (op == null)
+            throw new NullPointerException();
+        FJObject.cumulate(poolFor(pool), array, 0, array.length, op);
+    }
+
+    /**
+     * Performs {@link #parallelPrefix(ForkJoinPool, Object[], BinaryOperator)}
+     * for the given subrange of the array.
+     *
+     * @param pool the pool, or {@code null} for the common pool
+     * @param array the array
+     * @param fromIndex the index of the first element, inclusive
+     * @param toIndex the index of the last element, exclusive
+     * @param op a side-effect-free, associative function to perform the
+     *        cumulation
+     * @param <T> the class of the objects in the array
+     * @throws IllegalArgumentException if {@code fromIndex > toIndex}
+     * @throws ArrayIndexOutOfBoundsException
+     *     if {@code fromIndex < 0} or {@code toIndex > array.length}
+     * @throws NullPointerException if the specified array or function is null
+     */
+    public static <T> void parallelPrefix(ForkJoinPool pool, T[] array,
+                                          int fromIndex, int toIndex,
+                                          BinaryOperator<T> op) {
+        if (op == null)
+            throw new NullPointerException();
+        rangeCheck(array.length, fromIndex, toIndex);
+        FJObject.cumulate(poolFor(pool), array, fromIndex, toIndex, op);
+    }
+
+    static ForkJoinPool poolFor(ForkJoinPool pool) {
+        return (pool == null) ? ForkJoinPool.commonPool() : pool;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> Comparator<? super T> comparator(Comparator<? super T> cmp) {
+        return (cmp != null) ? cmp :
+            (Comparator<? super T>)(Comparator<?>)NATURAL_ORDER;
+    }
+
+    /**
+     * Natural ordering of mutually Comparable objects.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static final Comparator<Object> NATURAL_ORDER =
+        (x, y) -> ((Comparable)x).compareTo(y);
+
+    /**
+     * Checks that {@code fromIndex} and {@code toIndex} are in
+     * the range and throws an exception if they aren't.
+     */
+    static void rangeCheck(int arrayLength, int fromIndex, int toIndex) {
+        if (fromIndex > toIndex) {
+            throw new IllegalArgumentException(
+                "fromIndex(" + fromIndex + ") > toIndex(" + toIndex + ")");
+        }
+        if (fromIndex < 0) {
+            throw new ArrayIndexOutOfBoundsException(fromIndex);
+        }
+        if (toIndex > arrayLength) {
+            throw new ArrayIndexOutOfBoundsException(toIndex);
+        }
+    }
+}
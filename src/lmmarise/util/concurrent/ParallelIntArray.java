@@ -0,0 +1,477 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package lmmarise.util.concurrent;
+
+import java.util.Arrays;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+import lmmarise.util.concurrent.ParallelArrayHelpers.FJInt;
+import lmmarise.util.concurrent.ParallelArrayHelpers.LeafTask;
+
+/**
+ * An array of {@code int}s supporting parallel bulk operations, run
+ * as trees of {@link CountedCompleter}s in a given {@link
+ * ForkJoinPool}.
+ *
+ * <p>A {@code ParallelIntArray} wraps an array without copying it.
+ * Methods {@link #withFilter} and {@link #withMapping} return lazy
+ * views over the same array that select and transform elements on
+ * the fly; nothing is computed until a terminal operation such as
+ * {@link #reduce}, {@link #apply} or {@link #all} is invoked, and
+ * then the filter and mapping are fused into a single pass over each
+ * leaf. Operations that reorder or rewrite elements ({@link #sort},
+ * {@link #cumulate}) act in place on the array of an unfiltered,
+ * unmapped instance, and otherwise on a fresh array holding the
+ * elements of the view. For example, to sum the squares of the even
+ * elements of an array:
+ *
+ *  <pre> {@code
+ * int sumOfEvenSquares(int[] a, ForkJoinPool pool) {
+ *   return ParallelIntArray.createUsingHandoff(a, pool)
+ *       .withFilter(x -> (x & 1) == 0)
+ *       .withMapping(x -> x * x)
+ *       .sum();
+ * }}</pre>
+ *
+ * <p>Apart from per-leaf scratch arrays holding one value per leaf,
+ * bulk operations allocate only their tasks and any result array.
+ * The functions supplied should be stateless and free of side
+ * effects, other than the action passed to {@link #apply}; those
+ * passed to {@link #reduce} and {@link #cumulate} must be associative,
+ * with the given base as their identity. An exception thrown by a
+ * function is rethrown by the operation, as for {@link
+ * ForkJoinPool#invoke}.
+ *
+ * <p>Instances are immutable apart from their array, which bulk
+ * operations read and write without synchronization. Callers must not
+ * modify the array concurrently with an operation over it.
+ *
+ * @since 1.8
+ */
+public class ParallelIntArray {
+    final ForkJoinPool pool;
+    final int[] array;
+    final IntPredicate selector;   // null if all elements are selected
+    final IntUnaryOperator mapper; // null if identity
+
+    ParallelIntArray(ForkJoinPool pool, int[] array,
+                     IntPredicate selector, IntUnaryOperator mapper) {
+        this.pool = pool; this.array = array;
+        this.selector = selector; this.mapper = mapper;
+    }
+
+    /**
+     * Creates a new ParallelIntArray using the given array, which
+     * must not be modified by other threads while in use.
+     *
+     * @param array the array
+     * @param pool the pool in which to run operations
+     * @return a new ParallelIntArray
+     * @throws NullPointerException if array or pool is null
+     */
+    public static ParallelIntArray createUsingHandoff(int[] array,
+                                                      ForkJoinPool pool) {
+        if (array == null || pool == null)
+            throw new NullPointerException();
+        return new ParallelIntArray(pool, array, null, null);
+    }
+
+    /**
+     * Creates a new ParallelIntArray holding a copy of the given
+     * array.
+     *
+     * @param source the array to copy
+     * @param pool the pool in which to run operations
+     * @return a new ParallelIntArray
+     * @throws NullPointerException if source or pool is null
+     */
+    public static ParallelIntArray createFromCopy(int[] source,
+                                                  ForkJoinPool pool) {
+        if (source == null || pool == null)
+            throw new NullPointerException();
+        return new ParallelIntArray(pool, source.clone(), null, null);
+    }
+
+    /**
+     * Returns the pool in which operations are run.
+     *
+     * @return the pool
+     */
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Returns the underlying array, shared with any views of this
+     * instance, and not reflecting its filter or mapping, if any.
+     *
+     * @return the underlying array
+     */
+    public int[] getArray() {
+        return array;
+    }
+
+    /**
+     * Returns a view selecting those elements of this instance that
+     * match the given predicate. If this instance has a mapping, the
+     * predicate is tested on mapped values, and the mapping is
+     * computed again for selected elements; materialize with {@link
+     * #all} first if mappings are expensive.
+     *
+     * @param selector the predicate
+     * @return a view over the selected elements
+     * @throws NullPointerException if selector is null
+     */
+    public ParallelIntArray withFilter(IntPredicate selector) {
+        if (selector == null)
+            throw new NullPointerException();
+        final IntUnaryOperator m = mapper;
+        IntPredicate p = (m == null) ? selector :
+            x -> selector.test(m.applyAsInt(x));
+        IntPredicate s = this.selector;
+        return new ParallelIntArray(pool, array,
+                                    (s == null) ? p : s.and(p), m);
+    }
+
+    /**
+     * Returns a view holding the results of applying the given
+     * function to the elements of this instance.
+     *
+     * @param op the function
+     * @return a view over the mapped elements
+     * @throws NullPointerException if op is null
+     */
+    public ParallelIntArray withMapping(IntUnaryOperator op) {
+        if (op == null)
+            throw new NullPointerException();
+        IntUnaryOperator m = this.mapper;
+        return new ParallelIntArray(pool, array, selector,
+                                    (m == null) ? op : m.andThen(op));
+    }
+
+    /**
+     * Applies the given action to each element, in no particular
+     * order.
+     *
+     * @param action the action
+     * @throws NullPointerException if action is null
+     */
+    public void apply(IntConsumer action) {
+        if (action == null)
+            throw new NullPointerException();
+        int n = array.length, g;
+        if (n > 0)
+            pool.invoke(new ApplyTask(null, this, action, 0, n,
+                                      g = ParallelArrayHelpers.grain(pool, n),
+                                      0, ParallelArrayHelpers.leafCount(n, g)));
+    }
+
+    /**
+     * Returns the reduction of the elements using the given
+     * associative function, or base if there are none.
+     *
+     * @param reducer the reducing function
+     * @param base the identity of the reducing function
+     * @return the reduction
+     * @throws NullPointerException if reducer is null
+     */
+    public int reduce(IntBinaryOperator reducer, int base) {
+        if (reducer == null)
+            throw new NullPointerException();
+        int n = array.length, g, nl;
+        if (n == 0)
+            return base;
+        int[] rs = new int[nl = ParallelArrayHelpers.leafCount
+                             (n, g = ParallelArrayHelpers.grain(pool, n))];
+        pool.invoke(new ReduceTask(null, this, reducer, base, rs,
+                                   0, n, g, 0, nl));
+        int r = base;
+        for (int x : rs)
+            r = reducer.applyAsInt(r, x);
+        return r;
+    }
+
+    /**
+     * Returns the sum of the elements, which silently overflows as
+     * {@code int} arithmetic does.
+     *
+     * @return the sum
+     */
+    public int sum() {
+        return reduce(Integer::sum, 0);
+    }
+
+    /**
+     * Returns the number of elements, which for a filtered view
+     * requires a parallel pass over the array.
+     *
+     * @return the number of elements
+     */
+    public int size() {
+        int n = array.length, g, nl;
+        if (selector == null || n == 0)
+            return n;
+        int[] counts = new int[nl = ParallelArrayHelpers.leafCount
+                               (n, g = ParallelArrayHelpers.grain(pool, n))];
+        pool.invoke(new CountTask(null, this, counts, 0, n, g, 0, nl));
+        int c = 0;
+        for (int x : counts)
+            c += x;
+        return c;
+    }
+
+    /**
+     * Returns a new ParallelIntArray holding the elements of this
+     * instance, applying its filter and mapping, if any. An instance
+     * with neither returns a copy of its array.
+     *
+     * @return a new ParallelIntArray of the elements
+     */
+    public ParallelIntArray all() {
+        return new ParallelIntArray(pool, toArray(), null, null);
+    }
+
+    /**
+     * Returns a new array holding the elements of this instance,
+     * applying its filter and mapping, if any.
+     *
+     * @return a new array of the elements
+     */
+    public int[] toArray() {
+        int[] a = array;
+        int n = a.length, g, nl;
+        if (n == 0)
+            return new int[0];
+        if (selector == null && mapper == null)
+            return a.clone();
+        g = ParallelArrayHelpers.grain(pool, n);
+        nl = ParallelArrayHelpers.leafCount(n, g);
+        if (selector == null) {
+            int[] dest = new int[n];
+            pool.invoke(new MapTask(null, this, dest, 0, n, g, 0, nl));
+            return dest;
+        }
+        int[] offsets = new int[nl];
+        pool.invoke(new CountTask(null, this, offsets, 0, n, g, 0, nl));
+        int[] dest = new int[ParallelArrayHelpers.offsets(offsets)];
+        pool.invoke(new SelectTask(null, this, dest, offsets, 0, n, g, 0, nl));
+        return dest;
+    }
+
+    /**
+     * Sorts the elements into ascending order. An instance with no
+     * filter or mapping is sorted in place and returned; otherwise a
+     * new, sorted, ParallelIntArray of the elements is returned.
+     *
+     * @return the sorted ParallelIntArray
+     */
+    public ParallelIntArray sort() {
+        ParallelIntArray p = (selector == null && mapper == null) ? this : all();
+        FJInt.sort(pool, p.array, 0, p.array.length);
+        return p;
+    }
+
+    /**
+     * Replaces each element with the reduction, using the given
+     * associative function, of base and all elements up to and
+     * including it. An instance with no filter or mapping is
+     * cumulated in place and returned; otherwise a new, cumulated,
+     * ParallelIntArray of the elements is returned.
+     *
+     * @param reducer the reducing function
+     * @param base the identity of the reducing function
+     * @return the cumulated ParallelIntArray
+     * @throws NullPointerException if reducer is null
+     */
+    public ParallelIntArray cumulate(IntBinaryOperator reducer, int base) {
+        if (reducer == null)
+            throw new NullPointerException();
+        ParallelIntArray p = (selector == null && mapper == null) ? this : all();
+        FJInt.cumulate(pool, p.array, 0, p.array.length, reducer, base);
+        return p;
+    }
+
+    /**
+     * Returns a string listing the elements, applying the filter and
+     * mapping, if any.
+     *
+     * @return a string representation
+     */
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    // Tasks
+
+    /**
+     * Base for tasks over the elements of a possibly filtered or
+     * mapped instance.
+     */
+    abstract static class ViewTask extends LeafTask {
+        private static final long serialVersionUID = -4286195346417225108L;
+        final ParallelIntArray pa;
+        ViewTask(CountedCompleter<?> par, ParallelIntArray pa,
+                 int origin, int fence, int gran, int lo, int hi) {
+            super(par, origin, fence, gran, lo, hi);
+            this.pa = pa;
+        }
+    }
+
+    static final class ApplyTask extends ViewTask {
+        private static final long serialVersionUID = 3157282283735469549L;
+        final IntConsumer action;
+        ApplyTask(CountedCompleter<?> par, ParallelIntArray pa,
+                  IntConsumer action, int origin, int fence, int gran,
+                  int lo, int hi) {
+            super(par, pa, origin, fence, gran, lo, hi);
+            this.action = action;
+        }
+        LeafTask subtask(int l, int h) {
+            return new ApplyTask(this, pa, action, origin, fence, gran, l, h);
+        }
+        void atLeaf(int i, int from, int to) {
+            final int[] a = pa.array;
+            final IntPredicate sel = pa.selector;
+            final IntUnaryOperator m = pa.mapper;
+            final IntConsumer action = this.action;
+            for (int j = from; j < to; ++j) {
+                int x = a[j];
+                if (sel == null || sel.test(x))
+                    action.accept((m == null) ? x : m.applyAsInt(x));
+            }
+        }
+    }
+
+    static final class ReduceTask extends ViewTask {
+        private static final long serialVersionUID = -6219413964914839117L;
+        final IntBinaryOperator reducer;
+        final int base;
+        final int[] results;
+        ReduceTask(CountedCompleter<?> par, ParallelIntArray pa,
+                   IntBinaryOperator reducer, int base, int[] results,
+                   int origin, int fence, int gran, int lo, int hi) {
+            super(par, pa, origin, fence, gran, lo, hi);
+            this.reducer = reducer; this.base = base; this.results = results;
+        }
+        LeafTask subtask(int l, int h) {
+            return new ReduceTask(this, pa, reducer, base, results,
+                                  origin, fence, gran, l, h);
+        }
+        void atLeaf(int i, int from, int to) {
+            final int[] a = pa.array;
+            final IntPredicate sel = pa.selector;
+            final IntUnaryOperator m = pa.mapper;
+            final IntBinaryOperator fn = this.reducer;
+            int r = base;
+            for (int j = from; j < to; ++j) {
+                int x = a[j];
+                if (sel == null || sel.test(x))
+                    r = fn.applyAsInt(r, (m == null) ? x : m.applyAsInt(x));
+            }
+            results[i] = r;
+        }
+    }
+
+    static final class CountTask extends ViewTask {
+        private static final long serialVersionUID = 1452830418432389530L;
+        final int[] counts;
+        CountTask(CountedCompleter<?> par, ParallelIntArray pa, int[] counts,
+                  int origin, int fence, int gran, int lo, int hi) {
+            super(par, pa, origin, fence, gran, lo, hi);
+            this.counts = counts;
+        }
+        LeafTask subtask(int l, int h) {
+            return new CountTask(this, pa, counts, origin, fence, gran, l, h);
+        }
+        void atLeaf(int i, int from, int to) {
+            final int[] a = pa.array;
+            final IntPredicate sel = pa.selector;
+            int c = 0;
+            for (int j = from; j < to; ++j) {
+                if (sel.test(a[j]))
+                    ++c;
+            }
+            counts[i] = c;
+        }
+    }
+
+    static final class MapTask extends ViewTask {
+        private static final long serialVersionUID = -2577460232385578634L;
+        final int[] dest;
+        MapTask(CountedCompleter<?> par, ParallelIntArray pa, int[] dest,
+                int origin, int fence, int gran, int lo, int hi) {
+            super(par, pa, origin, fence, gran, lo, hi);
+            this.dest = dest;
+        }
+        LeafTask subtask(int l, int h) {
+            return new MapTask(this, pa, dest, origin, fence, gran, l, h);
+        }
+        void atLeaf(int i, int from, int to) {
+            final int[] a = pa.array, dest = this.dest;
+            final IntUnaryOperator m = pa.mapper;
+            for (int j = from; j < to; ++j)
+                dest[j] = m.applyAsInt(a[j]);
+        }
+    }
+
+    static final class SelectTask extends ViewTask {
+        private static final long serialVersionUID = 6925313412698237585L;
+        final int[] dest;
+        final int[] offsets;
+        SelectTask(CountedCompleter<?> par, ParallelIntArray pa, int[] dest,
+                   int[] offsets, int origin, int fence, int gran,
+                   int lo, int hi) {
+            super(par, pa, origin, fence, gran, lo, hi);
+            this.dest = dest; this.offsets = offsets;
+        }
+        LeafTask subtask(int l, int h) {
+            return new SelectTask(this, pa, dest, offsets,
+                                  origin, fence, gran, l, h);
+        }
+        void atLeaf(int i, int from, int to) {
+            final int[] a = pa.array, dest = this.dest;
+            final IntPredicate sel = pa.selector;
+            final IntUnaryOperator m = pa.mapper;
+            int k = offsets[i];
+            for (int j = from; j < to; ++j) {
+                int x = a[j];
+                if (sel.test(x))
+                    dest[k++] = (m == null) ? x : m.applyAsInt(x);
+            }
+        }
+    }
+}
@@ -0,0 +1,476 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package lmmarise.util.concurrent;
+
+import java.util.Arrays;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+import java.util.function.LongUnaryOperator;
+import lmmarise.util.concurrent.ParallelArrayHelpers.FJLong;
+import lmmarise.util.concurrent.ParallelArrayHelpers.LeafTask;
+
+/**
+ * An array of {@code long}s supporting parallel bulk operations, run
+ * as trees of {@link CountedCompleter}s in a given {@link
+ * ForkJoinPool}.
+ *
+ * <p>A {@code ParallelLongArray} wraps an array without copying it.
+ * Methods {@link #withFilter} and {@link #withMapping} return lazy
+ * views over the same array that select and transform elements on
+ * the fly; nothing is computed until a terminal operation such as
+ * {@link #reduce}, {@link #apply} or {@link #all} is invoked, and
+ * then the filter and mapping are fused into a single pass over each
+ * leaf. Operations that reorder or rewrite elements ({@link #sort},
+ * {@link #cumulate}) act in place on the array of an unfiltered,
+ * unmapped instance, and otherwise on a fresh array holding the
+ * elements of the view. For example, to sum the squares of the even
+ * elements of an array:
+ *
+ *  <pre> {@code
+ * long sumOfEvenSquares(long[] a, ForkJoinPool pool) {
+ *   return ParallelLongArray.createUsingHandoff(a, pool)
+ *       .withFilter(x -> (x & 1L) == 0L)
+ *       .withMapping(x -> x * x)
+ *       .sum();
+ * }}</pre>
+ *
+ * <p>Apart from per-leaf scratch arrays holding one value per leaf,
+ * bulk operations allocate only their tasks and any result array.
+ * The functions supplied should be stateless and free of side
+ * effects, other than the action passed to {@link #apply}; those
+ * passed to {@link #reduce} and {@link #cumulate} must be associative,
+ * with the given base as their identity. An exception thrown by a
+ * function is rethrown by the operation, as for {@link
+ * ForkJoinPool#invoke}.
+ *
+ * <p>Instances are immutable apart from their array, which bulk
+ * operations read and write without synchronization. Callers must not
+ * modify the array concurrently with an operation over it.
+ *
+ * @since 1.8
+ */
+public class ParallelLongArray {
+    final ForkJoinPool pool;
+    final long[] array;
+    final LongPredicate selector;   // null if all elements are selected
+    final LongUnaryOperator mapper; // null if identity
+
+    ParallelLongArray(ForkJoinPool pool, long[] array,
+                      LongPredicate selector, LongUnaryOperator mapper) {
+        this.pool = pool; this.array = array;
+        this.selector = selector; this.mapper = mapper;
+    }
+
+    /**
+     * Creates a new ParallelLongArray using the given array, which
+     * must not be modified by other threads while in use.
+     *
+     * @param array the array
+     * @param pool the pool in which to run operations
+     * @return a new ParallelLongArray
+     * @throws NullPointerException if array or pool is null
+     */
+    public static ParallelLongArray createUsingHandoff(long[] array,
+                                                       ForkJoinPool pool) {
+        if (array == null || pool == null)
+            throw new NullPointerException();
+        return new ParallelLongArray(pool, array, null, null);
+    }
+
+    /**
+     * Creates a new ParallelLongArray holding a copy of the given
+     * array.
+     *
+     * @param source the array to copy
+     * @param pool the pool in which to run operations
+     * @return a new ParallelLongArray
+     * @throws NullPointerException if source or pool is null
+     */
+    public static ParallelLongArray createFromCopy(long[] source,
+                                                   ForkJoinPool pool) {
+        if (source == null || pool == null)
+            throw new NullPointerException();
+        return new ParallelLongArray(pool, source.clone(), null, null);
+    }
+
+    /**
+     * Returns the pool in which operations are run.
+     *
+     * @return the pool
+     */
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Returns the underlying array, shared with any views of this
+     * instance, and not reflecting its filter or mapping, if any.
+     *
+     * @return the underlying array
+     */
+    public long[] getArray() {
+        return array;
+    }
+
+    /**
+     * Returns a view selecting those elements of this instance that
+     * match the given predicate. If this instance has a mapping, the
+     * predicate is tested on mapped values, and the mapping is
+     * computed again for selected elements; materialize with {@link
+     * #all} first if mappings are expensive.
+     *
+     * @param selector the predicate
+     * @return a view over the selected elements
+     * @throws NullPointerException if selector is null
+     */
+    public ParallelLongArray withFilter(LongPredicate selector) {
+        if (selector == null)
+            throw new NullPointerException();
+        final LongUnaryOperator m = mapper;
+        LongPredicate p = (m == null) ? selector :
+            x -> selector.test(m.applyAsLong(x));
+        LongPredicate s = this.selector;
+        return new ParallelLongArray(pool, array,
+                                     (s == null) ? p : s.and(p), m);
+    }
+
+    /**
+     * Returns a view holding the results of applying the given
+     * function to the elements of this instance.
+     *
+     * @param op the function
+     * @return a view over the mapped elements
+     * @throws NullPointerException if op is null
+     */
+    public ParallelLongArray withMapping(LongUnaryOperator op) {
+        if (op == null)
+            throw new NullPointerException();
+        LongUnaryOperator m = this.mapper;
+        return new ParallelLongArray(pool, array, selector,
+                                     (m == null) ? op : m.andThen(op));
+    }
+
+    /**
+     * Applies the given action to each element, in no particular
+     * order.
+     *
+     * @param action the action
+     * @throws NullPointerException if action is null
+     */
+    public void apply(LongConsumer action) {
+        if (action == null)
+            throw new NullPointerException();
+        int n = array.length, g;
+        if (n > 0)
+            pool.invoke(new ApplyTask(null, this, action, 0, n,
+                                      g = ParallelArrayHelpers.grain(pool, n),
+                                      0, ParallelArrayHelpers.leafCount(n, g)));
+    }
+
+    /**
+     * Returns the reduction of the elements using the given
+     * associative function, or base if there are none.
+     *
+     * @param reducer the reducing function
+     * @param base the identity of the reducing function
+     * @return the reduction
+     * @throws NullPointerException if reducer is null
+     */
+    public long reduce(LongBinaryOperator reducer, long base) {
+        if (reducer == null)
+            throw new NullPointerException();
+        int n = array.length, g, nl;
+        if (n == 0)
+            return base;
+        long[] rs = new long[nl = ParallelArrayHelpers.leafCount
+                             (n, g = ParallelArrayHelpers.grain(pool, n))];
+        pool.invoke(new ReduceTask(null, this, reducer, base, rs,
+                                   0, n, g, 0, nl));
+        long r = base;
+        for (long x : rs)
+            r = reducer.applyAsLong(r, x);
+        return r;
+    }
+
+    /**
+     * Returns the sum of the elements.
+     *
+     * @return the sum
+     */
+    public long sum() {
+        return reduce(Long::sum, 0L);
+    }
+
+    /**
+     * Returns the number of elements, which for a filtered view
+     * requires a parallel pass over the array.
+     *
+     * @return the number of elements
+     */
+    public int size() {
+        int n = array.length, g, nl;
+        if (selector == null || n == 0)
+            return n;
+        int[] counts = new int[nl = ParallelArrayHelpers.leafCount
+                               (n, g = ParallelArrayHelpers.grain(pool, n))];
+        pool.invoke(new CountTask(null, this, counts, 0, n, g, 0, nl));
+        int c = 0;
+        for (int x : counts)
+            c += x;
+        return c;
+    }
+
+    /**
+     * Returns a new ParallelLongArray holding the elements of this
+     * instance, applying its filter and mapping, if any. An instance
+     * with neither returns a copy of its array.
+     *
+     * @return a new ParallelLongArray of the elements
+     */
+    public ParallelLongArray all() {
+        return new ParallelLongArray(pool, toArray(), null, null);
+    }
+
+    /**
+     * Returns a new array holding the elements of this instance,
+     * applying its filter and mapping, if any.
+     *
+     * @return a new array of the elements
+     */
+    public long[] toArray() {
+        long[] a = array;
+        int n = a.length, g, nl;
+        if (n == 0)
+            return new long[0];
+        if (selector == null && mapper == null)
+            return a.clone();
+        g = ParallelArrayHelpers.grain(pool, n);
+        nl = ParallelArrayHelpers.leafCount(n, g);
+        if (selector == null) {
+            long[] dest = new long[n];
+            pool.invoke(new MapTask(null, this, dest, 0, n, g, 0, nl));
+            return dest;
+        }
+        int[] offsets = new int[nl];
+        pool.invoke(new CountTask(null, this, offsets, 0, n, g, 0, nl));
+        long[] dest = new long[ParallelArrayHelpers.offsets(offsets)];
+        pool.invoke(new SelectTask(null, this, dest, offsets, 0, n, g, 0, nl));
+        return dest;
+    }
+
+    /**
+     * Sorts the elements into ascending order. An instance with no
+     * filter or mapping is sorted in place and returned; otherwise a
+     * new, sorted, ParallelLongArray of the elements is returned.
+     *
+     * @return the sorted ParallelLongArray
+     */
+    public ParallelLongArray sort() {
+        ParallelLongArray p = (selector == null && mapper == null) ? this : all();
+        FJLong.sort(pool, p.array, 0, p.array.length);
+        return p;
+    }
+
+    /**
+     * Replaces each element with the reduction, using the given
+     * associative function, of base and all elements up to and
+     * including it. An instance with no filter or mapping is
+     * cumulated in place and returned; otherwise a new, cumulated,
+     * ParallelLongArray of the elements is returned.
+     *
+     * @param reducer the reducing function
+     * @param base the identity of the reducing function
+     * @return the cumulated ParallelLongArray
+     * @throws NullPointerException if reducer is null
+     */
+    public ParallelLongArray cumulate(LongBinaryOperator reducer, long base) {
+        if (reducer == null)
+            throw new NullPointerException();
+        ParallelLongArray p = (selector == null && mapper == null) ? this : all();
+        FJLong.cumulate(pool, p.array, 0, p.array.length, reducer, base);
+        return p;
+    }
+
+    /**
+     * Returns a string listing the elements, applying the filter and
+     * mapping, if any.
+     *
+     * @return a string representation
+     */
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    // Tasks
+
+    /**
+     * Base for tasks over the elements of a possibly filtered or
+     * mapped instance.
+     */
+    abstract static class ViewTask extends LeafTask {
+        private static final long serialVersionUID = -4286195346417225108L;
+        final ParallelLongArray pa;
+        ViewTask(CountedCompleter<?> par, ParallelLongArray pa,
+                 int origin, int fence, int gran, int lo, int hi) {
+            super(par, origin, fence, gran, lo, hi);
+            this.pa = pa;
+        }
+    }
+
+    static final class ApplyTask extends ViewTask {
+        private static final long serialVersionUID = 3157282283735469549L;
+        final LongConsumer action;
+        ApplyTask(CountedCompleter<?> par, ParallelLongArray pa,
+                  LongConsumer action, int origin, int fence, int gran,
+                  int lo, int hi) {
+            super(par, pa, origin, fence, gran, lo, hi);
+            this.action = action;
+        }
+        LeafTask subtask(int l, int h) {
+            return new ApplyTask(this, pa, action, origin, fence, gran, l, h);
+        }
+        void atLeaf(int i, int from, int to) {
+            final long[] a = pa.array;
+            final LongPredicate sel = pa.selector;
+            final LongUnaryOperator m = pa.mapper;
+            final LongConsumer action = this.action;
+            for (int j = from; j < to; ++j) {
+                long x = a[j];
+                if (sel == null || sel.test(x))
+                    action.accept((m == null) ? x : m.applyAsLong(x));
+            }
+        }
+    }
+
+    static final class ReduceTask extends ViewTask {
+        private static final long serialVersionUID = -6219413964914839117L;
+        final LongBinaryOperator reducer;
+        final long base;
+        final long[] results;
+        ReduceTask(CountedCompleter<?> par, ParallelLongArray pa,
+                   LongBinaryOperator reducer, long base, long[] results,
+                   int origin, int fence, int gran, int lo, int hi) {
+            super(par, pa, origin, fence, gran, lo, hi);
+            this.reducer = reducer; this.base = base; this.results = results;
+        }
+        LeafTask subtask(int l, int h) {
+            return new ReduceTask(this, pa, reducer, base, results,
+                                  origin, fence, gran, l, h);
+        }
+        void atLeaf(int i, int from, int to) {
+            final long[] a = pa.array;
+            final LongPredicate sel = pa.selector;
+            final LongUnaryOperator m = pa.mapper;
+            final LongBinaryOperator fn = this.reducer;
+            long r = base;
+            for (int j = from; j < to; ++j) {
+                long x = a[j];
+                if (sel == null || sel.test(x))
+                    r = fn.applyAsLong(r, (m == null) ? x : m.applyAsLong(x));
+            }
+            results[i] = r;
+        }
+    }
+
+    static final class CountTask extends ViewTask {
+        private static final long serialVersionUID = 1452830418432389530L;
+        final int[] counts;
+        CountTask(CountedCompleter<?> par, ParallelLongArray pa, int[] counts,
+                  int origin, int fence, int gran, int lo, int hi) {
+            super(par, pa, origin, fence, gran, lo, hi);
+            this.counts = counts;
+        }
+        LeafTask subtask(int l, int h) {
+            return new CountTask(this, pa, counts, origin, fence, gran, l, h);
+        }
+        void atLeaf(int i, int from, int to) {
+            final long[] a = pa.array;
+            final LongPredicate sel = pa.selector;
+            int c = 0;
+            for (int j = from; j < to; ++j) {
+                if (sel.test(a[j]))
+                    ++c;
+            }
+            counts[i] = c;
+        }
+    }
+
+    static final class MapTask extends ViewTask {
+        private static final long serialVersionUID = -2577460232385578634L;
+        final long[] dest;
+        MapTask(CountedCompleter<?> par, ParallelLongArray pa, long[] dest,
+                int origin, int fence, int gran, int lo, int hi) {
+            super(par, pa, origin, fence, gran, lo, hi);
+            this.dest = dest;
+        }
+        LeafTask subtask(int l, int h) {
+            return new MapTask(this, pa, dest, origin, fence, gran, l, h);
+        }
+        void atLeaf(int i, int from, int to) {
+            final long[] a = pa.array, dest = this.dest;
+            final LongUnaryOperator m = pa.mapper;
+            for (int j = from; j < to; ++j)
+                dest[j] = m.applyAsLong(a[j]);
+        }
+    }
+
+    static final class SelectTask extends ViewTask {
+        private static final long serialVersionUID = 6925313412698237585L;
+        final long[] dest;
+        final int[] offsets;
+        SelectTask(CountedCompleter<?> par, ParallelLongArray pa, long[] dest,
+                   int[] offsets, int origin, int fence, int gran,
+                   int lo, int hi) {
+            super(par, pa, origin, fence, gran, lo, hi);
+            this.dest = dest; this.offsets = offsets;
+        }
+        LeafTask subtask(int l, int h) {
+            return new SelectTask(this, pa, dest, offsets,
+                                  origin, fence, gran, l, h);
+        }
+        void atLeaf(int i, int from, int to) {
+            final long[] a = pa.array, dest = this.dest;
+            final LongPredicate sel = pa.selector;
+            final LongUnaryOperator m = pa.mapper;
+            int k = offsets[i];
+            for (int j = from; j < to; ++j) {
+                long x = a[j];
+                if (sel.test(x))
+                    dest[k++] = (m == null) ? x : m.applyAsLong(x);
+            }
+        }
+    }
+}
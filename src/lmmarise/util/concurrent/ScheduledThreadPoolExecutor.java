@@ -38,6 +38,7 @@ import static TimeUnit.NANOSECONDS;
 import static lmmarise.util.concurrent.TimeUnit.NANOSECONDS;
 
 import atomic.AtomicLong;
+import lmmarise.util.concurrent.atomic.AtomicInteger;
 import lmmarise.util.concurrent.atomic.AtomicLong;
 import lmmarise.util.concurrent.locks.Condition;
 import lmmarise.util.concurrent.locks.ReentrantLock;
@@ -73,6 +74,39 @@ import java.util.*;
  * 为了避免这种情况的发生，我们可以通过setRemoveOnCancelPolicy设置移除策略，
  * removeOnCancel设为true可以在任务取消后立即从队列中移除任务。
  *
+ * <p>Immediate removal acquires the queue lock for every
+ * cancellation, which can stall workers when large numbers of
+ * timers are cancelled at once. {@link #setLazyRemoveOnCancelPolicy}
+ * instead leaves cancelled tasks in place as tombstones that are
+ * discarded when they reach the head of the queue, and compacts the
+ * queue in a single pass once tombstones make up a sizeable fraction
+ * of it.
+ * 立即移除在每次取消时都要获取队列锁；延迟移除策略只把已取消任务标记为墓碑，
+ * 到达队头时直接丢弃，墓碑占比过高时一次性压缩整个堆。
+ *
+ * <p>By default all workers take tasks from a single delay queue in
+ * which only one thread at a time waits for the head. Executors
+ * created with the {@code sharded} constructor argument instead hash
+ * each task to one of {@code corePoolSize} independently locked delay
+ * heaps. Each worker waits on its own heap and steals tasks from the
+ * other heaps only once they are due, so scheduling and dispatch
+ * throughput grows with the number of workers. Tasks in different
+ * heaps that share a trigger time are not guaranteed to start in
+ * FIFO order.
+ * 分片模式下任务按序号散列到corePoolSize个独立加锁的延迟堆，每个工作线程在自己的堆上等待，
+ * 只窃取其他堆中已到期的任务；不同分片中同时到期的任务不保证FIFO顺序。
+ *
+ * <p>Dense timer workloads can pass a slack to {@link
+ * #schedule(Runnable, long, long, TimeUnit)}, allowing the task to
+ * run up to that much later than requested. Trigger times are then
+ * rounded onto a grid shared by all tasks with similar slack, so
+ * timers due within the same window become due together: the worker
+ * waiting for the head of the queue times out once for the whole
+ * group rather than once per timer. Each task is still handed to a
+ * worker separately, so a group of N tasks may wake up to N workers.
+ * 通过slack参数允许任务最多推迟这么久执行，触发时间被对齐到同一网格，
+ * 窗口内到期的定时器共享等待队首的那一次定时唤醒；每个任务仍分别交给工作线程执行。
+ *
  * <p>Successive executions of a task scheduled via
  * {@code scheduleAtFixedRate} or
  * {@code scheduleWithFixedDelay} do not overlap. While different
@@ -241,6 +275,9 @@ public class ScheduledThreadPoolExecutor
         //延迟队列的索引，以支持更快的取消操作
         int heapIndex;
 
+        /** True if the trigger time was rounded to a coalescing grid. */
+        boolean coalesced;
+
         /**
          * Creates a one-shot action with given nanoTime-based trigger time.
          */
@@ -322,8 +359,15 @@ public class ScheduledThreadPoolExecutor
         //取消任务
         public boolean cancel(boolean mayInterruptIfRunning) {
             boolean cancelled = super.cancel(mayInterruptIfRunning);
-            if (cancelled && removeOnCancel && heapIndex >= 0)
-                remove(this);
+            if (cancelled && heapIndex >= 0) {
+                DelayedWorkQueue q = heapFor(this);
+                boolean lazy = q.lazyRemove;
+                // 关闭后回退为立即移除，以便tryTerminate能及时观察到空队列
+                if (lazy && !isShutdown())
+                    q.tombstone();
+                else if (lazy || removeOnCancel)
+                    remove(this);
+            }
             return cancelled;
         }
 
@@ -551,6 +595,63 @@ public class ScheduledThreadPoolExecutor
               new DelayedWorkQueue(), threadFactory, handler);
     }
 
+    /**
+     * Creates a new {@code ScheduledThreadPoolExecutor} with the
+     * given core pool size, optionally dispatching tasks from one
+     * delay heap per core thread rather than from a single shared
+     * queue.
+     *
+     * @param corePoolSize the number of threads to keep in the pool, even
+     *        if they are idle, unless {@code allowCoreThreadTimeOut} is set
+     * @param sharded if {@code true}, hash tasks to {@code corePoolSize}
+     *        separately locked delay heaps, with workers stealing due
+     *        tasks from each other's heaps
+     * @throws IllegalArgumentException if {@code corePoolSize < 0}
+     * @since 1.8
+     */
+    public ScheduledThreadPoolExecutor(int corePoolSize, boolean sharded) {
+        super(corePoolSize, Integer.MAX_VALUE, 0, NANOSECONDS,
+              newWorkQueue(corePoolSize, sharded));
+    }
+
+    /**
+     * Creates a new {@code ScheduledThreadPoolExecutor} with the
+     * given initial parameters, optionally dispatching tasks from one
+     * delay heap per core thread rather than from a single shared
+     * queue.
+     *
+     * @param corePoolSize the number of threads to keep in the pool, even
+     *        if they are idle, unless {@code allowCoreThreadTimeOut} is set
+     * @param sharded if {@code true}, hash tasks to {@code corePoolSize}
+     *        separately locked delay heaps, with workers stealing due
+     *        tasks from each other's heaps
+     * @param threadFactory the factory to use when the executor
+     *        creates a new thread
+     * @param handler the handler to use when execution is blocked
+     *        because the thread bounds and queue capacities are reached
+     * @throws IllegalArgumentException if {@code corePoolSize < 0}
+     * @throws NullPointerException if {@code threadFactory} or
+     *         {@code handler} is null
+     * @since 1.8
+     */
+    public ScheduledThreadPoolExecutor(int corePoolSize,
+                                       boolean sharded,
+                                       ThreadFactory threadFactory,
+                                       RejectedExecutionHandler handler) {
+        super(corePoolSize, Integer.MAX_VALUE, 0, NANOSECONDS,
+              newWorkQueue(corePoolSize, sharded), threadFactory, handler);
+    }
+
+    /**
+     * Creates the work queue for the given mode.
+     */
+    private static BlockingQueue<Runnable> newWorkQueue(int corePoolSize,
+                                                        boolean sharded) {
+        if (sharded && corePoolSize > 1)
+            return new ShardedDelayedWorkQueue(corePoolSize);
+        return new DelayedWorkQueue();
+    }
+
     /**
      * Returns the trigger time of a delayed action.
      */
@@ -559,6 +660,37 @@ public class ScheduledThreadPoolExecutor
         return triggerTime(unit.toNanos((delay < 0) ? 0 : delay));
     }
 
+    /**
+     * Returns true if a delayed action may be coalesced: the slack is
+     * positive, and neither it nor the delay is so large that the
+     * rounded trigger time could overflow.
+     */
+    private static boolean canCoalesce(long delay, long slack, TimeUnit unit) {
+        long d = unit.toNanos((delay < 0) ? 0 : delay);
+        long s = unit.toNanos(slack);
+        return s > 0 && d < (Long.MAX_VALUE >> 2) && s < (Long.MAX_VALUE >> 2);
+    }
+
+    /**
+     * Returns the trigger time of a delayed action that may run up to
+     * slack later than requested. Call only if canCoalesce.
+     */
+    private long coalescedTriggerTime(long delay, long slack, TimeUnit unit) {
+        return coalesce(triggerTime(unit.toNanos((delay < 0) ? 0 : delay)),
+                        unit.toNanos(slack));
+    }
+
+    /**
+     * Moves a trigger time later by at most slack onto a multiple of
+     * the largest power of two not exceeding slack, so that tasks with
+     * similar slack whose windows overlap share a trigger time.
+     * Arithmetic wraps consistently, like System.nanoTime.
+     */
+    //把触发时间推迟到不超过slack的2的幂网格点上，使窗口重叠的定时器共享同一触发时间
+    static long coalesce(long time, long slack) {
+        return (time + slack) & -Long.highestOneBit(slack);
+    }
+
     /**
      * Returns the trigger time of a delayed action.
      */
@@ -623,6 +755,71 @@ public class ScheduledThreadPoolExecutor
         return t;
     }
 
+    /**
+     * Creates and executes a one-shot action that becomes enabled
+     * after the given delay, and may be started up to {@code slack}
+     * later than that so that it becomes due together with other
+     * timers due around the same time.
+     *
+     * @param command the task to execute
+     * @param delay the time from now to delay execution
+     * @param slack the additional delay that may be tolerated; values
+     *        less than or equal to zero disable coalescing
+     * @param unit the time unit of the delay and slack parameters
+     * @return a ScheduledFuture representing pending completion of
+     *         the task and whose {@code get()} method will return
+     *         {@code null} upon completion
+     * @throws RejectedExecutionException if the task cannot be
+     *         scheduled for execution
+     * @throws NullPointerException if command or unit is null
+     * @since 1.8
+     */
+    public ScheduledFuture<?> schedule(Runnable command, long delay,
+                                       long slack, TimeUnit unit) {
+        if (command == null || unit == null)
+            throw new NullPointerException();
+        if (!canCoalesce(delay, slack, unit))
+            return schedule(command, delay, unit);
+        ScheduledFutureTask<Void> sft = new ScheduledFutureTask<Void>
+            (command, null, coalescedTriggerTime(delay, slack, unit));
+        sft.coalesced = true;
+        RunnableScheduledFuture<?> t = decorateTask(command, sft);
+        delayedExecute(t);
+        return t;
+    }
+
+    /**
+     * Creates and executes a ScheduledFuture that becomes enabled
+     * after the given delay, and may be started up to {@code slack}
+     * later than that so that it becomes due together with other
+     * timers due around the same time.
+     *
+     * @param callable the function to execute
+     * @param delay the time from now to delay execution
+     * @param slack the additional delay that may be tolerated; values
+     *        less than or equal to zero disable coalescing
+     * @param unit the time unit of the delay and slack parameters
+     * @param <V> the type of the callable's result
+     * @return a ScheduledFuture that can be used to extract result or cancel
+     * @throws RejectedExecutionException if the task cannot be
+     *         scheduled for execution
+     * @throws NullPointerException if callable or unit is null
+     * @since 1.8
+     */
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay,
+                                           long slack, TimeUnit unit) {
+        if (callable == null || unit == null)
+            throw new NullPointerException();
+        if (!canCoalesce(delay, slack, unit))
+            return schedule(callable, delay, unit);
+        ScheduledFutureTask<V> sft = new ScheduledFutureTask<V>
+            (callable, coalescedTriggerTime(delay, slack, unit));
+        sft.coalesced = true;
+        RunnableScheduledFuture<V> t = decorateTask(callable, sft);
+        delayedExecute(t);
+        return t;
+    }
+
     /**
      * @throws RejectedExecutionException {@inheritDoc}
      * @throws NullPointerException       {@inheritDoc}
@@ -823,6 +1020,63 @@ public class ScheduledThreadPoolExecutor
         return removeOnCancel;
     }
 
+    /**
+     * Sets the policy on whether cancelled tasks should be lazily
+     * removed from the work queue. When {@code true}, cancelling a
+     * task does not acquire the queue lock; the task is instead
+     * counted as a tombstone, skipped by workers when it reaches the
+     * head of the queue, and reclaimed by a compaction pass that
+     * rebuilds the queue in linear time once tombstones exceed a
+     * quarter of its size. Compaction is performed by the cancelling
+     * thread only if the queue lock is free, and otherwise by the
+     * next worker to access the queue. Until reclaimed, cancelled
+     * tasks are still reported by {@link #getQueue}. Tasks cancelled
+     * after shutdown are removed immediately. This policy takes
+     * precedence over {@link #setRemoveOnCancelPolicy}. This value is
+     * by default {@code false}.
+     *
+     * @param value if {@code true}, lazily remove on cancellation
+     * @see #getLazyRemoveOnCancelPolicy
+     * @since 1.8
+     */
+    public void setLazyRemoveOnCancelPolicy(boolean value) {
+        BlockingQueue<Runnable> q = super.getQueue();
+        if (q instanceof ShardedDelayedWorkQueue) {
+            for (Shard shard : ((ShardedDelayedWorkQueue) q).shards)
+                shard.heap.lazyRemove = value;
+        }
+        else
+            ((DelayedWorkQueue) q).lazyRemove = value;
+    }
+
+    /**
+     * Gets the policy on whether cancelled tasks should be lazily
+     * removed from the work queue. This value is by default
+     * {@code false}.
+     *
+     * @return {@code true} if cancelled tasks are lazily removed from
+     *         the queue
+     * @see #setLazyRemoveOnCancelPolicy
+     * @since 1.8
+     */
+    public boolean getLazyRemoveOnCancelPolicy() {
+        BlockingQueue<Runnable> q = super.getQueue();
+        if (q instanceof ShardedDelayedWorkQueue)
+            return ((ShardedDelayedWorkQueue) q).shards[0].heap.lazyRemove;
+        return ((DelayedWorkQueue) q).lazyRemove;
+    }
+
+    /**
+     * Returns the delay heap that holds, or would hold, the given
+     * task.
+     */
+    private DelayedWorkQueue heapFor(RunnableScheduledFuture<?> task) {
+        BlockingQueue<Runnable> q = super.getQueue();
+        if (q instanceof ShardedDelayedWorkQueue)
+            return ((ShardedDelayedWorkQueue) q).shardFor(task).heap;
+        return (DelayedWorkQueue) q;
+    }
+
     /**
      * Initiates an orderly shutdown in which previously submitted
      * tasks are executed, but no new tasks will be accepted.
@@ -918,6 +1172,19 @@ public class ScheduledThreadPoolExecutor
          * appear at most once in the queue (this need not be true for
          * other kinds of tasks or work queues), so are uniquely
          * identified by heapIndex.
+         *
+         * When lazyRemove is set, cancellation does not take the lock.
+         * A task whose heapIndex is non-negative at the time of
+         * cancellation merely increments the tombstones count.
+         * Cancelled heads are discarded by take and poll, and once
+         * the count exceeds size >>> TOMBSTONE_SHIFT (and is at least
+         * MIN_TOMBSTONES) the heap is compacted: live tasks are packed
+         * to the front of the array, their heapIndex rewritten, and
+         * the heap rebuilt bottom-up in O(n), which amortizes to O(1)
+         * per cancellation. The count is only a hint (heapIndex is
+         * read without locking, and tasks may leave the queue between
+         * the check and the increment), so compaction resets it and
+         * tolerates finding fewer tombstones than counted.
          */
 
         //初始容量
@@ -961,6 +1228,18 @@ public class ScheduledThreadPoolExecutor
          */
         private final Condition available = lock.newCondition();
 
+        /** Compact once tombstones exceed size >>> TOMBSTONE_SHIFT. */
+        private static final int TOMBSTONE_SHIFT = 2;
+
+        /** Minimum tombstone count that makes compaction worthwhile. */
+        private static final int MIN_TOMBSTONES = 32;
+
+        /** True if cancelled tasks are left in place as tombstones. */
+        volatile boolean lazyRemove;
+
+        /** Approximate number of cancelled tasks still in the heap. */
+        private final AtomicInteger tombstones = new AtomicInteger();
+
         /**
          * Sets f's heapIndex if it is a ScheduledFutureTask.
          */
@@ -1030,6 +1309,83 @@ public class ScheduledThreadPoolExecutor
             queue = Arrays.copyOf(queue, newCapacity);
         }
 
+        /**
+         * Returns true if enough tombstones have accumulated to be
+         * worth a compaction pass. Reads size without locking when
+         * called from tombstone, which is acceptable for a heuristic.
+         */
+        private boolean shouldCompact() {
+            int t = tombstones.get();
+            return t >= MIN_TOMBSTONES && t > (size >>> TOMBSTONE_SHIFT);
+        }
+
+        /**
+         * Records the cancellation of a queued task, compacting the
+         * heap if the threshold is crossed and the lock is free.
+         */
+        //记录一个墓碑；超过阈值且锁空闲时就地压缩，否则留给下一个访问队列的工作线程
+        void tombstone() {
+            tombstones.incrementAndGet();
+            if (shouldCompact()) {
+                final ReentrantLock lock = this.lock;
+                if (lock.tryLock()) {
+                    try {
+                        if (shouldCompact())
+                            compact();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Removes all cancelled tasks and rebuilds the heap.
+         * Call only when holding lock.
+         */
+        //移除所有已取消任务，重建堆，O(n)
+        private void compact() {
+            tombstones.set(0);
+            RunnableScheduledFuture<?>[] q = queue;
+            RunnableScheduledFuture<?> head = q[0];
+            int s = size, n = 0;
+            for (int i = 0; i < s; i++) {
+                RunnableScheduledFuture<?> f = q[i];
+                if (f.isCancelled())
+                    setIndex(f, -1);
+                else {
+                    q[n] = f;
+                    setIndex(f, n++);
+                }
+            }
+            for (int i = n; i < s; i++)
+                q[i] = null;
+            size = n;
+            for (int i = (n >>> 1) - 1; i >= 0; i--)
+                siftDown(i, q[i]);
+            if (q[0] != head) {
+                leader = null;
+                available.signal();
+            }
+        }
+
+        /**
+         * Discards cancelled tasks at the head of the queue, and
+         * compacts if too many tombstones remain further down.
+         * Used only in lazyRemove mode by poll and take.
+         * Call only when holding lock.
+         */
+        private void skipTombstones() {
+            RunnableScheduledFuture<?> first;
+            while ((first = queue[0]) != null && first.isCancelled()) {
+                finishPoll(first);
+                if (tombstones.get() > 0)
+                    tombstones.decrementAndGet();
+            }
+            if (shouldCompact())
+                compact();
+        }
+
         /**
          * Finds index of given object, or -1 if absent.
          */
@@ -1114,7 +1470,14 @@ public class ScheduledThreadPoolExecutor
         public boolean offer(Runnable x) {
             if (x == null)
                 throw new NullPointerException();
-            RunnableScheduledFuture<?> e = (RunnableScheduledFuture<?>)x;
+            insert((RunnableScheduledFuture<?>)x);
+            return true;
+        }
+
+        /**
+         * Adds e to the heap, returning true if it became the head.
+         */
+        boolean insert(RunnableScheduledFuture<?> e) {
             final ReentrantLock lock = this.lock;
             lock.lock();
             try {
@@ -1131,11 +1494,12 @@ public class ScheduledThreadPoolExecutor
                 if (queue[0] == e) {
                     leader = null;
                     available.signal();
+                    return true;
                 }
+                return false;
             } finally {
                 lock.unlock();
             }
-            return true;
         }
 
         public void put(Runnable e) {
@@ -1173,6 +1537,8 @@ public class ScheduledThreadPoolExecutor
             final ReentrantLock lock = this.lock;
             lock.lock();
             try {
+                if (lazyRemove)
+                    skipTombstones();
                 RunnableScheduledFuture<?> first = queue[0];
                 if (first == null || first.getDelay(NANOSECONDS) > 0)
                     return null;
@@ -1188,6 +1554,8 @@ public class ScheduledThreadPoolExecutor
             lock.lockInterruptibly();
             try {
                 for (;;) {
+                    if (lazyRemove)
+                        skipTombstones();
                     RunnableScheduledFuture<?> first = queue[0];
                     if (first == null)
                         available.await();
@@ -1224,6 +1592,8 @@ public class ScheduledThreadPoolExecutor
             lock.lockInterruptibly();
             try {
                 for (;;) {
+                    if (lazyRemove)
+                        skipTombstones();
                     RunnableScheduledFuture<?> first = queue[0];
                     if (first == null) {
                         if (nanos <= 0)
@@ -1271,6 +1641,7 @@ public class ScheduledThreadPoolExecutor
                     }
                 }
                 size = 0;
+                tombstones.set(0);
             } finally {
                 lock.unlock();
             }
@@ -1393,4 +1764,381 @@ public class ScheduledThreadPoolExecutor
             }
         }
     }
+
+    /**
+     * One delay heap of a ShardedDelayedWorkQueue, together with the
+     * bookkeeping used to wake the workers waiting on it.
+     */
+    static final class Shard {
+        final DelayedWorkQueue heap = new DelayedWorkQueue();
+        /** Number of workers currently preparing to wait or waiting. */
+        final AtomicInteger waiters = new AtomicInteger();
+        /** Incremented under heap.lock whenever waiters must rescan. */
+        volatile int wakeups;
+    }
+
+    /**
+     * Work queue used in sharded mode. Tasks are hashed by sequence
+     * number to one of several DelayedWorkQueues, so each heap has
+     * its own lock, and periodic tasks always return to the same
+     * heap.
+     *
+     * 分片模式的工作队列：任务按序号散列到多个各自加锁的DelayedWorkQueue，
+     * 周期任务每次都回到同一个堆。
+     */
+    static final class ShardedDelayedWorkQueue extends AbstractQueue<Runnable>
+        implements BlockingQueue<Runnable> {
+
+        /*
+         * Each worker is assigned a home shard (round-robin, on its
+         * first access) and waits only on that shard's condition.
+         * Before waiting it polls every shard for a due task, so due
+         * tasks are stolen by whichever worker gets there first. The
+         * wait is bounded by the head delay of the home shard and of
+         * every shard that has no waiter of its own, so no due task
+         * is left uncovered. A shard thus has a single waiter in the
+         * common case, replacing the single global leader of
+         * DelayedWorkQueue with one per shard.
+         *
+         * Wakeups use a Dekker-style handshake. A worker increments
+         * its shard's waiters count, reads wakeups, rescans all heads,
+         * and then awaits only if wakeups is unchanged under the
+         * shard lock. A producer whose task becomes the head of its
+         * shard bumps wakeups and signals under the lock of a shard
+         * with waiters, preferring the task's own shard. Either the
+         * worker's rescan sees the new task or the producer sees the
+         * waiter, and the bumped count keeps the signal from being
+         * lost before the worker awaits. A worker that stops waiting
+         * leaves its home shard uncovered, so if that shard is not
+         * empty it hands off by waking a waiter on another shard,
+         * which then includes the home shard in its bound.
+         */
+
+        final Shard[] shards;
+
+        /** Source of home shard assignments. */
+        private final AtomicInteger nextHome = new AtomicInteger();
+
+        /** Per-thread home shard index. */
+        private final ThreadLocal<int[]> home = new ThreadLocal<int[]>();
+
+        ShardedDelayedWorkQueue(int nShards) {
+            Shard[] ss = new Shard[nShards];
+            for (int i = 0; i < nShards; ++i)
+                ss[i] = new Shard();
+            shards = ss;
+        }
+
+        /**
+         * Returns the index of the shard holding the given task.
+         * Coalesced tasks are hashed by trigger time, so that a group
+         * due together lands in one shard and costs one timed wait.
+         */
+        private int indexFor(Object x) {
+            int h;
+            if (x instanceof ScheduledFutureTask) {
+                ScheduledFutureTask<?> t = (ScheduledFutureTask<?>) x;
+                if (t.coalesced) {
+                    long time = t.time;
+                    h = (int) (time ^ (time >>> 32));
+                    h ^= h >>> 16;
+                }
+                else
+                    h = (int) t.sequenceNumber;
+            }
+            else
+                h = x.hashCode();
+            return (h & 0x7fffffff) % shards.length;
+        }
+
+        Shard shardFor(Object x) {
+            return shards[indexFor(x)];
+        }
+
+        /**
+         * Returns the calling thread's home shard index.
+         */
+        private int homeIndex() {
+            int[] h = home.get();
+            if (h == null) {
+                h = new int[] {
+                    (nextHome.getAndIncrement() & 0x7fffffff) % shards.length };
+                home.set(h);
+            }
+            return h[0];
+        }
+
+        /**
+         * Forces waiters on the given shard to rescan.
+         */
+        private static void wake(Shard s) {
+            final ReentrantLock lock = s.heap.lock;
+            lock.lock();
+            try {
+                s.wakeups++;
+                s.heap.available.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Wakes a waiter on some shard other than shard k, if any.
+         */
+        private void wakeOther(int k) {
+            final Shard[] ss = shards;
+            for (int n = ss.length, i = (k + 1) % n; i != k; i = (i + 1) % n) {
+                Shard s = ss[i];
+                if (s.waiters.get() > 0) {
+                    wake(s);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Polls the home shard and then the others for a due task.
+         */
+        private RunnableScheduledFuture<?> pollAny(int h) {
+            final Shard[] ss = shards;
+            int n = ss.length, i = h;
+            do {
+                RunnableScheduledFuture<?> f = ss[i].heap.poll();
+                if (f != null)
+                    return f;
+            } while ((i = (i + 1) % n) != h);
+            return null;
+        }
+
+        /**
+         * Returns the nanoseconds until the earliest head among the
+         * home shard and all shards without waiters, or
+         * Long.MAX_VALUE if there is none.
+         */
+        private long nextDelay(int h) {
+            final Shard[] ss = shards;
+            long delay = Long.MAX_VALUE;
+            int n = ss.length, i = h;
+            do {
+                Shard s = ss[i];
+                RunnableScheduledFuture<?> f;
+                if ((i == h || s.waiters.get() == 0) &&
+                    (f = s.heap.peek()) != null) {
+                    long d = f.getDelay(NANOSECONDS);
+                    if (d < delay)
+                        delay = d;
+                }
+            } while ((i = (i + 1) % n) != h);
+            return delay;
+        }
+
+        /**
+         * Takes a due task, waiting on the home shard if none is
+         * available.
+         *
+         * @param timed if true, wait at most nanos
+         * @return the task, or null if timed out
+         */
+        private RunnableScheduledFuture<?> awaitTask(boolean timed, long nanos)
+            throws InterruptedException {
+            final int h = homeIndex();
+            final Shard home = shards[h];
+            final long deadline = timed ? System.nanoTime() + nanos : 0L;
+            boolean waited = false;
+            try {
+                for (;;) {
+                    if (Thread.interrupted())
+                        throw new InterruptedException();
+                    RunnableScheduledFuture<?> f = pollAny(h);
+                    if (f != null)
+                        return f;
+                    if (timed && (nanos = deadline - System.nanoTime()) <= 0L)
+                        return null;
+                    waited = true;
+                    home.waiters.incrementAndGet();
+                    try {
+                        int w = home.wakeups;
+                        long delay = nextDelay(h);
+                        if (delay <= 0L)
+                            continue;
+                        if (timed && nanos < delay)
+                            delay = nanos;
+                        final ReentrantLock lock = home.heap.lock;
+                        lock.lockInterruptibly();
+                        try {
+                            if (home.wakeups == w) {
+                                if (delay == Long.MAX_VALUE)
+                                    home.heap.available.await();
+                                else
+                                    home.heap.available.awaitNanos(delay);
+                            }
+                        } finally {
+                            lock.unlock();
+                        }
+                    } finally {
+                        home.waiters.decrementAndGet();
+                    }
+                }
+            } finally {
+                // On every exit after waiting, including timeout and
+                // interrupt: others skipped this shard while we waited
+                if (waited && home.waiters.get() == 0 &&
+                    home.heap.peek() != null)
+                    wakeOther(h);           // 交接：本分片不再有等待者
+            }
+        }
+
+        public boolean offer(Runnable x) {
+            if (x == null)
+                throw new NullPointerException();
+            RunnableScheduledFuture<?> e = (RunnableScheduledFuture<?>)x;
+            int k = indexFor(e);
+            Shard s = shards[k];
+            if (s.heap.insert(e)) {
+                if (s.waiters.get() > 0)
+                    wake(s);
+                else
+                    wakeOther(k);
+            }
+            return true;
+        }
+
+        public void put(Runnable e) {
+            offer(e);
+        }
+
+        public boolean add(Runnable e) {
+            return offer(e);
+        }
+
+        public boolean offer(Runnable e, long timeout, TimeUnit unit) {
+            return offer(e);
+        }
+
+        public RunnableScheduledFuture<?> poll() {
+            return pollAny(homeIndex());
+        }
+
+        public RunnableScheduledFuture<?> take() throws InterruptedException {
+            return awaitTask(false, 0L);
+        }
+
+        public RunnableScheduledFuture<?> poll(long timeout, TimeUnit unit)
+            throws InterruptedException {
+            return awaitTask(true, unit.toNanos(timeout));
+        }
+
+        public RunnableScheduledFuture<?> peek() {
+            RunnableScheduledFuture<?> first = null;
+            for (Shard s : shards) {
+                RunnableScheduledFuture<?> f = s.heap.peek();
+                if (f != null && (first == null || f.compareTo(first) < 0))
+                    first = f;
+            }
+            return first;
+        }
+
+        public boolean contains(Object x) {
+            return x != null && shardFor(x).heap.contains(x);
+        }
+
+        public boolean remove(Object x) {
+            return x != null && shardFor(x).heap.remove(x);
+        }
+
+        public int size() {
+            int n = 0;
+            for (Shard s : shards)
+                n += s.heap.size();
+            return n;
+        }
+
+        public boolean isEmpty() {
+            for (Shard s : shards)
+                if (s.heap.peek() != null)
+                    return false;
+            return true;
+        }
+
+        public int remainingCapacity() {
+            return Integer.MAX_VALUE;
+        }
+
+        public void clear() {
+            for (Shard s : shards)
+                s.heap.clear();
+        }
+
+        public int drainTo(Collection<? super Runnable> c) {
+            return drainTo(c, Integer.MAX_VALUE);
+        }
+
+        public int drainTo(Collection<? super Runnable> c, int maxElements) {
+            if (c == null)
+                throw new NullPointerException();
+            if (c == this)
+                throw new IllegalArgumentException();
+            int n = 0;
+            for (Shard s : shards) {
+                if (n >= maxElements)
+                    break;
+                n += s.heap.drainTo(c, maxElements - n);
+            }
+            return n;
+        }
+
+        public Object[] toArray() {
+            ArrayList<Object> list = new ArrayList<Object>();
+            for (Shard s : shards)
+                Collections.addAll(list, s.heap.toArray());
+            return list.toArray();
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> T[] toArray(T[] a) {
+            Object[] es = toArray();
+            int n = es.length;
+            if (a.length < n)
+                return (T[]) Arrays.copyOf(es, n, a.getClass());
+            System.arraycopy(es, 0, a, 0, n);
+            if (a.length > n)
+                a[n] = null;
+            return a;
+        }
+
+        public Iterator<Runnable> iterator() {
+            return new Itr(toArray());
+        }
+
+        /**
+         * Snapshot iterator over all shards.
+         */
+        private class Itr implements Iterator<Runnable> {
+            final Object[] array;
+            int cursor = 0;     // index of next element to return
+            int lastRet = -1;   // index of last element, or -1 if no such
+
+            Itr(Object[] array) {
+                this.array = array;
+            }
+
+            public boolean hasNext() {
+                return cursor < array.length;
+            }
+
+            public Runnable next() {
+                if (cursor >= array.length)
+                    throw new NoSuchElementException();
+                lastRet = cursor;
+                return (Runnable) array[cursor++];
+            }
+
+            public void remove() {
+                if (lastRet < 0)
+                    throw new IllegalStateException();
+                ShardedDelayedWorkQueue.this.remove(array[lastRet]);
+                lastRet = -1;
+            }
+        }
+    }
 }
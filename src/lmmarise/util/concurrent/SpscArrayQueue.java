@@ -0,0 +1,223 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package lmmarise.util.concurrent;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * A bounded, non-blocking, array-based FIFO queue for use by exactly
+ * one producer thread and one consumer thread at a time. Because each
+ * index is written by only one thread, insertion and removal need no
+ * atomic read-modify-write instructions: indices are published with
+ * ordered (lazy) stores, and each side keeps a cached copy of the
+ * other side's index, so it reads the other side's cache line only
+ * when the cached value indicates the queue may be full or empty.
+ * 单生产者单消费者有界队列：索引以延迟写（lazySet）发布，各方缓存对方的索引，
+ * 只有缓存值显示队列可能满或空时才读取对方的缓存行。
+ *
+ * <p>Methods {@code offer} and {@code add} may be called only by the
+ * producer, and {@code poll}, {@code remove}, {@code peek}, {@code
+ * element} and {@code clear} only by the consumer; the results of
+ * violating this are undefined. Other methods may be called by any
+ * thread, but {@code size} and iteration give only estimates while
+ * the queue is in use. The capacity is rounded up to the nearest
+ * power of two. Removal of interior elements is not supported. This
+ * queue does not permit null elements.
+ *
+ * <p>To wait for elements or space, wrap this queue in a {@link
+ * BlockingQueueAdapter}.
+ *
+ * @since 1.8
+ * @param <E> the type of elements held in this collection
+ */
+public class SpscArrayQueue<E> extends AbstractQueue<E> {
+
+    final Object[] buffer;
+    final int mask;
+
+    /** Next index to insert at; written only by the producer. */
+    @sun.misc.Contended("producer")
+    volatile long producerIndex;
+
+    /** Producer's bound below which slots are known to be free. */
+    @sun.misc.Contended("producer")
+    long producerLimit;
+
+    /** Next index to remove from; written only by the consumer. */
+    @sun.misc.Contended("consumer")
+    volatile long consumerIndex;
+
+    /** Consumer's bound below which slots are known to be filled. */
+    @sun.misc.Contended("consumer")
+    long consumerLimit;
+
+    /**
+     * Creates a queue with at least the given capacity.
+     *
+     * @param capacity the minimum capacity of this queue
+     * @throws IllegalArgumentException if {@code capacity < 1} or
+     *         {@code capacity > 1 << 30}
+     */
+    public SpscArrayQueue(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30))
+            throw new IllegalArgumentException();
+        int n = (capacity == 1) ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        buffer = new Object[n];
+        mask = n - 1;
+        producerLimit = n;
+    }
+
+    /**
+     * Returns the capacity of this queue.
+     *
+     * @return the capacity of this queue
+     */
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue if there
+     * is space. Must be called only by the producer.
+     *
+     * @return {@code true} if the element was added, else {@code false}
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        long p = producerIndex;
+        if (p >= producerLimit) {
+            producerLimit = consumerIndex + buffer.length;  // 刷新缓存的消费者索引
+            if (p >= producerLimit)
+                return false;
+        }
+        buffer[(int) p & mask] = e;
+        U.putOrderedLong(this, PINDEX, p + 1L);
+        return true;
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, or returns null if
+     * it is empty. Must be called only by the consumer.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long c = consumerIndex;
+        if (c >= consumerLimit) {
+            consumerLimit = producerIndex;      // 刷新缓存的生产者索引
+            if (c >= consumerLimit)
+                return null;
+        }
+        int i = (int) c & mask;
+        E x = (E) buffer[i];
+        buffer[i] = null;
+        U.putOrderedLong(this, CINDEX, c + 1L);
+        return x;
+    }
+
+    /**
+     * Retrieves, but does not remove, the head of this queue, or
+     * returns null if it is empty. Must be called only by the consumer.
+     */
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        long c = consumerIndex;
+        return (c < producerIndex) ? (E) buffer[(int) c & mask] : null;
+    }
+
+    public int size() {
+        for (;;) {
+            long c = consumerIndex, p = producerIndex;
+            if (c == consumerIndex) {
+                long n = p - c;
+                return (n <= 0L) ? 0 :
+                    (n >= buffer.length) ? buffer.length : (int) n;
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return consumerIndex >= producerIndex;
+    }
+
+    /**
+     * Returns an iterator over the elements in this queue, in proper
+     * sequence, based on an estimate of its contents. The iterator
+     * does not support {@code remove}.
+     *
+     * @return an iterator over the elements in this queue
+     */
+    public Iterator<E> iterator() {
+        ArrayList<E> list = new ArrayList<E>();
+        final Object[] buffer = this.buffer;
+        for (long c = consumerIndex, p = producerIndex; c < p; ++c) {
+            @SuppressWarnings("unchecked")
+            E x = (E) U.getObjectVolatile
+                (buffer, ((long) ((int) c & mask) << ASHIFT) + ABASE);
+            if (x != null)
+                list.add(x);
+        }
+        final Iterator<E> it = list.iterator();
+        return new Iterator<E>() {
+            public boolean hasNext() { return it.hasNext(); }
+            public E next() { return it.next(); }
+        };
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe U;
+    private static final long PINDEX;
+    private static final long CINDEX;
+    private static final long ABASE;
+    private static final int ASHIFT;
+    static {
+        try {
+            U = sun.misc.Unsafe.getUnsafe();
+            Class<?> k = SpscArrayQueue.class;
+            PINDEX = U.objectFieldOffset(k.getDeclaredField("producerIndex"));
+            CINDEX = U.objectFieldOffset(k.getDeclaredField("consumerIndex"));
+            ABASE = U.arrayBaseOffset(Object[].class);
+            int scale = U.arrayIndexScale(Object[].class);
+            if ((scale & (scale - 1)) != 0)
+                throw new Error("data type scale not a power of two");
+            ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
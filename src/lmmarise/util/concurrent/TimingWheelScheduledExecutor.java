@@ -0,0 +1,1136 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package lmmarise.util.concurrent;
+
+import lmmarise.util.concurrent.atomic.AtomicInteger;
+import lmmarise.util.concurrent.atomic.AtomicLong;
+import lmmarise.util.concurrent.locks.Condition;
+import lmmarise.util.concurrent.locks.ReentrantLock;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static lmmarise.util.concurrent.TimeUnit.MILLISECONDS;
+import static lmmarise.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * A {@link ScheduledExecutorService} that keeps its delayed tasks in
+ * a hierarchical timing wheel instead of the binary heap used by
+ * {@link ScheduledThreadPoolExecutor}. Scheduling a task is a
+ * lock-free push, and cancelling one is a single state transition,
+ * both O(1) regardless of the number of pending tasks; this suits
+ * workloads that create and cancel very many timeouts, most of
+ * which never fire.
+ *
+ * <p>Time is divided into ticks of a configurable duration (by
+ * default one millisecond). A task runs no earlier than its
+ * requested time and normally within one tick after it, so the
+ * tick duration bounds the timing precision. Tasks due in the same
+ * tick are not necessarily run in submission order.
+ *
+ * <p>Like {@link ScheduledThreadPoolExecutor}, this class extends
+ * {@link ThreadPoolExecutor} with a fixed number of core threads and
+ * an unbounded work queue, which here is the wheel itself; tasks
+ * returned by the scheduling methods implement {@link
+ * RunnableScheduledFuture}. Cancelled tasks are always removed from
+ * the queue, lazily but in constant time, so there is no {@code
+ * removeOnCancel} policy. The run-after-shutdown policies behave as
+ * in {@code ScheduledThreadPoolExecutor}. Tasks cannot be
+ * decorated.
+ *
+ * @since 1.8
+ */
+public class TimingWheelScheduledExecutor
+        extends ThreadPoolExecutor
+        implements ScheduledExecutorService {
+
+    /*
+     * The wheel (class TimingWheelQueue) has LEVELS levels of
+     * 2^bits buckets each. A bucket at level k spans 2^(bits*k)
+     * ticks; a task whose due tick is d ticks ahead of the current
+     * one is placed at the lowest level whose range covers d, in the
+     * bucket indexed by the corresponding bits of its due tick.
+     * Whenever the current tick crosses a multiple of 2^(bits*k),
+     * the level-k bucket for the new period is "cascaded": its tasks
+     * are re-placed, which moves them to lower levels as they get
+     * closer. Tasks beyond the top level's range rest in the top
+     * level and are re-placed once per top-level revolution, which
+     * with the defaults is about 49 days.
+     *
+     * Producers never take the lock: new tasks are pushed onto a
+     * Treiber stack (incoming), and removed tasks are marked by a
+     * CAS of their state and pushed onto a second stack (removed).
+     * Consumers take the lock, and as in DelayedWorkQueue one of
+     * them at a time (the leader) advances the wheel: it drains both
+     * stacks into the wheel, expires every tick up to the current
+     * time into a FIFO ready list, and then waits until the next
+     * non-empty level-0 bucket or next cascade, whichever is first.
+     * Other waiting threads wait indefinitely for a signal.
+     *
+     * A producer signals only if its task is due before the time the
+     * leader will wake up (published in waitState/wakeTime), or if
+     * the task is already due, in which case it is appended directly
+     * to the ready list under the lock. Before waiting, the leader
+     * publishes its wake time and then drains incoming once more, so
+     * either it sees any earlier task or the producer sees the wake
+     * time and signals.
+     */
+
+    /** Default tick duration, in milliseconds */
+    static final long DEFAULT_TICK_MILLIS = 1L;
+
+    /** Default log2 of buckets per level */
+    static final int DEFAULT_WHEEL_BITS = 8;
+
+    /**
+     * False if should cancel/suppress periodic tasks on shutdown.
+     */
+    private volatile boolean continueExistingPeriodicTasksAfterShutdown;
+
+    /**
+     * False if should cancel non-periodic tasks on shutdown.
+     */
+    private volatile boolean executeExistingDelayedTasksAfterShutdown = true;
+
+    /**
+     * Sequence number to break scheduling ties in compareTo.
+     */
+    private static final AtomicLong sequencer = new AtomicLong();
+
+    /** The work queue, typed */
+    final TimingWheelQueue wheel;
+
+    /** Task states */
+    static final int NEW     = 0; // not queued
+    static final int QUEUED  = 1; // in incoming, wheel or ready list
+    static final int TAKEN   = 2; // returned to a worker
+    static final int REMOVED = 3; // removed or cancelled while queued
+
+    /** Values of WheelTask.slot other than bucket indices */
+    static final int UNLINKED = -1;
+    static final int READY    = -2;
+
+    private class WheelTask<V>
+            extends FutureTask<V> implements RunnableScheduledFuture<V> {
+
+        /** Sequence number to break ties */
+        private final long sequenceNumber;
+
+        /** The time the task is enabled to execute in nanoTime units */
+        long time;
+
+        /**
+         * Period in nanoseconds for repeating tasks.  A positive
+         * value indicates fixed-rate execution.  A negative value
+         * indicates fixed-delay execution.  A value of 0 indicates a
+         * non-repeating task.
+         */
+        private final long period;
+
+        // Queue fields; all but state are guarded by the queue lock
+        volatile int state;
+        WheelTask<?> prev, next;       // bucket or ready list links
+        WheelTask<?> nextIncoming;     // incoming stack link
+        WheelTask<?> nextRemoved;      // removed stack link
+        long due;                      // due tick
+        int slot = UNLINKED;           // bucket index, READY or UNLINKED
+
+        WheelTask(Runnable r, V result, long ns, long period) {
+            super(r, result);
+            this.time = ns;
+            this.period = period;
+            this.sequenceNumber = sequencer.getAndIncrement();
+        }
+
+        WheelTask(Callable<V> callable, long ns) {
+            super(callable);
+            this.time = ns;
+            this.period = 0;
+            this.sequenceNumber = sequencer.getAndIncrement();
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - System.nanoTime(), NANOSECONDS);
+        }
+
+        public int compareTo(Delayed other) {
+            if (other == this) // compare zero if same object
+                return 0;
+            if (other instanceof WheelTask) {
+                WheelTask<?> x = (WheelTask<?>) other;
+                long diff = time - x.time;
+                if (diff < 0)
+                    return -1;
+                else if (diff > 0)
+                    return 1;
+                else if (sequenceNumber < x.sequenceNumber)
+                    return -1;
+                else
+                    return 1;
+            }
+            long diff = getDelay(NANOSECONDS) - other.getDelay(NANOSECONDS);
+            return (diff < 0) ? -1 : (diff > 0) ? 1 : 0;
+        }
+
+        public boolean isPeriodic() {
+            return period != 0;
+        }
+
+        final TimingWheelScheduledExecutor executor() {
+            return TimingWheelScheduledExecutor.this;
+        }
+
+        /**
+         * Sets the next time to run for a periodic task.
+         */
+        private void setNextRunTime() {
+            long p = period;
+            if (p > 0)
+                time += p;
+            else
+                time = triggerTime(-p);
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && state == QUEUED)
+                wheel.remove(this);
+            return cancelled;
+        }
+
+        /**
+         * Overrides FutureTask version so as to reset/requeue if periodic.
+         */
+        public void run() {
+            boolean periodic = isPeriodic();
+            if (!canRunInCurrentRunState(periodic))
+                cancel(false);
+            else if (!periodic)
+                WheelTask.super.run();
+            else if (WheelTask.super.runAndReset()) {
+                setNextRunTime();
+                reExecutePeriodic(this);
+            }
+        }
+    }
+
+    /**
+     * Returns true if can run a task given current run state
+     * and run-after-shutdown parameters.
+     */
+    boolean canRunInCurrentRunState(boolean periodic) {
+        return isRunningOrShutdown(periodic ?
+                continueExistingPeriodicTasksAfterShutdown :
+                executeExistingDelayedTasksAfterShutdown);
+    }
+
+    /**
+     * Main execution method for delayed or periodic tasks, as in
+     * ScheduledThreadPoolExecutor.
+     */
+    private void delayedExecute(WheelTask<?> task) {
+        if (isShutdown())
+            reject(task);
+        else {
+            wheel.offer(task);
+            if (isShutdown() &&
+                    !canRunInCurrentRunState(task.isPeriodic()) &&
+                    wheel.remove(task))
+                task.cancel(false);
+            else
+                ensurePrestart();
+        }
+    }
+
+    /**
+     * Requeues a periodic task unless current run state precludes it.
+     */
+    void reExecutePeriodic(WheelTask<?> task) {
+        if (canRunInCurrentRunState(true)) {
+            wheel.offer(task);
+            if (!canRunInCurrentRunState(true) && wheel.remove(task))
+                task.cancel(false);
+            else
+                ensurePrestart();
+        }
+    }
+
+    /**
+     * Cancels and clears the queue of all tasks that should not be
+     * run due to shutdown policy.  Invoked within super.shutdown.
+     */
+    @Override
+    void onShutdown() {
+        boolean keepDelayed =
+                getExecuteExistingDelayedTasksAfterShutdownPolicy();
+        boolean keepPeriodic =
+                getContinueExistingPeriodicTasksAfterShutdownPolicy();
+        for (Object e : wheel.toArray()) {
+            RunnableScheduledFuture<?> t = (RunnableScheduledFuture<?>) e;
+            if ((t.isPeriodic() ? !keepPeriodic : !keepDelayed) ||
+                    t.isCancelled()) {
+                if (wheel.remove(t))
+                    t.cancel(false);
+            }
+        }
+        tryTerminate();
+    }
+
+    /**
+     * Creates a new {@code TimingWheelScheduledExecutor} with the
+     * given core pool size and a tick of one millisecond.
+     *
+     * @param corePoolSize the number of threads to keep in the pool, even
+     *        if they are idle, unless {@code allowCoreThreadTimeOut} is set
+     * @throws IllegalArgumentException if {@code corePoolSize < 0}
+     */
+    public TimingWheelScheduledExecutor(int corePoolSize) {
+        this(corePoolSize, DEFAULT_TICK_MILLIS, MILLISECONDS,
+                Executors.defaultThreadFactory(), new AbortPolicy());
+    }
+
+    /**
+     * Creates a new {@code TimingWheelScheduledExecutor} with the
+     * given core pool size and tick duration.
+     *
+     * @param corePoolSize the number of threads to keep in the pool, even
+     *        if they are idle, unless {@code allowCoreThreadTimeOut} is set
+     * @param tickDuration the timing resolution
+     * @param unit the time unit of the {@code tickDuration} argument
+     * @throws IllegalArgumentException if {@code corePoolSize < 0} or
+     *         {@code tickDuration} is not positive
+     * @throws NullPointerException if {@code unit} is null
+     */
+    public TimingWheelScheduledExecutor(int corePoolSize,
+                                        long tickDuration, TimeUnit unit) {
+        this(corePoolSize, tickDuration, unit,
+                Executors.defaultThreadFactory(), new AbortPolicy());
+    }
+
+    /**
+     * Creates a new {@code TimingWheelScheduledExecutor} with the
+     * given initial parameters.
+     *
+     * @param corePoolSize the number of threads to keep in the pool, even
+     *        if they are idle, unless {@code allowCoreThreadTimeOut} is set
+     * @param tickDuration the timing resolution
+     * @param unit the time unit of the {@code tickDuration} argument
+     * @param threadFactory the factory to use when the executor
+     *        creates a new thread
+     * @param handler the handler to use when execution is blocked
+     *        because the executor has been shut down
+     * @throws IllegalArgumentException if {@code corePoolSize < 0} or
+     *         {@code tickDuration} is not positive
+     * @throws NullPointerException if {@code unit}, {@code threadFactory}
+     *         or {@code handler} is null
+     */
+    public TimingWheelScheduledExecutor(int corePoolSize,
+                                        long tickDuration, TimeUnit unit,
+                                        ThreadFactory threadFactory,
+                                        RejectedExecutionHandler handler) {
+        super(corePoolSize, Integer.MAX_VALUE, 0, NANOSECONDS,
+                new TimingWheelQueue(unit.toNanos(tickDuration),
+                        DEFAULT_WHEEL_BITS),
+                threadFactory, handler);
+        this.wheel = (TimingWheelQueue) super.getQueue();
+    }
+
+    /**
+     * Returns the tick duration, in nanoseconds.
+     *
+     * @return the tick duration
+     */
+    public long getTickNanos() {
+        return wheel.tickNanos;
+    }
+
+    /**
+     * Returns the trigger time of a delayed action.
+     */
+    private long triggerTime(long delay, TimeUnit unit) {
+        return triggerTime(unit.toNanos((delay < 0) ? 0 : delay));
+    }
+
+    /**
+     * Returns the trigger time of a delayed action. Delays are
+     * bounded so that due ticks relative to the wheel's origin
+     * cannot overflow.
+     */
+    long triggerTime(long delay) {
+        return System.nanoTime() +
+                ((delay < (Long.MAX_VALUE >> 2)) ? delay : (Long.MAX_VALUE >> 2));
+    }
+
+    /**
+     * @throws RejectedExecutionException {@inheritDoc}
+     * @throws NullPointerException       {@inheritDoc}
+     */
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        if (command == null || unit == null)
+            throw new NullPointerException();
+        WheelTask<Void> t = new WheelTask<Void>(command, null,
+                triggerTime(delay, unit), 0L);
+        delayedExecute(t);
+        return t;
+    }
+
+    /**
+     * @throws RejectedExecutionException {@inheritDoc}
+     * @throws NullPointerException       {@inheritDoc}
+     */
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable,
+                                           long delay,
+                                           TimeUnit unit) {
+        if (callable == null || unit == null)
+            throw new NullPointerException();
+        WheelTask<V> t = new WheelTask<V>(callable, triggerTime(delay, unit));
+        delayedExecute(t);
+        return t;
+    }
+
+    /**
+     * @throws RejectedExecutionException {@inheritDoc}
+     * @throws NullPointerException       {@inheritDoc}
+     * @throws IllegalArgumentException   {@inheritDoc}
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+                                                  long initialDelay,
+                                                  long period,
+                                                  TimeUnit unit) {
+        if (command == null || unit == null)
+            throw new NullPointerException();
+        if (period <= 0)
+            throw new IllegalArgumentException();
+        WheelTask<Void> t = new WheelTask<Void>(command, null,
+                triggerTime(initialDelay, unit), unit.toNanos(period));
+        delayedExecute(t);
+        return t;
+    }
+
+    /**
+     * @throws RejectedExecutionException {@inheritDoc}
+     * @throws NullPointerException       {@inheritDoc}
+     * @throws IllegalArgumentException   {@inheritDoc}
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+                                                     long initialDelay,
+                                                     long delay,
+                                                     TimeUnit unit) {
+        if (command == null || unit == null)
+            throw new NullPointerException();
+        if (delay <= 0)
+            throw new IllegalArgumentException();
+        WheelTask<Void> t = new WheelTask<Void>(command, null,
+                triggerTime(initialDelay, unit), unit.toNanos(-delay));
+        delayedExecute(t);
+        return t;
+    }
+
+    /**
+     * Executes {@code command} with zero required delay, as for
+     * {@link ScheduledThreadPoolExecutor#execute}. Tasks that are
+     * already due bypass the wheel.
+     *
+     * @throws RejectedExecutionException at discretion of
+     *         {@code RejectedExecutionHandler}, if the task
+     *         cannot be accepted for execution because the
+     *         executor has been shut down
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public void execute(Runnable command) {
+        schedule(command, 0, NANOSECONDS);
+    }
+
+    // Override AbstractExecutorService methods
+
+    /**
+     * @throws RejectedExecutionException {@inheritDoc}
+     * @throws NullPointerException       {@inheritDoc}
+     */
+    public Future<?> submit(Runnable task) {
+        return schedule(task, 0, NANOSECONDS);
+    }
+
+    /**
+     * @throws RejectedExecutionException {@inheritDoc}
+     * @throws NullPointerException       {@inheritDoc}
+     */
+    public <T> Future<T> submit(Runnable task, T result) {
+        return schedule(Executors.callable(task, result), 0, NANOSECONDS);
+    }
+
+    /**
+     * @throws RejectedExecutionException {@inheritDoc}
+     * @throws NullPointerException       {@inheritDoc}
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        return schedule(task, 0, NANOSECONDS);
+    }
+
+    /**
+     * Sets the policy on whether to continue executing existing
+     * periodic tasks even when this executor has been {@code shutdown},
+     * as for {@link
+     * ScheduledThreadPoolExecutor#setContinueExistingPeriodicTasksAfterShutdownPolicy}.
+     * This value is by default {@code false}.
+     *
+     * @param value if {@code true}, continue after shutdown, else don't
+     */
+    public void setContinueExistingPeriodicTasksAfterShutdownPolicy(boolean value) {
+        continueExistingPeriodicTasksAfterShutdown = value;
+        if (!value && isShutdown())
+            onShutdown();
+    }
+
+    /**
+     * Gets the policy on whether to continue executing existing
+     * periodic tasks even when this executor has been {@code shutdown}.
+     * This value is by default {@code false}.
+     *
+     * @return {@code true} if will continue after shutdown
+     */
+    public boolean getContinueExistingPeriodicTasksAfterShutdownPolicy() {
+        return continueExistingPeriodicTasksAfterShutdown;
+    }
+
+    /**
+     * Sets the policy on whether to execute existing delayed
+     * tasks even when this executor has been {@code shutdown}, as
+     * for {@link
+     * ScheduledThreadPoolExecutor#setExecuteExistingDelayedTasksAfterShutdownPolicy}.
+     * This value is by default {@code true}.
+     *
+     * @param value if {@code true}, execute after shutdown, else don't
+     */
+    public void setExecuteExistingDelayedTasksAfterShutdownPolicy(boolean value) {
+        executeExistingDelayedTasksAfterShutdown = value;
+        if (!value && isShutdown())
+            onShutdown();
+    }
+
+    /**
+     * Gets the policy on whether to execute existing delayed
+     * tasks even when this executor has been {@code shutdown}.
+     * This value is by default {@code true}.
+     *
+     * @return {@code true} if will execute after shutdown
+     */
+    public boolean getExecuteExistingDelayedTasksAfterShutdownPolicy() {
+        return executeExistingDelayedTasksAfterShutdown;
+    }
+
+    /**
+     * Returns the task queue used by this executor.  Each element of
+     * this queue is a {@link ScheduledFuture}. Iteration over this
+     * queue is <em>not</em> guaranteed to traverse tasks in the order
+     * in which they will execute.
+     *
+     * @return the task queue
+     */
+    public BlockingQueue<Runnable> getQueue() {
+        return super.getQueue();
+    }
+
+    /**
+     * The timing wheel. To mesh with TPE declarations, this class
+     * must be declared as a BlockingQueue<Runnable> even though it
+     * can only hold WheelTasks of its own executor.
+     */
+    static final class TimingWheelQueue extends AbstractQueue<Runnable>
+            implements BlockingQueue<Runnable> {
+
+        /** Number of levels */
+        static final int LEVELS = 4;
+
+        /** Leader wait states */
+        static final int NO_WAIT = 0, TIMED_WAIT = 1, IDLE_WAIT = 2;
+
+        final long tickNanos;
+        final int bits;
+        final int mask;
+
+        /** Bucket lists, indexed by level * 2^bits + index */
+        final WheelTask<?>[] heads, tails;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition available = lock.newCondition();
+
+        /** Thread designated to advance the wheel; see DelayedWorkQueue */
+        private Thread leader;
+
+        /** System.nanoTime at tick 0 */
+        private long origin;
+
+        /** Next tick to expire */
+        private long tick;
+
+        /** Number of tasks linked into buckets, including removed ones */
+        private int linked;
+
+        /** FIFO list of expired tasks */
+        private WheelTask<?> readyHead, readyTail;
+
+        /** Tasks in the queue, excluding removed ones */
+        private final AtomicInteger count = new AtomicInteger();
+
+        /** Stack of tasks offered but not yet placed in the wheel */
+        volatile WheelTask<?> incoming;
+
+        /** Stack of tasks removed while queued */
+        volatile WheelTask<?> removed;
+
+        /** What the leader is waiting for */
+        volatile int waitState;
+
+        /** When the leader will wake up, if in TIMED_WAIT */
+        volatile long wakeTime;
+
+        TimingWheelQueue(long tickNanos, int bits) {
+            if (tickNanos <= 0L)
+                throw new IllegalArgumentException();
+            this.tickNanos = tickNanos;
+            this.bits = bits;
+            this.mask = (1 << bits) - 1;
+            this.heads = new WheelTask<?>[LEVELS << bits];
+            this.tails = new WheelTask<?>[LEVELS << bits];
+            this.origin = System.nanoTime();
+        }
+
+        // Producer side; lock-free unless the task is already due
+
+        public boolean offer(Runnable x) {
+            if (x == null)
+                throw new NullPointerException();
+            WheelTask<?> t = (WheelTask<?>) x;
+            t.prev = t.next = null;
+            t.slot = UNLINKED;
+            t.state = QUEUED;
+            count.getAndIncrement();
+            if (t.time - System.nanoTime() <= 0L) {
+                final ReentrantLock lock = this.lock;
+                lock.lock();
+                try {
+                    appendReady(t);
+                    available.signal();
+                } finally {
+                    lock.unlock();
+                }
+            } else {
+                WheelTask<?> h;
+                do {
+                    t.nextIncoming = h = incoming;
+                } while (!U.compareAndSwapObject(this, INCOMING, h, t));
+                int ws = waitState;
+                if (ws == IDLE_WAIT ||
+                        (ws == TIMED_WAIT && t.time - wakeTime < 0L))
+                    wakeLeader();
+            }
+            return true;
+        }
+
+        /**
+         * Makes the current leader, or any waiting thread, re-examine
+         * the wheel.
+         */
+        private void wakeLeader() {
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                waitState = NO_WAIT;
+                leader = null;
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void put(Runnable e) {
+            offer(e);
+        }
+
+        public boolean add(Runnable e) {
+            return offer(e);
+        }
+
+        public boolean offer(Runnable e, long timeout, TimeUnit unit) {
+            return offer(e);
+        }
+
+        /**
+         * Removes the given task in constant time, if it is a queued
+         * task of this queue. The task is unlinked lazily by the
+         * leader.
+         */
+        public boolean remove(Object x) {
+            if (!(x instanceof WheelTask))
+                return false;
+            WheelTask<?> t = (WheelTask<?>) x;
+            if (t.executor().wheel != this ||
+                    !U.compareAndSwapInt(t, STATE, QUEUED, REMOVED))
+                return false;
+            count.getAndDecrement();
+            WheelTask<?> h;
+            do {
+                t.nextRemoved = h = removed;
+            } while (!U.compareAndSwapObject(this, REMOVED_HEAD, h, t));
+            return true;
+        }
+
+        public boolean contains(Object x) {
+            return (x instanceof WheelTask) &&
+                    ((WheelTask<?>) x).executor().wheel == this &&
+                    ((WheelTask<?>) x).state == QUEUED;
+        }
+
+        public int size() {
+            int n = count.get();
+            return (n < 0) ? 0 : n;
+        }
+
+        public boolean isEmpty() {
+            return count.get() <= 0;
+        }
+
+        public int remainingCapacity() {
+            return Integer.MAX_VALUE;
+        }
+
+        // Wheel maintenance; call only with lock held
+
+        private void appendReady(WheelTask<?> t) {
+            t.slot = READY;
+            t.next = null;
+            if (readyTail == null)
+                readyHead = readyTail = t;
+            else {
+                readyTail.next = t;
+                readyTail = t;
+            }
+        }
+
+        /**
+         * Pops the first ready task that is still queued, or returns
+         * null if none.
+         */
+        private WheelTask<?> pollReady() {
+            WheelTask<?> t;
+            while ((t = readyHead) != null) {
+                if ((readyHead = t.next) == null)
+                    readyTail = null;
+                t.next = null;
+                t.slot = UNLINKED;
+                if (U.compareAndSwapInt(t, STATE, QUEUED, TAKEN)) {
+                    count.getAndDecrement();
+                    return t;
+                }
+            }
+            return null;
+        }
+
+        private void link(WheelTask<?> t) {
+            long d = t.due - tick;
+            int level = 0;
+            while (level < LEVELS - 1 && (d >>> (bits * (level + 1))) != 0L)
+                ++level;
+            int s = (level << bits) + (int) ((t.due >>> (bits * level)) & mask);
+            WheelTask<?> p = tails[s];
+            t.slot = s;
+            t.next = null;
+            t.prev = p;
+            if (p == null)
+                heads[s] = t;
+            else
+                p.next = t;
+            tails[s] = t;
+        }
+
+        private void unlink(WheelTask<?> t) {
+            int s = t.slot;
+            WheelTask<?> p = t.prev, n = t.next;
+            if (p == null) heads[s] = n; else p.next = n;
+            if (n == null) tails[s] = p; else n.prev = p;
+            t.prev = t.next = null;
+            t.slot = UNLINKED;
+        }
+
+        /**
+         * Places incoming tasks in the wheel.
+         *
+         * @return the earliest due tick among them, or Long.MAX_VALUE
+         */
+        private long transferIncoming() {
+            long first = Long.MAX_VALUE;
+            WheelTask<?> t = (WheelTask<?>) U.getAndSetObject(this, INCOMING, null);
+            while (t != null) {
+                WheelTask<?> n = t.nextIncoming;
+                t.nextIncoming = null;
+                if (t.state == QUEUED) {
+                    long ns = t.time - origin;
+                    long d = (ns <= 0L) ? 0L : (ns + tickNanos - 1L) / tickNanos;
+                    if (d < tick)
+                        d = tick;
+                    t.due = d;
+                    link(t);
+                    ++linked;
+                    if (d < first)
+                        first = d;
+                }
+                t = n;
+            }
+            return first;
+        }
+
+        private void unlinkRemoved() {
+            WheelTask<?> t = (WheelTask<?>) U.getAndSetObject(this, REMOVED_HEAD, null);
+            while (t != null) {
+                WheelTask<?> n = t.nextRemoved;
+                t.nextRemoved = null;
+                if (t.slot >= 0) {
+                    unlink(t);
+                    --linked;
+                }
+                t = n;
+            }
+        }
+
+        /**
+         * Re-places the tasks of bucket s after detaching them.
+         */
+        private void cascade(int s) {
+            WheelTask<?> t = heads[s];
+            heads[s] = tails[s] = null;
+            while (t != null) {
+                WheelTask<?> n = t.next;
+                t.prev = t.next = null;
+                link(t);
+                t = n;
+            }
+        }
+
+        /**
+         * Brings the wheel up to date with time now, moving expired
+         * tasks to the ready list.
+         */
+        private void advance(long now) {
+            if (linked == 0) {      // restart the clock while empty
+                origin = now;
+                tick = 0L;
+            }
+            transferIncoming();
+            unlinkRemoved();
+            while (linked != 0 && now - (origin + tick * tickNanos) >= 0L) {
+                long t = tick;
+                for (int k = 1; k < LEVELS; ++k) {
+                    if ((t & ((1L << (bits * k)) - 1L)) != 0L)
+                        break;
+                    cascade((k << bits) + (int) ((t >>> (bits * k)) & mask));
+                }
+                int s = (int) t & mask;
+                WheelTask<?> x = heads[s];
+                heads[s] = tails[s] = null;
+                while (x != null) {
+                    WheelTask<?> n = x.next;
+                    x.prev = x.next = null;
+                    x.slot = UNLINKED;
+                    --linked;
+                    if (x.state == QUEUED)
+                        appendReady(x);
+                    x = n;
+                }
+                tick = t + 1L;
+            }
+            if (linked == 0) {
+                origin = now;
+                tick = 0L;
+            }
+        }
+
+        /**
+         * Returns the next tick at which the wheel may have work: the
+         * first non-empty level-0 bucket before the next cascade, or
+         * else that cascade.
+         */
+        private long nextEventTick() {
+            long t = tick, end = (t | mask) + 1L;
+            for (; t < end; ++t)
+                if (heads[(int) t & mask] != null)
+                    return t;
+            return end;
+        }
+
+        /**
+         * Takes a ready task, advancing the wheel and waiting as
+         * needed, for at most nanos if timed.
+         */
+        private WheelTask<?> awaitTask(boolean timed, long nanos)
+                throws InterruptedException {
+            final ReentrantLock lock = this.lock;
+            lock.lockInterruptibly();
+            try {
+                for (; ; ) {
+                    WheelTask<?> t;
+                    if ((t = pollReady()) != null)
+                        return t;
+                    if (timed && nanos <= 0L)
+                        return null;
+                    if (leader != null) {
+                        if (timed)
+                            nanos = available.awaitNanos(nanos);
+                        else
+                            available.await();
+                        continue;
+                    }
+                    long now = System.nanoTime();
+                    advance(now);
+                    if (readyHead != null)
+                        continue;
+                    Thread thisThread = Thread.currentThread();
+                    leader = thisThread;
+                    try {
+                        long wait, next;
+                        if (linked == 0) {
+                            next = Long.MAX_VALUE;
+                            waitState = IDLE_WAIT;
+                            wait = Long.MAX_VALUE;
+                        } else {
+                            next = nextEventTick();
+                            wakeTime = origin + next * tickNanos;
+                            waitState = TIMED_WAIT;
+                            wait = wakeTime - now;
+                        }
+                        // recheck tasks offered before waitState was visible
+                        if (transferIncoming() < next) {
+                            waitState = NO_WAIT;
+                            continue;
+                        }
+                        if (timed && nanos < wait)
+                            wait = nanos;
+                        if (wait == Long.MAX_VALUE)
+                            available.await();
+                        else if (wait > 0L) {
+                            long left = available.awaitNanos(wait);
+                            if (timed)
+                                nanos -= wait - left;
+                        }
+                    } finally {
+                        if (leader == thisThread) {
+                            leader = null;
+                            waitState = NO_WAIT;
+                        }
+                    }
+                }
+            } finally {
+                if (leader == null &&
+                        (readyHead != null || linked != 0 || incoming != null))
+                    available.signal();
+                lock.unlock();
+            }
+        }
+
+        public RunnableScheduledFuture<?> take() throws InterruptedException {
+            return awaitTask(false, 0L);
+        }
+
+        public RunnableScheduledFuture<?> poll(long timeout, TimeUnit unit)
+                throws InterruptedException {
+            return awaitTask(true, unit.toNanos(timeout));
+        }
+
+        public RunnableScheduledFuture<?> poll() {
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                WheelTask<?> t = pollReady();
+                if (t == null) {
+                    advance(System.nanoTime());
+                    t = pollReady();
+                }
+                return t;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Returns, without removing, the first expired task, or null
+         * if none has expired.
+         */
+        public RunnableScheduledFuture<?> peek() {
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                advance(System.nanoTime());
+                for (WheelTask<?> t = readyHead; t != null; t = t.next)
+                    if (t.state == QUEUED)
+                        return t;
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Transfers expired tasks.
+         */
+        public int drainTo(Collection<? super Runnable> c) {
+            return drainTo(c, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Transfers at most maxElements expired tasks.
+         */
+        public int drainTo(Collection<? super Runnable> c, int maxElements) {
+            if (c == null)
+                throw new NullPointerException();
+            if (c == this)
+                throw new IllegalArgumentException();
+            if (maxElements <= 0)
+                return 0;
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                advance(System.nanoTime());
+                int n = 0;
+                WheelTask<?> t;
+                while (n < maxElements && (t = pollReady()) != null) {
+                    c.add(t);
+                    ++n;
+                }
+                return n;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void clear() {
+            for (Object t : toArray())
+                remove(t);
+        }
+
+        /**
+         * Returns a snapshot of the queued tasks, in no particular
+         * order.
+         */
+        public Object[] toArray() {
+            ArrayList<Object> a = new ArrayList<Object>(size());
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                for (WheelTask<?> t = readyHead; t != null; t = t.next)
+                    if (t.state == QUEUED)
+                        a.add(t);
+                for (WheelTask<?> h : heads)
+                    for (WheelTask<?> t = h; t != null; t = t.next)
+                        if (t.state == QUEUED)
+                            a.add(t);
+                for (WheelTask<?> t = incoming; t != null; t = t.nextIncoming)
+                    if (t.state == QUEUED)
+                        a.add(t);
+            } finally {
+                lock.unlock();
+            }
+            return a.toArray();
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> T[] toArray(T[] a) {
+            Object[] s = toArray();
+            if (a.length < s.length)
+                a = (T[]) java.lang.reflect.Array.newInstance(
+                        a.getClass().getComponentType(), s.length);
+            System.arraycopy(s, 0, a, 0, s.length);
+            if (a.length > s.length)
+                a[s.length] = null;
+            return a;
+        }
+
+        public Iterator<Runnable> iterator() {
+            return new Itr(toArray());
+        }
+
+        /**
+         * Snapshot iterator that works off copy of underlying q array.
+         */
+        private class Itr implements Iterator<Runnable> {
+            final Object[] array;   // Array of all elements
+            int cursor = 0;         // index of next element to return
+            int lastRet = -1;       // index of last element, or -1 if no such
+
+            Itr(Object[] array) {
+                this.array = array;
+            }
+
+            public boolean hasNext() {
+                return cursor < array.length;
+            }
+
+            public Runnable next() {
+                if (cursor >= array.length)
+                    throw new NoSuchElementException();
+                lastRet = cursor;
+                return (Runnable) array[cursor++];
+            }
+
+            public void remove() {
+                if (lastRet < 0)
+                    throw new IllegalStateException();
+                TimingWheelQueue.this.remove(array[lastRet]);
+                lastRet = -1;
+            }
+        }
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe U;
+    private static final long STATE;
+    private static final long INCOMING;
+    private static final long REMOVED_HEAD;
+
+    static {
+        try {
+            U = sun.misc.Unsafe.getUnsafe();
+            STATE = U.objectFieldOffset
+                    (WheelTask.class.getDeclaredField("state"));
+            Class<?> k = TimingWheelQueue.class;
+            INCOMING = U.objectFieldOffset(k.getDeclaredField("incoming"));
+            REMOVED_HEAD = U.objectFieldOffset(k.getDeclaredField("removed"));
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
@@ -0,0 +1,1341 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package lmmarise.util.concurrent;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+
+import lmmarise.util.concurrent.atomic.AtomicInteger;
+import lmmarise.util.concurrent.locks.Condition;
+import lmmarise.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An optionally-bounded {@linkplain BlockingDeque blocking deque}
+ * based on linked nodes, with separate locks for its two ends.
+ * Unlike {@link LinkedBlockingDeque}, in which one lock guards both
+ * ends, an operation at the first end ordinarily runs concurrently
+ * with an operation at the last end, so a producer adding at one end
+ * does not block a consumer removing at the other.  Only when the
+ * deque holds fewer than three elements, so that the two ends may
+ * touch the same nodes, or is within one element of its capacity,
+ * does an operation acquire both locks.
+ * 首尾两把锁的双端阻塞队列：两端的操作通常互不阻塞，只有元素很少或接近满时才同时获取两把锁。
+ *
+ * <p>The optional capacity bound constructor argument serves as a
+ * way to prevent excessive expansion. The capacity, if unspecified,
+ * is equal to {@link Integer#MAX_VALUE}.
+ *
+ * <p>Most operations run in constant time (ignoring time spent
+ * blocking).  Exceptions include {@link #remove(Object) remove},
+ * {@link #removeFirstOccurrence removeFirstOccurrence}, {@link
+ * #removeLastOccurrence removeLastOccurrence}, {@link #contains
+ * contains}, {@link #iterator iterator.remove()}, and the bulk
+ * operations, all of which run in linear time and acquire both locks.
+ *
+ * <p>This class and its iterator implement all of the
+ * <em>optional</em> methods of the {@link Collection} and {@link
+ * Iterator} interfaces.
+ *
+ * @since 1.8
+ * @param <E> the type of elements held in this collection
+ */
+public class TwoLockLinkedBlockingDeque<E>
+        extends AbstractQueue<E>
+        implements BlockingDeque<E>, java.io.Serializable {
+
+    /*
+     * A doubly-linked list between two sentinel nodes, head and tail,
+     * so that linking and unlinking at the first end writes only
+     * head.next and the prev field of the node after it, and
+     * symmetrically at the last end.  firstLock guards operations at
+     * the first end and lastLock those at the last end.  As in
+     * LinkedBlockingQueue, count is an atomic so that each end can
+     * read it without the other's lock, and is updated under the
+     * lock(s) held by the operation.
+     *
+     * An operation at one end may run concurrently with at most one
+     * operation at the other end.  If count, read under the
+     * operation's own lock, is at least SMALL (3), the two touch
+     * disjoint fields: the other end may have unlinked one node and
+     * not yet decremented count, but at least two nodes remain, and
+     * removing the first of two nodes writes only head.next and the
+     * second's prev, while the other end touches only the second's
+     * next and tail.prev.  For the same reason two insertions racing
+     * at opposite ends could together exceed capacity, so count must
+     * also be below capacity - 1.  Otherwise the operation holds both
+     * locks,
+     * always acquired firstLock before lastLock; an operation at the
+     * last end that finds the deque small releases lastLock first.
+     *
+     * Each end has its own notEmpty and notFull conditions.  As in
+     * LinkedBlockingQueue, an insertion that makes the deque non-empty
+     * signals a take at each end (acquiring the other lock after
+     * releasing its own), and a take that leaves elements behind
+     * signals the next take at its own end; symmetrically for puts
+     * and notFull.  A waiting operation holds only the lock of its
+     * own end while it awaits.
+     *
+     * Removal at an end links the removed node to itself on that
+     * side, which weakly consistent iterators interpret as a jump to
+     * the same end, as in LinkedBlockingDeque.  Iterators and bulk
+     * operations hold both locks.
+     */
+
+    private static final long serialVersionUID = 7238645207340295174L;
+
+    /** Smallest count at which the two ends may proceed independently. */
+    static final int SMALL = 3;
+
+    /** Doubly-linked list node class */
+    static final class Node<E> {
+        /**
+         * The item, or null if this node has been removed or is a
+         * sentinel.
+         */
+        E item;
+
+        /**
+         * One of:
+         * - the real predecessor Node, or the head sentinel
+         * - this Node, meaning the predecessor is the last node
+         */
+        Node<E> prev;
+
+        /**
+         * One of:
+         * - the real successor Node, or the tail sentinel
+         * - this Node, meaning the successor is the first node
+         */
+        Node<E> next;
+
+        Node(E x) {
+            item = x;
+        }
+    }
+
+    /** Sentinel preceding the first node. */
+    transient Node<E> head;
+
+    /** Sentinel following the last node. */
+    transient Node<E> tail;
+
+    /** Maximum number of items in the deque */
+    private final int capacity;
+
+    /** Number of items in the deque */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /** Lock held by operations at the first end */
+    final ReentrantLock firstLock = new ReentrantLock();
+
+    /** Condition for waiting takes at the first end */
+    private final Condition notEmptyFirst = firstLock.newCondition();
+
+    /** Condition for waiting puts at the first end */
+    private final Condition notFullFirst = firstLock.newCondition();
+
+    /** Lock held by operations at the last end */
+    final ReentrantLock lastLock = new ReentrantLock();
+
+    /** Condition for waiting takes at the last end */
+    private final Condition notEmptyLast = lastLock.newCondition();
+
+    /** Condition for waiting puts at the last end */
+    private final Condition notFullLast = lastLock.newCondition();
+
+    /**
+     * Creates a {@code TwoLockLinkedBlockingDeque} with a capacity of
+     * {@link Integer#MAX_VALUE}.
+     */
+    public TwoLockLinkedBlockingDeque() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a {@code TwoLockLinkedBlockingDeque} with the given (fixed)
+     * capacity.
+     *
+     * @param capacity the capacity of this deque
+     * @throws IllegalArgumentException if {@code capacity} is less than 1
+     */
+    public TwoLockLinkedBlockingDeque(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException();
+        this.capacity = capacity;
+        initSentinels();
+    }
+
+    /**
+     * Creates a {@code TwoLockLinkedBlockingDeque} with a capacity of
+     * {@link Integer#MAX_VALUE}, initially containing the elements of
+     * the given collection, added in traversal order of the
+     * collection's iterator.
+     *
+     * @param c the collection of elements to initially contain
+     * @throws NullPointerException if the specified collection or any
+     *         of its elements are null
+     */
+    public TwoLockLinkedBlockingDeque(Collection<? extends E> c) {
+        this(Integer.MAX_VALUE);
+        fullyLock(); // Never contended, but necessary for visibility
+        try {
+            int n = 0;
+            for (E e : c) {
+                if (e == null)
+                    throw new NullPointerException();
+                if (n == capacity)
+                    throw new IllegalStateException("Deque full");
+                linkLast(new Node<E>(e));
+                ++n;
+            }
+            count.set(n);
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    private void initSentinels() {
+        Node<E> h = new Node<E>(null), t = new Node<E>(null);
+        h.next = t;
+        t.prev = h;
+        head = h;
+        tail = t;
+    }
+
+    // Locking
+
+    /**
+     * Locks to prevent all operations.
+     */
+    void fullyLock() {
+        firstLock.lock();
+        lastLock.lock();
+    }
+
+    /**
+     * Unlocks to allow all operations.
+     */
+    void fullyUnlock() {
+        lastLock.unlock();
+        firstLock.unlock();
+    }
+
+    /**
+     * Returns true if, with c elements committed, an operation may
+     * hold only the lock of its own end: at least SMALL elements,
+     * and room for one insertion at each end.
+     */
+    private boolean independent(int c) {
+        return c >= SMALL && c < capacity - 1;
+    }
+
+    /**
+     * Acquires the lock for the given end, and also the other lock if
+     * the deque is small or nearly full.
+     *
+     * @return true if both locks are held
+     */
+    private boolean lockEnd(boolean atFirst) {
+        final AtomicInteger count = this.count;
+        for (;;) {
+            if (!independent(count.get())) {
+                fullyLock();
+                return true;
+            }
+            final ReentrantLock lock = atFirst ? firstLock : lastLock;
+            lock.lock();
+            if (independent(count.get()))
+                return false;
+            if (atFirst) {
+                lastLock.lock();
+                return true;
+            }
+            lock.unlock(); // retry in lock order
+        }
+    }
+
+    /**
+     * Interruptible version of lockEnd.
+     */
+    private boolean lockEndInterruptibly(boolean atFirst)
+        throws InterruptedException {
+        final AtomicInteger count = this.count;
+        for (;;) {
+            if (!independent(count.get())) {
+                firstLock.lockInterruptibly();
+                try {
+                    lastLock.lockInterruptibly();
+                } catch (InterruptedException ie) {
+                    firstLock.unlock();
+                    throw ie;
+                }
+                return true;
+            }
+            final ReentrantLock lock = atFirst ? firstLock : lastLock;
+            lock.lockInterruptibly();
+            if (independent(count.get()))
+                return false;
+            if (atFirst) {
+                try {
+                    lastLock.lockInterruptibly();
+                } catch (InterruptedException ie) {
+                    lock.unlock();
+                    throw ie;
+                }
+                return true;
+            }
+            lock.unlock(); // retry in lock order
+        }
+    }
+
+    /**
+     * Releases the locks acquired by lockEnd or lockEndInterruptibly.
+     */
+    private void unlockEnd(boolean atFirst, boolean both) {
+        if (both)
+            fullyUnlock();
+        else
+            (atFirst ? firstLock : lastLock).unlock();
+    }
+
+    /**
+     * Signals the given condition of the given lock. Called only
+     * while holding no lock other than (possibly) firstLock when
+     * acquiring lastLock.
+     */
+    private static void signal(ReentrantLock lock, Condition cond) {
+        lock.lock();
+        try {
+            cond.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Basic linking and unlinking operations, called only while
+    // holding the lock(s) of the end
+
+    private void linkFirst(Node<E> node) {
+        Node<E> h = head, f = h.next;
+        node.prev = h;
+        node.next = f;
+        f.prev = node;
+        h.next = node;
+    }
+
+    private void linkLast(Node<E> node) {
+        Node<E> t = tail, l = t.prev;
+        node.next = t;
+        node.prev = l;
+        l.next = node;
+        t.prev = node;
+    }
+
+    private E unlinkFirst() {
+        // assert count.get() > 0;
+        Node<E> h = head, f = h.next, n = f.next;
+        E item = f.item;
+        f.item = null;
+        f.next = f; // help GC
+        h.next = n;
+        n.prev = h;
+        return item;
+    }
+
+    private E unlinkLast() {
+        // assert count.get() > 0;
+        Node<E> t = tail, l = t.prev, p = l.prev;
+        E item = l.item;
+        l.item = null;
+        l.prev = l; // help GC
+        t.prev = p;
+        p.next = t;
+        return item;
+    }
+
+    /**
+     * Unlinks interior or end node x. Called only while fully locked.
+     */
+    void unlink(Node<E> x) {
+        Node<E> p = x.prev, n = x.next;
+        if (p == head)
+            unlinkFirst();
+        else if (n == tail)
+            unlinkLast();
+        else {
+            p.next = n;
+            n.prev = p;
+            x.item = null;
+            // Don't mess with x's links.  They may still be in use by
+            // an iterator.
+        }
+        if (count.getAndDecrement() == capacity) {
+            notFullFirst.signal();
+            notFullLast.signal();
+        }
+    }
+
+    // Core insertion and removal
+
+    /**
+     * Inserts e at the given end if there is space, without waiting.
+     */
+    private boolean offerEnd(E e, boolean atFirst) {
+        if (e == null) throw new NullPointerException();
+        final AtomicInteger count = this.count;
+        if (count.get() >= capacity)
+            return false;
+        Node<E> node = new Node<E>(e);
+        int c = -1;
+        boolean both = lockEnd(atFirst);
+        try {
+            if (count.get() < capacity) {
+                if (atFirst) linkFirst(node); else linkLast(node);
+                c = count.getAndIncrement();
+                signalAfterInsert(c, atFirst, both);
+            }
+        } finally {
+            unlockEnd(atFirst, both);
+        }
+        if (c == 0 && !both)
+            signalNotEmpty(!atFirst);
+        return c >= 0;
+    }
+
+    /**
+     * Inserts e at the given end, waiting if necessary (up to the
+     * given time, if timed) for space to become available.
+     *
+     * @return true if inserted, false if timed out
+     */
+    private boolean putEnd(E e, boolean atFirst, boolean timed, long nanos)
+        throws InterruptedException {
+        if (e == null) throw new NullPointerException();
+        final AtomicInteger count = this.count;
+        Node<E> node = new Node<E>(e);
+        boolean both;
+        for (;;) {
+            both = lockEndInterruptibly(atFirst);
+            if (count.get() < capacity)
+                break;
+            // Wait holding only the lock of this end
+            final ReentrantLock lock;
+            final Condition notFull;
+            if (atFirst) {
+                lock = firstLock;
+                notFull = notFullFirst;
+                if (both) lastLock.unlock();
+            } else {
+                lock = lastLock;
+                notFull = notFullLast;
+                if (both) firstLock.unlock();
+            }
+            try {
+                if (!timed)
+                    notFull.await();
+                else if (nanos <= 0L)
+                    return false;
+                else
+                    nanos = notFull.awaitNanos(nanos);
+            } finally {
+                lock.unlock();
+            }
+        }
+        int c;
+        try {
+            if (atFirst) linkFirst(node); else linkLast(node);
+            c = count.getAndIncrement();
+            signalAfterInsert(c, atFirst, both);
+        } finally {
+            unlockEnd(atFirst, both);
+        }
+        if (c == 0 && !both)
+            signalNotEmpty(!atFirst);
+        return true;
+    }
+
+    /**
+     * Removes an element from the given end if present, without
+     * waiting.
+     */
+    private E pollEnd(boolean atFirst) {
+        final AtomicInteger count = this.count;
+        if (count.get() == 0)
+            return null;
+        E x = null;
+        int c = -1;
+        boolean both = lockEnd(atFirst);
+        try {
+            if (count.get() > 0) {
+                x = atFirst ? unlinkFirst() : unlinkLast();
+                c = count.getAndDecrement();
+                signalAfterRemove(c, atFirst, both);
+            }
+        } finally {
+            unlockEnd(atFirst, both);
+        }
+        if (c == capacity && !both)
+            signalNotFull(!atFirst);
+        return x;
+    }
+
+    /**
+     * Removes an element from the given end, waiting if necessary (up
+     * to the given time, if timed) for one to become available.
+     *
+     * @return the element, or null if timed out
+     */
+    private E takeEnd(boolean atFirst, boolean timed, long nanos)
+        throws InterruptedException {
+        final AtomicInteger count = this.count;
+        boolean both;
+        for (;;) {
+            both = lockEndInterruptibly(atFirst);
+            if (count.get() > 0)
+                break;
+            // Wait holding only the lock of this end
+            final ReentrantLock lock;
+            final Condition notEmpty;
+            if (atFirst) {
+                lock = firstLock;
+                notEmpty = notEmptyFirst;
+                if (both) lastLock.unlock();
+            } else {
+                lock = lastLock;
+                notEmpty = notEmptyLast;
+                if (both) firstLock.unlock();
+            }
+            try {
+                if (!timed)
+                    notEmpty.await();
+                else if (nanos <= 0L)
+                    return null;
+                else
+                    nanos = notEmpty.awaitNanos(nanos);
+            } finally {
+                lock.unlock();
+            }
+        }
+        E x;
+        int c;
+        try {
+            x = atFirst ? unlinkFirst() : unlinkLast();
+            c = count.getAndDecrement();
+            signalAfterRemove(c, atFirst, both);
+        } finally {
+            unlockEnd(atFirst, both);
+        }
+        if (c == capacity && !both)
+            signalNotFull(!atFirst);
+        return x;
+    }
+
+    /**
+     * Signals, while holding the lock(s) of the given end, after an
+     * insertion that found c elements. If not holding both locks and
+     * c is zero, the caller must afterwards signalNotEmpty at the
+     * other end.
+     */
+    private void signalAfterInsert(int c, boolean atFirst, boolean both) {
+        if (c + 1 < capacity)
+            (atFirst ? notFullFirst : notFullLast).signal();
+        if (c == 0) {
+            if (atFirst || both)
+                notEmptyFirst.signal();
+            if (!atFirst || both)
+                notEmptyLast.signal();
+        }
+    }
+
+    /**
+     * Signals, while holding the lock(s) of the given end, after a
+     * removal that found c elements. If not holding both locks and
+     * c is capacity, the caller must afterwards signalNotFull at the
+     * other end.
+     */
+    private void signalAfterRemove(int c, boolean atFirst, boolean both) {
+        if (c > 1)
+            (atFirst ? notEmptyFirst : notEmptyLast).signal();
+        if (c == capacity) {
+            if (atFirst || both)
+                notFullFirst.signal();
+            if (!atFirst || both)
+                notFullLast.signal();
+        }
+    }
+
+    /**
+     * Signals a waiting take at the given end. Called holding no locks.
+     */
+    private void signalNotEmpty(boolean atFirst) {
+        if (atFirst)
+            signal(firstLock, notEmptyFirst);
+        else
+            signal(lastLock, notEmptyLast);
+    }
+
+    /**
+     * Signals a waiting put at the given end. Called holding no locks.
+     */
+    private void signalNotFull(boolean atFirst) {
+        if (atFirst)
+            signal(firstLock, notFullFirst);
+        else
+            signal(lastLock, notFullLast);
+    }
+
+    // BlockingDeque methods
+
+    /**
+     * @throws IllegalStateException if this deque is full
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public void addFirst(E e) {
+        if (!offerFirst(e))
+            throw new IllegalStateException("Deque full");
+    }
+
+    /**
+     * @throws IllegalStateException if this deque is full
+     * @throws NullPointerException  {@inheritDoc}
+     */
+    public void addLast(E e) {
+        if (!offerLast(e))
+            throw new IllegalStateException("Deque full");
+    }
+
+    /**
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public boolean offerFirst(E e) {
+        return offerEnd(e, true);
+    }
+
+    /**
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public boolean offerLast(E e) {
+        return offerEnd(e, false);
+    }
+
+    /**
+     * @throws NullPointerException {@inheritDoc}
+     * @throws InterruptedException {@inheritDoc}
+     */
+    public void putFirst(E e) throws InterruptedException {
+        putEnd(e, true, false, 0L);
+    }
+
+    /**
+     * @throws NullPointerException {@inheritDoc}
+     * @throws InterruptedException {@inheritDoc}
+     */
+    public void putLast(E e) throws InterruptedException {
+        putEnd(e, false, false, 0L);
+    }
+
+    /**
+     * @throws NullPointerException {@inheritDoc}
+     * @throws InterruptedException {@inheritDoc}
+     */
+    public boolean offerFirst(E e, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        return putEnd(e, true, true, unit.toNanos(timeout));
+    }
+
+    /**
+     * @throws NullPointerException {@inheritDoc}
+     * @throws InterruptedException {@inheritDoc}
+     */
+    public boolean offerLast(E e, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        return putEnd(e, false, true, unit.toNanos(timeout));
+    }
+
+    /**
+     * @throws NoSuchElementException {@inheritDoc}
+     */
+    public E removeFirst() {
+        E x = pollFirst();
+        if (x == null) throw new NoSuchElementException();
+        return x;
+    }
+
+    /**
+     * @throws NoSuchElementException {@inheritDoc}
+     */
+    public E removeLast() {
+        E x = pollLast();
+        if (x == null) throw new NoSuchElementException();
+        return x;
+    }
+
+    public E pollFirst() {
+        return pollEnd(true);
+    }
+
+    public E pollLast() {
+        return pollEnd(false);
+    }
+
+    public E takeFirst() throws InterruptedException {
+        return takeEnd(true, false, 0L);
+    }
+
+    public E takeLast() throws InterruptedException {
+        return takeEnd(false, false, 0L);
+    }
+
+    public E pollFirst(long timeout, TimeUnit unit)
+        throws InterruptedException {
+        return takeEnd(true, true, unit.toNanos(timeout));
+    }
+
+    public E pollLast(long timeout, TimeUnit unit)
+        throws InterruptedException {
+        return takeEnd(false, true, unit.toNanos(timeout));
+    }
+
+    /**
+     * @throws NoSuchElementException {@inheritDoc}
+     */
+    public E getFirst() {
+        E x = peekFirst();
+        if (x == null) throw new NoSuchElementException();
+        return x;
+    }
+
+    /**
+     * @throws NoSuchElementException {@inheritDoc}
+     */
+    public E getLast() {
+        E x = peekLast();
+        if (x == null) throw new NoSuchElementException();
+        return x;
+    }
+
+    public E peekFirst() {
+        if (count.get() == 0)
+            return null;
+        boolean both = lockEnd(true);
+        try {
+            return head.next.item; // null if tail
+        } finally {
+            unlockEnd(true, both);
+        }
+    }
+
+    public E peekLast() {
+        if (count.get() == 0)
+            return null;
+        boolean both = lockEnd(false);
+        try {
+            return tail.prev.item; // null if head
+        } finally {
+            unlockEnd(false, both);
+        }
+    }
+
+    public boolean removeFirstOccurrence(Object o) {
+        if (o == null) return false;
+        fullyLock();
+        try {
+            for (Node<E> p = head.next; p != tail; p = p.next) {
+                if (o.equals(p.item)) {
+                    unlink(p);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    public boolean removeLastOccurrence(Object o) {
+        if (o == null) return false;
+        fullyLock();
+        try {
+            for (Node<E> p = tail.prev; p != head; p = p.prev) {
+                if (o.equals(p.item)) {
+                    unlink(p);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    // BlockingQueue methods
+
+    /**
+     * Inserts the specified element at the end of this deque unless it would
+     * violate capacity restrictions.  When using a capacity-restricted deque,
+     * it is generally preferable to use method {@link #offer(Object) offer}.
+     *
+     * <p>This method is equivalent to {@link #addLast}.
+     *
+     * @throws IllegalStateException if this deque is full
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean add(E e) {
+        addLast(e);
+        return true;
+    }
+
+    /**
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        return offerLast(e);
+    }
+
+    /**
+     * @throws NullPointerException {@inheritDoc}
+     * @throws InterruptedException {@inheritDoc}
+     */
+    public void put(E e) throws InterruptedException {
+        putLast(e);
+    }
+
+    /**
+     * @throws NullPointerException {@inheritDoc}
+     * @throws InterruptedException {@inheritDoc}
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        return offerLast(e, timeout, unit);
+    }
+
+    /**
+     * Retrieves and removes the head of the queue represented by this deque.
+     * This method differs from {@link #poll poll} only in that it throws an
+     * exception if this deque is empty.
+     *
+     * <p>This method is equivalent to {@link #removeFirst() removeFirst}.
+     *
+     * @return the head of the queue represented by this deque
+     * @throws NoSuchElementException if this deque is empty
+     */
+    public E remove() {
+        return removeFirst();
+    }
+
+    public E poll() {
+        return pollFirst();
+    }
+
+    public E take() throws InterruptedException {
+        return takeFirst();
+    }
+
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return pollFirst(timeout, unit);
+    }
+
+    /**
+     * Retrieves, but does not remove, the head of the queue represented by
+     * this deque.  This method differs from {@link #peek peek} only in that
+     * it throws an exception if this deque is empty.
+     *
+     * <p>This method is equivalent to {@link #getFirst() getFirst}.
+     *
+     * @return the head of the queue represented by this deque
+     * @throws NoSuchElementException if this deque is empty
+     */
+    public E element() {
+        return getFirst();
+    }
+
+    public E peek() {
+        return peekFirst();
+    }
+
+    /**
+     * Returns the number of additional elements that this deque can ideally
+     * (in the absence of memory or resource constraints) accept without
+     * blocking. This is always equal to the initial capacity of this deque
+     * less the current {@code size} of this deque.
+     *
+     * <p>Note that you <em>cannot</em> always tell if an attempt to insert
+     * an element will succeed by inspecting {@code remainingCapacity}
+     * because it may be the case that another thread is about to
+     * insert or remove an element.
+     */
+    public int remainingCapacity() {
+        return capacity - count.get();
+    }
+
+    /**
+     * @throws UnsupportedOperationException {@inheritDoc}
+     * @throws ClassCastException            {@inheritDoc}
+     * @throws NullPointerException          {@inheritDoc}
+     * @throws IllegalArgumentException      {@inheritDoc}
+     */
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @throws UnsupportedOperationException {@inheritDoc}
+     * @throws ClassCastException            {@inheritDoc}
+     * @throws NullPointerException          {@inheritDoc}
+     * @throws IllegalArgumentException      {@inheritDoc}
+     */
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        if (maxElements <= 0)
+            return 0;
+        fullyLock();
+        try {
+            int n = Math.min(maxElements, count.get());
+            int i = 0;
+            try {
+                for (; i < n; i++) {
+                    c.add(head.next.item); // In this order, in case add() throws.
+                    unlinkFirst();
+                }
+                return n;
+            } finally {
+                if (i > 0 && count.getAndAdd(-i) == capacity) {
+                    notFullFirst.signal();
+                    notFullLast.signal();
+                }
+            }
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    // Stack methods
+
+    /**
+     * @throws IllegalStateException if this deque is full
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public void push(E e) {
+        addFirst(e);
+    }
+
+    /**
+     * @throws NoSuchElementException {@inheritDoc}
+     */
+    public E pop() {
+        return removeFirst();
+    }
+
+    // Collection methods
+
+    /**
+     * Removes the first occurrence of the specified element from this deque.
+     * If the deque does not contain the element, it is unchanged.
+     * More formally, removes the first element {@code e} such that
+     * {@code o.equals(e)} (if such an element exists).
+     * Returns {@code true} if this deque contained the specified element
+     * (or equivalently, if this deque changed as a result of the call).
+     *
+     * <p>This method is equivalent to
+     * {@link #removeFirstOccurrence(Object) removeFirstOccurrence}.
+     *
+     * @param o element to be removed from this deque, if present
+     * @return {@code true} if this deque changed as a result of the call
+     */
+    public boolean remove(Object o) {
+        return removeFirstOccurrence(o);
+    }
+
+    /**
+     * Returns the number of elements in this deque.
+     *
+     * @return the number of elements in this deque
+     */
+    public int size() {
+        return count.get();
+    }
+
+    /**
+     * Returns {@code true} if this deque contains the specified element.
+     * More formally, returns {@code true} if and only if this deque contains
+     * at least one element {@code e} such that {@code o.equals(e)}.
+     *
+     * @param o object to be checked for containment in this deque
+     * @return {@code true} if this deque contains the specified element
+     */
+    public boolean contains(Object o) {
+        if (o == null) return false;
+        fullyLock();
+        try {
+            for (Node<E> p = head.next; p != tail; p = p.next)
+                if (o.equals(p.item))
+                    return true;
+            return false;
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    /**
+     * Returns an array containing all of the elements in this deque, in
+     * proper sequence (from first to last element).
+     *
+     * <p>The returned array will be "safe" in that no references to it are
+     * maintained by this deque.  (In other words, this method must allocate
+     * a new array).  The caller is thus free to modify the returned array.
+     *
+     * <p>This method acts as bridge between array-based and collection-based
+     * APIs.
+     *
+     * @return an array containing all of the elements in this deque
+     */
+    public Object[] toArray() {
+        fullyLock();
+        try {
+            Object[] a = new Object[count.get()];
+            int k = 0;
+            for (Node<E> p = head.next; p != tail; p = p.next)
+                a[k++] = p.item;
+            return a;
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    /**
+     * Returns an array containing all of the elements in this deque, in
+     * proper sequence; the runtime type of the returned array is that of
+     * the specified array.  If the deque fits in the specified array, it
+     * is returned therein.  Otherwise, a new array is allocated with the
+     * runtime type of the specified array and the size of this deque.
+     *
+     * <p>If this deque fits in the specified array with room to spare
+     * (i.e., the array has more elements than this deque), the element in
+     * the array immediately following the end of the deque is set to
+     * {@code null}.
+     *
+     * @param a the array into which the elements of the deque are to
+     *          be stored, if it is big enough; otherwise, a new array of the
+     *          same runtime type is allocated for this purpose
+     * @return an array containing all of the elements in this deque
+     * @throws ArrayStoreException if the runtime type of the specified array
+     *         is not a supertype of the runtime type of every element in
+     *         this deque
+     * @throws NullPointerException if the specified array is null
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T[] toArray(T[] a) {
+        fullyLock();
+        try {
+            int size = count.get();
+            if (a.length < size)
+                a = (T[])java.lang.reflect.Array.newInstance
+                    (a.getClass().getComponentType(), size);
+
+            int k = 0;
+            for (Node<E> p = head.next; p != tail; p = p.next)
+                a[k++] = (T)p.item;
+            if (a.length > k)
+                a[k] = null;
+            return a;
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    public String toString() {
+        fullyLock();
+        try {
+            Node<E> p = head.next;
+            if (p == tail)
+                return "[]";
+
+            StringBuilder sb = new StringBuilder();
+            sb.append('[');
+            for (;;) {
+                E e = p.item;
+                sb.append(e == this ? "(this Collection)" : e);
+                p = p.next;
+                if (p == tail)
+                    return sb.append(']').toString();
+                sb.append(',').append(' ');
+            }
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    /**
+     * Atomically removes all of the elements from this deque.
+     * The deque will be empty after this call returns.
+     */
+    public void clear() {
+        fullyLock();
+        try {
+            Node<E> h = head, t = tail;
+            for (Node<E> p = h.next, n; p != t; p = n) {
+                n = p.next;
+                p.item = null;
+                p.next = p; // like unlinkFirst, for iterators
+            }
+            h.next = t;
+            t.prev = h;
+            count.set(0);
+            notFullFirst.signalAll();
+            notFullLast.signalAll();
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over the elements in this deque in proper sequence.
+     * The elements will be returned in order from first (head) to last (tail).
+     *
+     * <p>The returned iterator is
+     * <a href="package-summary.html#Weakly"><i>weakly consistent</i></a>.
+     *
+     * @return an iterator over the elements in this deque in proper sequence
+     */
+    public Iterator<E> iterator() {
+        return new Itr();
+    }
+
+    /**
+     * Returns an iterator over the elements in this deque in reverse
+     * sequential order.  The elements will be returned in order from
+     * last (tail) to first (head).
+     *
+     * <p>The returned iterator is
+     * <a href="package-summary.html#Weakly"><i>weakly consistent</i></a>.
+     *
+     * @return an iterator over the elements in this deque in reverse order
+     */
+    public Iterator<E> descendingIterator() {
+        return new DescendingItr();
+    }
+
+    /**
+     * Base class for Iterators for TwoLockLinkedBlockingDeque
+     */
+    private abstract class AbstractItr implements Iterator<E> {
+        /**
+         * The next node to return in next()
+         */
+        Node<E> next;
+
+        /**
+         * nextItem holds on to item fields because once we claim that
+         * an element exists in hasNext(), we must return item read
+         * under lock (in advance()) even if it was in the process of
+         * being removed when hasNext() was called.
+         */
+        E nextItem;
+
+        /**
+         * Node returned by most recent call to next. Needed by remove.
+         * Reset to null if this element is deleted by a call to remove.
+         */
+        private Node<E> lastRet;
+
+        /** Returns the first node in traversal order, or null if none. */
+        abstract Node<E> firstNode();
+        /** Returns the next link of n in traversal order. */
+        abstract Node<E> nextNode(Node<E> n);
+        /** Returns the sentinel ending traversal. */
+        abstract Node<E> end();
+
+        AbstractItr() {
+            // set to initial position
+            fullyLock();
+            try {
+                next = firstNode();
+                nextItem = (next == null) ? null : next.item;
+            } finally {
+                fullyUnlock();
+            }
+        }
+
+        /**
+         * Returns the successor node of the given non-null, but
+         * possibly previously deleted, node.
+         */
+        private Node<E> succ(Node<E> n) {
+            // Chains of deleted nodes ending in sentinels or self-links
+            // are possible if multiple interior nodes are removed.
+            for (;;) {
+                Node<E> s = nextNode(n);
+                if (s == end())
+                    return null;
+                else if (s == n)
+                    return firstNode();
+                else if (s.item != null)
+                    return s;
+                else
+                    n = s;
+            }
+        }
+
+        /**
+         * Advances next.
+         */
+        void advance() {
+            fullyLock();
+            try {
+                // assert next != null;
+                next = succ(next);
+                nextItem = (next == null) ? null : next.item;
+            } finally {
+                fullyUnlock();
+            }
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public E next() {
+            if (next == null)
+                throw new NoSuchElementException();
+            lastRet = next;
+            E x = nextItem;
+            advance();
+            return x;
+        }
+
+        public void remove() {
+            Node<E> n = lastRet;
+            if (n == null)
+                throw new IllegalStateException();
+            lastRet = null;
+            fullyLock();
+            try {
+                if (n.item != null)
+                    unlink(n);
+            } finally {
+                fullyUnlock();
+            }
+        }
+    }
+
+    /** Forward iterator */
+    private class Itr extends AbstractItr {
+        Node<E> firstNode() {
+            Node<E> f = head.next;
+            return (f == tail) ? null : f;
+        }
+        Node<E> nextNode(Node<E> n) { return n.next; }
+        Node<E> end() { return tail; }
+    }
+
+    /** Descending iterator */
+    private class DescendingItr extends AbstractItr {
+        Node<E> firstNode() {
+            Node<E> l = tail.prev;
+            return (l == head) ? null : l;
+        }
+        Node<E> nextNode(Node<E> n) { return n.prev; }
+        Node<E> end() { return head; }
+    }
+
+    /**
+     * Returns a {@link Spliterator} over the elements in this deque.
+     *
+     * <p>The returned spliterator is
+     * <a href="package-summary.html#Weakly"><i>weakly consistent</i></a>.
+     *
+     * <p>The {@code Spliterator} reports {@link Spliterator#CONCURRENT},
+     * {@link Spliterator#ORDERED}, and {@link Spliterator#NONNULL}.
+     *
+     * @return a {@code Spliterator} over the elements in this deque
+     */
+    public Spliterator<E> spliterator() {
+        return Spliterators.spliterator
+            (this, Spliterator.ORDERED | Spliterator.NONNULL |
+             Spliterator.CONCURRENT);
+    }
+
+    /**
+     * Saves this deque to a stream (that is, serializes it).
+     *
+     * @param s the stream
+     * @throws java.io.IOException if an I/O error occurs
+     * @serialData The capacity (int), followed by elements (each an
+     * {@code Object}) in the proper order, followed by a null
+     */
+    private void writeObject(java.io.ObjectOutputStream s)
+        throws java.io.IOException {
+        fullyLock();
+        try {
+            // Write out capacity and any hidden stuff
+            s.defaultWriteObject();
+            // Write out all elements in the proper order.
+            for (Node<E> p = head.next; p != tail; p = p.next)
+                s.writeObject(p.item);
+            // Use trailing null as sentinel
+            s.writeObject(null);
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    /**
+     * Reconstitutes this deque from a stream (that is, deserializes it).
+     * @param s the stream
+     * @throws ClassNotFoundException if the class of a serialized object
+     *         could not be found
+     * @throws java.io.IOException if an I/O error occurs
+     */
+    private void readObject(java.io.ObjectInputStream s)
+        throws java.io.IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        count.set(0);
+        initSentinels();
+        // Read in all elements and place in queue
+        for (;;) {
+            @SuppressWarnings("unchecked")
+            E item = (E)s.readObject();
+            if (item == null)
+                break;
+            add(item);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package lmmarise.util.concurrent;
+
+/**
+ * A policy for how a thread waits for a condition that is expected
+ * to become true soon, such as a queue becoming non-empty. Waiting
+ * proceeds in up to three phases: busy-spinning, which gives the
+ * lowest handoff latency but occupies a processor; yielding, which
+ * lets other runnable threads in; and parking, which releases the
+ * processor but requires the thread to be unparked, typically
+ * costing several microseconds per handoff.
+ * 等待策略：自旋、让出、挂起三个阶段，用CPU换取更低的交接延迟。
+ *
+ * <p>Strategies are immutable and may be shared among any number of
+ * queues and threads. Strategies that never park are appropriate
+ * only when each waiting thread has a processor to itself.
+ *
+ * @since 1.8
+ * @see BlockingQueueAdapter
+ * @see LinkedBlockingQueue#LinkedBlockingQueue(int, WaitStrategy)
+ * @see ArrayBlockingQueue#ArrayBlockingQueue(int, boolean, WaitStrategy)
+ */
+public final class WaitStrategy {
+
+    /** Number of idle steps spent busy-spinning. */
+    final int spins;
+
+    /** Number of idle steps after spinning spent yielding. */
+    final int yields;
+
+    /** True if waiting eventually parks. */
+    final boolean parks;
+
+    private final String name;
+
+    private WaitStrategy(int spins, int yields, boolean parks, String name) {
+        this.spins = spins;
+        this.yields = yields;
+        this.parks = parks;
+        this.name = name;
+    }
+
+    private static final WaitStrategy BUSY_SPIN =
+        new WaitStrategy(Integer.MAX_VALUE, 0, false, "BusySpin");
+
+    private static final WaitStrategy PARK =
+        new WaitStrategy(0, 0, true, "Park");
+
+    /**
+     * Returns a strategy that spins until the condition holds, never
+     * yielding or parking.
+     *
+     * @return the strategy
+     */
+    public static WaitStrategy busySpin() {
+        return BUSY_SPIN;
+    }
+
+    /**
+     * Returns a strategy that spins for the given number of steps and
+     * then repeatedly yields, never parking. Yielding continues
+     * indefinitely, however long the wait: the step count saturates
+     * rather than wrapping, and every step past the spins yields.
+     *
+     * @param spins the number of steps to spin before yielding
+     * @return the strategy
+     * @throws IllegalArgumentException if spins is negative
+     */
+    public static WaitStrategy spinThenYield(int spins) {
+        if (spins < 0)
+            throw new IllegalArgumentException();
+        return new WaitStrategy(spins, Integer.MAX_VALUE, false,
+                                "SpinThenYield[" + spins + "]");
+    }
+
+    /**
+     * Returns a strategy that spins for the given number of steps,
+     * then yields for the given number of steps, and then parks.
+     *
+     * @param spins the number of steps to spin before yielding
+     * @param yields the number of steps to yield before parking
+     * @return the strategy
+     * @throws IllegalArgumentException if spins or yields is negative
+     */
+    public static WaitStrategy spinThenPark(int spins, int yields) {
+        if (spins < 0 || yields < 0)
+            throw new IllegalArgumentException();
+        return new WaitStrategy(spins, yields, true,
+                                "SpinThenPark[" + spins + ", " + yields + "]");
+    }
+
+    /**
+     * Returns a strategy that parks as soon as the condition does not
+     * hold, as do the blocking methods of the standard queues.
+     *
+     * @return the strategy
+     */
+    public static WaitStrategy park() {
+        return PARK;
+    }
+
+    /**
+     * Performs the given idle step (spinning or yielding), or returns
+     * true if the caller should now park. Callers count steps from
+     * zero and may stop counting at Integer.MAX_VALUE. A strategy
+     * that yields and never parks yields at every step past its
+     * spins, including the saturated one.
+     */
+    boolean idle(int step) {
+        if (step < spins)
+            return false;
+        if (step - spins < yields || (yields != 0 && !parks)) {
+            Thread.yield();
+            return false;
+        }
+        return parks;
+    }
+
+    /**
+     * Returns the next step count, saturating at Integer.MAX_VALUE.
+     */
+    static int next(int step) {
+        return (step == Integer.MAX_VALUE) ? step : step + 1;
+    }
+
+    /**
+     * Returns a string identifying this strategy and its parameters.
+     *
+     * @return a string identifying this strategy
+     */
+    public String toString() {
+        return super.toString() + "[" + name + "]";
+    }
+}
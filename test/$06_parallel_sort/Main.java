@@ -0,0 +1,65 @@
+package $06_parallel_sort;
+
+import lmmarise.util.concurrent.ForkJoinPool;
+import lmmarise.util.concurrent.ParallelArrays;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 顺序与并行排序、前缀和的耗时对比（粗略计时，先预热再取最优值）
+ *
+ * @since 2026/10/18 11:42 PM
+ */
+public class Main {
+    static final int N = 20_000_000;
+    static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        ForkJoinPool pool = new ForkJoinPool();
+        long[] source = new Random(42).longs(N).toArray();
+
+        System.out.println("long[" + N + "], parallelism " + pool.getParallelism());
+        report("Arrays.sort", best(() -> {
+            long[] a = source.clone();
+            long t = System.nanoTime();
+            Arrays.sort(a);
+            return System.nanoTime() - t;
+        }));
+        report("ParallelArrays.parallelSort", best(() -> {
+            long[] a = source.clone();
+            long t = System.nanoTime();
+            ParallelArrays.parallelSort(pool, a);
+            return System.nanoTime() - t;
+        }));
+        report("sequential prefix", best(() -> {
+            long[] a = source.clone();
+            long t = System.nanoTime();
+            for (int i = 1; i < a.length; i++)
+                a[i] += a[i - 1];
+            return System.nanoTime() - t;
+        }));
+        report("ParallelArrays.parallelPrefix", best(() -> {
+            long[] a = source.clone();
+            long t = System.nanoTime();
+            ParallelArrays.parallelPrefix(pool, a, Long::sum);
+            return System.nanoTime() - t;
+        }));
+        pool.shutdown();
+    }
+
+    interface Timed {
+        long run();
+    }
+
+    static long best(Timed timed) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++)   // 前几轮同时用作JIT预热
+            best = Math.min(best, timed.run());
+        return best;
+    }
+
+    static void report(String name, long nanos) {
+        System.out.printf("%-32s %8.2f ms%n", name, nanos / 1e6);
+    }
+}
@@ -0,0 +1,63 @@
+package $07_node_recycling;
+
+import lmmarise.util.concurrent.LinkedBlockingDeque;
+import lmmarise.util.concurrent.LinkedBlockingQueue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 节点复用模式下的迭代器：remove(Object) 移除的节点仍指向原后继，
+ * 该后继出队后不能被复用，否则迭代器会跳过或重复返回元素。
+ * 两种模式的输出应当一致。
+ *
+ * @since 2026/10/19 2:10 PM
+ */
+public class Main {
+
+    public static void main(String[] args) throws InterruptedException {
+        for (boolean recycle : new boolean[] {false, true}) {
+            check("LinkedBlockingQueue recycle=" + recycle,
+                  queue(recycle), "[A, D, E, F, G, H, I, J]");
+            check("LinkedBlockingDeque recycle=" + recycle,
+                  deque(recycle), "[B, D, E]");
+        }
+    }
+
+    static List<String> queue(boolean recycle) throws InterruptedException {
+        LinkedBlockingQueue<String> q = new LinkedBlockingQueue<>(8, recycle);
+        for (String s : new String[] {"A", "B", "C", "D"})
+            q.put(s);
+        Iterator<String> it = q.iterator();
+        q.remove("A");
+        q.take();
+        q.take();
+        for (char c = 'E'; c <= 'J'; c++)
+            q.put(String.valueOf(c));
+        List<String> seen = new ArrayList<>();
+        it.forEachRemaining(seen::add);
+        return seen;
+    }
+
+    static List<String> deque(boolean recycle) {
+        LinkedBlockingDeque<String> d = new LinkedBlockingDeque<>(8, recycle);
+        for (String s : new String[] {"A", "B", "C", "D"})
+            d.addLast(s);
+        Iterator<String> it = d.iterator();
+        it.next();
+        d.remove("B");
+        d.pollFirst();
+        d.pollFirst();
+        d.offerLast("E");
+        List<String> seen = new ArrayList<>();
+        it.forEachRemaining(seen::add);
+        return seen;
+    }
+
+    static void check(String name, List<String> seen, String expected) {
+        System.out.println(name + ": " + seen);
+        if (!seen.toString().equals(expected))
+            throw new AssertionError(name + ": expected " + expected);
+    }
+}
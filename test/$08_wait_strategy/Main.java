@@ -0,0 +1,45 @@
+package $08_wait_strategy;
+
+import lmmarise.util.concurrent.WaitStrategy;
+
+import java.lang.reflect.Method;
+
+/**
+ * 等待步数饱和：next 在 Integer.MAX_VALUE 处停止增长，
+ * spinThenYield 之后每一步都继续让出，永远不要求挂起；
+ * spinThenPark 在让出阶段结束后要求挂起，busySpin 一直自旋。
+ *
+ * @since 2026/10/19 3:40 PM
+ */
+public class Main {
+
+    static Method idle, next;
+
+    public static void main(String[] args) throws Exception {
+        idle = WaitStrategy.class.getDeclaredMethod("idle", int.class);
+        next = WaitStrategy.class.getDeclaredMethod("next", int.class);
+        idle.setAccessible(true);
+        next.setAccessible(true);
+
+        int step = (Integer) next.invoke(null, Integer.MAX_VALUE);
+        check("next(MAX_VALUE)", step, Integer.MAX_VALUE);
+
+        for (int spins : new int[] {0, 16, Integer.MAX_VALUE - 1})
+            check("spinThenYield(" + spins + ")",
+                  idle(WaitStrategy.spinThenYield(spins), step), false);
+        check("spinThenPark(16, 16)",
+              idle(WaitStrategy.spinThenPark(16, 16), step), true);
+        check("busySpin()", idle(WaitStrategy.busySpin(), step), false);
+        check("park()", idle(WaitStrategy.park(), 0), true);
+    }
+
+    static boolean idle(WaitStrategy s, int step) throws Exception {
+        return (Boolean) idle.invoke(s, step);
+    }
+
+    static void check(String name, Object actual, Object expected) {
+        System.out.println(name + ": " + actual);
+        if (!actual.equals(expected))
+            throw new AssertionError(name + ": expected " + expected);
+    }
+}